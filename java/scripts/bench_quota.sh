@@ -0,0 +1,6 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+#compare the free connection check (row scan, COUNT(*), maintained counter) for users with 5, 500 and 50k connections
+#Use a scratch database with sql/src/create_triggers.sql applied
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar QuotaBenchmark $DB_NAME $PGPORT $USER "$@"
@@ -0,0 +1,6 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+#benchmark the depth-3 connection check on synthetic graphs
+#Use a scratch database, optionally pass the edge counts to test
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar ReachabilityBenchmark $DB_NAME $PGPORT $USER "$@"
@@ -0,0 +1,6 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+#benchmark user search (in-memory autocomplete and the trigram query) on data/usr.csv
+#e.g. ./bench_search.sh --lookups 200000
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar UserSearchBenchmark $DB_NAME $PGPORT $USER --csv $DIR/../../data/usr.csv "$@"
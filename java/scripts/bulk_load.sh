@@ -0,0 +1,6 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+#bulk load a csv file into a table from the client side
+#e.g. ./bulk_load.sh usr ../../data/usr.csv --threads 4 --defer-constraints
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar BulkLoader $DB_NAME $PGPORT $USER "$@"
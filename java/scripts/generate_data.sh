@@ -0,0 +1,6 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+#fill a fresh database (create_tables.sql only) with reproducible synthetic data, e.g.
+#./generate_data.sh --users 1000000 --seed 166 --defer-constraints, or --csv <dir> to write files instead
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar DataGenerator $DB_NAME $PGPORT $USER "$@"
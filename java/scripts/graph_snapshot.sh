@@ -0,0 +1,6 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+#write the friend graph snapshot (write <file> [--prune]) or time it against a database load (bench <file>)
+#Needs sql/src/create_triggers.sql applied for the connection_usr_log change counter
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar GraphSnapshot $DB_NAME $PGPORT $USER "$@"
@@ -0,0 +1,6 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+#simulate concurrent users against a scratch database
+#e.g. ./load_driver.sh --sessions 32 --seconds 60 --mix login=10,friends=50,send=20,accept=10,depth=10
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar LoadDriver $DB_NAME $PGPORT $USER "$@"
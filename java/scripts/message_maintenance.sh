@@ -0,0 +1,6 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+#monthly MESSAGE partitions: migrate once, then partition, compact and archive (all does the three)
+#e.g. ./message_maintenance.sh migrate; ./message_maintenance.sh all --retention 12 --dir /var/lib/profnetwork/archive
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar MessagePartitions $DB_NAME $PGPORT $USER "$@"
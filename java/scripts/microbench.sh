@@ -0,0 +1,5 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+#in-process microbenchmarks, no database needed
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar MicroBench "$@"
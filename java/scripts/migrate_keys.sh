@@ -0,0 +1,7 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+#adds integer surrogate keys to a live database: prepare, backfill, index, then measure;
+#contract (exclusive locks, run it when things are quiet) then moves the application to them
+#e.g. ./migrate_keys.sh measure; ./migrate_keys.sh all --batch 5000 --pause 20; ./migrate_keys.sh contract
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar SurrogateKeys $DB_NAME $PGPORT $USER "$@"
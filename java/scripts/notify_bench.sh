@@ -0,0 +1,6 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+#times friend request notifications from the INSERT to the recipient's session
+#Needs sql/src/create_triggers.sql applied; run the menus with -Dprofnetwork.notify=listen to use them
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Notifications $DB_NAME $PGPORT $USER "$@"
@@ -0,0 +1,6 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+#check the query plans of the hot lookups against synthetic data
+#Use a scratch database with sql/src/create_index.sql applied
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar PlanCheck $DB_NAME $PGPORT $USER "$@"
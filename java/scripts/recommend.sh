@@ -0,0 +1,6 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+#recompute "people you may know" for every user into the recommendation table
+#e.g. ./recommend.sh --k 10 --threads 8
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar RecommendationEngine $DB_NAME $PGPORT $USER "$@"
@@ -0,0 +1,6 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+#checks read-your-writes against a streaming replica on $REPLICA_PORT and times how stale replica reads get
+#Run the menus with -Dprofnetwork.replica.port=$REPLICA_PORT to send their reads there
+java -Dprofnetwork.replica.port=$REPLICA_PORT -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar ReadRouter $DB_NAME $PGPORT $USER "$@"
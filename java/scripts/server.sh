@@ -0,0 +1,7 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+#serve the ProfNetwork menus over TCP, one session per client (connect with telnet/nc)
+#listens on localhost only; --bind 0.0.0.0 opens it to the network (logins travel in plain text)
+#e.g. ./server.sh --listen 4545 --pool 16 --stats 10
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar SessionServer $DB_NAME $PGPORT $USER "$@"
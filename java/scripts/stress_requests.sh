@@ -0,0 +1,6 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+#race concurrent friend request sends / accepts / rejects and check the invariants hold
+#Use a scratch database, e.g. ./stress_requests.sh --users 50 --threads 1,2,4,8,16 --seconds 10
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar RequestStress $DB_NAME $PGPORT $USER "$@"
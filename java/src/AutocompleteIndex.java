@@ -0,0 +1,116 @@
+/*
+ * In-process, case-insensitive prefix index over userids for autocomplete and
+ * "did you mean" suggestions, answered in microseconds without a query.
+ *
+ * The ids known at load time sit in one sorted array; a prefix lookup is a
+ * binary search for the first match followed by a scan. Users created later
+ * go into a small sorted map that is merged in at lookup time, so the array
+ * never has to be rebuilt.
+ */
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class AutocompleteIndex {
+
+    static final int LOAD_FETCH_SIZE = 10000;
+    // read from the primary: users added later are only applied if the load saw everything before them
+    static final String LOAD_QUERY = ReadRouter.primary(QueryStats.named("autocomplete.load", "SELECT userid FROM usr"));
+
+    // lower cased keys, sorted, and the userid each one came from
+    private final String[] keys;
+    private final String[] userIds;
+
+    // users added after the load: lower cased key + '\0' + userid -> userid
+    private final TreeMap<String, String> added = new TreeMap<String, String>();
+
+    public AutocompleteIndex(String[] ids) {
+        // sort key + '\0' + id so each id is lower cased only once
+        String[] packed = new String[ids.length];
+        for(int i = 0; i < ids.length; i++) packed[i] = ids[i].toLowerCase() + '\0' + ids[i];
+        Arrays.sort(packed);
+        keys = new String[packed.length];
+        userIds = new String[packed.length];
+        for(int i = 0; i < packed.length; i++) {
+            int split = packed[i].indexOf('\0');
+            keys[i] = packed[i].substring(0, split);
+            userIds[i] = packed[i].substring(split + 1);
+        }
+    }
+
+    /*
+     * Builds the index from every userid in usr.
+     **/
+    public static AutocompleteIndex load(ProfNetwork esql) throws SQLException {
+        final List<String> ids = new ArrayList<String>();
+        esql.executeQueryStreaming(LOAD_QUERY, LOAD_FETCH_SIZE, new RowHandler() {
+            public boolean row(ResultSet rs) throws SQLException {
+                ids.add(rs.getString(1).trim());
+                return true;
+            }
+        });
+        return new AutocompleteIndex(ids.toArray(new String[ids.size()]));
+    }
+
+    public synchronized void add(String userId) {
+        String id = userId.trim();
+        added.put(id.toLowerCase() + '\0' + id, id);
+    }
+
+    public synchronized int size() {
+        return keys.length + added.size();
+    }
+
+    /*
+     * Up to limit userids starting with prefix (ignoring case), in alphabetical order.
+     **/
+    public synchronized List<String> complete(String prefix, int limit) {
+        String p = prefix.trim().toLowerCase();
+        List<String> result = new ArrayList<String>(Math.min(limit, 16));
+        int i = lowerBound(p);
+        Iterator<Map.Entry<String, String>> more = added.tailMap(p).entrySet().iterator();
+        Map.Entry<String, String> next = more.hasNext() ? more.next() : null;
+        while(result.size() < limit) {
+            boolean fromArray = i < keys.length && keys[i].startsWith(p);
+            boolean fromAdded = next != null && next.getKey().startsWith(p);
+            if(!fromArray && !fromAdded) break;
+            if(fromArray && (!fromAdded || keys[i].compareTo(next.getKey()) <= 0)) {
+                result.add(userIds[i++]);
+            }
+            else {
+                result.add(next.getValue());
+                next = more.hasNext() ? more.next() : null;
+            }
+        }
+        return result;
+    }
+
+    /*
+     * Suggestions for something that is not a userid: completions of the longest
+     * prefix of it that matches anyone, but at least minPrefix characters long.
+     **/
+    public List<String> suggest(String text, int minPrefix, int limit) {
+        String t = text.trim();
+        for(int len = t.length(); len >= minPrefix; len--) {
+            List<String> found = complete(t.substring(0, len), limit);
+            if(!found.isEmpty()) return found;
+        }
+        return new ArrayList<String>();
+    }
+
+    private int lowerBound(String key) {
+        int lo = 0, hi = keys.length;
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if(keys[mid].compareTo(key) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+}
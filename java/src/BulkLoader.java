@@ -0,0 +1,380 @@
+/*
+ * Client-side bulk import of CSV files (e.g. data/usr.csv) into a table.
+ *
+ * The file is read on the client, so no server-side path is needed, and line
+ * endings are normalized while reading: \n, \r\n and bare \r all end a record.
+ * Records are grouped into chunks which are loaded in parallel, one transaction
+ * per chunk, over the ProfNetwork connection pool. Each chunk is sent with
+ * COPY ... FROM STDIN when the JDBC driver on the classpath has a CopyManager,
+ * otherwise with batched INSERTs. Optionally the table's foreign keys and
+ * secondary indexes are dropped for the load and rebuilt afterwards.
+ *
+ * Records must not contain line breaks inside quoted fields. Columns that
+ * triggers fill in (the surrogate keys SurrogateKeys adds) are not expected in
+ * the file.
+ *
+ * Other sources of records (e.g. DataGenerator) hand their chunks to
+ * load(Chunks, ...) and get the same parallel load.
+ *
+ * Usage: java BulkLoader <dbname> <port> <user> <table> <csv file>
+ *            [--header] [--threads N] [--chunk N] [--defer-constraints]
+ */
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+public class BulkLoader {
+
+    public static final int DEFAULT_THREADS = 4;
+    public static final int DEFAULT_CHUNK_ROWS = 50000;
+
+    // rows per executeBatch when falling back to INSERTs
+    static final int INSERT_BATCH_SIZE = 1000;
+
+    private final ProfNetwork esql;
+    private final String table;
+    private final int threads;
+    private final int chunkRows;
+
+    // CopyManager(BaseConnection) and CopyManager.copyIn(String, Reader), if the driver has them
+    private final Constructor<?> copyManager;
+    private final Method copyIn;
+
+    // the COPY, and the INSERT used when COPY is not available
+    private String copySql;
+    private String insertSql;
+
+    /*
+     * A source of records, one chunk (newline terminated CSV records) at a
+     * time. Chunks are asked for one after the other, from a single thread.
+     **/
+    public interface Chunks {
+        String next() throws IOException;   // null once there are no more
+    }
+
+    public BulkLoader(ProfNetwork esql, String table, int threads, int chunkRows) {
+        if(!table.matches("[A-Za-z_][A-Za-z0-9_]*"))
+            throw new IllegalArgumentException("Invalid table name: " + table);
+        this.esql = esql;
+        this.table = table;
+        this.threads = threads;
+        this.chunkRows = chunkRows;
+
+        Constructor<?> ctor = null;
+        Method method = null;
+        try {
+            Class<?> manager = Class.forName("org.postgresql.copy.CopyManager");
+            ctor = manager.getConstructor(Class.forName("org.postgresql.core.BaseConnection"));
+            method = manager.getMethod("copyIn", String.class, Reader.class);
+        }
+        catch(Exception e) {
+            // older driver, fall back to batched inserts
+        }
+        this.copyManager = ctor;
+        this.copyIn = method;
+    }
+
+    public boolean usesCopy() {
+        return copyIn != null;
+    }
+
+    /*
+     * Loads the file and returns the number of rows inserted.
+     **/
+    public long load(String file, boolean header, boolean deferConstraints) throws IOException, SQLException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            if(header) reader.readLine();
+            return load(new Chunks() {
+                public String next() throws IOException {
+                    StringBuilder chunk = new StringBuilder();
+                    int chunkCount = 0;
+                    String line;
+                    // readLine treats \n, \r\n and a bare \r as a line terminator
+                    while(chunkCount < chunkRows && (line = reader.readLine()) != null) {
+                        if(line.isEmpty()) continue;
+                        chunk.append(line).append('\n');
+                        chunkCount++;
+                    }
+                    return chunkCount == 0 ? null : chunk.toString();
+                }
+            }, file, deferConstraints);
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    /*
+     * Loads every chunk of the source and returns the number of rows inserted.
+     * source only names it in messages. Deferred foreign keys and indexes are
+     * rebuilt whether or not the load succeeds; the statements that rebuild
+     * them are printed before anything is dropped, so they can be run by hand
+     * if the rebuild itself fails.
+     **/
+    public long load(Chunks chunks, String source, boolean deferConstraints) throws IOException, SQLException {
+        List<String> restore = new ArrayList<String>();
+        if(deferConstraints) {
+            List<String[]> foreignKeys = toArrays(esql.executeQueryAndReturnResult(
+                "SELECT conname, pg_get_constraintdef(oid) FROM pg_constraint WHERE conrelid = CAST(? AS regclass) AND contype = 'f'",
+                table));
+            // secondary indexes are the ones not backing a primary key or unique constraint
+            List<String[]> indexes = toArrays(esql.executeQueryAndReturnResult(
+                "SELECT CAST(i.indexrelid AS regclass), pg_get_indexdef(i.indexrelid) FROM pg_index i " +
+                "LEFT JOIN pg_constraint c ON c.conindid = i.indexrelid " +
+                "WHERE i.indrelid = CAST(? AS regclass) AND c.oid IS NULL",
+                table));
+            for(String[] index : indexes)
+                restore.add(index[1]);
+            // add the keys without checking, then validate them in one pass each;
+            // a partitioned table can only check them as they are added
+            boolean partitioned = MessagePartitions.isPartitioned(esql, table);
+            for(String[] fk : foreignKeys) {
+                if(partitioned) {
+                    restore.add("ALTER TABLE " + table + " ADD CONSTRAINT " + fk[0] + " " + fk[1]);
+                    continue;
+                }
+                restore.add("ALTER TABLE " + table + " ADD CONSTRAINT " + fk[0] + " " + fk[1] + " NOT VALID");
+                restore.add("ALTER TABLE " + table + " VALIDATE CONSTRAINT " + fk[0]);
+            }
+            System.out.println("Deferring " + foreignKeys.size() + " foreign keys and " + indexes.size() +
+                               " indexes, they are rebuilt with:");
+            for(String sql : restore) System.out.println("    " + sql + ";");
+            for(String[] fk : foreignKeys)
+                esql.executeUpdate("ALTER TABLE " + table + " DROP CONSTRAINT " + fk[0]);
+            for(String[] index : indexes)
+                esql.executeUpdate("DROP INDEX " + index[0]);
+        }
+
+        boolean loaded = false;
+        try {
+            long rows = loadChunks(chunks, source);
+            loaded = true;
+            return rows;
+        }
+        finally {
+            if(!restore.isEmpty()) {
+                try {
+                    rebuild(restore);
+                }
+                catch(SQLException e) {
+                    // don't hide why the load failed behind why the rebuild did
+                    if(loaded) throw e;
+                    System.err.println("Rebuilding the deferred foreign keys and indexes failed, run the statements above: " +
+                                       e.getMessage());
+                }
+            }
+        }
+    }
+
+    private long loadChunks(Chunks chunks, String source) throws IOException, SQLException {
+        buildStatements();
+
+        long start = System.nanoTime();
+        long rows = 0;
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        // at most two chunks per worker are held in memory at once
+        final Semaphore inFlight = new Semaphore(threads * 2);
+        List<Future<Long>> results = new ArrayList<Future<Long>>();
+        try {
+            String chunk;
+            while((chunk = chunks.next()) != null) results.add(submit(workers, inFlight, chunk));
+
+            for(Future<Long> result : results) rows += result.get();
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while loading " + source);
+        }
+        catch(ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof SQLException) throw (SQLException) cause;
+            throw new SQLException("Loading " + source + " failed: " + cause);
+        }
+        finally {
+            workers.shutdownNow();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("Loaded %d rows into %s in %.1fs (%.0f rows/s, %d chunks, %s)",
+            rows, table, seconds, rows / Math.max(seconds, 1e-9), results.size(), usesCopy() ? "COPY" : "batched INSERT"));
+        return rows;
+    }
+
+    /*
+     * Runs the statements printed when the constraints were deferred.
+     **/
+    private void rebuild(List<String> restore) throws SQLException {
+        long start = System.nanoTime();
+        for(String sql : restore)
+            esql.executeUpdate(sql);
+        System.out.println(String.format("Rebuilt indexes and foreign keys in %.1fs", (System.nanoTime() - start) / 1e9));
+    }
+
+    private Future<Long> submit(ExecutorService workers, final Semaphore inFlight, final String chunk) throws InterruptedException {
+        inFlight.acquire();
+        return workers.submit(new Callable<Long>() {
+            public Long call() throws Exception {
+                try {
+                    return loadChunk(chunk);
+                }
+                finally {
+                    inFlight.release();
+                }
+            }
+        });
+    }
+
+    /*
+     * Loads one chunk of newline separated CSV records in its own transaction.
+     **/
+    long loadChunk(String chunk) throws Exception {
+        ConnectionPool pool = esql.getWritePool();
+        ConnectionPool.PooledConnection conn = pool.borrow();
+        try {
+            conn.connection.setAutoCommit(false);
+            long rows;
+            if(usesCopy()) {
+                Object manager = copyManager.newInstance(conn.connection);
+                rows = (Long) copyIn.invoke(manager, copySql, new StringReader(chunk));
+            }
+            else {
+                rows = 0;
+                PreparedStatement stmt = conn.prepare(insertSql);
+                BufferedReader lines = new BufferedReader(new StringReader(chunk));
+                String line;
+                while((line = lines.readLine()) != null) {
+                    ProfNetwork.bind(stmt, parseCsv(line).toArray());
+                    stmt.addBatch();
+                    if(++rows % INSERT_BATCH_SIZE == 0) stmt.executeBatch();
+                }
+                stmt.executeBatch();
+            }
+            conn.connection.commit();
+            return rows;
+        }
+        finally {
+            pool.release(conn);
+        }
+    }
+
+    /*
+     * Builds the COPY and an INSERT with one typed placeholder per column, so
+     * the string values from the file are converted by the server the same way
+     * COPY would. Both name the columns, leaving out the trigger-filled ones.
+     **/
+    private void buildStatements() throws SQLException {
+        ConnectionPool pool = esql.getPool();
+        ConnectionPool.PooledConnection conn = pool.borrow();
+        try {
+            ResultSet rs = conn.prepare("SELECT * FROM " + table + " LIMIT 0").executeQuery();
+            ResultSetMetaData rsmd = rs.getMetaData();
+            StringBuilder columns = new StringBuilder();
+            StringBuilder values = new StringBuilder();
+            for(int i = 1; i <= rsmd.getColumnCount(); i++) {
+                if(SurrogateKeys.isDerived(rsmd.getColumnName(i))) continue;
+                if(columns.length() > 0) {
+                    columns.append(", ");
+                    values.append(", ");
+                }
+                columns.append(rsmd.getColumnName(i));
+                values.append("CAST(? AS ").append(rsmd.getColumnTypeName(i)).append(')');
+            }
+            rs.close();
+            copySql = "COPY " + table + " (" + columns + ") FROM STDIN WITH CSV";
+            insertSql = "INSERT INTO " + table + " (" + columns + ") VALUES (" + values + ")";
+        }
+        finally {
+            pool.release(conn);
+        }
+    }
+
+    /*
+     * Splits one CSV record. Like COPY ... CSV, an unquoted empty field is NULL
+     * and a quoted one is the empty string.
+     **/
+    static List<String> parseCsv(String line) {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false, wasQuoted = false;
+        for(int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if(quoted) {
+                if(c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                }
+                else if(c == '"') quoted = false;
+                else field.append(c);
+            }
+            else if(c == '"') {
+                quoted = true;
+                wasQuoted = true;
+            }
+            else if(c == ',') {
+                fields.add(field.length() == 0 && !wasQuoted ? null : field.toString());
+                field.setLength(0);
+                wasQuoted = false;
+            }
+            else field.append(c);
+        }
+        fields.add(field.length() == 0 && !wasQuoted ? null : field.toString());
+        return fields;
+    }
+
+    private static List<String[]> toArrays(List<List<String>> rows) {
+        List<String[]> result = new ArrayList<String[]>(rows.size());
+        for(List<String> row : rows) result.add(row.toArray(new String[row.size()]));
+        return result;
+    }
+
+    public static void main(String[] args) {
+        if(args.length < 5) {
+            System.err.println("Usage: java [-classpath <classpath>] " + BulkLoader.class.getName() +
+                " <dbname> <port> <user> <table> <csv file> [--header] [--threads N] [--chunk N] [--defer-constraints]");
+            return;
+        }
+        boolean header = false, defer = false;
+        int threads = DEFAULT_THREADS, chunk = DEFAULT_CHUNK_ROWS;
+        for(int i = 5; i < args.length; i++) {
+            if(args[i].equals("--header")) header = true;
+            else if(args[i].equals("--defer-constraints")) defer = true;
+            else if(args[i].equals("--threads") && i + 1 < args.length) threads = Integer.parseInt(args[++i]);
+            else if(args[i].equals("--chunk") && i + 1 < args.length) chunk = Integer.parseInt(args[++i]);
+            else {
+                System.err.println("Unrecognized option: " + args[i]);
+                return;
+            }
+        }
+
+        ProfNetwork esql = null;
+        try {
+            Class.forName("org.postgresql.Driver").newInstance();
+            esql = new ProfNetwork(args[0], args[1], args[2], "", threads);
+            new BulkLoader(esql, args[3], threads, chunk).load(args[4], header, defer);
+        }
+        catch(Exception e) {
+            System.err.println(e.getMessage());
+        }
+        finally {
+            if(esql != null) esql.cleanup();
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * A small bounded pool of physical database connections used by ProfNetwork
+ * in place of the single shared connection. Each pooled connection keeps its
+ * own cache of PreparedStatements keyed by SQL text, so the server only has to
+ * parse and plan a given query once per connection. The 7.3 driver fills in
+ * parameters on the client unless a statement is switched to server-side
+ * PREPARE, so cached queries and DML are; DDL, EXPLAIN and the like can't be
+ * PREPAREd and go as they are.
+ */
+
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+public class ConnectionPool {
+
+    // how long a caller waits for a free connection before giving up
+    public static final long DEFAULT_BORROW_TIMEOUT_MILLIS = 30000;
+
+    // how many prepared statements each connection keeps around
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 64;
+
+    // the statements the server can PREPARE
+    private static final Pattern PREPARABLE =
+        Pattern.compile("^\\s*(SELECT|INSERT|UPDATE|DELETE|WITH|VALUES)\\b", Pattern.CASE_INSENSITIVE);
+
+    // PGStatement.setUseServerPrepare, looked up at runtime so compiling needs no driver
+    private static final Method SET_USE_SERVER_PREPARE = serverPrepareMethod();
+
+    private final String url;
+    private final String user;
+    private final String passwd;
+    private final int maxSize;
+    private final int statementCacheSize;
+    private final long borrowTimeoutMillis;
+
+    private final BlockingQueue<PooledConnection> idle;
+    private final List<PooledConnection> all = new ArrayList<PooledConnection>();
+    private volatile boolean closed = false;
+
+    // off until the caller knows the parameters match the column types, see setServerPrepare
+    private volatile boolean serverPrepare = false;
+
+    // metrics
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong borrowWaitNanos = new AtomicLong();
+    private final AtomicLong maxBorrowWaitNanos = new AtomicLong();
+    private final AtomicLong statementHits = new AtomicLong();
+    private final AtomicLong statementMisses = new AtomicLong();
+
+    public ConnectionPool(String url, String user, String passwd, int maxSize) {
+        this(url, user, passwd, maxSize, DEFAULT_STATEMENT_CACHE_SIZE, DEFAULT_BORROW_TIMEOUT_MILLIS);
+    }
+
+    public ConnectionPool(String url, String user, String passwd, int maxSize,
+                          int statementCacheSize, long borrowTimeoutMillis) {
+        if(maxSize < 1) throw new IllegalArgumentException("pool size must be at least 1");
+        this.url = url;
+        this.user = user;
+        this.passwd = passwd;
+        this.maxSize = maxSize;
+        this.statementCacheSize = statementCacheSize;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.idle = new ArrayBlockingQueue<PooledConnection>(maxSize);
+    }
+
+    /*
+     * Hands out an idle connection, opening a new one if the pool has not reached
+     * its maximum size yet, otherwise blocks until one is returned.
+     **/
+    public PooledConnection borrow() throws SQLException {
+        if(closed) throw new SQLException("Connection pool is closed");
+        long start = System.nanoTime();
+        PooledConnection conn = idle.poll();
+        if(conn == null) conn = openIfRoom();
+        if(conn == null) {
+            waiting.incrementAndGet();
+            try {
+                conn = idle.poll(borrowTimeoutMillis, TimeUnit.MILLISECONDS);
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a database connection");
+            }
+            finally {
+                waiting.decrementAndGet();
+            }
+            if(conn == null)
+                throw new SQLException("Timed out after " + borrowTimeoutMillis + "ms waiting for a database connection");
+        }
+        recordBorrow(System.nanoTime() - start);
+        active.incrementAndGet();
+        return conn;
+    }
+
+    /*
+     * Returns a borrowed connection to the pool. Connections that went bad are
+     * dropped so that a fresh one is opened on the next borrow.
+     **/
+    public void release(PooledConnection conn) {
+        if(conn == null) return;
+        active.decrementAndGet();
+        boolean usable;
+        try {
+            usable = !closed && !conn.connection.isClosed();
+            if(usable && !conn.connection.getAutoCommit()) {
+                // never hand out a connection in the middle of someone else's transaction
+                conn.connection.rollback();
+                conn.connection.setAutoCommit(true);
+            }
+        }
+        catch(SQLException e) {
+            usable = false;
+        }
+        if(!usable || !idle.offer(conn)) discard(conn);
+    }
+
+    public void close() {
+        closed = true;
+        synchronized(all) {
+            for(PooledConnection conn : all) conn.closeQuietly();
+            all.clear();
+        }
+        idle.clear();
+    }
+
+    /*
+     * Opens a connection that is not part of the pool and doesn't count against
+     * its size, for a long-lived user such as the Notifications listener. The
+     * caller closes it.
+     **/
+    public Connection openUnpooled() throws SQLException {
+        return DriverManager.getConnection(url, user, passwd);
+    }
+
+    private PooledConnection openIfRoom() throws SQLException {
+        synchronized(all) {
+            if(all.size() >= maxSize) return null;
+            PooledConnection conn = new PooledConnection(DriverManager.getConnection(url, user, passwd));
+            all.add(conn);
+            return conn;
+        }
+    }
+
+    private void discard(PooledConnection conn) {
+        synchronized(all) {
+            all.remove(conn);
+        }
+        conn.closeQuietly();
+    }
+
+    private static Method serverPrepareMethod() {
+        try {
+            return Class.forName("org.postgresql.PGStatement").getMethod("setUseServerPrepare", boolean.class);
+        }
+        catch(Exception e) {
+            return null;
+        }
+    }
+
+    /*
+     * Whether statements prepared from now on are PREPAREd on the server. The
+     * driver declares string parameters as text there, and a char(n) column
+     * compared with text skips its index, so this is only turned on once the
+     * id columns are varchar (see SurrogateKeys.contract).
+     **/
+    public void setServerPrepare(boolean on) {
+        serverPrepare = on;
+    }
+
+    /*
+     * Asks the driver to PREPARE the statement on the server, so it is parsed
+     * and planned once and only EXECUTEd afterwards. A driver without the
+     * switch keeps binding on the client.
+     **/
+    private void useServerPrepare(PreparedStatement stmt, String sql) {
+        if(!serverPrepare || SET_USE_SERVER_PREPARE == null || !PREPARABLE.matcher(sql).find()
+           || !SET_USE_SERVER_PREPARE.getDeclaringClass().isInstance(stmt)) return;
+        try {
+            SET_USE_SERVER_PREPARE.invoke(stmt, true);
+        }
+        catch(Exception e) {
+            // ignored, the statement still works bound on the client.
+        }
+    }
+
+    private void recordBorrow(long waitNanos) {
+        borrows.incrementAndGet();
+        borrowWaitNanos.addAndGet(waitNanos);
+        long max = maxBorrowWaitNanos.get();
+        while(waitNanos > max && !maxBorrowWaitNanos.compareAndSet(max, waitNanos))
+            max = maxBorrowWaitNanos.get();
+    }
+
+    // pool metrics
+
+    public int getMaxSize() { return maxSize; }
+    public int getActiveCount() { return active.get(); }
+    public int getIdleCount() { return idle.size(); }
+    // callers blocked in borrow() waiting for a connection
+    public int getWaitingCount() { return waiting.get(); }
+    public long getBorrowCount() { return borrows.get(); }
+
+    public double getAverageBorrowWaitMillis() {
+        long n = borrows.get();
+        return n == 0 ? 0.0 : borrowWaitNanos.get() / (n * 1000000.0);
+    }
+
+    public double getMaxBorrowWaitMillis() {
+        return maxBorrowWaitNanos.get() / 1000000.0;
+    }
+
+    public double getStatementCacheHitRate() {
+        long hits = statementHits.get();
+        long total = hits + statementMisses.get();
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    public String statsSummary() {
+        return String.format("pool: active=%d idle=%d waiting=%d max=%d borrows=%d avgWait=%.3fms maxWait=%.3fms stmtCacheHitRate=%.1f%%",
+                getActiveCount(), getIdleCount(), getWaitingCount(), maxSize, getBorrowCount(),
+                getAverageBorrowWaitMillis(), getMaxBorrowWaitMillis(), getStatementCacheHitRate() * 100);
+    }
+
+    /*
+     * A physical connection plus its per-connection prepared statement cache.
+     * Only one thread uses a PooledConnection at a time, so the cache is not synchronized.
+     **/
+    public class PooledConnection {
+        public final Connection connection;
+        private final LinkedHashMap<String, PreparedStatement> statements;
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+            // access-ordered so the least recently used statement is evicted first
+            this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true);
+        }
+
+        /*
+         * Returns a cached PreparedStatement for the given SQL text, preparing it on a miss.
+         * Callers must not close the statement; the pool owns it.
+         **/
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement stmt = statements.get(sql);
+            if(stmt != null) {
+                statementHits.incrementAndGet();
+                stmt.clearParameters();
+                return stmt;
+            }
+            statementMisses.incrementAndGet();
+            stmt = connection.prepareStatement(sql);
+            useServerPrepare(stmt, sql);
+            statements.put(sql, stmt);
+            if(statements.size() > statementCacheSize) {
+                Iterator<Map.Entry<String, PreparedStatement>> eldest = statements.entrySet().iterator();
+                closeQuietly(eldest.next().getValue());
+                eldest.remove();
+            }
+            return stmt;
+        }
+
+        // the pool this connection goes back to
+        public ConnectionPool getPool() {
+            return ConnectionPool.this;
+        }
+
+        void closeQuietly() {
+            for(PreparedStatement stmt : statements.values()) closeQuietly(stmt);
+            statements.clear();
+            try {
+                connection.close();
+            }
+            catch(SQLException e) {
+                // ignored.
+            }
+        }
+
+        private void closeQuietly(PreparedStatement stmt) {
+            try {
+                stmt.close();
+            }
+            catch(SQLException e) {
+                // ignored.
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * A user's free connection quota: how many connections (friend or pending,
+ * either direction) they have and how many of the FREE_CONNECTIONS they can
+ * still make without the depth check.
+ *
+ * The count is read from connection_count, which the trigger in
+ * create_triggers.sql maintains, so this is a single primary key lookup no
+ * matter how many connections the user has.
+ */
+
+import java.sql.SQLException;
+
+public final class ConnectionQuota {
+
+    static final String COUNT_QUERY = QueryStats.named("quota.load",
+        "SELECT connections FROM connection_count WHERE userid = ?");
+
+    public final String userId;
+    public final long used;
+    public final int limit;
+
+    ConnectionQuota(String userId, long used, int limit) {
+        this.userId = userId;
+        this.used = used;
+        this.limit = limit;
+    }
+
+    public static ConnectionQuota of(ProfNetwork esql, String userId) throws SQLException {
+        // no row means no connections yet
+        return new ConnectionQuota(userId, esql.queryForLong(COUNT_QUERY, userId), ProfNetworkService.FREE_CONNECTIONS);
+    }
+
+    public int remaining() {
+        return (int) Math.max(0, limit - used);
+    }
+
+    public boolean isExhausted() {
+        return used >= limit;
+    }
+}
@@ -0,0 +1,504 @@
+/*
+ * Deterministic generator of synthetic data for USR, CONNECTION_USR, MESSAGE,
+ * WORK_EXPR and EDUCATIONAL_DETAILS, at any scale.
+ *
+ * Every value in a row is a function of the seed and the row's position, so a
+ * seed and a set of sizes always give the same database, whatever the thread
+ * count. Rows are produced a chunk at a time while BulkLoader sends the
+ * previous ones (COPY ... FROM STDIN when the driver has it), so memory stays
+ * bounded at a few chunks per thread whatever the size. --csv writes the same
+ * rows to files instead, to load later with bulk_load.sh or COPY.
+ *
+ *  - usr: "First_Last<n>" userids from name lists, so prefix and trigram
+ *    search see realistic text.
+ *  - connection_usr: a scale-free friend graph. Users are ranked, and the user
+ *    of rank r links to about --avg-friends / 2 users of lower rank, drawing
+ *    rank j from [0, r) as r * u^((gamma - 1) / (gamma - 2)) for uniform u.
+ *    Low ranks collect links from everyone after them, which makes the degree
+ *    distribution a power law with exponent gamma (default 2.5). Ranks are
+ *    spread over the userids by a fixed permutation, so the hubs are not all
+ *    at one end of the key space. A share of the rows are pending requests.
+ *  - message: the number of messages a user sends is Pareto distributed (most
+ *    send a few, some send thousands). Most go to a few of their friends,
+ *    skewed towards the first, the rest to anyone; times are spread over
+ *    --days before a fixed end date, older ones mostly read.
+ *  - work_expr / educational_details: up to four consecutive jobs and up to
+ *    three degrees per user, working back from the end date.
+ *
+ * Load into a database made by create_tables.sql, before create_index.sql and
+ * create_triggers.sql as in create_db.sh: triggers would fire for every row.
+ * message_msgid_seq is moved past the generated msgIds afterwards. If message
+ * is partitioned, the months the messages span get their partitions first.
+ *
+ * Usage: java DataGenerator <dbname> <port> <user> [--users N] [--seed S]
+ *            [--avg-friends F] [--gamma G] [--messages-per-user M] [--days D]
+ *            [--tables usr,connection_usr,...] [--prefix P] [--threads N]
+ *            [--chunk N] [--defer-constraints] [--csv <dir>]
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+
+public class DataGenerator {
+
+    public static final int DEFAULT_USERS = 100000;
+    public static final long DEFAULT_SEED = 166;
+    public static final int DEFAULT_AVG_FRIENDS = 20;
+    public static final double DEFAULT_GAMMA = 2.5;
+    public static final int DEFAULT_MESSAGES_PER_USER = 20;
+    public static final int DEFAULT_DAYS = 365;
+
+    static final List<String> TABLES = Arrays.asList("usr", "connection_usr", "message", "work_expr", "educational_details");
+
+    // share of connection_usr rows that are requests not yet answered
+    static final double PENDING_SHARE = 0.05;
+    // share of messages sent to someone who is not a friend
+    static final double STRANGER_SHARE = 0.1;
+    // Pareto shape of the messages sent per user, and the cap as a multiple of the mean
+    static final double MESSAGE_SHAPE = 1.5;
+    static final int MESSAGE_CAP = 1000;
+
+    // all dates count back from here (2026-01-01), so the output does not depend on today
+    static final long END_EPOCH_DAY = 20454;
+
+    // salts keeping the per-table random streams of one user apart
+    static final long USER_SALT = 1, FRIEND_SALT = 2, MESSAGE_SALT = 3, WORK_SALT = 4, SCHOOL_SALT = 5;
+
+    static final String[] FIRST_NAMES = {
+        "Ava", "Liam", "Mia", "Noah", "Emma", "Ethan", "Olivia", "Lucas", "Sofia", "Mateo", "Amelia", "Kai",
+        "Isla", "Omar", "Zoe", "Hiro", "Priya", "Diego", "Nora", "Yusuf", "Lena", "Arjun", "Chloe", "Felix",
+        "Mei", "Tariq", "Ines", "Jonas", "Aisha", "Marco", "Freya", "Ravi", "Elena", "Kofi", "Sara", "Theo" };
+    static final String[] LAST_NAMES = {
+        "Smith", "Garcia", "Chen", "Patel", "Kim", "Nguyen", "Muller", "Rossi", "Silva", "Kowalski", "Okafor",
+        "Tanaka", "Haddad", "Johansson", "Dubois", "Novak", "Ivanova", "Moreno", "Singh", "Lopez", "Walker",
+        "Cohen", "Sato", "Fischer", "Jensen", "Costa", "Murphy", "Ali", "Park", "Reyes", "Hughes", "Weber" };
+    static final String[] DOMAINS = { "example.com", "mail.test", "inbox.example.org", "post.example.net" };
+    static final String[] COMPANIES = {
+        "Acme", "Initech", "Globex", "Umbrella", "Hooli", "Stark Industries", "Wayne Enterprises", "Tyrell",
+        "Cyberdyne", "Soylent", "Wonka", "Aperture", "Vandelay", "Oscorp", "Pied Piper", "Massive Dynamic",
+        "Dunder Mifflin", "Gringotts", "Monarch", "Nakatomi", "Prestige Worldwide", "Wernham Hogg", "Blue Sun",
+        "Los Pollos Hermanos", "Sterling Cooper", "Bluth Company", "Krusty Krab", "Virtucon", "Spacely", "Cogswell" };
+    static final String[] ROLES = {
+        "Software Engineer", "Data Analyst", "Product Manager", "Designer", "Sales Associate", "Accountant",
+        "Research Scientist", "Support Specialist", "Marketing Lead", "Operations Manager", "Consultant",
+        "Database Administrator", "Recruiter", "Technical Writer", "QA Engineer", "Intern" };
+    static final String[] LOCATIONS = {
+        "Riverside", "Los Angeles", "San Francisco", "Seattle", "Austin", "New York", "Chicago", "Boston",
+        "Toronto", "London", "Berlin", "Bangalore", "Singapore", "Sydney", "Remote" };
+    static final String[] SCHOOLS = {
+        "UC Riverside", "UC Irvine", "UCLA", "UC Berkeley", "Stanford", "MIT", "Georgia Tech", "UT Austin",
+        "University of Washington", "Carnegie Mellon", "Cal Poly", "San Jose State", "Purdue", "Michigan" };
+    static final String[] MAJORS = {
+        "Computer Science", "Mathematics", "Physics", "Economics", "Biology", "Chemistry", "Psychology",
+        "Electrical Engineering", "Mechanical Engineering", "History", "English", "Statistics", "Business" };
+    static final String[] DEGREES = { "Bachelor of Science", "Master of Science", "PhD" };
+    static final String[] WORDS = {
+        "hey", "hi", "thanks", "great", "meeting", "tomorrow", "today", "project", "lunch", "call", "sure",
+        "sounds", "good", "see", "you", "the", "a", "at", "on", "for", "and", "with", "about", "interview",
+        "job", "team", "update", "question", "deadline", "coffee", "weekend", "presentation", "congrats",
+        "welcome", "let", "me", "know", "when", "are", "free", "is", "this", "still", "open", "role", "resume" };
+
+    /*
+     * SplitMix64, seeded from (seed, salt, row), so each user's rows come out
+     * the same wherever and whenever they are generated.
+     **/
+    static final class Rng {
+        private long state;
+
+        Rng(long seed, long salt, long row) {
+            state = mix(seed ^ mix(salt * 0x9E3779B97F4A7C15L + row));
+        }
+
+        long nextLong() {
+            return mix(state += 0x9E3779B97F4A7C15L);
+        }
+
+        // in [0, 1)
+        double nextDouble() {
+            return (nextLong() >>> 11) * 0x1.0p-53;
+        }
+
+        int nextInt(int bound) {
+            return (int) ((nextLong() >>> 33) % bound);
+        }
+
+        <T> T pick(T[] values) {
+            return values[nextInt(values.length)];
+        }
+
+        static long mix(long z) {
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            return z ^ (z >>> 31);
+        }
+    }
+
+    private final long seed;
+    private final int users;
+    private final int avgFriends;
+    private final double gamma;
+    private final int messagesPerUser;
+    private final int days;
+    private final String prefix;
+
+    // x -> (x * multiplier + increment) mod 2^bits, walked until it lands below users
+    private final long permutationMask;
+    private final long permutationMultiplier;
+    private final long permutationIncrement;
+
+    // the msgId of the next message, they are handed out in generation order
+    private long nextMsgId = 1;
+
+    public DataGenerator(long seed, int users, int avgFriends, double gamma, int messagesPerUser, int days, String prefix) {
+        if(gamma <= 2.0) throw new IllegalArgumentException("gamma must be above 2, was " + gamma);
+        this.seed = seed;
+        this.users = users;
+        this.avgFriends = avgFriends;
+        this.gamma = gamma;
+        this.messagesPerUser = messagesPerUser;
+        this.days = days;
+        this.prefix = prefix;
+        int bits = 1;
+        while((1L << bits) < users) bits++;
+        this.permutationMask = (1L << bits) - 1;
+        // any odd multiplier makes the map a bijection on [0, 2^bits)
+        Rng rng = new Rng(seed, 0, 0);
+        this.permutationMultiplier = (rng.nextLong() & permutationMask) | 1;
+        this.permutationIncrement = rng.nextLong() & permutationMask;
+    }
+
+    /*
+     * Where a rank lands among the userids: a bijection on [0, users), by cycle
+     * walking an affine map on the next power of two.
+     **/
+    int permute(int rank) {
+        long x = rank;
+        do {
+            x = (x * permutationMultiplier + permutationIncrement) & permutationMask;
+        } while(x >= users);
+        return (int) x;
+    }
+
+    String userId(int rank) {
+        int n = permute(rank);
+        Rng rng = new Rng(seed, USER_SALT, n);
+        return prefix + rng.pick(FIRST_NAMES) + "_" + rng.pick(LAST_NAMES) + n;
+    }
+
+    /*
+     * The ranks user r links to, all below r and distinct. Duplicate draws
+     * (common near the top ranks) are dropped rather than redrawn forever.
+     **/
+    int friendsOf(int rank, int[] out) {
+        if(rank == 0) return 0;
+        Rng rng = new Rng(seed, FRIEND_SALT, rank);
+        int half = Math.max(1, avgFriends / 2);
+        int wanted = Math.min(rank, half / 2 + rng.nextInt(half + 1));
+        double exponent = (gamma - 1) / (gamma - 2);
+        int n = 0;
+        for(int attempt = 0; n < wanted && attempt < 4 * wanted; attempt++) {
+            int j = (int) (rank * Math.pow(rng.nextDouble(), exponent));
+            boolean seen = false;
+            for(int i = 0; i < n && !seen; i++) seen = out[i] == j;
+            if(!seen) out[n++] = j;
+        }
+        return n;
+    }
+
+    int maxFriends() {
+        int half = Math.max(1, avgFriends / 2);
+        return half / 2 + half + 1;
+    }
+
+    // generators, one per table, each appending the rows of one user
+
+    void usr(int rank, StringBuilder sb) {
+        int n = permute(rank);
+        // the same draws as userId, in the same order
+        Rng rng = new Rng(seed, USER_SALT, n);
+        String first = rng.pick(FIRST_NAMES), last = rng.pick(LAST_NAMES);
+        String id = prefix + first + "_" + last + n;
+        sb.append(id).append(',')
+          .append("pw").append(Long.toString(rng.nextLong() >>> 16, 36)).append(',')
+          .append(first.toLowerCase()).append('.').append(last.toLowerCase()).append(n).append('@').append(rng.pick(DOMAINS)).append(',')
+          .append(first).append(' ').append(last).append(',');
+        // 18 to 70 years old
+        appendDate(sb, END_EPOCH_DAY - 365L * 18 - rng.nextInt(365 * 52));
+        sb.append('\n');
+    }
+
+    void connections(int rank, int[] friends, StringBuilder sb) {
+        int n = friendsOf(rank, friends);
+        if(n == 0) return;
+        Rng rng = new Rng(seed, FRIEND_SALT, ~rank);
+        String me = userId(rank);
+        for(int i = 0; i < n; i++) {
+            boolean pending = rng.nextDouble() < PENDING_SHARE;
+            // either side may have asked
+            String other = userId(friends[i]);
+            boolean mine = (rng.nextLong() & 1) == 0;
+            sb.append(mine ? me : other).append(',').append(mine ? other : me).append(',')
+              .append(pending ? FriendRequests.STATUS_PENDING : FriendRequests.STATUS_FRIEND).append('\n');
+        }
+    }
+
+    void messages(int rank, int[] friends, StringBuilder sb) {
+        Rng rng = new Rng(seed, MESSAGE_SALT, rank);
+        // Pareto with the requested mean
+        double scale = messagesPerUser * (MESSAGE_SHAPE - 1) / MESSAGE_SHAPE;
+        double u = 1 - rng.nextDouble();
+        int count = (int) Math.min((long) messagesPerUser * MESSAGE_CAP, (long) (scale / Math.pow(u, 1 / MESSAGE_SHAPE)));
+        if(count == 0) return;
+        int n = friendsOf(rank, friends);
+        String me = userId(rank);
+        for(int m = 0; m < count; m++) {
+            int to;
+            if(n > 0 && rng.nextDouble() >= STRANGER_SHARE) to = friends[(int) (n * Math.pow(rng.nextDouble(), 2))];
+            else to = (rank + 1 + rng.nextInt(Math.max(1, users - 1))) % users;
+            long secondsAgo = (long) (rng.nextDouble() * days * 86400L);
+            int deleteStatus = rng.nextInt(20);
+            deleteStatus = deleteStatus == 0 ? MessageStore.DELETED_BY_SENDER : deleteStatus == 1 ? MessageStore.DELETED_BY_RECEIVER : 0;
+            boolean read = secondsAgo > 2 * 86400L ? rng.nextDouble() < 0.9 : rng.nextDouble() < 0.3;
+
+            sb.append(nextMsgId++).append(',').append(me).append(',').append(userId(to)).append(',');
+            int words = 3 + rng.nextInt(5) + (int) (-8 * Math.log(1 - rng.nextDouble()));
+            int start = sb.length();
+            for(int w = 0; w < words && sb.length() - start < 450; w++) {
+                if(w > 0) sb.append(' ');
+                sb.append(rng.pick(WORDS));
+            }
+            sb.append(',');
+            appendTimestamp(sb, END_EPOCH_DAY * 86400L - secondsAgo);
+            sb.append(',').append(deleteStatus).append(',')
+              .append(read ? MessageStore.STATUS_READ : MessageStore.STATUS_DELIVERED).append('\n');
+        }
+    }
+
+    void work(int rank, StringBuilder sb) {
+        Rng rng = new Rng(seed, WORK_SALT, rank);
+        int jobs = rng.nextInt(5);
+        String me = userId(rank);
+        long end = END_EPOCH_DAY;
+        for(int j = 0; j < jobs; j++) {
+            long start = end - 180 - rng.nextInt(365 * 5);
+            // companies are Zipf-ish popular, a handful employ most people
+            String company = COMPANIES[(int) (COMPANIES.length * Math.pow(rng.nextDouble(), 2))];
+            sb.append(me).append(',').append(company).append(',').append(rng.pick(ROLES)).append(',')
+              .append(rng.pick(LOCATIONS)).append(',');
+            appendDate(sb, start);
+            sb.append(',');
+            // the first (most recent) job is the current one
+            if(j > 0) appendDate(sb, end);
+            sb.append('\n');
+            end = start - rng.nextInt(120);
+        }
+    }
+
+    void education(int rank, StringBuilder sb) {
+        Rng rng = new Rng(seed, SCHOOL_SALT, rank);
+        int degrees = rng.nextInt(4);
+        String me = userId(rank);
+        // the last degree finished 1 to 25 years ago, the ones before it back to back
+        long end = END_EPOCH_DAY - 365L * (1 + rng.nextInt(25));
+        for(int d = degrees - 1; d >= 0; d--) {
+            long start = end - 365L * (d == 0 ? 4 : 2 + rng.nextInt(3));
+            sb.append(me).append(',').append(rng.pick(SCHOOLS)).append(',').append(rng.pick(MAJORS)).append(',')
+              .append(DEGREES[d]).append(',');
+            appendDate(sb, start);
+            sb.append(',');
+            appendDate(sb, end);
+            sb.append('\n');
+            end = start - rng.nextInt(365);
+        }
+    }
+
+    /*
+     * The rows of one table, a chunk at a time, each chunk about chunkRows rows
+     * of whole users.
+     **/
+    BulkLoader.Chunks chunks(final String table, final int chunkRows) {
+        final int[] friends = new int[maxFriends()];
+        int perUser = table.equals("connection_usr") ? Math.max(1, avgFriends / 2)
+                    : table.equals("message") ? Math.max(1, messagesPerUser)
+                    : table.equals("usr") ? 1 : 2;
+        final int usersPerChunk = Math.max(1, chunkRows / perUser);
+        return new BulkLoader.Chunks() {
+            int next = 0;
+            public String next() {
+                if(next >= users) return null;
+                int end = (int) Math.min(users, (long) next + usersPerChunk);
+                StringBuilder sb = new StringBuilder();
+                for(int rank = next; rank < end; rank++) {
+                    if(table.equals("usr")) usr(rank, sb);
+                    else if(table.equals("connection_usr")) connections(rank, friends, sb);
+                    else if(table.equals("message")) messages(rank, friends, sb);
+                    else if(table.equals("work_expr")) work(rank, sb);
+                    else education(rank, sb);
+                }
+                next = end;
+                return sb.toString();
+            }
+        };
+    }
+
+    long lastMsgId() {
+        return nextMsgId - 1;
+    }
+
+    /*
+     * Writes the table to <dir>/<table>.csv, returns the number of rows.
+     **/
+    long writeCsv(String table, File dir, int chunkRows) throws IOException {
+        BulkLoader.Chunks chunks = chunks(table, chunkRows);
+        Writer out = new OutputStreamWriter(new FileOutputStream(new File(dir, table + ".csv")), "UTF-8");
+        long rows = 0;
+        try {
+            String chunk;
+            while((chunk = chunks.next()) != null) {
+                out.write(chunk);
+                for(int i = 0; i < chunk.length(); i++) if(chunk.charAt(i) == '\n') rows++;
+            }
+        }
+        finally {
+            out.close();
+        }
+        return rows;
+    }
+
+    // proleptic Gregorian date of a day number since 1970-01-01 (Hinnant's civil_from_days)
+    static void appendDate(StringBuilder sb, long epochDay) {
+        long z = epochDay + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        long day = doy - (153 * mp + 2) / 5 + 1;
+        long month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+        sb.append(year).append('-');
+        pad2(sb, month);
+        sb.append('-');
+        pad2(sb, day);
+    }
+
+    static void appendTimestamp(StringBuilder sb, long epochSecond) {
+        // only used for times after 1970
+        long day = epochSecond / 86400L;
+        long second = epochSecond - day * 86400L;
+        appendDate(sb, day);
+        sb.append(' ');
+        pad2(sb, second / 3600);
+        sb.append(':');
+        pad2(sb, second / 60 % 60);
+        sb.append(':');
+        pad2(sb, second % 60);
+    }
+
+    private static void pad2(StringBuilder sb, long v) {
+        if(v < 10) sb.append('0');
+        sb.append(v);
+    }
+
+    public static void main(String[] args) {
+        if(args.length < 3) {
+            System.err.println("Usage: java [-classpath <classpath>] " + DataGenerator.class.getName() +
+                " <dbname> <port> <user> [--users N] [--seed S] [--avg-friends F] [--gamma G] [--messages-per-user M]" +
+                " [--days D] [--tables " + join(TABLES) + "] [--prefix P] [--threads N] [--chunk N] [--defer-constraints] [--csv <dir>]");
+            return;
+        }
+        int users = DEFAULT_USERS, avgFriends = DEFAULT_AVG_FRIENDS, messages = DEFAULT_MESSAGES_PER_USER, days = DEFAULT_DAYS;
+        int threads = BulkLoader.DEFAULT_THREADS, chunk = BulkLoader.DEFAULT_CHUNK_ROWS;
+        long seed = DEFAULT_SEED;
+        double gamma = DEFAULT_GAMMA;
+        String prefix = "", csv = null;
+        List<String> tables = TABLES;
+        boolean defer = false;
+        for(int i = 3; i < args.length; i++) {
+            if(args[i].equals("--defer-constraints")) defer = true;
+            else if(i + 1 == args.length) {
+                System.err.println("Unrecognized option: " + args[i]);
+                return;
+            }
+            else if(args[i].equals("--users")) users = Integer.parseInt(args[++i]);
+            else if(args[i].equals("--seed")) seed = Long.parseLong(args[++i]);
+            else if(args[i].equals("--avg-friends")) avgFriends = Integer.parseInt(args[++i]);
+            else if(args[i].equals("--gamma")) gamma = Double.parseDouble(args[++i]);
+            else if(args[i].equals("--messages-per-user")) messages = Integer.parseInt(args[++i]);
+            else if(args[i].equals("--days")) days = Integer.parseInt(args[++i]);
+            else if(args[i].equals("--tables")) tables = Arrays.asList(args[++i].toLowerCase().split(","));
+            else if(args[i].equals("--prefix")) prefix = args[++i];
+            else if(args[i].equals("--threads")) threads = Integer.parseInt(args[++i]);
+            else if(args[i].equals("--chunk")) chunk = Integer.parseInt(args[++i]);
+            else if(args[i].equals("--csv")) csv = args[++i];
+            else {
+                System.err.println("Unrecognized option: " + args[i]);
+                return;
+            }
+        }
+        for(String table : tables) {
+            if(!TABLES.contains(table)) {
+                System.err.println("Unknown table " + table + ", expected some of " + join(TABLES));
+                return;
+            }
+        }
+
+        ProfNetwork esql = null;
+        try {
+            DataGenerator generator = new DataGenerator(seed, users, avgFriends, gamma, messages, days, prefix);
+            if(csv != null) {
+                File dir = new File(csv);
+                if(!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create " + dir);
+                for(String table : TABLES) {
+                    if(!tables.contains(table)) continue;
+                    long start = System.nanoTime();
+                    long rows = generator.writeCsv(table, dir, chunk);
+                    System.out.println(String.format("Wrote %d rows to %s in %.1fs", rows,
+                        new File(dir, table + ".csv"), (System.nanoTime() - start) / 1e9));
+                }
+                return;
+            }
+            Class.forName("org.postgresql.Driver").newInstance();
+            esql = new ProfNetwork(args[0], args[1], args[2], "", threads);
+            // in TABLES order, so usr is in before the tables referencing it
+            for(String table : TABLES) {
+                if(!tables.contains(table)) continue;
+                // give every generated month its partition, rather than filling message_default
+                if(table.equals("message"))
+                    new MessagePartitions(esql, MessagePartitions.DEFAULT_RETENTION_MONTHS, null, MessagePartitions.DEFAULT_BATCH)
+                        .ensure(epochMonth(END_EPOCH_DAY - days), epochMonth(END_EPOCH_DAY));
+                new BulkLoader(esql, table, threads, chunk).load(generator.chunks(table, chunk), "generated " + table, defer);
+            }
+            if(generator.lastMsgId() > 0)
+                esql.queryForLong("SELECT setval('message_msgid_seq', GREATEST(?, (SELECT last_value FROM message_msgid_seq)))",
+                                  generator.lastMsgId());
+        }
+        catch(Exception e) {
+            System.err.println(e.getMessage());
+        }
+        finally {
+            if(esql != null) esql.cleanup();
+        }
+    }
+
+    // the month of an epoch day, counted as MessagePartitions counts them
+    static int epochMonth(long epochDay) {
+        StringBuilder sb = new StringBuilder();
+        appendDate(sb, epochDay);
+        return MessagePartitions.month(sb.substring(0, 4) + sb.substring(5, 7));
+    }
+
+    private static String join(List<String> values) {
+        StringBuilder sb = new StringBuilder();
+        for(String v : values) {
+            if(sb.length() > 0) sb.append(',');
+            sb.append(v);
+        }
+        return sb.toString();
+    }
+}
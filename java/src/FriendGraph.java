@@ -0,0 +1,495 @@
+/*
+ * In-memory copy of the 'friend' edges in connection_usr, used to answer the
+ * "is B within k hops of A" question without going back to the database.
+ *
+ * Userids are mapped to dense ints once when the graph is loaded. Adjacency is
+ * stored CSR style (one offsets array and one neighbours array) and edges added
+ * after the load go into small per-user overflow arrays, so the graph can be kept
+ * up to date incrementally and never has to be reloaded. The search itself is a
+ * bidirectional BFS that only touches int arrays and reusable visited bitsets.
+ * A Listener (e.g. ReachabilityIndex) is told about every edge change while
+ * the graph is locked, so derived structures can be kept in step.
+ *
+ * The graph can also start from a GraphSnapshot file instead of the database
+ * (-Dprofnetwork.graph.snapshot=<path>, see openSnapshot). The CSR arrays are
+ * then the mapped sections of the file and the snapshot's dictionary resolves
+ * its users, so only users and edges added since need any memory of their own.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class FriendGraph {
+
+    // rows per round trip while streaming connection_usr in
+    static final int LOAD_FETCH_SIZE = 10000;
+    // read from the primary, like the autocomplete load: a replica behind it would lose edges for good
+    static final String LOAD_QUERY = ReadRouter.primary(QueryStats.named("graph.load",
+        "SELECT userid, connectionid FROM connection_usr WHERE status = 'friend'"));
+
+    /*
+     * Called with the graph locked, after the edge has been added / removed.
+     **/
+    public interface Listener {
+        void friendshipAdded(int u, int v);
+        void friendshipRemoved(int u, int v);
+    }
+
+    /*
+     * A compacted, read-only copy of the adjacency with the overflow edges merged
+     * in. Nothing changes it after it is taken, so any number of threads can read it.
+     **/
+    static final class Snapshot {
+        final int size;
+        final String[] names;
+        final int[] offsets;
+        final int[] neighbours;
+
+        Snapshot(int size, String[] names, int[] offsets, int[] neighbours) {
+            this.size = size;
+            this.names = names;
+            this.offsets = offsets;
+            this.neighbours = neighbours;
+        }
+    }
+
+    /*
+     * The users reachable from one user within some number of hops: ids sorted
+     * ascending, hops[i] is the distance to ids[i].
+     **/
+    static final class Reach {
+        final int[] ids;
+        final byte[] hops;
+
+        Reach(int[] ids, byte[] hops) {
+            this.ids = ids;
+            this.hops = hops;
+        }
+    }
+
+    // users [0, baseUsers) are looked up in the snapshot the graph was opened
+    // from; none when it was loaded from the database
+    private final GraphSnapshot base;
+    private final int baseUsers;
+
+    // userid <-> int id for everyone else, only used at the edges of the API;
+    // names[u - baseUsers] is the userid of u
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+    private String[] names = new String[16];
+    private int size = 0;
+
+    // CSR adjacency for the users present at load time
+    private int csrUsers = 0;
+    private IntBuffer offsets = IntBuffer.wrap(new int[1]);
+    private IntBuffer neighbours = IntBuffer.wrap(new int[0]);
+
+    // edges added after the load, per user; these three grow when written to
+    private int[][] extra = new int[16][];
+    private int[] extraCount = new int[16];
+
+    // CSR entries removed from the end of each user's range
+    private int[] csrRemoved = new int[16];
+
+    private Listener listener;
+
+    // reusable search state
+    private long[] visitedFrom = new long[1];
+    private long[] visitedTo = new long[1];
+    private int[] queueFrom = new int[16];
+    private int[] queueTo = new int[16];
+
+    FriendGraph() {
+        this.base = null;
+        this.baseUsers = 0;
+    }
+
+    private FriendGraph(GraphSnapshot snapshot) {
+        this.base = snapshot;
+        this.baseUsers = snapshot.users;
+        this.size = snapshot.users;
+        this.csrUsers = snapshot.users;
+        this.offsets = snapshot.offsets;
+        this.neighbours = snapshot.neighbours;
+    }
+
+    /*
+     * Loads every 'friend' edge from connection_usr into a new graph.
+     **/
+    public static FriendGraph load(ProfNetwork esql) throws SQLException {
+        final FriendGraph graph = new FriendGraph();
+        final int[][] edges = { new int[1024], new int[1024] };
+        int count = esql.executeQueryStreaming(
+            LOAD_QUERY, LOAD_FETCH_SIZE,
+            new RowHandler() {
+                int n = 0;
+                public boolean row(ResultSet rs) throws SQLException {
+                    if(n == edges[0].length) {
+                        edges[0] = Arrays.copyOf(edges[0], n * 2);
+                        edges[1] = Arrays.copyOf(edges[1], n * 2);
+                    }
+                    edges[0][n] = graph.idOf(rs.getString(1).trim());
+                    edges[1][n] = graph.idOf(rs.getString(2).trim());
+                    n++;
+                    return true;
+                }
+            });
+        graph.build(edges[0], edges[1], count);
+        return graph;
+    }
+
+    /*
+     * Opens the graph from the snapshot file and replays the changes made since
+     * it was written: first those already in its GraphDelta, then the newer
+     * ones from connection_usr_log, which are added to the delta on the way.
+     * If there is no usable snapshot (missing, damaged, or older than the log
+     * reaches back) a new one is written first. Falls back to load if the
+     * snapshot cannot be written either.
+     **/
+    public static FriendGraph openSnapshot(ProfNetwork esql, File file) throws SQLException {
+        try {
+            FriendGraph graph = null;
+            if(file.exists()) {
+                try {
+                    graph = open(esql, file);
+                }
+                catch(IOException e) {
+                    SessionIO.consoleErr().println("Graph snapshot " + file + " is unusable, writing a new one: " + e.getMessage());
+                }
+            }
+            if(graph == null) {
+                GraphSnapshot.write(esql, file, false);
+                graph = open(esql, file);
+            }
+            if(graph == null) throw new IOException("the new snapshot was out of date straight away");
+            return graph;
+        }
+        catch(IOException e) {
+            SessionIO.consoleErr().println("Cannot use graph snapshot " + file + ", loading from the database: " + e.getMessage());
+            return load(esql);
+        }
+    }
+
+    /*
+     * Maps the snapshot and brings it up to date, or returns null if it is too
+     * old to be brought up to date.
+     **/
+    static FriendGraph open(ProfNetwork esql, File file) throws SQLException, IOException {
+        GraphSnapshot snapshot = GraphSnapshot.open(file, GraphSnapshot.VERIFY);
+        FriendGraph graph = new FriendGraph(snapshot);
+        GraphDelta delta = GraphDelta.open(GraphDelta.fileFor(file), snapshot);
+        try {
+            delta.replay(graph);
+            return delta.catchUp(esql, graph) ? graph : null;
+        }
+        finally {
+            delta.close();
+        }
+    }
+
+    /*
+     * Builds the CSR arrays from an edge list, each edge is stored in both directions.
+     **/
+    synchronized void build(int[] from, int[] to, int edges) {
+        int[] degree = new int[size + 1];
+        for(int i = 0; i < edges; i++) {
+            degree[from[i]]++;
+            degree[to[i]]++;
+        }
+        int[] starts = new int[size + 1];
+        for(int u = 0; u < size; u++) starts[u + 1] = starts[u] + degree[u];
+        int[] adjacency = new int[starts[size]];
+        csrRemoved = new int[extra.length];
+        int[] fill = Arrays.copyOf(starts, size);
+        for(int i = 0; i < edges; i++) {
+            adjacency[fill[from[i]]++] = to[i];
+            adjacency[fill[to[i]]++] = from[i];
+        }
+        csrUsers = size;
+        offsets = IntBuffer.wrap(starts);
+        neighbours = IntBuffer.wrap(adjacency);
+    }
+
+    public synchronized int userCount() {
+        return size;
+    }
+
+    /*
+     * Makes sure the user has an id in the graph, e.g. after CreateUser or when
+     * a request is sent to someone who has no friends yet.
+     **/
+    public synchronized void addUser(String userid) {
+        idOf(userid.trim());
+    }
+
+    /*
+     * Records a new 'friend' edge, called when a request is accepted.
+     **/
+    public synchronized void addFriendship(String a, String b) {
+        int u = idOf(a.trim());
+        int v = idOf(b.trim());
+        if(u == v || adjacent(u, v)) return;
+        appendExtra(u, v);
+        appendExtra(v, u);
+        if(listener != null) listener.friendshipAdded(u, v);
+    }
+
+    /*
+     * Drops a 'friend' edge, e.g. when a connection is deleted.
+     **/
+    public synchronized void removeFriendship(String a, String b) {
+        int u = find(a.trim());
+        int v = find(b.trim());
+        if(u < 0 || v < 0) return;
+        if(!removeHalf(u, v)) return;
+        removeHalf(v, u);
+        if(listener != null) listener.friendshipRemoved(u, v);
+    }
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    synchronized Snapshot snapshot() {
+        int[] snapOffsets = new int[size + 1];
+        for(int u = 0; u < size; u++)
+            snapOffsets[u + 1] = snapOffsets[u] + (csrEnd(u) - csrStart(u)) + extraCount(u);
+        int[] snapNeighbours = new int[snapOffsets[size]];
+        String[] snapNames = new String[size];
+        IntBuffer csr = neighbours.duplicate();
+        for(int u = 0; u < size; u++) {
+            int n = csrEnd(u) - csrStart(u);
+            csr.position(csrStart(u));
+            csr.get(snapNeighbours, snapOffsets[u], n);
+            if(extraCount(u) > 0) System.arraycopy(extra[u], 0, snapNeighbours, snapOffsets[u] + n, extraCount(u));
+            snapNames[u] = nameOf(u);
+        }
+        return new Snapshot(size, snapNames, snapOffsets, snapNeighbours);
+    }
+
+    /*
+     * The int id of a user, or -1 if the graph has never seen them.
+     **/
+    synchronized int lookup(String userid) {
+        return find(userid.trim());
+    }
+
+    /*
+     * Returns true if target can be reached from source over at most maxHops friend edges.
+     **/
+    public synchronized boolean isWithinHops(String source, String target, int maxHops) {
+        int s = find(source.trim());
+        int t = find(target.trim());
+        if(s < 0 || t < 0) return false;
+        return isWithinHops(s, t, maxHops);
+    }
+
+    boolean isWithinHops(int source, int target, int maxHops) {
+        if(source == target) return true;
+        if(maxHops <= 0) return false;
+        ensureSearchCapacity();
+
+        int fromHead = 0, fromTail = 0, toHead = 0, toTail = 0;
+        queueFrom[fromTail++] = source;
+        queueTo[toTail++] = target;
+        set(visitedFrom, source);
+        set(visitedTo, target);
+
+        boolean found = false;
+        int hops = 0;
+        while(!found && hops < maxHops && fromHead < fromTail && toHead < toTail) {
+            hops++;
+            // expand one whole level of the smaller frontier
+            if(fromTail - fromHead <= toTail - toHead) {
+                int tail = expandLevel(queueFrom, fromHead, fromTail, visitedFrom, visitedTo);
+                found = tail < 0;
+                fromHead = fromTail;
+                fromTail = found ? -tail - 1 : tail;
+            }
+            else {
+                int tail = expandLevel(queueTo, toHead, toTail, visitedTo, visitedFrom);
+                found = tail < 0;
+                toHead = toTail;
+                toTail = found ? -tail - 1 : tail;
+            }
+        }
+
+        // only clear the bits we set, so the cost is proportional to the search, not the graph
+        for(int i = 0; i < fromTail; i++) clear(visitedFrom, queueFrom[i]);
+        for(int i = 0; i < toTail; i++) clear(visitedTo, queueTo[i]);
+        return found;
+    }
+
+    /*
+     * Everyone within maxHops of source (source itself excluded), by plain BFS.
+     **/
+    synchronized Reach reachable(int source, int maxHops) {
+        ensureSearchCapacity();
+        int head = 0, tail = 0;
+        queueFrom[tail++] = source;
+        set(visitedFrom, source);
+        // (id << 8) | hops, so one sort orders the ids and carries the distances along
+        long[] found = new long[16];
+        int count = 0;
+        for(int hops = 1; hops <= maxHops && head < tail; hops++) {
+            int levelEnd = tail;
+            // visitedTo is all clear outside of isWithinHops, so the search never "meets"
+            tail = expandLevel(queueFrom, head, levelEnd, visitedFrom, visitedTo);
+            head = levelEnd;
+            for(int i = levelEnd; i < tail; i++) {
+                if(count == found.length) found = Arrays.copyOf(found, count * 2);
+                found[count++] = ((long) queueFrom[i] << 8) | hops;
+            }
+        }
+        for(int i = 0; i < tail; i++) clear(visitedFrom, queueFrom[i]);
+
+        Arrays.sort(found, 0, count);
+        int[] reachedIds = new int[count];
+        byte[] reachedHops = new byte[count];
+        for(int i = 0; i < count; i++) {
+            reachedIds[i] = (int) (found[i] >>> 8);
+            reachedHops[i] = (byte) found[i];
+        }
+        return new Reach(reachedIds, reachedHops);
+    }
+
+    /*
+     * Visits the neighbours of queue[head, levelEnd) and appends the unseen ones to the
+     * queue. Returns the new tail, or -(tail + 1) as soon as a neighbour turns out to
+     * have been visited by the other side, i.e. the two searches met.
+     **/
+    private int expandLevel(int[] queue, int head, int levelEnd, long[] mine, long[] other) {
+        int tail = levelEnd;
+        for(; head < levelEnd; head++) {
+            int u = queue[head];
+            for(int i = csrStart(u), end = csrEnd(u); i < end; i++) {
+                int v = neighbours.get(i);
+                if(get(other, v)) return -tail - 1;
+                if(!get(mine, v)) {
+                    set(mine, v);
+                    queue[tail++] = v;
+                }
+            }
+            for(int i = 0, n = extraCount(u); i < n; i++) {
+                int v = extra[u][i];
+                if(get(other, v)) return -tail - 1;
+                if(!get(mine, v)) {
+                    set(mine, v);
+                    queue[tail++] = v;
+                }
+            }
+        }
+        return tail;
+    }
+
+    private int csrStart(int u) {
+        return u < csrUsers ? offsets.get(u) : 0;
+    }
+
+    private int csrEnd(int u) {
+        if(u >= csrUsers) return 0;
+        return offsets.get(u + 1) - (u < csrRemoved.length ? csrRemoved[u] : 0);
+    }
+
+    private int extraCount(int u) {
+        return u >= extra.length || extra[u] == null ? 0 : extraCount[u];
+    }
+
+    private boolean adjacent(int u, int v) {
+        for(int i = csrStart(u), end = csrEnd(u); i < end; i++)
+            if(neighbours.get(i) == v) return true;
+        for(int i = 0, n = extraCount(u); i < n; i++)
+            if(extra[u][i] == v) return true;
+        return false;
+    }
+
+    /*
+     * Removes v from u's neighbours by moving the last neighbour into its slot.
+     **/
+    private boolean removeHalf(int u, int v) {
+        for(int i = csrStart(u), end = csrEnd(u); i < end; i++) {
+            if(neighbours.get(i) == v) {
+                neighbours.put(i, neighbours.get(end - 1));
+                ensureCapacity(u);
+                csrRemoved[u]++;
+                return true;
+            }
+        }
+        for(int i = 0, n = extraCount(u); i < n; i++) {
+            if(extra[u][i] == v) {
+                extra[u][i] = extra[u][n - 1];
+                extraCount[u]--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void appendExtra(int u, int v) {
+        ensureCapacity(u);
+        if(extra[u] == null) extra[u] = new int[4];
+        else if(extraCount[u] == extra[u].length) extra[u] = Arrays.copyOf(extra[u], extra[u].length * 2);
+        extra[u][extraCount[u]++] = v;
+    }
+
+    private int find(String userid) {
+        if(base != null) {
+            int id = base.lookup(userid);
+            if(id >= 0) return id;
+        }
+        Integer id = ids.get(userid);
+        return id == null ? -1 : id.intValue();
+    }
+
+    private String nameOf(int u) {
+        return u < baseUsers ? base.name(u) : names[u - baseUsers];
+    }
+
+    private int idOf(String userid) {
+        int id = find(userid);
+        if(id >= 0) return id;
+        if(size - baseUsers == names.length) names = Arrays.copyOf(names, names.length * 2);
+        names[size - baseUsers] = userid;
+        ids.put(userid, size);
+        return size++;
+    }
+
+    // the per-user arrays start small on a mapped graph and grow as users are written to
+    private void ensureCapacity(int u) {
+        if(u < extra.length) return;
+        int cap = Math.max(u + 1, extra.length * 2);
+        extra = Arrays.copyOf(extra, cap);
+        extraCount = Arrays.copyOf(extraCount, cap);
+        csrRemoved = Arrays.copyOf(csrRemoved, cap);
+    }
+
+    private void ensureSearchCapacity() {
+        int words = (size >>> 6) + 1;
+        if(visitedFrom.length < words) {
+            visitedFrom = new long[words];
+            visitedTo = new long[words];
+        }
+        // each side queues a user at most once
+        if(queueFrom.length < size) {
+            queueFrom = new int[size];
+            queueTo = new int[size];
+        }
+    }
+
+    private static boolean get(long[] bits, int i) {
+        return (bits[i >>> 6] & (1L << i)) != 0;
+    }
+
+    private static void set(long[] bits, int i) {
+        bits[i >>> 6] |= 1L << i;
+    }
+
+    private static void clear(long[] bits, int i) {
+        bits[i >>> 6] &= ~(1L << i);
+    }
+}
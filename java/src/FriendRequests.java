@@ -0,0 +1,156 @@
+/*
+ * Friend request workflow as single transactions, safe under concurrent
+ * sessions.
+ *
+ * Sending checks that the target exists, that the two are not friends yet and
+ * that neither has asked the other, reads the sender's connection count and
+ * inserts the request, all in one transaction. The transaction first takes a
+ * transaction-scoped advisory lock on each of the two users, in a fixed order,
+ * so two sends that touch the same user run one after the other: a user
+ * cannot go over FREE_CONNECTIONS from several sessions at once, and two
+ * crossing requests cannot both go in. The second of those finds the first and
+ * accepts it instead. The locks work because the transaction runs at READ
+ * COMMITTED, where every statement after the lock sees what the previous
+ * holder committed; at REPEATABLE READ the snapshot would predate the wait.
+ *
+ * Accepting and rejecting are single conditional statements that only touch a
+ * request while it is still pending, so a request is accepted or rejected
+ * exactly once however many sessions race on it.
+ */
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+public class FriendRequests {
+
+    // first key of our advisory locks, keeps them apart from anyone else's
+    static final int LOCK_SPACE = 0x46524e44;
+
+    // lock the two users in hash order, one statement each so the order is ours and
+    // not the planner's; two users with the same hash share a lock, taken twice
+    static final String LOCK_FIRST_USER = QueryStats.named("request.lock",
+        "SELECT pg_advisory_xact_lock(" + LOCK_SPACE + ", least(hashtext(?), hashtext(?)))");
+    static final String LOCK_SECOND_USER = QueryStats.named("request.lock",
+        "SELECT pg_advisory_xact_lock(" + LOCK_SPACE + ", greatest(hashtext(?), hashtext(?)))");
+
+    // everything the send decision needs, in one round trip
+    static final String SEND_STATE = QueryStats.named("request.state",
+        "SELECT EXISTS (SELECT 1 FROM usr WHERE userid = ?), " +
+        "(SELECT rtrim(status) FROM connection_usr WHERE userid = ? AND connectionid = ?), " +
+        "(SELECT rtrim(status) FROM connection_usr WHERE userid = ? AND connectionid = ?), " +
+        "(SELECT connections FROM connection_count WHERE userid = ?)");
+
+    static final String INSERT_REQUEST = QueryStats.named("request.send",
+        "INSERT INTO connection_usr (userid, connectionid, status) VALUES (?, ?, 'pending') " +
+        "ON CONFLICT (userid, connectionid) DO NOTHING");
+    static final String ACCEPT_REQUEST = QueryStats.named("request.accept",
+        "UPDATE connection_usr SET status = 'friend' WHERE userid = ? AND connectionid = ? AND status = 'pending'");
+    static final String REJECT_REQUEST = QueryStats.named("request.reject",
+        "DELETE FROM connection_usr WHERE userid = ? AND connectionid = ? AND status = 'pending'");
+
+    static final String STATUS_PENDING = "pending";
+    static final String STATUS_FRIEND = "friend";
+
+    private final ProfNetwork esql;
+
+    public FriendRequests(ProfNetwork esql) {
+        this.esql = esql;
+    }
+
+    /*
+     * Sends a request from one user to another. withinDepth is whether to is
+     * within MAX_CONNECTION_DEPTH of from, or null if that has not been checked
+     * yet. Returns null, without changing anything, when the sender has no free
+     * connections left and withinDepth is null: the caller checks the depth
+     * outside the transaction, so the locks are not held across a graph walk,
+     * and sends again with the answer.
+     **/
+    public ProfNetworkService.SendResult send(final String from, final String to, final Boolean withinDepth) throws SQLException {
+        return esql.inTransaction(new Transaction<ProfNetworkService.SendResult>() {
+            public ProfNetworkService.SendResult run(ConnectionPool.PooledConnection conn) throws SQLException {
+                query(conn, LOCK_FIRST_USER, from, to).close();
+                query(conn, LOCK_SECOND_USER, from, to).close();
+
+                String outgoing, incoming;
+                long connections;
+                while(true) {
+                    ResultSet rs = query(conn, SEND_STATE, to, from, to, to, from, from);
+                    rs.next();
+                    boolean exists = rs.getBoolean(1);
+                    outgoing = rs.getString(2);
+                    incoming = rs.getString(3);
+                    // null (no counter row yet) reads as 0
+                    connections = rs.getLong(4);
+                    rs.close();
+
+                    if(!exists) return ProfNetworkService.SendResult.NO_SUCH_USER;
+                    if(STATUS_FRIEND.equals(outgoing) || STATUS_FRIEND.equals(incoming))
+                        return ProfNetworkService.SendResult.ALREADY_FRIENDS;
+                    if(outgoing != null) return ProfNetworkService.SendResult.ALREADY_REQUESTED;
+                    if(!STATUS_PENDING.equals(incoming)) break;
+
+                    // they asked first: answer their request rather than crossing it.
+                    // Accepts and rejects do not take the locks, so if their request
+                    // was answered in the meantime look again.
+                    if(update(conn, ACCEPT_REQUEST, to, from) == 1) return ProfNetworkService.SendResult.ACCEPTED;
+                }
+
+                ProfNetworkService.SendResult result = ProfNetworkService.SendResult.SENT;
+                if(connections >= ProfNetworkService.FREE_CONNECTIONS) {
+                    if(withinDepth == null) return null;
+                    if(!withinDepth) return ProfNetworkService.SendResult.OUT_OF_RANGE;
+                    result = ProfNetworkService.SendResult.SENT_WITHIN_DEPTH;
+                }
+                update(conn, INSERT_REQUEST, from, to);
+                return result;
+            }
+        });
+    }
+
+    /*
+     * Accepts the pending request from one user to another. Returns false if
+     * there was no such request pending any more.
+     **/
+    public boolean accept(String from, String to) throws SQLException {
+        return esql.executeUpdate(ACCEPT_REQUEST, from, to) == 1;
+    }
+
+    /*
+     * Rejects (deletes) the pending request from one user to another. Returns
+     * false if there was no such request pending any more.
+     **/
+    public boolean reject(String from, String to) throws SQLException {
+        return esql.executeUpdate(REJECT_REQUEST, from, to) == 1;
+    }
+
+    private static ResultSet query(ConnectionPool.PooledConnection conn, String sql, Object... params) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            PreparedStatement stmt = conn.prepare(sql);
+            ProfNetwork.bind(stmt, params);
+            ResultSet rs = stmt.executeQuery();
+            QueryStats.record(sql, start, 1, 0);
+            return rs;
+        }
+        catch(SQLException e) {
+            QueryStats.failed(sql, start, e);
+            throw e;
+        }
+    }
+
+    private static int update(ConnectionPool.PooledConnection conn, String sql, Object... params) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            PreparedStatement stmt = conn.prepare(sql);
+            ProfNetwork.bind(stmt, params);
+            int rows = stmt.executeUpdate();
+            QueryStats.record(sql, start, rows, 0);
+            return rows;
+        }
+        catch(SQLException e) {
+            QueryStats.failed(sql, start, e);
+            throw e;
+        }
+    }
+}
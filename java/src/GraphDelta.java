@@ -0,0 +1,238 @@
+/*
+ * Write-ahead style delta file kept next to a GraphSnapshot: the friend edge
+ * changes from connection_usr_log that came after the snapshot, appended as
+ * they are fetched. Each start replays them from disk and only asks the
+ * database for what is newer still.
+ *
+ * The header names the snapshot the records apply to (its checksum and
+ * version); a delta left over from another snapshot is emptied on open. After
+ * the header each record is
+ *
+ *   int length, then length bytes of: long seq, byte op, short + UTF-8
+ *   userid, short + UTF-8 connectionid; then the CRC32 of those bytes as an int
+ *
+ * The database holds the real log, so appends are not forced to disk: a torn
+ * or damaged tail left by a crash is cut off on open and fetched again.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.zip.CRC32;
+
+public final class GraphDelta {
+
+    // "PNDELTA1" read as a little-endian long
+    static final long MAGIC = 0x3141544c45444e50L;
+    static final int FORMAT = 1;
+    static final int HEADER_BYTES = 32;
+
+    // seq, op and the two string lengths
+    static final int MIN_PAYLOAD = 8 + 1 + 2 + 2;
+
+    // connection_usr_log.op
+    static final char ADD = 'A';
+    static final char REMOVE = 'D';
+    static final char TRUNCATE = 'T';
+
+    static final String LOG_START_QUERY = QueryStats.named("graph.logStart",
+        "SELECT coalesce(min(seq), 0) FROM connection_usr_log");
+    static final String CHANGES_QUERY = QueryStats.named("graph.changes",
+        "SELECT seq, userid, connectionid, op FROM connection_usr_log WHERE seq > ? ORDER BY seq");
+
+    private final File file;
+    private final FileChannel channel;
+    private final GraphSnapshot snapshot;
+
+    // where the next record goes, and the seq of the last one
+    private long end = HEADER_BYTES;
+    private long lastSeq;
+
+    // metrics
+    private int replayed = 0;
+    private int fetched = 0;
+
+    private GraphDelta(File file, FileChannel channel, GraphSnapshot snapshot) {
+        this.file = file;
+        this.channel = channel;
+        this.snapshot = snapshot;
+        this.lastSeq = snapshot.version;
+    }
+
+    static File fileFor(File snapshotFile) {
+        return new File(snapshotFile.getPath() + ".delta");
+    }
+
+    /*
+     * Opens the delta of the given snapshot, creating it (or emptying one that
+     * belongs to another snapshot) if need be. Nothing is replayed yet.
+     **/
+    static GraphDelta open(File file, GraphSnapshot snapshot) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        GraphDelta delta = new GraphDelta(file, channel, snapshot);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            boolean ours = channel.size() >= HEADER_BYTES && channel.read(header, 0) == HEADER_BYTES
+                && header.getLong(0) == MAGIC && header.getInt(8) == FORMAT
+                && header.getLong(16) == snapshot.checksum && header.getLong(24) == snapshot.version;
+            if(!ours) delta.reset();
+            return delta;
+        }
+        catch(IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void reset() throws IOException {
+        channel.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putLong(0, MAGIC);
+        header.putInt(8, FORMAT);
+        header.putLong(16, snapshot.checksum);
+        header.putLong(24, snapshot.version);
+        while(header.hasRemaining()) channel.write(header, header.position());
+        end = HEADER_BYTES;
+        lastSeq = snapshot.version;
+    }
+
+    /*
+     * Applies every intact record to the graph, in order, and cuts the file
+     * off after the last one. Returns how many were applied.
+     **/
+    int replay(FriendGraph graph) throws IOException {
+        long size = channel.size();
+        if(size > Integer.MAX_VALUE) throw new IOException(file + " has outgrown its snapshot, write a new one");
+        ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+        CRC32 crc = new CRC32();
+        int pos = HEADER_BYTES;
+        int count = 0;
+        while(size - pos >= 4) {
+            int length = buf.getInt(pos);
+            if(length < MIN_PAYLOAD || pos + 8L + length > size) break;
+            byte[] payload = new byte[length];
+            buf.position(pos + 4);
+            buf.get(payload);
+            crc.reset();
+            crc.update(payload, 0, length);
+            if(buf.getInt() != (int) crc.getValue()) break;
+
+            ByteBuffer record = ByteBuffer.wrap(payload).order(ByteOrder.LITTLE_ENDIAN);
+            long seq = record.getLong();
+            char op = (char) record.get();
+            String userid = readString(record);
+            String connectionid = readString(record);
+            apply(graph, op, userid, connectionid);
+            lastSeq = seq;
+            pos += 8 + length;
+            count++;
+        }
+        if(pos < size) channel.truncate(pos);
+        end = pos;
+        replayed += count;
+        return count;
+    }
+
+    /*
+     * Applies and appends the connection_usr_log rows after the last one
+     * replayed. Takes the log lock while reading, like GraphSnapshot.write, so
+     * a change still in flight cannot be skipped and then land behind us.
+     * Returns false if the log no longer reaches back to where the delta ends
+     * (pruned for a newer snapshot) or connection_usr was truncated since:
+     * the snapshot can't be patched up and has to be written again.
+     **/
+    boolean catchUp(ProfNetwork esql, FriendGraph graph) throws SQLException, IOException {
+        ConnectionPool pool = esql.getPool();
+        ConnectionPool.PooledConnection conn = pool.borrow();
+        try {
+            conn.connection.setAutoCommit(false);
+            GraphSnapshot.execute(conn, GraphSnapshot.LOCK_LOG);
+            long start = System.nanoTime();
+            ResultSet rs = conn.prepare(LOG_START_QUERY).executeQuery();
+            rs.next();
+            long first = rs.getLong(1);
+            rs.close();
+            QueryStats.record(LOG_START_QUERY, start, 1, 0);
+            // 0 is an empty log; otherwise the row at lastSeq or the one after must still be there
+            if(first > lastSeq + 1) return false;
+
+            start = System.nanoTime();
+            PreparedStatement stmt = conn.prepare(CHANGES_QUERY);
+            ProfNetwork.setFetchSize(stmt, FriendGraph.LOAD_FETCH_SIZE);
+            ProfNetwork.bind(stmt, lastSeq);
+            rs = stmt.executeQuery();
+            int rows = 0;
+            try {
+                while(rs.next()) {
+                    rows++;
+                    char op = rs.getString(4).charAt(0);
+                    if(op == TRUNCATE) return false;
+                    String userid = rs.getString(2).trim();
+                    String connectionid = rs.getString(3).trim();
+                    apply(graph, op, userid, connectionid);
+                    append(rs.getLong(1), op, userid, connectionid);
+                }
+            }
+            finally {
+                rs.close();
+                QueryStats.record(CHANGES_QUERY, start, rows, 0);
+            }
+            fetched += rows;
+            conn.connection.commit();
+            return true;
+        }
+        finally {
+            pool.release(conn);
+        }
+    }
+
+    private void append(long seq, char op, String userid, String connectionid) throws IOException {
+        byte[] a = userid.getBytes(GraphSnapshot.UTF8);
+        byte[] b = connectionid.getBytes(GraphSnapshot.UTF8);
+        int length = MIN_PAYLOAD + a.length + b.length;
+        ByteBuffer record = ByteBuffer.allocate(8 + length).order(ByteOrder.LITTLE_ENDIAN);
+        record.putInt(length);
+        record.putLong(seq);
+        record.put((byte) op);
+        record.putShort((short) a.length);
+        record.put(a);
+        record.putShort((short) b.length);
+        record.put(b);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, length);
+        record.putInt((int) crc.getValue());
+        record.flip();
+        while(record.hasRemaining()) end += channel.write(record, end);
+        lastSeq = seq;
+    }
+
+    private static String readString(ByteBuffer record) {
+        byte[] bytes = new byte[record.getShort() & 0xffff];
+        record.get(bytes);
+        return new String(bytes, GraphSnapshot.UTF8);
+    }
+
+    private static void apply(FriendGraph graph, char op, String userid, String connectionid) {
+        if(op == ADD) graph.addFriendship(userid, connectionid);
+        else if(op == REMOVE) graph.removeFriendship(userid, connectionid);
+    }
+
+    long lastSeq() {
+        return lastSeq;
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+
+    public String statsSummary() {
+        return String.format("graph delta %s: replayed=%d fetched=%d lastSeq=%d bytes=%d",
+            file, replayed, fetched, lastSeq, end);
+    }
+}
@@ -0,0 +1,545 @@
+/*
+ * On-disk copy of the friend graph that is used in place, without being parsed.
+ *
+ * The file is the FriendGraph CSR layout written out as little-endian ints:
+ *
+ *   header       64 bytes: magic, format, users, adjacency entries, change
+ *                version, dictionary bytes, creation time, checksum
+ *   dictOffsets  int[users + 1], where each userid starts in the dictionary
+ *   dictionary   the UTF-8 userids, sorted bytewise, padded to 4 bytes
+ *   offsets      int[users + 1], where each user's neighbours start
+ *   neighbours   int[entries], each user's friends as sorted int ids
+ *
+ * A user's int id is their rank in the dictionary, so userids are found by
+ * binary search over the mapped bytes and opening builds nothing: each section
+ * is mapped with FileChannel.map and read where it is, and the OS pages in
+ * what the searches touch. The neighbours are mapped copy-on-write so
+ * FriendGraph can drop edges in place without writing to the file. The
+ * checksum is a CRC32 of everything after the header; checking it reads the
+ * whole file once, -Dprofnetwork.graph.snapshot.verify=false skips that.
+ *
+ * version is the connection_usr_log seq the snapshot is consistent with. The
+ * write reads it and streams the graph under one database snapshot, taken
+ * while no friend edge change is in flight, so the snapshot holds exactly the
+ * changes up to version. Later ones are replayed from connection_usr_log and
+ * kept in a GraphDelta next to the file (see FriendGraph.openSnapshot).
+ *
+ * Usage: java GraphSnapshot <dbname> <port> <user> write <file> [--prune]
+ *        java GraphSnapshot <dbname> <port> <user> bench <file> [--pairs N]
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+public final class GraphSnapshot {
+
+    // "PNGRAPH1" read as a little-endian long
+    static final long MAGIC = 0x3148504152474e50L;
+    static final int FORMAT = 1;
+    static final int HEADER_BYTES = 64;
+
+    // header layout
+    static final int FORMAT_AT = 8;
+    static final int USERS_AT = 12;
+    static final int ENTRIES_AT = 16;
+    static final int VERSION_AT = 24;
+    static final int DICT_BYTES_AT = 32;
+    static final int CREATED_AT = 40;
+    static final int CHECKSUM_AT = 48;
+
+    static final int IO_BUFFER_BYTES = 1 << 20;
+
+    static final boolean VERIFY = !"false".equals(System.getProperty("profnetwork.graph.snapshot.verify"));
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final String USERS_QUERY = QueryStats.named("graph.snapshot.users", "SELECT userid FROM usr");
+
+    // waits for in-flight friend edge changes and holds new ones off until released
+    static final String LOCK_LOG = "LOCK TABLE connection_usr_log IN SHARE MODE";
+    static final String VERSION_QUERY = QueryStats.named("graph.version",
+        "SELECT coalesce(max(seq), 0), pg_export_snapshot() FROM connection_usr_log");
+    // keeps the row at seq itself, so FriendGraph can tell a log that was pruned past it
+    static final String PRUNE_QUERY = QueryStats.named("graph.prune", "DELETE FROM connection_usr_log WHERE seq < ?");
+
+    final File file;
+    final int users;
+    final long entries;
+    final long version;
+    final long createdMillis;
+    final long checksum;
+
+    private final IntBuffer dictOffsets;
+    private final ByteBuffer dictionary;
+    final IntBuffer offsets;
+    final IntBuffer neighbours;
+
+    private GraphSnapshot(File file, ByteBuffer header, IntBuffer dictOffsets, ByteBuffer dictionary,
+                          IntBuffer offsets, IntBuffer neighbours) {
+        this.file = file;
+        this.users = header.getInt(USERS_AT);
+        this.entries = header.getLong(ENTRIES_AT);
+        this.version = header.getLong(VERSION_AT);
+        this.createdMillis = header.getLong(CREATED_AT);
+        this.checksum = header.getLong(CHECKSUM_AT);
+        this.dictOffsets = dictOffsets;
+        this.dictionary = dictionary;
+        this.offsets = offsets;
+        this.neighbours = neighbours;
+    }
+
+    /*
+     * Maps a snapshot file. Only the header is read, plus the whole file once
+     * if verify is set. Throws IOException if the file is not a snapshot of
+     * this format, has the wrong size or fails the checksum.
+     **/
+    public static GraphSnapshot open(File file, boolean verify) throws IOException {
+        // read-write only because copy-on-write mappings need it, nothing is written
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            if(length < HEADER_BYTES) throw new IOException(file + " is not a graph snapshot");
+            ByteBuffer header = map(channel, FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+            if(header.getLong(0) != MAGIC) throw new IOException(file + " is not a graph snapshot");
+            if(header.getInt(FORMAT_AT) != FORMAT)
+                throw new IOException(file + " has snapshot format " + header.getInt(FORMAT_AT) + ", expected " + FORMAT);
+
+            int users = header.getInt(USERS_AT);
+            long entries = header.getLong(ENTRIES_AT);
+            long dictBytes = header.getLong(DICT_BYTES_AT);
+            long dictAt = HEADER_BYTES + 4L * (users + 1);
+            long offsetsAt = dictAt + padded(dictBytes);
+            long neighboursAt = offsetsAt + 4L * (users + 1);
+            if(users < 0 || entries < 0 || dictBytes < 0 || neighboursAt + 4 * entries != length)
+                throw new IOException(file + " is truncated or damaged (" + length + " bytes)");
+
+            GraphSnapshot snapshot = new GraphSnapshot(file, header,
+                map(channel, FileChannel.MapMode.READ_ONLY, HEADER_BYTES, 4L * (users + 1)).asIntBuffer(),
+                map(channel, FileChannel.MapMode.READ_ONLY, dictAt, dictBytes),
+                map(channel, FileChannel.MapMode.READ_ONLY, offsetsAt, 4L * (users + 1)).asIntBuffer(),
+                map(channel, FileChannel.MapMode.PRIVATE, neighboursAt, 4 * entries).asIntBuffer());
+            if(verify) {
+                long actual = checksum(channel, HEADER_BYTES, length);
+                if(actual != snapshot.checksum)
+                    throw new IOException(file + " fails its checksum (" + Long.toHexString(actual) + ", header says " +
+                        Long.toHexString(snapshot.checksum) + ")");
+            }
+            return snapshot;
+        }
+        finally {
+            // the mappings stay valid after the channel is closed
+            raf.close();
+        }
+    }
+
+    /*
+     * The int id of a user, or -1 if they are not in the snapshot.
+     **/
+    int lookup(String userid) {
+        byte[] key = userid.getBytes(UTF8);
+        int lo = 0, hi = users - 1;
+        while(lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compare(mid, key);
+            if(c < 0) lo = mid + 1;
+            else if(c > 0) hi = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    String name(int id) {
+        int start = dictOffsets.get(id);
+        byte[] bytes = new byte[dictOffsets.get(id + 1) - start];
+        for(int i = 0; i < bytes.length; i++) bytes[i] = dictionary.get(start + i);
+        return new String(bytes, UTF8);
+    }
+
+    private int compare(int id, byte[] key) {
+        int start = dictOffsets.get(id);
+        int length = dictOffsets.get(id + 1) - start;
+        for(int i = 0, n = Math.min(length, key.length); i < n; i++) {
+            int c = (dictionary.get(start + i) & 0xff) - (key[i] & 0xff);
+            if(c != 0) return c;
+        }
+        return length - key.length;
+    }
+
+    public long fileBytes() {
+        return neighboursAt(users, padded(dictionary.capacity())) + 4 * entries;
+    }
+
+    public String statsSummary() {
+        return String.format("graph snapshot %s: users=%d edges=%d version=%d bytes=%d checksum=%08x",
+            file, users, entries / 2, version, fileBytes(), checksum);
+    }
+
+    private static long neighboursAt(int users, long paddedDictBytes) {
+        return HEADER_BYTES + 8L * (users + 1) + paddedDictBytes;
+    }
+
+    private static long padded(long bytes) {
+        return (bytes + 3) & ~3L;
+    }
+
+    private static ByteBuffer map(FileChannel channel, FileChannel.MapMode mode, long position, long size) throws IOException {
+        if(size > Integer.MAX_VALUE) throw new IOException("snapshot section of " + size + " bytes is too large to map");
+        return channel.map(mode, position, size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static long checksum(FileChannel channel, long from, long to) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buf = ByteBuffer.allocate(IO_BUFFER_BYTES);
+        for(long pos = from; pos < to; ) {
+            buf.clear();
+            int n = channel.read(buf, pos);
+            if(n < 0) break;
+            crc.update(buf.array(), 0, n);
+            pos += n;
+        }
+        return crc.getValue();
+    }
+
+    /*
+     * Writes the friend graph to file in one pass over usr and connection_usr
+     * and returns it opened. Needs two pool connections: one takes the log lock
+     * just long enough to export its database snapshot, the other streams
+     * under that snapshot while writers carry on. The file is written next to
+     * the target and renamed over it, so nobody opens half a snapshot. With
+     * prune the log rows the snapshot already contains are deleted, which
+     * makes snapshots older than this one be rewritten when next opened.
+     **/
+    public static GraphSnapshot write(ProfNetwork esql, File file, boolean prune) throws SQLException, IOException {
+        final Map<String, Integer> ids = new HashMap<String, Integer>();
+        final String[][] names = { new String[1024] };
+        final int[][] edges = { new int[1024], new int[1024] };
+        final int[] counts = new int[2];
+        long version;
+
+        ConnectionPool pool = esql.getPool();
+        ConnectionPool.PooledConnection lock = pool.borrow();
+        ConnectionPool.PooledConnection read = null;
+        try {
+            lock.connection.setAutoCommit(false);
+            execute(lock, LOCK_LOG);
+            ResultSet rs = query(lock, VERSION_QUERY);
+            rs.next();
+            version = rs.getLong(1);
+            String exported = rs.getString(2);
+            rs.close();
+
+            read = pool.borrow();
+            read.connection.setAutoCommit(false);
+            execute(read, "SET TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+            execute(read, "SET TRANSACTION SNAPSHOT '" + exported + "'");
+            // read now sees exactly what the lock saw, writers can go on
+            lock.connection.commit();
+
+            RowHandler user = new RowHandler() {
+                public boolean row(ResultSet rs) throws SQLException {
+                    idOf(ids, names, counts, rs.getString(1).trim());
+                    return true;
+                }
+            };
+            RowHandler edge = new RowHandler() {
+                public boolean row(ResultSet rs) throws SQLException {
+                    int n = counts[1];
+                    if(n == edges[0].length) {
+                        edges[0] = Arrays.copyOf(edges[0], n * 2);
+                        edges[1] = Arrays.copyOf(edges[1], n * 2);
+                    }
+                    edges[0][n] = idOf(ids, names, counts, rs.getString(1).trim());
+                    edges[1][n] = idOf(ids, names, counts, rs.getString(2).trim());
+                    counts[1]++;
+                    return true;
+                }
+            };
+            streamAll(read, USERS_QUERY, user);
+            streamAll(read, FriendGraph.LOAD_QUERY, edge);
+            read.connection.commit();
+        }
+        finally {
+            pool.release(read);
+            pool.release(lock);
+        }
+
+        writeFile(file, names[0], counts[0], edges[0], edges[1], counts[1], version);
+        if(prune) esql.executeUpdate(PRUNE_QUERY, version);
+        return open(file, false);
+    }
+
+    private static int idOf(Map<String, Integer> ids, String[][] names, int[] counts, String userid) {
+        Integer id = ids.get(userid);
+        if(id != null) return id.intValue();
+        int n = counts[0];
+        if(n == names[0].length) names[0] = Arrays.copyOf(names[0], n * 2);
+        names[0][n] = userid;
+        ids.put(userid, n);
+        counts[0]++;
+        return n;
+    }
+
+    /*
+     * Sorts the users into dictionary order, builds the CSR arrays with each
+     * edge stored both ways (duplicates and self loops dropped) and writes it all.
+     **/
+    static void writeFile(File file, String[] names, int users, int[] from, int[] to, int edges, long version) throws IOException {
+        final byte[][] keys = new byte[users][];
+        Integer[] order = new Integer[users];
+        for(int u = 0; u < users; u++) {
+            keys[u] = names[u].getBytes(UTF8);
+            order[u] = u;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return compareBytes(keys[a.intValue()], keys[b.intValue()]);
+            }
+        });
+        int[] rank = new int[users];
+        for(int i = 0; i < users; i++) rank[order[i].intValue()] = i;
+
+        int[] offsets = new int[users + 1];
+        long total = 0;
+        for(int i = 0; i < edges; i++) {
+            if(from[i] == to[i]) continue;
+            offsets[rank[from[i]] + 1]++;
+            offsets[rank[to[i]] + 1]++;
+            total += 2;
+        }
+        if(total > Integer.MAX_VALUE) throw new IOException(total + " adjacency entries do not fit in one snapshot");
+        for(int u = 0; u < users; u++) offsets[u + 1] += offsets[u];
+        int[] neighbours = new int[(int) total];
+        int[] fill = Arrays.copyOf(offsets, users);
+        for(int i = 0; i < edges; i++) {
+            if(from[i] == to[i]) continue;
+            int u = rank[from[i]], v = rank[to[i]];
+            neighbours[fill[u]++] = v;
+            neighbours[fill[v]++] = u;
+        }
+        // sort each user's friends and squeeze out edges stored twice in connection_usr
+        int kept = 0;
+        for(int u = 0; u < users; u++) {
+            int start = offsets[u], end = offsets[u + 1];
+            Arrays.sort(neighbours, start, end);
+            offsets[u] = kept;
+            for(int i = start; i < end; i++)
+                if(i == start || neighbours[i] != neighbours[i - 1]) neighbours[kept++] = neighbours[i];
+        }
+        offsets[users] = kept;
+
+        long dictBytes = 0;
+        for(byte[] key : keys) dictBytes += key.length;
+        if(dictBytes > Integer.MAX_VALUE) throw new IOException(dictBytes + " bytes of userids do not fit in one snapshot");
+
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            channel.truncate(0);
+            Output out = new Output(channel, HEADER_BYTES);
+            int at = 0;
+            for(int i = 0; i < users; i++) {
+                out.putInt(at);
+                at += keys[order[i].intValue()].length;
+            }
+            out.putInt(at);
+            for(int i = 0; i < users; i++) out.put(keys[order[i].intValue()]);
+            out.put(new byte[(int) (padded(dictBytes) - dictBytes)]);
+            for(int u = 0; u <= users; u++) out.putInt(offsets[u]);
+            for(int i = 0; i < kept; i++) out.putInt(neighbours[i]);
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putLong(0, MAGIC);
+            header.putInt(FORMAT_AT, FORMAT);
+            header.putInt(USERS_AT, users);
+            header.putLong(ENTRIES_AT, kept);
+            header.putLong(VERSION_AT, version);
+            header.putLong(DICT_BYTES_AT, dictBytes);
+            header.putLong(CREATED_AT, System.currentTimeMillis());
+            header.putLong(CHECKSUM_AT, out.crc.getValue());
+            while(header.hasRemaining()) channel.write(header, header.position());
+            channel.force(true);
+        }
+        finally {
+            raf.close();
+        }
+        if(!tmp.renameTo(file)) {
+            // renameTo does not replace an existing file everywhere
+            file.delete();
+            if(!tmp.renameTo(file)) throw new IOException("cannot rename " + tmp + " to " + file);
+        }
+    }
+
+    static int compareBytes(byte[] a, byte[] b) {
+        for(int i = 0, n = Math.min(a.length, b.length); i < n; i++) {
+            int c = (a[i] & 0xff) - (b[i] & 0xff);
+            if(c != 0) return c;
+        }
+        return a.length - b.length;
+    }
+
+    /*
+     * Buffered little-endian writes to a channel, checksummed on the way out.
+     **/
+    private static final class Output {
+        final FileChannel channel;
+        final ByteBuffer buf = ByteBuffer.allocate(IO_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        final CRC32 crc = new CRC32();
+        long position;
+
+        Output(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        void putInt(int v) throws IOException {
+            if(buf.remaining() < 4) flush();
+            buf.putInt(v);
+        }
+
+        void put(byte[] bytes) throws IOException {
+            for(int i = 0; i < bytes.length; ) {
+                if(!buf.hasRemaining()) flush();
+                int n = Math.min(buf.remaining(), bytes.length - i);
+                buf.put(bytes, i, n);
+                i += n;
+            }
+        }
+
+        void flush() throws IOException {
+            buf.flip();
+            crc.update(buf.array(), 0, buf.limit());
+            while(buf.hasRemaining()) position += channel.write(buf, position);
+            buf.clear();
+        }
+    }
+
+    // not through the statement cache, the snapshot ids are one-offs
+    static void execute(ConnectionPool.PooledConnection conn, String sql) throws SQLException {
+        Statement stmt = conn.connection.createStatement();
+        try {
+            stmt.execute(sql);
+        }
+        finally {
+            stmt.close();
+        }
+    }
+
+    private static ResultSet query(ConnectionPool.PooledConnection conn, String sql) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            ResultSet rs = conn.prepare(sql).executeQuery();
+            QueryStats.record(sql, start, 1, 0);
+            return rs;
+        }
+        catch(SQLException e) {
+            QueryStats.failed(sql, start, e);
+            throw e;
+        }
+    }
+
+    static int streamAll(ConnectionPool.PooledConnection conn, String sql, RowHandler handler) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            PreparedStatement stmt = conn.prepare(sql);
+            ProfNetwork.setFetchSize(stmt, FriendGraph.LOAD_FETCH_SIZE);
+            ResultSet rs = stmt.executeQuery();
+            int rows = 0;
+            while(rs.next()) {
+                rows++;
+                if(!handler.row(rs)) break;
+            }
+            rs.close();
+            QueryStats.record(sql, start, rows, 0);
+            return rows;
+        }
+        catch(SQLException e) {
+            QueryStats.failed(sql, start, e);
+            throw e;
+        }
+    }
+
+    /*
+     * Times a full load from connection_usr against opening the snapshot, then
+     * checks that both graphs give the same answers for random pairs.
+     **/
+    static void bench(ProfNetwork esql, File file, int pairs) throws SQLException, IOException {
+        long start = System.nanoTime();
+        FriendGraph loaded = FriendGraph.load(esql);
+        long loadNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        FriendGraph opened = FriendGraph.openSnapshot(esql, file);
+        long openNanos = System.nanoTime() - start;
+
+        System.out.println(String.format("database load: %8.1f ms, %d users", loadNanos / 1e6, loaded.userCount()));
+        System.out.println(String.format("snapshot open: %8.1f ms, %d users (checksum %s, delta replayed and caught up)",
+            openNanos / 1e6, opened.userCount(), VERIFY ? "verified" : "not verified"));
+
+        String[] names = loaded.snapshot().names;
+        if(names.length == 0) return;
+        Random rnd = new Random(0);
+        int mismatches = 0;
+        for(int i = 0; i < pairs; i++) {
+            String a = names[rnd.nextInt(names.length)], b = names[rnd.nextInt(names.length)];
+            if(loaded.isWithinHops(a, b, ProfNetwork.MAX_CONNECTION_DEPTH) != opened.isWithinHops(a, b, ProfNetwork.MAX_CONNECTION_DEPTH))
+                mismatches++;
+        }
+        System.out.println(String.format("%d random depth checks, %d disagreements", pairs, mismatches));
+    }
+
+    public static void main(String[] args) {
+        if(args.length < 5 || !(args[3].equals("write") || args[3].equals("bench"))) {
+            System.err.println("Usage: java [-classpath <classpath>] " + GraphSnapshot.class.getName() +
+                " <dbname> <port> <user> write <file> [--prune]");
+            System.err.println("       java [-classpath <classpath>] " + GraphSnapshot.class.getName() +
+                " <dbname> <port> <user> bench <file> [--pairs N]");
+            return;
+        }
+        File file = new File(args[4]);
+        boolean prune = false;
+        int pairs = 10000;
+        for(int i = 5; i < args.length; i++) {
+            if(args[i].equals("--prune")) prune = true;
+            else if(args[i].equals("--pairs") && i + 1 < args.length) pairs = Integer.parseInt(args[++i]);
+        }
+
+        ProfNetwork esql = null;
+        try {
+            Class.forName("org.postgresql.Driver").newInstance();
+            esql = new ProfNetwork(args[0], args[1], args[2], "");
+            if(args[3].equals("write")) {
+                long start = System.nanoTime();
+                GraphSnapshot snapshot = write(esql, file, prune);
+                System.out.println(String.format("%s, written in %.1fs", snapshot.statsSummary(), (System.nanoTime() - start) / 1e9));
+            }
+            else {
+                bench(esql, file, pairs);
+            }
+        }
+        catch(Exception e) {
+            System.err.println(e.getMessage());
+        }
+        finally {
+            if(esql != null) esql.cleanup();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Headless load driver. Seeds a synthetic graph (the "bench_" data from
+ * ReachabilityBenchmark), then runs N concurrent simulated users against
+ * ProfNetworkService for a fixed time with a weighted mix of operations and
+ * reports p50 / p99 / p999 latency and throughput per operation.
+ *
+ * Usage: java LoadDriver <dbname> <port> <user> [--sessions N] [--seconds S]
+ *            [--edges E] [--mix login=20,friends=40,send=15,accept=10,depth=15]
+ */
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+public class LoadDriver {
+
+    public enum Op { LOGIN, FRIENDS, SEND, ACCEPT, DEPTH }
+
+    static final String DEFAULT_MIX = "login=20,friends=40,send=15,accept=10,depth=15";
+
+    /*
+     * Raw latencies of one operation on one thread, merged at the end.
+     **/
+    static final class Recorder {
+        long[] nanos = new long[1024];
+        int count = 0;
+        long errors = 0;
+
+        void record(long n) {
+            if(count == nanos.length) nanos = Arrays.copyOf(nanos, count * 2);
+            nanos[count++] = n;
+        }
+
+        void addAll(Recorder other) {
+            for(int i = 0; i < other.count; i++) record(other.nanos[i]);
+            errors += other.errors;
+        }
+
+        double percentileMillis(double p) {
+            if(count == 0) return 0;
+            long[] sorted = Arrays.copyOf(nanos, count);
+            Arrays.sort(sorted);
+            int idx = (int) Math.min(count - 1, Math.ceil(p * count) - 1);
+            return sorted[Math.max(0, idx)] / 1e6;
+        }
+    }
+
+    private final ProfNetworkService service;
+    private final int users;
+    private final Op[] weighted;
+
+    LoadDriver(ProfNetworkService service, int users, Map<Op, Integer> mix) {
+        this.service = service;
+        this.users = users;
+        int total = 0;
+        for(int w : mix.values()) total += w;
+        weighted = new Op[total];
+        int i = 0;
+        for(Map.Entry<Op, Integer> e : mix.entrySet())
+            for(int j = 0; j < e.getValue(); j++) weighted[i++] = e.getKey();
+    }
+
+    /*
+     * Runs one simulated user until the deadline, recording into its own recorders.
+     **/
+    Map<Op, Recorder> session(long seed, long deadline) {
+        Map<Op, Recorder> recorders = new EnumMap<Op, Recorder>(Op.class);
+        for(Op op : Op.values()) recorders.put(op, new Recorder());
+        Random rnd = new Random(seed);
+        String me = ReachabilityBenchmark.PREFIX + rnd.nextInt(users);
+        User session = null;
+        while(System.nanoTime() < deadline) {
+            Op op = weighted[rnd.nextInt(weighted.length)];
+            String other = ReachabilityBenchmark.PREFIX + rnd.nextInt(users);
+            long start = System.nanoTime();
+            try {
+                if(session == null) session = service.openSession(me);
+                switch(op) {
+                    case LOGIN: service.login(me, "bench"); break;
+                    case FRIENDS: {
+                        service.closeSession(session);
+                        session = service.openSession(me);
+                        break;
+                    }
+                    case SEND: service.sendRequest(session, other); break;
+                    case ACCEPT: {
+                        session.refresh(service.getDatabase());
+                        if(!session.pendingRequests.isEmpty())
+                            service.acceptRequest(session, session.pendingRequests.get(0).fromUserId);
+                        break;
+                    }
+                    case DEPTH: service.isWithinConnectionDepth(me, other); break;
+                }
+                recorders.get(op).record(System.nanoTime() - start);
+            }
+            catch(SQLException e) {
+                recorders.get(op).errors++;
+            }
+        }
+        if(session != null) service.closeSession(session);
+        return recorders;
+    }
+
+    Map<Op, Recorder> run(int sessions, int seconds) throws InterruptedException {
+        final long deadline = System.nanoTime() + seconds * 1000000000L;
+        final Map<Op, Recorder> merged = new EnumMap<Op, Recorder>(Op.class);
+        for(Op op : Op.values()) merged.put(op, new Recorder());
+        final CountDownLatch done = new CountDownLatch(sessions);
+        for(int i = 0; i < sessions; i++) {
+            final long seed = i;
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        Map<Op, Recorder> mine = session(seed, deadline);
+                        synchronized(merged) {
+                            for(Op op : Op.values()) merged.get(op).addAll(mine.get(op));
+                        }
+                    }
+                    finally {
+                        done.countDown();
+                    }
+                }
+            }, "load-" + i).start();
+        }
+        done.await();
+        return merged;
+    }
+
+    static void report(Map<Op, Recorder> results, int seconds) {
+        System.out.println(String.format("%-8s %10s %10s %10s %10s %10s %8s", "op", "count", "ops/sec", "p50 ms", "p99 ms", "p999 ms", "errors"));
+        long total = 0;
+        for(Map.Entry<Op, Recorder> e : results.entrySet()) {
+            Recorder r = e.getValue();
+            total += r.count;
+            System.out.println(String.format("%-8s %10d %10.1f %10.3f %10.3f %10.3f %8d",
+                e.getKey().name().toLowerCase(), r.count, (double) r.count / seconds,
+                r.percentileMillis(0.50), r.percentileMillis(0.99), r.percentileMillis(0.999), r.errors));
+        }
+        System.out.println(String.format("total: %d ops, %.1f ops/sec", total, (double) total / seconds));
+    }
+
+    static Map<Op, Integer> parseMix(String spec) {
+        Map<Op, Integer> mix = new EnumMap<Op, Integer>(Op.class);
+        for(String part : spec.split(",")) {
+            String[] kv = part.split("=");
+            mix.put(Op.valueOf(kv[0].trim().toUpperCase()), Integer.parseInt(kv[1].trim()));
+        }
+        return mix;
+    }
+
+    public static void main(String[] args) {
+        if(args.length < 3) {
+            System.err.println("Usage: java [-classpath <classpath>] " + LoadDriver.class.getName() +
+                " <dbname> <port> <user> [--sessions N] [--seconds S] [--edges E] [--mix " + DEFAULT_MIX + "]");
+            return;
+        }
+        int sessions = 16, seconds = 30;
+        long edges = 100000;
+        String mix = DEFAULT_MIX;
+        for(int i = 3; i + 1 < args.length; i += 2) {
+            if(args[i].equals("--sessions")) sessions = Integer.parseInt(args[i + 1]);
+            else if(args[i].equals("--seconds")) seconds = Integer.parseInt(args[i + 1]);
+            else if(args[i].equals("--edges")) edges = Long.parseLong(args[i + 1]);
+            else if(args[i].equals("--mix")) mix = args[i + 1];
+        }
+        int users = (int) (edges * 2 / ReachabilityBenchmark.AVG_DEGREE);
+
+        ProfNetwork esql = null;
+        try {
+            Class.forName("org.postgresql.Driver").newInstance();
+            esql = new ProfNetwork(args[0], args[1], args[2], "", sessions);
+            try {
+                ReachabilityBenchmark.load(esql, users, edges, new Random(edges));
+                LoadDriver driver = new LoadDriver(new ProfNetworkService(esql), users, parseMix(mix));
+                System.out.println("Running " + sessions + " sessions for " + seconds + "s, mix " + mix);
+                report(driver.run(sessions, seconds), seconds);
+                System.out.println(esql.getPool().statsSummary());
+            }
+            finally {
+                // let queued writes land before the synthetic rows are removed
+                if(esql.getWriter() != null) esql.getWriter().close();
+                ReachabilityBenchmark.clear(esql);
+            }
+        }
+        catch(Exception e) {
+            System.err.println(e.getMessage());
+        }
+        finally {
+            if(esql != null) esql.cleanup();
+        }
+    }
+}
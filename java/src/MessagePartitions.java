@@ -0,0 +1,634 @@
+/*
+ * Monthly range partitions of MESSAGE on sendTime, and the maintenance that
+ * keeps them: creating the coming months ahead of time, compacting messages
+ * both sides deleted, and detaching old months and archiving them to gzipped
+ * CSV files.
+ *
+ * Partitions are named message_pYYYYMM and hold sendTimes from the first of
+ * the month up to the first of the next. message_default catches rows no
+ * partition covers (a month nobody created in time, or a bulk load of old
+ * data); partition moves them into partitions of their own. Inbox and outbox
+ * pages are bounded by sendTime, so a page skips the months after its cursor.
+ * Deletes and read marks carry the sendTime too, and touch one partition.
+ *
+ * Phases, each safe to repeat:
+ *
+ *   migrate    turns an existing plain MESSAGE into the partitioned table in
+ *              one transaction: renames it to message_heap, creates the
+ *              partitioned table with the same columns, indexes, foreign keys,
+ *              checks and triggers, and copies the rows over. MESSAGE is
+ *              locked meanwhile. message_heap is kept for checking and can be
+ *              dropped afterwards. Rows without a sendTime are dated 1970-01-01
+ *   partition  creates the partitions up to PREMAKE_MONTHS ahead and moves
+ *              whatever sits in message_default into partitions of its months
+ *   compact    deletes the rows both sides deleted, --batch rows per
+ *              statement, and vacuums partitions left with many dead rows
+ *   archive    detaches the partitions older than --retention months and
+ *              writes each to <dir>/message_pYYYYMM.csv.gz (a header line
+ *              with the column names, then the rows as COPY ... CSV reads
+ *              them) before dropping it. A partition a failed run detached
+ *              but did not drop is archived by the next one
+ *   all        partition, compact and archive
+ *
+ * DDL on MESSAGE waits at most LOCK_TIMEOUT for its lock and is retried by
+ * the next run, so maintenance never queues the mailboxes behind a long query.
+ * Runs take an advisory lock, so only one runs at a time across processes.
+ * With -Dprofnetwork.messages.maintain=<minutes> ProfNetwork runs all in the
+ * background that often. Needs PostgreSQL 11 or later, 13 once SurrogateKeys
+ * has put its row triggers on MESSAGE.
+ *
+ * Usage: java MessagePartitions <dbname> <port> <user> migrate|partition|compact|archive|all
+ *            [--retention months] [--dir path] [--batch N]
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+public class MessagePartitions {
+
+    public static final int DEFAULT_RETENTION_MONTHS = 12;
+    public static final int DEFAULT_BATCH = 5000;
+    public static final String DEFAULT_ARCHIVE_DIR = "message_archive";
+
+    // months created ahead of the current one
+    static final int PREMAKE_MONTHS = 3;
+
+    static final String PARENT = "message";
+    static final String DEFAULT_PARTITION = "message_default";
+    static final String HEAP = "message_heap";
+    static final Pattern PARTITION_NAME = Pattern.compile("message_p\\d{6}");
+
+    static final String LOCK_TIMEOUT = "2s";
+    // pg_try_advisory_lock key of a maintenance run
+    static final long ADVISORY_LOCK = 0x6d73675f6d6e74L;
+
+    // vacuum a partition once this share of its rows, and at least VACUUM_MIN_DEAD, are dead
+    static final double VACUUM_DEAD_SHARE = 0.2;
+    static final long VACUUM_MIN_DEAD = 1000;
+
+    static final int ARCHIVE_FETCH_SIZE = 10000;
+    static final int BOTH_DELETED = MessageStore.DELETED_BY_SENDER | MessageStore.DELETED_BY_RECEIVER;
+
+    static final String PARTITIONED_QUERY =
+        "SELECT count(*) FROM pg_partitioned_table WHERE partrelid = to_regclass(?)";
+    static final String PARTITIONS_QUERY =
+        "SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid " +
+        "WHERE i.inhparent = to_regclass('" + PARENT + "') ORDER BY c.relname";
+    static final String DETACHED_QUERY =
+        "SELECT c.relname FROM pg_class c WHERE c.relkind = 'r' AND c.relname LIKE 'message\\_p%' " +
+        "AND pg_table_is_visible(c.oid) AND NOT EXISTS (SELECT 1 FROM pg_inherits i WHERE i.inhrelid = c.oid) ORDER BY c.relname";
+    static final String ATTACHED_QUERY =
+        "SELECT count(*) FROM pg_class c WHERE c.oid = to_regclass(?) " +
+        "AND EXISTS (SELECT 1 FROM pg_inherits i WHERE i.inhrelid = c.oid)";
+    static final String EXISTS_QUERY = "SELECT count(*) FROM pg_class WHERE oid = to_regclass(?)";
+    static final String CURRENT_MONTH_QUERY = "SELECT to_char(now(), 'YYYYMM')";
+    static final String DEFAULT_MONTHS_QUERY =
+        "SELECT DISTINCT to_char(sendTime, 'YYYYMM') FROM " + DEFAULT_PARTITION + " ORDER BY 1";
+    static final String DEAD_ROWS_QUERY =
+        "SELECT relname, n_live_tup, n_dead_tup FROM pg_stat_user_tables WHERE relname LIKE 'message\\_p%'";
+    static final String COLUMNS_QUERY =
+        "SELECT attname FROM pg_attribute WHERE attrelid = to_regclass(?) AND attnum > 0 AND NOT attisdropped ORDER BY attnum";
+
+    private final ProfNetwork esql;
+    private final int retentionMonths;
+    private final File archiveDir;
+    private final int batch;
+    private ScheduledExecutorService scheduler;
+
+    // metrics
+    private long partitionsCreated = 0;
+    private long rowsRehomed = 0;
+    private long rowsCompacted = 0;
+    private long partitionsVacuumed = 0;
+    private long partitionsArchived = 0;
+    private long rowsArchived = 0;
+    private long archiveBytes = 0;
+    private long runs = 0;
+    private long runsSkipped = 0;
+    private long failures = 0;
+
+    public MessagePartitions(ProfNetwork esql, int retentionMonths, File archiveDir, int batch) {
+        this.esql = esql;
+        this.retentionMonths = retentionMonths;
+        this.archiveDir = archiveDir;
+        this.batch = batch;
+    }
+
+    /*
+     * Starts the background maintenance the system properties ask for, or
+     * returns null when profnetwork.messages.maintain is not set.
+     **/
+    public static MessagePartitions fromSystemProperties(ProfNetwork esql) {
+        Long minutes = Long.getLong("profnetwork.messages.maintain");
+        if(minutes == null) return null;
+        MessagePartitions maintenance = new MessagePartitions(esql,
+            Integer.getInteger("profnetwork.messages.retention", DEFAULT_RETENTION_MONTHS),
+            new File(System.getProperty("profnetwork.messages.archive", DEFAULT_ARCHIVE_DIR)),
+            DEFAULT_BATCH);
+        maintenance.schedule(minutes);
+        return maintenance;
+    }
+
+    public synchronized void schedule(long minutes) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "message-maintenance");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    maintain();
+                }
+                catch(Exception e) {
+                    SessionIO.consoleErr().println("Message maintenance failed, retrying in the next run: " + e.getMessage());
+                }
+            }
+        }, 0, minutes, TimeUnit.MINUTES);
+    }
+
+    public synchronized void close() {
+        if(scheduler != null) scheduler.shutdownNow();
+        scheduler = null;
+    }
+
+    /*
+     * One maintenance run: partition, compact, archive. Returns false without
+     * doing anything if another run holds the lock.
+     **/
+    public boolean maintain() throws SQLException, IOException {
+        // a session lock on a connection of its own, released when it closes
+        Connection lock = esql.getPool().openUnpooled();
+        try {
+            PreparedStatement stmt = lock.prepareStatement("SELECT pg_try_advisory_lock(?)");
+            stmt.setLong(1, ADVISORY_LOCK);
+            ResultSet rs = stmt.executeQuery();
+            boolean locked = rs.next() && rs.getBoolean(1);
+            rs.close();
+            stmt.close();
+            if(!locked) {
+                synchronized(this) { runsSkipped++; }
+                return false;
+            }
+            try {
+                partition();
+                compact();
+                archive();
+                synchronized(this) { runs++; }
+                return true;
+            }
+            catch(SQLException e) {
+                synchronized(this) { failures++; }
+                throw e;
+            }
+            catch(IOException e) {
+                synchronized(this) { failures++; }
+                throw e;
+            }
+        }
+        finally {
+            lock.close();
+        }
+    }
+
+    // months are counted from year 0: year * 12 + month - 1
+
+    static int month(String yyyymm) {
+        int v = Integer.parseInt(yyyymm.trim());
+        return (v / 100) * 12 + v % 100 - 1;
+    }
+
+    static String partitionName(int month) {
+        return String.format("message_p%04d%02d", month / 12, month % 12 + 1);
+    }
+
+    static String firstDay(int month) {
+        return String.format("%04d-%02d-01", month / 12, month % 12 + 1);
+    }
+
+    static boolean isPartitioned(ProfNetwork esql) throws SQLException {
+        return isPartitioned(esql, PARENT);
+    }
+
+    // partitioned tables take no NOT VALID foreign keys and no CONCURRENTLY indexes
+    static boolean isPartitioned(ProfNetwork esql, String table) throws SQLException {
+        return esql.queryForLong(PARTITIONED_QUERY, table) > 0;
+    }
+
+    int currentMonth() throws SQLException {
+        return month(esql.executeQueryAndReturnResult(CURRENT_MONTH_QUERY).get(0).get(0));
+    }
+
+    /*
+     * The partitions attached to MESSAGE, oldest first, default included.
+     **/
+    static List<String> partitions(ProfNetwork esql) throws SQLException {
+        List<String> names = new ArrayList<String>();
+        for(List<String> row : esql.executeQueryAndReturnResult(PARTITIONS_QUERY)) names.add(row.get(0));
+        return names;
+    }
+
+    /*
+     * Creates the partition of the month unless it is attached already. A
+     * table of that name that is not attached is a partition archive has
+     * detached, and has to be archived before its month can come back.
+     **/
+    private boolean createPartition(ConnectionPool.PooledConnection conn, int month) throws SQLException {
+        String name = partitionName(month);
+        if(count(conn, ATTACHED_QUERY, name) > 0) return false;
+        if(count(conn, EXISTS_QUERY, name) > 0)
+            throw new SQLException(name + " is detached but not archived yet, run archive first");
+        GraphSnapshot.execute(conn, "CREATE TABLE " + name + " PARTITION OF " + PARENT +
+            " FOR VALUES FROM ('" + firstDay(month) + "') TO ('" + firstDay(month + 1) + "')");
+        return true;
+    }
+
+    /*
+     * Creates the partitions of months first through last that don't exist yet.
+     * Does nothing if MESSAGE is not partitioned. Returns how many it created.
+     **/
+    public int ensure(final int first, final int last) throws SQLException {
+        if(!isPartitioned(esql)) return 0;
+        int created = esql.inTransaction(new Transaction<Integer>() {
+            public Integer run(ConnectionPool.PooledConnection conn) throws SQLException {
+                GraphSnapshot.execute(conn, "SET LOCAL lock_timeout = '" + LOCK_TIMEOUT + "'");
+                int n = 0;
+                for(int m = first; m <= last; m++)
+                    if(createPartition(conn, m)) n++;
+                return n;
+            }
+        });
+        synchronized(this) { partitionsCreated += created; }
+        return created;
+    }
+
+    /*
+     * Creates the coming months and empties message_default into partitions of
+     * its own months.
+     **/
+    void partition() throws SQLException {
+        if(!isPartitioned(esql)) throw new SQLException("message is not partitioned, run migrate first");
+        int current = currentMonth();
+        int created = ensure(current, current + PREMAKE_MONTHS);
+        if(esql.queryForLong("SELECT count(*) FROM (SELECT 1 FROM " + DEFAULT_PARTITION + " LIMIT 1) AS any_row") == 0) {
+            System.out.println(String.format("partition: %d created, nothing in %s", created, DEFAULT_PARTITION));
+            return;
+        }
+        // a month can't get its partition while the default one holds rows of it:
+        // take the default out, create the months, move the rows and put it back
+        final int[] months = new int[1];
+        long moved = esql.inTransaction(new Transaction<Long>() {
+            public Long run(ConnectionPool.PooledConnection conn) throws SQLException {
+                GraphSnapshot.execute(conn, "SET LOCAL lock_timeout = '" + LOCK_TIMEOUT + "'");
+                GraphSnapshot.execute(conn, "ALTER TABLE " + PARENT + " DETACH PARTITION " + DEFAULT_PARTITION);
+                months[0] = 0;
+                for(String[] row : query(conn, DEFAULT_MONTHS_QUERY))
+                    if(createPartition(conn, month(row[0]))) months[0]++;
+                Statement stmt = conn.connection.createStatement();
+                try {
+                    long rows = stmt.executeUpdate("INSERT INTO " + PARENT + " SELECT * FROM " + DEFAULT_PARTITION);
+                    stmt.executeUpdate("TRUNCATE " + DEFAULT_PARTITION);
+                    GraphSnapshot.execute(conn, "ALTER TABLE " + PARENT + " ATTACH PARTITION " + DEFAULT_PARTITION + " DEFAULT");
+                    return rows;
+                }
+                finally {
+                    stmt.close();
+                }
+            }
+        });
+        synchronized(this) {
+            partitionsCreated += months[0];
+            rowsRehomed += moved;
+        }
+        System.out.println(String.format("partition: %d created, %d rows moved out of %s",
+            created + months[0], moved, DEFAULT_PARTITION));
+    }
+
+    /*
+     * Deletes the rows both sides deleted, a batch at a time per partition so
+     * no statement holds many row locks, then vacuums the partitions where that
+     * (or anything else) left a large share of dead rows.
+     **/
+    void compact() throws SQLException {
+        long deleted = 0;
+        for(String p : partitions(esql)) {
+            String sql = "DELETE FROM " + p + " WHERE ctid = ANY (ARRAY(SELECT ctid FROM " + p +
+                " WHERE deleteStatus = " + BOTH_DELETED + " LIMIT ?))";
+            int n;
+            do {
+                n = esql.executeUpdate(sql, batch);
+                deleted += n;
+            } while(n > 0);
+        }
+        synchronized(this) { rowsCompacted += deleted; }
+
+        List<String> attached = partitions(esql);
+        int vacuumed = 0;
+        for(List<String> row : esql.executeQueryAndReturnResult(DEAD_ROWS_QUERY)) {
+            long live = Long.parseLong(row.get(1)), dead = Long.parseLong(row.get(2));
+            if(!attached.contains(row.get(0)) || dead < VACUUM_MIN_DEAD || dead < VACUUM_DEAD_SHARE * (live + dead)) continue;
+            ddl("VACUUM (ANALYZE) " + row.get(0));
+            vacuumed++;
+        }
+        synchronized(this) { partitionsVacuumed += vacuumed; }
+        System.out.println(String.format("compact: %d rows deleted, %d partitions vacuumed", deleted, vacuumed));
+    }
+
+    /*
+     * Detaches the months older than the retention, then archives and drops
+     * every detached partition, including any an earlier run left behind.
+     **/
+    void archive() throws SQLException, IOException {
+        int cutoff = currentMonth() - retentionMonths;
+        for(final String p : partitions(esql)) {
+            if(!PARTITION_NAME.matcher(p).matches() || month(p.substring("message_p".length())) >= cutoff) continue;
+            esql.inTransaction(new Transaction<Void>() {
+                public Void run(ConnectionPool.PooledConnection conn) throws SQLException {
+                    GraphSnapshot.execute(conn, "SET LOCAL lock_timeout = '" + LOCK_TIMEOUT + "'");
+                    GraphSnapshot.execute(conn, "ALTER TABLE " + PARENT + " DETACH PARTITION " + p);
+                    return null;
+                }
+            });
+        }
+        int archived = 0;
+        for(List<String> row : esql.executeQueryAndReturnResult(DETACHED_QUERY)) {
+            String table = row.get(0);
+            if(!PARTITION_NAME.matcher(table).matches()) continue;
+            long rows = writeArchive(table);
+            ddl("DROP TABLE " + table);
+            archived++;
+            synchronized(this) {
+                partitionsArchived++;
+                rowsArchived += rows;
+            }
+        }
+        System.out.println(String.format("archive: %d partitions older than %s archived to %s",
+            archived, firstDay(cutoff), archiveDir));
+    }
+
+    /*
+     * Writes a detached partition to <dir>/<table>.csv.gz: to a temporary file
+     * first, synced, checked against the table's row count and only then
+     * renamed into place. Returns the number of rows written.
+     **/
+    long writeArchive(String table) throws SQLException, IOException {
+        if(!archiveDir.isDirectory() && !archiveDir.mkdirs()) throw new IOException("cannot create " + archiveDir);
+        File target = new File(archiveDir, table + ".csv.gz");
+        File tmp = new File(archiveDir, table + ".csv.gz.tmp");
+        ConnectionPool pool = esql.getPool();
+        ConnectionPool.PooledConnection conn = pool.borrow();
+        long rows = 0;
+        try {
+            // one transaction, so the count below sees the rows the cursor saw
+            conn.connection.setAutoCommit(false);
+            StringBuilder header = new StringBuilder();
+            for(String[] column : query(conn, COLUMNS_QUERY, table)) {
+                if(header.length() > 0) header.append(',');
+                header.append(column[0]);
+            }
+            FileOutputStream file = new FileOutputStream(tmp);
+            try {
+                Writer out = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new BufferedOutputStream(file)), "UTF-8"));
+                out.write(header.toString());
+                out.write('\n');
+                // a cursor of our own, so a month never has to fit in memory
+                // whether or not the driver implements setFetchSize
+                Statement stmt = conn.connection.createStatement();
+                try {
+                    stmt.execute("DECLARE archive NO SCROLL CURSOR FOR SELECT * FROM " + table);
+                    int fetched;
+                    do {
+                        ResultSet rs = stmt.executeQuery("FETCH " + ARCHIVE_FETCH_SIZE + " FROM archive");
+                        int columns = rs.getMetaData().getColumnCount();
+                        fetched = 0;
+                        while(rs.next()) {
+                            for(int i = 1; i <= columns; i++) {
+                                if(i > 1) out.write(',');
+                                writeCsv(out, rs.getString(i));
+                            }
+                            out.write('\n');
+                            fetched++;
+                        }
+                        rs.close();
+                        rows += fetched;
+                    } while(fetched == ARCHIVE_FETCH_SIZE);
+                    stmt.execute("CLOSE archive");
+                }
+                finally {
+                    stmt.close();
+                }
+                out.flush();
+                out.close();
+                // close finished the gzip stream; the file descriptor is closed with it,
+                // so sync through a fresh handle below
+            }
+            finally {
+                file.close();
+            }
+            sync(tmp);
+            long expected = count(conn, "SELECT count(*) FROM " + table);
+            if(rows != expected) throw new IOException("archived " + rows + " rows of " + table + ", expected " + expected);
+            conn.connection.commit();
+        }
+        finally {
+            pool.release(conn);
+        }
+        if(target.exists() && !target.delete()) throw new IOException("cannot replace " + target);
+        if(!tmp.renameTo(target)) throw new IOException("cannot rename " + tmp + " to " + target);
+        synchronized(this) { archiveBytes += target.length(); }
+        return rows;
+    }
+
+    private static void sync(File f) throws IOException {
+        FileOutputStream out = new FileOutputStream(f, true);
+        try {
+            out.getFD().sync();
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    // NULL is an empty field, everything else is quoted, as COPY ... CSV reads it back
+    private static void writeCsv(Writer out, String value) throws IOException {
+        if(value == null) return;
+        out.write('"');
+        out.write(value.replace("\"", "\"\""));
+        out.write('"');
+    }
+
+    /*
+     * Replaces a plain MESSAGE with a partitioned one holding the same rows,
+     * in one transaction.
+     **/
+    void migrate() throws SQLException {
+        if(isPartitioned(esql)) {
+            System.out.println("migrate: " + PARENT + " is partitioned already");
+            return;
+        }
+        long copied = esql.inTransaction(new Transaction<Long>() {
+            public Long run(ConnectionPool.PooledConnection conn) throws SQLException {
+                if(count(conn, EXISTS_QUERY, HEAP) > 0)
+                    throw new SQLException(HEAP + " is left from an earlier migration, drop it first");
+                GraphSnapshot.execute(conn, "LOCK TABLE " + PARENT + " IN ACCESS EXCLUSIVE MODE");
+
+                // what the new table needs again, read while the names still point at the old one
+                List<String[]> indexes = query(conn,
+                    "SELECT CAST(i.indexrelid AS regclass), pg_get_indexdef(i.indexrelid) FROM pg_index i " +
+                    "LEFT JOIN pg_constraint c ON c.conindid = i.indexrelid " +
+                    "WHERE i.indrelid = to_regclass('" + PARENT + "') AND c.oid IS NULL");
+                List<String[]> keys = query(conn,
+                    "SELECT conname FROM pg_constraint WHERE conrelid = to_regclass('" + PARENT + "') AND contype IN ('p', 'u')");
+                List<String[]> constraints = query(conn,
+                    "SELECT conname, pg_get_constraintdef(oid) FROM pg_constraint " +
+                    "WHERE conrelid = to_regclass('" + PARENT + "') AND contype IN ('f', 'c')");
+                List<String[]> triggers = query(conn,
+                    "SELECT pg_get_triggerdef(oid) FROM pg_trigger WHERE tgrelid = to_regclass('" + PARENT + "') AND NOT tgisinternal");
+
+                // the old table keeps its rows and triggers; its index names go to the new one
+                GraphSnapshot.execute(conn, "ALTER TABLE " + PARENT + " RENAME TO " + HEAP);
+                for(String[] index : indexes) GraphSnapshot.execute(conn, "DROP INDEX " + index[0]);
+                for(String[] key : keys)
+                    GraphSnapshot.execute(conn, "ALTER TABLE " + HEAP + " RENAME CONSTRAINT " + key[0] + " TO " + key[0] + "_heap");
+                Statement stmt = conn.connection.createStatement();
+                try {
+                    int undated = stmt.executeUpdate("UPDATE " + HEAP + " SET sendTime = '1970-01-01' WHERE sendTime IS NULL");
+                    if(undated > 0) System.out.println("migrate: " + undated + " messages without a sendTime dated 1970-01-01");
+
+                    GraphSnapshot.execute(conn, "CREATE TABLE " + PARENT + " (LIKE " + HEAP + " INCLUDING DEFAULTS) PARTITION BY RANGE (sendTime)");
+                    GraphSnapshot.execute(conn, "ALTER TABLE " + PARENT + " ALTER COLUMN sendTime SET NOT NULL");
+                    // msgIds come from message_msgid_seq, which keeps them unique; the key has to include sendTime
+                    GraphSnapshot.execute(conn, "ALTER TABLE " + PARENT + " ADD PRIMARY KEY (msgId, sendTime)");
+                    GraphSnapshot.execute(conn, "CREATE TABLE " + DEFAULT_PARTITION + " PARTITION OF " + PARENT + " DEFAULT");
+                    TreeSet<Integer> months = new TreeSet<Integer>();
+                    for(String[] row : query(conn, "SELECT DISTINCT to_char(sendTime, 'YYYYMM') FROM " + HEAP))
+                        months.add(month(row[0]));
+                    int current = month(query(conn, CURRENT_MONTH_QUERY).get(0)[0]);
+                    for(int m = current; m <= current + PREMAKE_MONTHS; m++) months.add(m);
+                    for(int m : months) createPartition(conn, m);
+
+                    long rows = stmt.executeUpdate("INSERT INTO " + PARENT + " SELECT * FROM " + HEAP);
+
+                    for(String[] index : indexes) GraphSnapshot.execute(conn, index[1]);
+                    // a partitioned table can't have NOT VALID foreign keys; these are checked now
+                    for(String[] c : constraints)
+                        GraphSnapshot.execute(conn, "ALTER TABLE " + PARENT + " ADD CONSTRAINT " + c[0] + " " +
+                                                    c[1].replace(" NOT VALID", ""));
+                    for(String[] trigger : triggers) GraphSnapshot.execute(conn, trigger[0]);
+                    return rows;
+                }
+                finally {
+                    stmt.close();
+                }
+            }
+        });
+        ddl("ANALYZE " + PARENT);
+        System.out.println(String.format("migrate: %d messages copied into %s, the old table is %s",
+            copied, PARENT, HEAP));
+    }
+
+    static List<String[]> query(ConnectionPool.PooledConnection conn, String sql, Object... params) throws SQLException {
+        PreparedStatement stmt = conn.prepare(sql);
+        ProfNetwork.bind(stmt, params);
+        ResultSet rs = stmt.executeQuery();
+        int columns = rs.getMetaData().getColumnCount();
+        List<String[]> rows = new ArrayList<String[]>();
+        while(rs.next()) {
+            String[] row = new String[columns];
+            for(int i = 0; i < columns; i++) row[i] = rs.getString(i + 1);
+            rows.add(row);
+        }
+        rs.close();
+        return rows;
+    }
+
+    private static long count(ConnectionPool.PooledConnection conn, String sql, Object... params) throws SQLException {
+        PreparedStatement stmt = conn.prepare(sql);
+        ProfNetwork.bind(stmt, params);
+        ResultSet rs = stmt.executeQuery();
+        long n = rs.next() ? rs.getLong(1) : 0;
+        rs.close();
+        return n;
+    }
+
+    /*
+     * Runs one statement outside a transaction, as VACUUM needs.
+     **/
+    private void ddl(String sql) throws SQLException {
+        ConnectionPool pool = esql.getWritePool();
+        ConnectionPool.PooledConnection conn = pool.borrow();
+        try {
+            GraphSnapshot.execute(conn, sql);
+        }
+        finally {
+            pool.release(conn);
+        }
+    }
+
+    public synchronized String statsSummary() {
+        return String.format("message partitions: runs=%d skipped=%d failures=%d created=%d rehomed=%d compacted=%d " +
+                             "vacuumed=%d archived=%d archivedRows=%d archiveBytes=%d",
+            runs, runsSkipped, failures, partitionsCreated, rowsRehomed, rowsCompacted,
+            partitionsVacuumed, partitionsArchived, rowsArchived, archiveBytes);
+    }
+
+    public static void main(String[] args) {
+        if(args.length < 4) {
+            System.err.println("Usage: java [-classpath <classpath>] " + MessagePartitions.class.getName() +
+                " <dbname> <port> <user> migrate|partition|compact|archive|all [--retention months] [--dir path] [--batch N]");
+            return;
+        }
+        String phase = args[3];
+        int retention = DEFAULT_RETENTION_MONTHS;
+        String dir = DEFAULT_ARCHIVE_DIR;
+        int batch = DEFAULT_BATCH;
+        for(int i = 4; i + 1 < args.length; i += 2) {
+            if(args[i].equals("--retention")) retention = Integer.parseInt(args[i + 1]);
+            else if(args[i].equals("--dir")) dir = args[i + 1];
+            else if(args[i].equals("--batch")) batch = Integer.parseInt(args[i + 1]);
+        }
+
+        ProfNetwork esql = null;
+        try {
+            Class.forName("org.postgresql.Driver").newInstance();
+            esql = new ProfNetwork(args[0], args[1], args[2], "");
+            MessagePartitions partitions = new MessagePartitions(esql, retention, new File(dir), batch);
+            if(phase.equals("migrate")) partitions.migrate();
+            else if(phase.equals("partition")) partitions.partition();
+            else if(phase.equals("compact")) partitions.compact();
+            else if(phase.equals("archive")) partitions.archive();
+            else if(phase.equals("all")) {
+                if(!partitions.maintain()) System.out.println("Another maintenance run holds the lock");
+            }
+            else System.err.println("Unknown phase " + phase);
+            System.out.println(partitions.statsSummary());
+        }
+        catch(Exception e) {
+            System.err.println(e.getMessage());
+        }
+        finally {
+            if(esql != null) esql.cleanup();
+        }
+    }
+}
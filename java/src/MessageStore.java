@@ -0,0 +1,225 @@
+/*
+ * Data access for the MESSAGE table: keyset paginated inbox and outbox reads,
+ * soft deletes and batched multi-recipient sends.
+ *
+ * deleteStatus is a bit set: DELETED_BY_SENDER hides a message from the sender's
+ * outbox and DELETED_BY_RECEIVER from the receiver's inbox. A message is only
+ * gone for good once both bits are set.
+ */
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class MessageStore {
+
+    public static final int DELETED_BY_SENDER = 1;
+    public static final int DELETED_BY_RECEIVER = 2;
+
+    public static final int DEFAULT_PAGE_SIZE = 10;
+
+    static final String STATUS_DELIVERED = "Delivered";
+    static final String STATUS_READ = "Read";
+
+    // newest first; the (sendTime, msgId) row comparison is answered from the
+    // (receiverId, sendTime, msgId) / (senderId, sendTime, msgId) indexes, or
+    // their receiver_uid / sender_uid twins once SurrogateKeys has contracted the
+    // keys. The plain sendTime bound repeats it in a form partition pruning
+    // understands, so a page only opens the months up to its cursor (see
+    // MessagePartitions)
+    static final String INBOX_BY_USERID = QueryStats.named("messages.inbox", mailbox("receiverId = ?", DELETED_BY_RECEIVER));
+    static final String OUTBOX_BY_USERID = QueryStats.named("messages.outbox", mailbox("senderId = ?", DELETED_BY_SENDER));
+    static final String INBOX_BY_UID = QueryStats.named("messages.inbox", mailbox("receiver_uid = ?", DELETED_BY_RECEIVER));
+    static final String OUTBOX_BY_UID = QueryStats.named("messages.outbox", mailbox("sender_uid = ?", DELETED_BY_SENDER));
+
+    static final String ALLOCATE_IDS_QUERY = QueryStats.named("messages.allocateIds",
+        "SELECT nextval('message_msgid_seq') FROM generate_series(1, ?)");
+    static final String INSERT_MESSAGE = QueryStats.named("messages.insert",
+        "INSERT INTO message (msgId, senderId, receiverId, contents, sendTime, deleteStatus, status) VALUES (?, ?, ?, ?, ?, 0, ?)");
+    static final String HIDE_MESSAGE = QueryStats.named("messages.hide",
+        "UPDATE message SET deleteStatus = COALESCE(deleteStatus, 0) " +
+        "| CASE WHEN receiverId = ? THEN " + DELETED_BY_RECEIVER + " ELSE 0 END " +
+        "| CASE WHEN senderId = ? THEN " + DELETED_BY_SENDER + " ELSE 0 END " +
+        "WHERE msgId = ? AND sendTime = ? AND (receiverId = ? OR senderId = ?)");
+    static final String PURGE_MESSAGE = QueryStats.named("messages.purge",
+        "DELETE FROM message WHERE msgId = ? AND sendTime = ? AND deleteStatus = ?");
+    static final String MARK_READ = QueryStats.named("messages.markRead",
+        "UPDATE message SET status = ? WHERE msgId = ? AND sendTime = ? AND receiverId = ?");
+
+    /*
+     * One row of MESSAGE with the padding of the char columns removed.
+     **/
+    public static final class Message {
+        public final int msgId;
+        public final String senderId;
+        public final String receiverId;
+        public final String contents;
+        public final Timestamp sendTime;
+        public final String status;
+
+        Message(ResultSet rs) throws SQLException {
+            msgId = rs.getInt(1);
+            senderId = rs.getString(2).trim();
+            receiverId = rs.getString(3).trim();
+            contents = rs.getString(4).trim();
+            sendTime = rs.getTimestamp(5);
+            status = rs.getString(6).trim();
+        }
+    }
+
+    /*
+     * A page of messages plus the cursor to pass in to get the next one.
+     **/
+    public static final class Page {
+        public final List<Message> messages;
+        public final Cursor next;
+
+        Page(List<Message> messages, Cursor next) {
+            this.messages = messages;
+            this.next = next;
+        }
+    }
+
+    /*
+     * Position in a mailbox: the (sendTime, msgId) of the last message seen.
+     * FIRST starts from the newest message.
+     **/
+    public static final class Cursor {
+        public static final Cursor FIRST = new Cursor(Timestamp.valueOf("9999-12-31 23:59:59"), Integer.MAX_VALUE);
+
+        final Timestamp sendTime;
+        final int msgId;
+
+        Cursor(Timestamp sendTime, int msgId) {
+            this.sendTime = sendTime;
+            this.msgId = msgId;
+        }
+    }
+
+    private static String mailbox(String owner, int deletedFlag) {
+        return "SELECT msgId, senderId, receiverId, contents, sendTime, status FROM message " +
+            "WHERE " + owner + " AND (COALESCE(deleteStatus, 0) & " + deletedFlag + ") = 0 " +
+            "AND sendTime <= ? AND (sendTime, msgId) < (?, ?) " +
+            "ORDER BY sendTime DESC, msgId DESC LIMIT ?";
+    }
+
+    private final ProfNetwork esql;
+
+    public MessageStore(ProfNetwork esql) {
+        this.esql = esql;
+    }
+
+    public Page inbox(User session, Cursor after, int pageSize) throws SQLException {
+        return page(esql.usesSurrogateKeys() ? INBOX_BY_UID : INBOX_BY_USERID, session.key(), after, pageSize);
+    }
+
+    public Page outbox(User session, Cursor after, int pageSize) throws SQLException {
+        return page(esql.usesSurrogateKeys() ? OUTBOX_BY_UID : OUTBOX_BY_USERID, session.key(), after, pageSize);
+    }
+
+    private Page page(String query, Object owner, Cursor after, int pageSize) throws SQLException {
+        final List<Message> messages = new ArrayList<Message>(pageSize);
+        // LIMIT bounds the page, so no cursor
+        esql.executeQueryStreaming(query, 0, new RowHandler() {
+            public boolean row(ResultSet rs) throws SQLException {
+                messages.add(new Message(rs));
+                return true;
+            }
+        }, owner, after.sendTime, after.sendTime, after.msgId, pageSize);
+        Cursor next = null;
+        if(messages.size() == pageSize) {
+            Message last = messages.get(messages.size() - 1);
+            next = new Cursor(last.sendTime, last.msgId);
+        }
+        return new Page(Collections.unmodifiableList(messages), next);
+    }
+
+    /*
+     * Sends the same message to every recipient in one transaction. The msgIds
+     * are allocated from the sequence in a single round trip and the rows are
+     * written with one JDBC batch. Returns the new msgIds in recipient order.
+     **/
+    public int[] send(String senderId, List<String> recipients, String contents) throws SQLException {
+        int[] ids = new int[recipients.size()];
+        if(ids.length == 0) return ids;
+        ConnectionPool pool = esql.getWritePool();
+        long start = System.nanoTime();
+        String sql = ALLOCATE_IDS_QUERY;
+        ConnectionPool.PooledConnection conn = pool.borrow();
+        try {
+            conn.connection.setAutoCommit(false);
+
+            PreparedStatement allocate = conn.prepare(ALLOCATE_IDS_QUERY);
+            ProfNetwork.bind(allocate, ids.length);
+            ResultSet rs = allocate.executeQuery();
+            for(int i = 0; i < ids.length && rs.next(); i++) ids[i] = rs.getInt(1);
+            rs.close();
+            QueryStats.record(sql, start, ids.length, 0);
+
+            start = System.nanoTime();
+            sql = INSERT_MESSAGE;
+            Timestamp now = new Timestamp(System.currentTimeMillis());
+            PreparedStatement insert = conn.prepare(INSERT_MESSAGE);
+            for(int i = 0; i < ids.length; i++) {
+                ProfNetwork.bind(insert, ids[i], senderId, recipients.get(i), contents, now, STATUS_DELIVERED);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+            conn.connection.commit();
+            QueryStats.record(sql, start, ids.length, 0);
+            return ids;
+        }
+        catch(SQLException e) {
+            QueryStats.failed(sql, start, e);
+            throw e;
+        }
+        finally {
+            pool.release(conn);
+        }
+    }
+
+    /*
+     * Hides a message from the given user's inbox or outbox. Rows deleted by
+     * both sides are removed for real. Returns false if the user is neither the
+     * sender nor the receiver of the message. The sendTime keeps both
+     * statements to the message's partition.
+     **/
+    public boolean delete(String userId, Message message) throws SQLException {
+        int updated = esql.executeUpdate(HIDE_MESSAGE, userId, userId, message.msgId, message.sendTime, userId, userId);
+        esql.executeUpdate(PURGE_MESSAGE, message.msgId, message.sendTime, DELETED_BY_SENDER | DELETED_BY_RECEIVER);
+        return updated > 0;
+    }
+
+    /*
+     * Marks the given received messages as read.
+     **/
+    public void markRead(String userId, List<Message> messages) throws SQLException {
+        ConnectionPool pool = esql.getWritePool();
+        long start = System.nanoTime();
+        ConnectionPool.PooledConnection conn = pool.borrow();
+        try {
+            PreparedStatement stmt = conn.prepare(MARK_READ);
+            int batched = 0;
+            for(Message m : messages) {
+                if(m.receiverId.equals(userId) && STATUS_DELIVERED.equals(m.status)) {
+                    ProfNetwork.bind(stmt, STATUS_READ, m.msgId, m.sendTime, userId);
+                    stmt.addBatch();
+                    batched++;
+                }
+            }
+            if(batched > 0) stmt.executeBatch();
+            QueryStats.record(MARK_READ, start, batched, 0);
+        }
+        catch(SQLException e) {
+            QueryStats.failed(MARK_READ, start, e);
+            throw e;
+        }
+        finally {
+            pool.release(conn);
+        }
+    }
+}
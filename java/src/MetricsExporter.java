@@ -0,0 +1,227 @@
+/*
+ * Exports QueryStats, OperationStats and the pool / writer gauges in the
+ * Prometheus text exposition format.
+ *
+ * Two ways out, either or both:
+ *  - -Dprofnetwork.metrics.file=<path> rewrites the file every
+ *    -Dprofnetwork.metrics.interval seconds (default 10), for the node
+ *    exporter's textfile collector. The file is written next to the target
+ *    and renamed over it so a scrape never sees half of it.
+ *  - -Dprofnetwork.metrics.port=<port> serves GET /metrics on 127.0.0.1.
+ *
+ * Latencies are summaries in seconds with the 0.5, 0.9, 0.99 and 0.999
+ * quantiles, read from the LatencyHistograms at scrape time.
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+public class MetricsExporter {
+
+    public static final long DEFAULT_INTERVAL_SECONDS = 10;
+
+    static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private final ProfNetwork esql;
+    private ScheduledExecutorService writer;
+    private HttpServer server;
+
+    public MetricsExporter(ProfNetwork esql) {
+        this.esql = esql;
+    }
+
+    /*
+     * Starts an exporter for whatever the system properties ask for, or returns
+     * null when neither a file nor a port is configured.
+     **/
+    public static MetricsExporter fromSystemProperties(ProfNetwork esql) {
+        String file = System.getProperty("profnetwork.metrics.file");
+        Integer port = Integer.getInteger("profnetwork.metrics.port");
+        if(file == null && port == null) return null;
+        MetricsExporter exporter = new MetricsExporter(esql);
+        if(file != null) exporter.writeFile(new File(file), Long.getLong("profnetwork.metrics.interval", DEFAULT_INTERVAL_SECONDS));
+        if(port != null) {
+            // metrics are not worth refusing to start over
+            try {
+                exporter.serve(port);
+            }
+            catch(IOException e) {
+                SessionIO.consoleErr().println("Cannot serve metrics on port " + port + ": " + e.getMessage());
+            }
+        }
+        return exporter;
+    }
+
+    public synchronized void writeFile(final File target, long intervalSeconds) {
+        writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "metrics-file");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        writer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    write(target);
+                }
+                catch(IOException e) {
+                    SessionIO.consoleErr().println("Cannot write metrics to " + target + ": " + e.getMessage());
+                }
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    void write(File target) throws IOException {
+        File tmp = new File(target.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(render().getBytes("UTF-8"));
+        }
+        finally {
+            out.close();
+        }
+        if(!tmp.renameTo(target)) {
+            // renameTo does not replace an existing file everywhere
+            target.delete();
+            if(!tmp.renameTo(target)) throw new IOException("cannot rename " + tmp + " to " + target);
+        }
+    }
+
+    public synchronized void serve(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext("/metrics", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = render().getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                try {
+                    out.write(body);
+                }
+                finally {
+                    out.close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    public synchronized void close() {
+        if(writer != null) writer.shutdownNow();
+        if(server != null) server.stop(0);
+        writer = null;
+        server = null;
+    }
+
+    /*
+     * Everything we export, in the text exposition format.
+     **/
+    public String render() {
+        StringBuilder sb = new StringBuilder(8192);
+
+        Map<String, QueryStats.Stat> queries = QueryStats.snapshot();
+        header(sb, "profnetwork_query_duration_seconds", "summary", "Latency of JDBC statements by query name.");
+        for(Map.Entry<String, QueryStats.Stat> e : queries.entrySet())
+            summary(sb, "profnetwork_query_duration_seconds", "query", e.getKey(), e.getValue().latency);
+        header(sb, "profnetwork_query_rows_total", "counter", "Rows returned or changed by query name.");
+        for(Map.Entry<String, QueryStats.Stat> e : queries.entrySet())
+            sample(sb, "profnetwork_query_rows_total", "query", e.getKey(), e.getValue().rows.get());
+        header(sb, "profnetwork_query_bytes_total", "counter", "Bytes of result data materialized by query name.");
+        for(Map.Entry<String, QueryStats.Stat> e : queries.entrySet())
+            sample(sb, "profnetwork_query_bytes_total", "query", e.getKey(), e.getValue().bytes.get());
+        header(sb, "profnetwork_query_errors_total", "counter", "Failed executions by query name.");
+        for(Map.Entry<String, QueryStats.Stat> e : queries.entrySet())
+            sample(sb, "profnetwork_query_errors_total", "query", e.getKey(), e.getValue().errors.get());
+        header(sb, "profnetwork_query_slow_total", "counter", "Executions over the slow query threshold by query name.");
+        for(Map.Entry<String, QueryStats.Stat> e : queries.entrySet())
+            sample(sb, "profnetwork_query_slow_total", "query", e.getKey(), e.getValue().slow.get());
+
+        header(sb, "profnetwork_operation_duration_seconds", "summary", "Latency of service operations.");
+        for(Map.Entry<String, LatencyHistogram> e : OperationStats.snapshot().entrySet())
+            summary(sb, "profnetwork_operation_duration_seconds", "operation", e.getKey(), e.getValue());
+
+        ConnectionPool pool = esql.getPool();
+        gauge(sb, "profnetwork_pool_active_connections", "Connections borrowed right now.", pool.getActiveCount());
+        gauge(sb, "profnetwork_pool_idle_connections", "Open connections waiting in the pool.", pool.getIdleCount());
+        gauge(sb, "profnetwork_pool_waiting_threads", "Threads waiting to borrow a connection.", pool.getWaitingCount());
+        header(sb, "profnetwork_pool_borrows_total", "counter", "Connections handed out.");
+        sample(sb, "profnetwork_pool_borrows_total", null, null, pool.getBorrowCount());
+
+        ReadRouter router = esql.getRouter();
+        header(sb, "profnetwork_route_duration_seconds", "summary", "Latency of statements by where they ran.");
+        for(ReadRouter.Route r : router.routes())
+            summary(sb, "profnetwork_route_duration_seconds", "route", r.getName(), r.getLatency());
+        if(router.hasReplica()) {
+            gauge(sb, "profnetwork_replica_up", "1 if reads may go to the replica.", router.isReplicaHealthy() ? 1 : 0);
+            gauge(sb, "profnetwork_replica_lag_milliseconds", "Replica replay lag at the last probe.", router.getLagMillis());
+            header(sb, "profnetwork_route_primary_reads_total", "counter", "Reads sent to the primary instead of the replica, by reason.");
+            sample(sb, "profnetwork_route_primary_reads_total", "reason", "sticky", router.getStickyReads());
+            sample(sb, "profnetwork_route_primary_reads_total", "reason", "lagging", router.getLaggingReads());
+            sample(sb, "profnetwork_route_primary_reads_total", "reason", "down", router.getDownReads());
+            sample(sb, "profnetwork_route_primary_reads_total", "reason", "pinned", router.getPinnedReads());
+        }
+
+        List<SegmentedLruCache<String, ?>> caches = esql.getUserCache().caches();
+        header(sb, "profnetwork_cache_hits_total", "counter", "Shared user cache hits.");
+        for(SegmentedLruCache<String, ?> c : caches) sample(sb, "profnetwork_cache_hits_total", "cache", c.getName(), c.getHitCount());
+        header(sb, "profnetwork_cache_misses_total", "counter", "Shared user cache misses (database loads).");
+        for(SegmentedLruCache<String, ?> c : caches) sample(sb, "profnetwork_cache_misses_total", "cache", c.getName(), c.getMissCount());
+        header(sb, "profnetwork_cache_evictions_total", "counter", "Shared user cache evictions.");
+        for(SegmentedLruCache<String, ?> c : caches) sample(sb, "profnetwork_cache_evictions_total", "cache", c.getName(), c.getEvictionCount());
+        header(sb, "profnetwork_cache_bytes", "gauge", "Estimated memory held by the shared user cache.");
+        for(SegmentedLruCache<String, ?> c : caches) sample(sb, "profnetwork_cache_bytes", "cache", c.getName(), c.getSizeBytes());
+
+        WriteBehindQueue writer = esql.getWriter();
+        if(writer != null) {
+            gauge(sb, "profnetwork_writer_queue_depth", "Mutations waiting for the background writer.", writer.getQueueDepth());
+            header(sb, "profnetwork_writer_mutations_total", "counter", "Mutations written by the background writer.");
+            sample(sb, "profnetwork_writer_mutations_total", null, null, writer.getMutationCount());
+            header(sb, "profnetwork_writer_failures_total", "counter", "Mutations the background writer failed.");
+            sample(sb, "profnetwork_writer_failures_total", null, null, writer.getFailureCount());
+        }
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, long value) {
+        header(sb, name, "gauge", help);
+        sample(sb, name, null, null, value);
+    }
+
+    private static void summary(StringBuilder sb, String name, String label, String value, LatencyHistogram h) {
+        for(double q : QUANTILES) {
+            sb.append(name).append('{').append(label).append("=\"").append(escape(value))
+                .append("\",quantile=\"").append(q).append("\"} ").append(h.quantileNanos(q) / 1e9).append('\n');
+        }
+        sample(sb, name + "_sum", label, value, h.getTotalNanos() / 1e9);
+        sample(sb, name + "_count", label, value, h.getCount());
+    }
+
+    private static void sample(StringBuilder sb, String name, String label, String value, Object sample) {
+        sb.append(name);
+        if(label != null) sb.append('{').append(label).append("=\"").append(escape(value)).append("\"}");
+        sb.append(' ').append(sample).append('\n');
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
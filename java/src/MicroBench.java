@@ -0,0 +1,170 @@
+/*
+ * In-process microbenchmarks for the pieces of ProfNetwork that do not need a
+ * database: getColumn over padded char(30) ids, materializing rows as
+ * List<List<String>> versus typed objects, FriendGraph traversal,
+ * ReachabilityIndex probes and SegmentedLruCache lookups.
+ *
+ * Each benchmark is warmed up first and then timed over several measurement
+ * rounds; the results feed a volatile sink so the JIT cannot drop the work.
+ *
+ * Usage: java MicroBench [rounds]
+ */
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class MicroBench {
+
+    static final int WARMUP_ROUNDS = 5;
+    static final int ROWS = 1000;
+    static final int GRAPH_USERS = 100000;
+    static final int GRAPH_EDGES = 500000;
+
+    static volatile long sink;
+
+    /*
+     * One benchmark: run() does `ops` operations and returns something to sink.
+     **/
+    static abstract class Bench {
+        final String name;
+        final int ops;
+
+        Bench(String name, int ops) {
+            this.name = name;
+            this.ops = ops;
+        }
+
+        abstract long run();
+    }
+
+    static void measure(Bench b, int rounds) {
+        for(int i = 0; i < WARMUP_ROUNDS; i++) sink += b.run();
+        double best = Double.MAX_VALUE, total = 0;
+        for(int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            sink += b.run();
+            double nsPerOp = (double) (System.nanoTime() - start) / b.ops;
+            best = Math.min(best, nsPerOp);
+            total += nsPerOp;
+        }
+        System.out.println(String.format("%-32s %12.1f ns/op (best %.1f)", b.name, total / rounds, best));
+    }
+
+    static String pad(String s) {
+        StringBuilder sb = new StringBuilder(s);
+        while(sb.length() < 30) sb.append(' ');
+        return sb.toString();
+    }
+
+    public static void main(String[] args) {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        Random rnd = new Random(42);
+
+        // rows as connection_usr hands them back: padded char(30) ids
+        final String[][] raw = new String[ROWS][];
+        final List<List<String>> rows = new ArrayList<List<String>>();
+        for(int i = 0; i < ROWS; i++) {
+            raw[i] = new String[] { pad("user" + rnd.nextInt(5000)), pad("user" + rnd.nextInt(5000)), pad("friend") };
+            List<String> row = new ArrayList<String>();
+            for(String v : raw[i]) row.add(v);
+            rows.add(row);
+        }
+
+        measure(new Bench("getColumn (1000 rows)", 1) {
+            long run() { return ProfNetwork.getColumn(rows, 0).size(); }
+        }, rounds);
+
+        measure(new Bench("materialize List<List<String>>", 1) {
+            long run() {
+                List<List<String>> result = new ArrayList<List<String>>();
+                for(String[] r : raw) {
+                    List<String> record = new ArrayList<String>();
+                    for(String v : r) record.add(v);
+                    result.add(record);
+                }
+                return result.size();
+            }
+        }, rounds);
+
+        measure(new Bench("materialize typed Friend", 1) {
+            long run() {
+                List<User.Friend> result = new ArrayList<User.Friend>(raw.length);
+                for(String[] r : raw) result.add(new User.Friend(r[1].trim()));
+                return result.size();
+            }
+        }, rounds);
+
+        final FriendGraph graph = new FriendGraph();
+        int[] from = new int[GRAPH_EDGES];
+        int[] to = new int[GRAPH_EDGES];
+        for(int i = 0; i < GRAPH_USERS; i++) graph.addUser("u" + i);
+        for(int i = 0; i < GRAPH_EDGES; i++) {
+            from[i] = rnd.nextInt(GRAPH_USERS);
+            to[i] = rnd.nextInt(GRAPH_USERS);
+        }
+        graph.build(from, to, GRAPH_EDGES);
+        final int[] pairs = new int[2000];
+        for(int i = 0; i < pairs.length; i++) pairs[i] = rnd.nextInt(GRAPH_USERS);
+
+        measure(new Bench("FriendGraph.isWithinHops(3)", pairs.length / 2) {
+            long run() {
+                long hits = 0;
+                for(int i = 0; i < pairs.length; i += 2)
+                    if(graph.isWithinHops(pairs[i], pairs[i + 1], ProfNetwork.MAX_CONNECTION_DEPTH)) hits++;
+                return hits;
+            }
+        }, rounds);
+
+        // the same senders asking about many targets, as users do once their free connections are used up
+        final String[] senders = new String[100];
+        final String[] targets = new String[2000];
+        for(int i = 0; i < senders.length; i++) senders[i] = "u" + rnd.nextInt(GRAPH_USERS);
+        for(int i = 0; i < targets.length; i++) targets[i] = "u" + rnd.nextInt(GRAPH_USERS);
+        final ReachabilityIndex index = new ReachabilityIndex(graph, ProfNetwork.MAX_CONNECTION_DEPTH, ReachabilityIndex.DEFAULT_BUDGET_BYTES);
+
+        measure(new Bench("FriendGraph.isWithinHops(3) by name", targets.length) {
+            long run() {
+                long hits = 0;
+                for(int i = 0; i < targets.length; i++)
+                    if(graph.isWithinHops(senders[i % senders.length], targets[i], ProfNetwork.MAX_CONNECTION_DEPTH)) hits++;
+                return hits;
+            }
+        }, rounds);
+
+        measure(new Bench("ReachabilityIndex.isWithinHops", targets.length) {
+            long run() {
+                long hits = 0;
+                for(int i = 0; i < targets.length; i++)
+                    if(index.isWithinHops(senders[i % senders.length], targets[i])) hits++;
+                return hits;
+            }
+        }, rounds);
+        System.out.println(index.statsSummary());
+
+        // skewed keys like real traffic: a few users are looked up all the time
+        final String[] keys = new String[100000];
+        for(int i = 0; i < keys.length; i++) keys[i] = "user" + (int) Math.pow(GRAPH_USERS, rnd.nextDouble());
+        final SegmentedLruCache<String, String> cache = new SegmentedLruCache<String, String>("bench", 4L * 1024 * 1024, Long.MAX_VALUE, true,
+            new SegmentedLruCache.Loader<String, String>() {
+                public String load(String key) { return key; }
+            },
+            new SegmentedLruCache.Weigher<String, String>() {
+                public long weigh(String key, String value) { return 200; }
+            });
+        measure(new Bench("SegmentedLruCache.get (skewed keys)", keys.length) {
+            long run() {
+                long n = 0;
+                try {
+                    for(String key : keys) n += cache.get(key).length();
+                }
+                catch(SQLException e) {
+                    throw new IllegalStateException(e);
+                }
+                return n;
+            }
+        }, rounds);
+        System.out.println(cache.statsSummary());
+    }
+}
@@ -0,0 +1,458 @@
+/*
+ * Push notifications from the database to the sessions of this process.
+ *
+ * The triggers in create_triggers.sql NOTIFY a channel per affected user
+ * ("profnetwork.<userid>") whenever their pending requests, friends or inbox
+ * change, from this process or any other. One connection per JVM, outside the
+ * pool, LISTENs to the channels of the users that have a session here and
+ * hands each event to those sessions (see User), after dropping the user's
+ * entries from the shared UserCache. Sessions then reload a section only when
+ * told it changed, instead of re-reading it on every main menu refresh.
+ *
+ * The payload is the event and the database clock at the change in epoch
+ * millis, e.g. "pending 1712345678901", from which the delivery latency is
+ * recorded (meaningful when the database and the JVM share a clock). Drivers
+ * too old to return payloads get the channel name only; that is treated as
+ * "all", as is a reconnect, after which every section may be stale.
+ *
+ * Newer drivers wait for notifications on the socket; older ones only see them
+ * with the response to a query, so then the listener sends SELECT 1 every
+ * -Dprofnetwork.notify.poll ms. Turn it on with -Dprofnetwork.notify=listen.
+ *
+ * Usage: java Notifications <dbname> <port> <user> [--users N] [--events N]
+ */
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+public final class Notifications {
+
+    public static final long DEFAULT_POLL_MILLIS = 50;
+    public static final long DEFAULT_RECONNECT_MILLIS = 1000;
+    public static final long DEFAULT_TTL_MILLIS = 300000;
+
+    static final boolean ENABLED = "listen".equals(System.getProperty("profnetwork.notify"));
+    static final long POLL_MILLIS = Long.getLong("profnetwork.notify.poll", DEFAULT_POLL_MILLIS);
+
+    // how long a session trusts a section no event has invalidated, in case one
+    // was missed (-Dprofnetwork.notify.ttl); replaces User.TTL_MILLIS while subscribed
+    static final long TTL_MILLIS = Long.getLong("profnetwork.notify.ttl", DEFAULT_TTL_MILLIS);
+
+    // a user's channel, as create_triggers.sql names it
+    static final String CHANNEL_PREFIX = "profnetwork.";
+
+    // events, the first word of a payload
+    public static final String PENDING = "pending";
+    public static final String FRIENDS = "friends";
+    public static final String MESSAGE = "message";
+    public static final String ALL = "all";
+
+    /*
+     * Told about each event for its user, on the listener thread, so it must
+     * return quickly.
+     **/
+    public interface Subscriber {
+        void changed(String event);
+    }
+
+    public final class Subscription {
+        final String userId;
+        final Subscriber subscriber;
+
+        Subscription(String userId, Subscriber subscriber) {
+            this.userId = userId;
+            this.subscriber = subscriber;
+        }
+
+        public void close() {
+            unsubscribe(this);
+        }
+    }
+
+    private final ConnectionPool pool;
+    private final UserCache cache;
+    private final ConcurrentHashMap<String, CopyOnWriteArrayList<Subscription>> subscribers =
+        new ConcurrentHashMap<String, CopyOnWriteArrayList<Subscription>>();
+    private final Thread listener;
+    private volatile boolean closed = false;
+
+    // the listening connection and how to read from it, null while
+    // disconnected; guarded by lock, which is fair so subscribing never waits
+    // more than one poll for the listener
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private Connection connection;
+    private PreparedStatement ping;
+    private volatile boolean connected = false;
+
+    // PGConnection.getNotifications(int) and PGNotification.getParameter(), if the driver has them
+    private final Method waitForNotifications;
+    private final Method parameter;
+
+    // metrics
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong unclaimed = new AtomicLong();
+    private final AtomicLong pings = new AtomicLong();
+    private final AtomicLong connects = new AtomicLong();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    public Notifications(ConnectionPool pool, UserCache cache) {
+        this.pool = pool;
+        this.cache = cache;
+        this.waitForNotifications = method(PGConnection.class, "getNotifications", int.class);
+        this.parameter = method(PGNotification.class, "getParameter");
+        this.listener = new Thread(new Runnable() {
+            public void run() {
+                listen();
+            }
+        }, "profnetwork-notify");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    private static Method method(Class<?> type, String name, Class<?>... params) {
+        try {
+            return type.getMethod(name, params);
+        }
+        catch(NoSuchMethodException e) {
+            // older driver
+            return null;
+        }
+    }
+
+    /*
+     * Starts telling subscriber about the user's events. Once this returns the
+     * user's channel is listened to (unless the listener is reconnecting, in
+     * which case the reconnect sends "all"), so data read afterwards is either
+     * current or followed by an event.
+     **/
+    public Subscription subscribe(String userId, Subscriber subscriber) {
+        Subscription s = new Subscription(userId.trim(), subscriber);
+        lock.lock();
+        try {
+            CopyOnWriteArrayList<Subscription> subs = subscribers.get(s.userId);
+            if(subs == null) {
+                subs = new CopyOnWriteArrayList<Subscription>();
+                subscribers.put(s.userId, subs);
+                if(connection != null) {
+                    try {
+                        execute("LISTEN " + channel(s.userId));
+                    }
+                    catch(SQLException e) {
+                        disconnect(e);
+                    }
+                }
+                // cached while nobody listened, so changes may have been missed
+                cache.invalidateFriends(s.userId);
+                cache.invalidatePendingRequests(s.userId);
+            }
+            subs.add(s);
+        }
+        finally {
+            lock.unlock();
+        }
+        return s;
+    }
+
+    void unsubscribe(Subscription s) {
+        lock.lock();
+        try {
+            CopyOnWriteArrayList<Subscription> subs = subscribers.get(s.userId);
+            if(subs == null || !subs.remove(s) || !subs.isEmpty()) return;
+            subscribers.remove(s.userId);
+            if(connection != null) {
+                try {
+                    execute("UNLISTEN " + channel(s.userId));
+                }
+                catch(SQLException e) {
+                    disconnect(e);
+                }
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private void listen() {
+        while(!closed) {
+            PGNotification[] batch = null;
+            boolean wasConnected = false;
+            lock.lock();
+            try {
+                if(connection == null) connect();
+                wasConnected = true;
+                batch = fetch();
+            }
+            catch(SQLException e) {
+                disconnect(e);
+            }
+            finally {
+                lock.unlock();
+            }
+            if(batch != null)
+                for(PGNotification n : batch) dispatch(n);
+            // the blocking fetch already waited
+            if(!wasConnected || (waitForNotifications == null && (batch == null || batch.length == 0)))
+                pause(wasConnected ? POLL_MILLIS : DEFAULT_RECONNECT_MILLIS);
+        }
+    }
+
+    // with lock held
+    private void connect() throws SQLException {
+        Connection c = pool.openUnpooled();
+        connection = c;
+        c.setAutoCommit(true);
+        if(waitForNotifications == null) ping = c.prepareStatement("SELECT 1");
+        for(String userId : subscribers.keySet()) execute("LISTEN " + channel(userId));
+        connected = true;
+        connects.incrementAndGet();
+        // anything may have changed while nobody listened, including before the first connect
+        for(String userId : subscribers.keySet()) deliver(userId, ALL);
+    }
+
+    // with lock held
+    private PGNotification[] fetch() throws SQLException {
+        PGConnection pg = (PGConnection) connection;
+        if(waitForNotifications == null) {
+            ping.executeQuery().close();
+            pings.incrementAndGet();
+            return pg.getNotifications();
+        }
+        try {
+            return (PGNotification[]) waitForNotifications.invoke(pg, (int) POLL_MILLIS);
+        }
+        catch(InvocationTargetException e) {
+            if(e.getCause() instanceof SQLException) throw (SQLException) e.getCause();
+            throw new SQLException("Cannot read notifications: " + e.getCause());
+        }
+        catch(IllegalAccessException e) {
+            throw new SQLException("Cannot read notifications: " + e);
+        }
+    }
+
+    // with lock held
+    private void disconnect(SQLException e) {
+        if(connected) SessionIO.consoleErr().println("Notification listener lost its connection, reconnecting: " + e.getMessage());
+        connected = false;
+        Connection c = connection;
+        connection = null;
+        ping = null;
+        if(c != null) {
+            try {
+                c.close();
+            }
+            catch(SQLException ignored) {
+                // ignored.
+            }
+        }
+    }
+
+    private void execute(String sql) throws SQLException {
+        Statement stmt = connection.createStatement();
+        try {
+            stmt.execute(sql);
+        }
+        finally {
+            stmt.close();
+        }
+    }
+
+    private void dispatch(PGNotification n) {
+        received.incrementAndGet();
+        String name = n.getName();
+        if(!name.startsWith(CHANNEL_PREFIX)) return;
+        String event = ALL;
+        String payload = payloadOf(n);
+        if(payload != null && !payload.isEmpty()) {
+            String[] parts = payload.split(" ");
+            event = parts[0];
+            if(parts.length > 1) {
+                try {
+                    long millis = System.currentTimeMillis() - Long.parseLong(parts[1]);
+                    latency.record(TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis)));
+                }
+                catch(NumberFormatException e) {
+                    // not one of ours, deliver it without timing
+                }
+            }
+        }
+        deliver(name.substring(CHANNEL_PREFIX.length()), event);
+    }
+
+    private String payloadOf(PGNotification n) {
+        if(parameter == null) return null;
+        try {
+            return (String) parameter.invoke(n);
+        }
+        catch(Exception e) {
+            return null;
+        }
+    }
+
+    private void deliver(String userId, String event) {
+        if(event.equals(PENDING) || event.equals(ALL)) cache.invalidatePendingRequests(userId);
+        if(event.equals(FRIENDS) || event.equals(ALL)) cache.invalidateFriends(userId);
+        List<Subscription> subs = subscribers.get(userId);
+        if(subs == null || subs.isEmpty()) {
+            unclaimed.incrementAndGet();
+            return;
+        }
+        for(Subscription s : subs) {
+            s.subscriber.changed(event);
+            delivered.incrementAndGet();
+        }
+    }
+
+    static String channel(String userId) {
+        return "\"" + (CHANNEL_PREFIX + userId).replace("\"", "\"\"") + "\"";
+    }
+
+    private static void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public void close() {
+        closed = true;
+        try {
+            listener.join(Math.max(POLL_MILLIS, DEFAULT_RECONNECT_MILLIS) * 2);
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.lock();
+        try {
+            connected = false;
+            disconnect(null);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    LatencyHistogram getLatency() { return latency; }
+    public long getReceivedCount() { return received.get(); }
+    public long getDeliveredCount() { return delivered.get(); }
+
+    public String statsSummary() {
+        return String.format("notifications: %s listening=%d received=%d delivered=%d unclaimed=%d connects=%d pings=%d " +
+                             "latency p50=%.2fms p99=%.2fms max=%.2fms",
+            connected ? "connected" : "disconnected", subscribers.size(), received.get(), delivered.get(), unclaimed.get(),
+            connects.get(), pings.get(), latency.quantileMillis(0.50), latency.quantileMillis(0.99), latency.getMaxNanos() / 1e6);
+    }
+
+    /*
+     * Subscribes the synthetic users, then sends requests between them from the
+     * pool and times each from just before the INSERT (or DELETE) is sent until
+     * the recipient's session is told, all on this JVM's clock.
+     **/
+    static void bench(ProfNetwork esql, int users, int events) throws SQLException, InterruptedException {
+        ReachabilityBenchmark.load(esql, users, 0, new Random(0));
+        final Notifications notifications = new Notifications(esql.getPool(), esql.getUserCache());
+        final AtomicReferenceArray<CountDownLatch> expected = new AtomicReferenceArray<CountDownLatch>(users);
+        Subscription[] subs = new Subscription[users];
+        try {
+            for(int i = 0; i < users; i++) {
+                final int user = i;
+                subs[i] = notifications.subscribe(ReachabilityBenchmark.PREFIX + i, new Subscriber() {
+                    public void changed(String event) {
+                        CountDownLatch latch = expected.get(user);
+                        if(latch != null && !event.equals(MESSAGE)) latch.countDown();
+                    }
+                });
+            }
+            long deadline = System.currentTimeMillis() + 10000;
+            while(!notifications.isConnected() && System.currentTimeMillis() < deadline) Thread.sleep(10);
+            if(!notifications.isConnected()) throw new SQLException("Notification listener did not connect");
+            // the first connect tells every subscriber "all"
+            Thread.sleep(2 * POLL_MILLIS);
+
+            LoadDriver.Recorder recorder = new LoadDriver.Recorder();
+            int lost = 0;
+            Random rnd = new Random(1);
+            for(int i = 0; i < events; i++) {
+                int from = rnd.nextInt(users), to = (from + 1 + rnd.nextInt(users - 1)) % users;
+                String a = ReachabilityBenchmark.PREFIX + from, b = ReachabilityBenchmark.PREFIX + to;
+                for(String sql : new String[] {
+                        "INSERT INTO connection_usr (userid, connectionid, status) VALUES (?, ?, 'pending')",
+                        "DELETE FROM connection_usr WHERE userid = ? AND connectionid = ?" }) {
+                    CountDownLatch latch = new CountDownLatch(1);
+                    expected.set(to, latch);
+                    long t = System.nanoTime();
+                    esql.executeUpdate(sql, a, b);
+                    if(latch.await(5, TimeUnit.SECONDS)) recorder.record(System.nanoTime() - t);
+                    else lost++;
+                    expected.set(to, null);
+                }
+            }
+            System.out.println(String.format("%d events to %d subscribed users: p50 %.3fms p99 %.3fms p999 %.3fms, %d not delivered within 5s",
+                recorder.count, users, recorder.percentileMillis(0.50), recorder.percentileMillis(0.99),
+                recorder.percentileMillis(0.999), lost));
+            System.out.println(notifications.statsSummary());
+            System.out.println(String.format("polling instead, a session sees another process's change after up to %dms (profnetwork.session.ttl)",
+                User.TTL_MILLIS));
+        }
+        finally {
+            for(Subscription s : subs) if(s != null) s.close();
+            notifications.close();
+        }
+    }
+
+    public static void main(String[] args) {
+        if(args.length < 3) {
+            System.err.println("Usage: java [-classpath <classpath>] " + Notifications.class.getName() +
+                " <dbname> <port> <user> [--users N] [--events N]");
+            return;
+        }
+        int users = 100;
+        int events = 1000;
+        for(int i = 3; i + 1 < args.length; i += 2) {
+            if(args[i].equals("--users")) users = Integer.parseInt(args[i + 1]);
+            else if(args[i].equals("--events")) events = Integer.parseInt(args[i + 1]);
+        }
+
+        ProfNetwork esql = null;
+        try {
+            Class.forName("org.postgresql.Driver").newInstance();
+            esql = new ProfNetwork(args[0], args[1], args[2], "");
+            try {
+                ReachabilityBenchmark.clear(esql);
+                bench(esql, Math.max(2, users), events);
+            }
+            finally {
+                ReachabilityBenchmark.clear(esql);
+            }
+        }
+        catch(Exception e) {
+            System.err.println(e.getMessage());
+        }
+        finally {
+            if(esql != null) esql.cleanup();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Process wide latency histograms per named service operation (login,
+ * sendRequest, ...), one level above the per-statement QueryStats.
+ * Cheap enough to leave on: one map lookup and a few atomic adds per call.
+ */
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+public final class OperationStats {
+
+    private static final ConcurrentMap<String, LatencyHistogram> STATS = new ConcurrentHashMap<String, LatencyHistogram>();
+
+    private OperationStats() {
+    }
+
+    /*
+     * Records one call of the operation that started at startNanos (System.nanoTime()).
+     **/
+    public static void record(String operation, long startNanos) {
+        histogram(operation).record(System.nanoTime() - startNanos);
+    }
+
+    private static LatencyHistogram histogram(String operation) {
+        LatencyHistogram h = STATS.get(operation);
+        if(h == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            h = STATS.putIfAbsent(operation, created);
+            if(h == null) h = created;
+        }
+        return h;
+    }
+
+    /*
+     * All histograms by operation name, sorted.
+     **/
+    static Map<String, LatencyHistogram> snapshot() {
+        return new TreeMap<String, LatencyHistogram>(STATS);
+    }
+
+    public static String summary() {
+        StringBuilder sb = new StringBuilder(String.format("%-22s %9s %9s %9s %9s %9s%n", "operation", "count", "mean ms", "p50 ms", "p99 ms", "max ms"));
+        for(Map.Entry<String, LatencyHistogram> e : snapshot().entrySet()) {
+            LatencyHistogram h = e.getValue();
+            sb.append(String.format("%-22s %9d %9.3f %9.3f %9.3f %9.3f%n", e.getKey(), h.getCount(),
+                    h.getMeanMillis(), h.quantileMillis(0.50), h.quantileMillis(0.99), h.getMaxNanos() / 1e6));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Query plan regression check for the hot lookups in ProfNetwork and User.
+ *
+ * Loads a synthetic graph (the same "bench_" data ReachabilityBenchmark uses),
+ * runs EXPLAIN (ANALYZE, BUFFERS) on each hot query exactly as the application
+ * sends it, and fails if a plan falls back to a sequential scan of usr or
+ * connection_usr, or if the execution time goes over the query's budget.
+ * It also gives one user the largest profile the schema allows and checks that
+ * reading it back in full stays within a response size and round trip budget,
+ * and pages back through a few months of one user's messages to check that the
+ * inbox and outbox only scan the partitions up to the cursor's month.
+ * Exits with status 1 on any failure so it can be run from a script.
+ *
+ * Usage: java PlanCheck <dbname> <port> <user> [edges]
+ * Run it against a scratch database that has sql/src/create_index.sql applied.
+ */
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class PlanCheck {
+
+    public static final long DEFAULT_EDGES = 200000;
+
+    static final Pattern SEQ_SCAN = Pattern.compile("Seq Scan on (usr|connection_usr)\\b", Pattern.CASE_INSENSITIVE);
+    // worst case profile: every column at its full width
+    static final int PROFILE_JOBS = 10;
+    static final int PROFILE_DEGREES = 5;
+    static final int PROFILE_SAMPLES = 200;
+    static final long PROFILE_BUDGET_BYTES = 8192;
+    static final double PROFILE_BUDGET_MILLIS = 10;
+
+    // months of messages the pruning check spreads over, and how many each
+    static final int MESSAGE_MONTHS = 4;
+    static final int MESSAGES_PER_MONTH = 15;
+    static final Pattern PARTITION_SCAN = Pattern.compile(" on (message_p\\d{6}|message_default)\\b");
+
+    static final Pattern EXECUTION_TIME = Pattern.compile("(?:Execution Time|Total runtime): ([0-9.]+) ms");
+
+    /*
+     * One hot query: the SQL as sent, sample parameters and a latency budget.
+     **/
+    static final class HotQuery {
+        final String name;
+        final String sql;
+        final Object[] params;
+        final double budgetMillis;
+
+        HotQuery(String name, String sql, double budgetMillis, Object... params) {
+            this.name = name;
+            this.sql = sql;
+            this.budgetMillis = budgetMillis;
+            this.params = params;
+        }
+    }
+
+    static List<HotQuery> hotQueries(ProfNetwork esql, String user, String other) throws SQLException {
+        Object userKey = esql.userKey(user), otherKey = esql.userKey(other);
+        List<HotQuery> queries = new ArrayList<HotQuery>();
+        queries.add(new HotQuery("login", ProfNetwork.existsQuery(ProfNetwork.LOGIN_QUERY), 2, user, "bench"));
+        queries.add(new HotQuery("user.exists", ProfNetwork.existsQuery(ProfNetwork.USER_EXISTS_QUERY), 2, other));
+        queries.add(new HotQuery("request.exists", ProfNetwork.existsQuery(ProfNetwork.REQUEST_EXISTS_QUERY), 2, user, other));
+        queries.add(new HotQuery("request.state", FriendRequests.SEND_STATE, 5, other, user, other, other, user, user));
+        queries.add(new HotQuery("connections.count", ProfNetwork.countQuery(ProfNetwork.CONNECTIONS_QUERY), 5, user, user));
+        queries.add(new HotQuery("quota.load", ConnectionQuota.COUNT_QUERY, 2, user));
+        queries.add(new HotQuery("friends.load", User.friendsQuery(esql), 5, userKey, userKey));
+        queries.add(new HotQuery("profile.load", User.PROFILE_QUERY, 2, user));
+        queries.add(new HotQuery("profile.full", ProfileStore.FULL_PROFILE_QUERY, 5, user, user, user));
+        queries.add(new HotQuery("pending.load", User.pendingRequestsQuery(esql), 2, userKey));
+        queries.add(new HotQuery("request.depthCheck", ProfNetwork.existsQuery(esql.usesSurrogateKeys()
+                                 ? ProfNetwork.CONNECTION_DEPTH_BY_UID : ProfNetwork.CONNECTION_DEPTH_BY_USERID), 250,
+                                 userKey, ProfNetwork.MAX_CONNECTION_DEPTH, otherKey));
+        queries.add(new HotQuery("user.search", UserSearch.SEARCH_QUERY, 20, "%" + UserSearch.escapeLike(other.toLowerCase()) + "%", "", UserSearch.DEFAULT_PAGE_SIZE));
+        queries.add(new HotQuery("recommend.stored", RecommendationEngine.STORED_QUERY, 2, user, RecommendationEngine.DEFAULT_K));
+        queries.add(new HotQuery("recommend.online", RecommendationEngine.ONLINE_QUERY, 50,
+                                 user, user, user, user, user, RecommendationEngine.DEFAULT_K));
+        return queries;
+    }
+
+    /*
+     * Explains every hot query and returns the number that failed.
+     **/
+    static int check(ProfNetwork esql, List<HotQuery> queries) throws SQLException {
+        int failures = 0;
+        for(HotQuery q : queries) {
+            List<List<String>> plan = esql.executeQueryAndReturnResult("EXPLAIN (ANALYZE, BUFFERS) " + q.sql, q.params);
+            List<String> problems = new ArrayList<String>();
+            double millis = -1;
+            for(List<String> row : plan) {
+                String line = row.get(0);
+                if(SEQ_SCAN.matcher(line).find()) problems.add("sequential scan: " + line.trim());
+                Matcher m = EXECUTION_TIME.matcher(line);
+                if(m.find()) millis = Double.parseDouble(m.group(1));
+            }
+            if(millis > q.budgetMillis)
+                problems.add(String.format("took %.3fms, budget is %.3fms", millis, q.budgetMillis));
+
+            System.out.println(String.format("%-20s %-4s %8.3fms", q.name, problems.isEmpty() ? "ok" : "FAIL", millis));
+            if(!problems.isEmpty()) {
+                failures++;
+                for(String p : problems) System.out.println("    " + p);
+                for(List<String> row : plan) System.out.println("    | " + row.get(0));
+            }
+        }
+        return failures;
+    }
+
+    /*
+     * Fills in the user's profile with PROFILE_JOBS jobs and PROFILE_DEGREES
+     * degrees, every text column at its full width.
+     **/
+    static void fillProfile(ProfNetwork esql, String user) throws SQLException {
+        ProfileStore.Edit edit = new ProfileStore.Edit();
+        edit.email = pad("e", 50);
+        edit.name = pad("n", 50);
+        edit.dateOfBirth = java.sql.Date.valueOf("1990-01-01");
+        for(int i = 0; i < PROFILE_JOBS; i++)
+            edit.saveJobs.add(new ProfileStore.Job(pad("company" + i, 50), pad("role" + i, 50), pad("location" + i, 50),
+                                                   java.sql.Date.valueOf((2000 + i) + "-01-01"),
+                                                   java.sql.Date.valueOf((2000 + i) + "-12-31")));
+        for(int i = 0; i < PROFILE_DEGREES; i++)
+            edit.saveDegrees.add(new ProfileStore.Degree(pad("institution" + i, 50), pad("major" + i, 50), pad("degree" + i, 50),
+                                                         java.sql.Date.valueOf((1990 + i) + "-09-01"),
+                                                         java.sql.Date.valueOf((1994 + i) + "-06-01")));
+        new ProfileStore(esql).save(user, edit);
+    }
+
+    private static String pad(String s, int width) {
+        StringBuilder sb = new StringBuilder(s);
+        while(sb.length() < width) sb.append('x');
+        return sb.toString();
+    }
+
+    /*
+     * Reads the filled in profile PROFILE_SAMPLES times and fails if it is
+     * incomplete, bigger than PROFILE_BUDGET_BYTES, or if the p99 round trip
+     * goes over PROFILE_BUDGET_MILLIS. Returns 1 on failure, else 0.
+     **/
+    static int checkProfile(ProfNetwork esql, String user) throws SQLException {
+        ProfileStore store = new ProfileStore(esql);
+        ProfileStore.FullProfile full = store.load(user);   // warm up
+        LoadDriver.Recorder latency = new LoadDriver.Recorder();
+        for(int i = 0; i < PROFILE_SAMPLES; i++) {
+            long start = System.nanoTime();
+            full = store.load(user);
+            latency.record(System.nanoTime() - start);
+        }
+        double p99 = latency.percentileMillis(0.99);
+
+        List<String> problems = new ArrayList<String>();
+        if(full.work.size() != PROFILE_JOBS || full.education.size() != PROFILE_DEGREES)
+            problems.add(String.format("read %d jobs and %d degrees, expected %d and %d",
+                                       full.work.size(), full.education.size(), PROFILE_JOBS, PROFILE_DEGREES));
+        if(full.bytes > PROFILE_BUDGET_BYTES)
+            problems.add(String.format("response is %d bytes, budget is %d", full.bytes, PROFILE_BUDGET_BYTES));
+        if(p99 > PROFILE_BUDGET_MILLIS)
+            problems.add(String.format("p99 round trip took %.3fms, budget is %.3fms", p99, PROFILE_BUDGET_MILLIS));
+
+        System.out.println(String.format("%-20s %-4s %8.3fms p99 %6d bytes", "profile.roundTrip",
+                                         problems.isEmpty() ? "ok" : "FAIL", p99, full.bytes));
+        for(String p : problems) System.out.println("    " + p);
+        return problems.isEmpty() ? 0 : 1;
+    }
+
+    /*
+     * Sends user MESSAGES_PER_MONTH messages from other in each of the last
+     * MESSAGE_MONTHS months, then explains the inbox and outbox pages that
+     * start at the end of the second oldest month. They must not scan any
+     * partition after that month; the older ones and message_default stay in
+     * the plan, as the page may reach back into any of them. Returns the
+     * number of the two that failed.
+     **/
+    static int checkMessagePruning(ProfNetwork esql, String user, String other) throws SQLException {
+        if(!MessagePartitions.isPartitioned(esql)) {
+            System.out.println(String.format("%-20s %-4s message is not partitioned", "messages.pruning", "FAIL"));
+            return 1;
+        }
+        MessagePartitions partitions = new MessagePartitions(esql, MessagePartitions.DEFAULT_RETENTION_MONTHS, null,
+                                                             MessagePartitions.DEFAULT_BATCH);
+        int current = partitions.currentMonth();
+        int first = current - MESSAGE_MONTHS + 1;
+        partitions.ensure(first, current);
+        for(int m = first; m <= current; m++)
+            esql.executeUpdate("INSERT INTO message (msgId, senderId, receiverId, contents, sendTime, deleteStatus, status) " +
+                "SELECT nextval('message_msgid_seq'), ?, ?, 'bench', CAST(? AS timestamp) + i * interval '1 hour', 0, ? " +
+                "FROM generate_series(1, ?) AS i",
+                other, user, MessagePartitions.firstDay(m), MessageStore.STATUS_DELIVERED, MESSAGES_PER_MONTH);
+        esql.executeUpdate("ANALYZE message");
+
+        // the last second of the cursor's month
+        int cursorMonth = first + 1;
+        java.sql.Timestamp cursor = new java.sql.Timestamp(
+            java.sql.Timestamp.valueOf(MessagePartitions.firstDay(cursorMonth + 1) + " 00:00:00").getTime() - 1000);
+        boolean uids = esql.usesSurrogateKeys();
+        Object[][] pages = {
+            {"messages.inbox", uids ? MessageStore.INBOX_BY_UID : MessageStore.INBOX_BY_USERID, esql.userKey(user)},
+            {"messages.outbox", uids ? MessageStore.OUTBOX_BY_UID : MessageStore.OUTBOX_BY_USERID, esql.userKey(other)},
+        };
+        int failures = 0;
+        for(Object[] page : pages) {
+            List<List<String>> plan = esql.executeQueryAndReturnResult("EXPLAIN (ANALYZE) " + page[1],
+                page[2], cursor, cursor, Integer.MAX_VALUE, MessageStore.DEFAULT_PAGE_SIZE);
+            List<String> problems = new ArrayList<String>();
+            int scanned = 0;
+            for(List<String> row : plan) {
+                Matcher m = PARTITION_SCAN.matcher(row.get(0));
+                if(!m.find()) continue;
+                scanned++;
+                String name = m.group(1);
+                // pruned at run time shows as never executed, at plan time not at all
+                if(!name.equals(MessagePartitions.DEFAULT_PARTITION) && !row.get(0).contains("never executed")
+                   && MessagePartitions.month(name.substring("message_p".length())) > cursorMonth)
+                    problems.add("not pruned: " + row.get(0).trim());
+            }
+
+            System.out.println(String.format("%-20s %-4s %d partitions in the plan", page[0] + ".pruning",
+                                             problems.isEmpty() ? "ok" : "FAIL", scanned));
+            if(!problems.isEmpty()) {
+                failures++;
+                for(String p : problems) System.out.println("    " + p);
+                for(List<String> row : plan) System.out.println("    | " + row.get(0));
+            }
+        }
+        return failures;
+    }
+
+    public static void main(String[] args) {
+        if(args.length < 3) {
+            System.err.println("Usage: java [-classpath <classpath>] " + PlanCheck.class.getName() + " <dbname> <port> <user> [edges]");
+            return;
+        }
+        long edges = args.length > 3 ? Long.parseLong(args[3]) : DEFAULT_EDGES;
+        int users = (int) (edges * 2 / ReachabilityBenchmark.AVG_DEGREE);
+
+        ProfNetwork esql = null;
+        int failures = -1;
+        try {
+            Class.forName("org.postgresql.Driver").newInstance();
+            esql = new ProfNetwork(args[0], args[1], args[2], "");
+            try {
+                ReachabilityBenchmark.load(esql, users, edges, new Random(edges));
+                esql.executeUpdate("ANALYZE usr");
+                esql.executeUpdate("ANALYZE connection_usr");
+                Random rnd = new Random(~edges);
+                String user = ReachabilityBenchmark.PREFIX + rnd.nextInt(users);
+                String other = ReachabilityBenchmark.PREFIX + rnd.nextInt(users);
+                fillProfile(esql, user);
+                esql.executeUpdate("ANALYZE work_expr");
+                esql.executeUpdate("ANALYZE educational_details");
+                failures = check(esql, hotQueries(esql, user, other)) + checkProfile(esql, user)
+                         + checkMessagePruning(esql, user, other);
+            }
+            finally {
+                ReachabilityBenchmark.clear(esql);
+            }
+        }
+        catch(Exception e) {
+            System.err.println(e.getMessage());
+        }
+        finally {
+            if(esql != null) esql.cleanup();
+        }
+        System.out.println(failures == 0 ? "All plans ok" : "Plan check failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+}
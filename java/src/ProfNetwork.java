@@ -12,19 +12,27 @@
 
 import java.sql.DriverManager;
 import java.sql.Connection;
-import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.EOFException;
 import java.io.IOException;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -33,13 +41,118 @@ import java.util.HashSet;
  */
 public class ProfNetwork {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // number of physical connections kept open, override with -Dprofnetwork.pool.size=N
+   static final int DEFAULT_POOL_SIZE = 4;
+
+   // pool of physical database connections, each with its own prepared statement cache.
+   private ConnectionPool _pool = null;
+
+   // sends reads to a replica when -Dprofnetwork.replica.port is set, see ReadRouter
+   private ReadRouter _router = null;
+
+   // false once the driver turned out not to implement setFetchSize, see setFetchSize
+   private static volatile boolean _fetchSizeSupported = true;
+
+   // how many friend hops away a user may be to receive a request once the free connections are used up
+   static final int MAX_CONNECTION_DEPTH = 3;
+
+   // single round trip reachability check used by SendRequest, see isWithinConnectionDepth.
+   // The uid form walks the integer keys from SurrogateKeys, once they are contracted
+   static final String CONNECTION_DEPTH_BY_USERID = QueryStats.named ("request.depthCheck",
+      "WITH RECURSIVE reach(id, depth) AS ( " +
+      "    SELECT CAST(? AS varchar(30)), 0 " +
+      "  UNION " +
+      "    SELECT CAST(e.b AS varchar(30)), r.depth + 1 " +
+      "    FROM reach r " +
+      "    JOIN (SELECT userid AS a, connectionid AS b FROM connection_usr WHERE status = 'friend' " +
+      "          UNION ALL " +
+      "          SELECT connectionid AS a, userid AS b FROM connection_usr WHERE status = 'friend') e " +
+      "      ON e.a = r.id " +
+      "    WHERE r.depth < ? " +
+      ") " +
+      "SELECT 1 FROM reach WHERE id = CAST(? AS varchar(30)) LIMIT 1");
+   static final String CONNECTION_DEPTH_BY_UID = QueryStats.named ("request.depthCheck",
+      "WITH RECURSIVE reach(id, depth) AS ( " +
+      "    SELECT CAST(? AS integer), 0 " +
+      "  UNION " +
+      "    SELECT e.b, r.depth + 1 " +
+      "    FROM reach r " +
+      "    JOIN (SELECT user_uid AS a, connection_uid AS b FROM connection_usr WHERE status = 'friend' " +
+      "          UNION ALL " +
+      "          SELECT connection_uid AS a, user_uid AS b FROM connection_usr WHERE status = 'friend') e " +
+      "      ON e.a = r.id " +
+      "    WHERE r.depth < ? " +
+      ") " +
+      "SELECT 1 FROM reach WHERE id = ? LIMIT 1");
+
+   // hot lookups, shared with PlanCheck so the plans it checks are the ones we run
+   static final String USER_EXISTS_QUERY = QueryStats.named ("user.exists", "SELECT userid FROM usr WHERE userid = ?");
+   static final String LOGIN_QUERY = QueryStats.named ("login", "SELECT * FROM USR WHERE userid = ? AND password = ?");
+   static final String CONNECTIONS_QUERY = QueryStats.named ("connections.count", "SELECT * FROM connection_usr WHERE userid = ? OR connectionid = ?");
+   static final String REQUEST_EXISTS_QUERY = QueryStats.named ("request.exists", "SELECT * FROM connection_usr WHERE userid = ? AND connectionid = ?");
+   static final String CURRVAL_QUERY = QueryStats.named ("sequence.currval", "SELECT currval(?)");
+   // a user's surrogate key; on the primary, so a user created a moment ago has one
+   static final String UID_QUERY = ReadRouter.primary (QueryStats.named ("user.uid", "SELECT uid FROM usr WHERE userid = ?"));
+
+   // uids resolved by uidOf, which never change; bounded, past it they are looked up every time
+   static final int MAX_CACHED_UIDS = 100000;
+
+   // MESSAGE.contents is char(500)
+   static final int MAX_MESSAGE_LENGTH = 500;
+
+   // set -Dprofnetwork.graph=memory to answer depth checks from an in-memory FriendGraph
+   static final boolean USE_MEMORY_GRAPH = "memory".equals(System.getProperty("profnetwork.graph"));
+
+   // set -Dprofnetwork.graph.snapshot=<path> to start the in-memory graph from a
+   // mapped GraphSnapshot file (written on first use) instead of connection_usr
+   static final String GRAPH_SNAPSHOT = System.getProperty("profnetwork.graph.snapshot");
+
+   // set -Dprofnetwork.writebehind=true to queue mutations for a background writer
+   static final boolean USE_WRITE_BEHIND = Boolean.getBoolean("profnetwork.writebehind");
+
+   // background writer for executeUpdateAsync, null when write-behind is off
+   private WriteBehindQueue _writer = null;
+
+   // listener for the per-user change notifications, null unless -Dprofnetwork.notify=listen
+   private Notifications _notifications = null;
+
+   // in-memory friend graph, loaded on first use and kept up to date afterwards
+   private FriendGraph _graph = null;
+
+   // memory budget of the reachability index over _graph, 0 turns the index off
+   // set with -Dprofnetwork.reach.budget=<bytes>
+   static final long REACH_BUDGET_BYTES = Long.getLong("profnetwork.reach.budget", ReachabilityIndex.DEFAULT_BUDGET_BYTES);
+   private ReachabilityIndex _reach = null;
+
+   // userid prefix index for autocomplete, loaded on first use
+   private AutocompleteIndex _autocomplete = null;
+
+   // profiles, friend lists and pending requests shared by all sessions
+   private final UserCache _userCache = new UserCache (this);
+
+   // whether the hot reads run on the uid columns, see SurrogateKeys.contracted
+   private boolean _surrogateKeys = false;
+   private final ConcurrentHashMap<String, Integer> _uids = new ConcurrentHashMap<String, Integer> ();
+
+   // how often inTransaction runs a unit of work before giving up on it
+   static final int MAX_TRANSACTION_ATTEMPTS = 8;
+
+   // transactions run by inTransaction, and how many attempts were retried
+   private final AtomicLong _transactions = new AtomicLong ();
+   private final AtomicLong _transactionRetries = new AtomicLong ();
+
+   // Prometheus export of the query / operation metrics, null unless
+   // -Dprofnetwork.metrics.file or -Dprofnetwork.metrics.port is set
+   private MetricsExporter _metrics = null;
+
+   // background partitioning, compaction and archival of MESSAGE, null unless
+   // -Dprofnetwork.messages.maintain=<minutes> is set, see MessagePartitions
+   private MessagePartitions _messagePartitions = null;
 
    // handling the keyboard inputs through a BufferedReader
-   // This variable can be global for convenience.
-   static BufferedReader in = new BufferedReader(
-                                new InputStreamReader(System.in));
+   // This variable can be global for convenience. It reads stdin, or the
+   // client's input when the menus run inside a SessionServer session.
+   static final BufferedReader in = SessionIO.reader ();
 
    /**
     * Creates a new instance of ProfNetwork
@@ -51,6 +164,16 @@ public class ProfNetwork {
     * @throws java.sql.SQLException when failed to make a connection.
     */
    public ProfNetwork (String dbname, String dbport, String user, String passwd) throws SQLException {
+      this (dbname, dbport, user, passwd, Integer.getInteger("profnetwork.pool.size", DEFAULT_POOL_SIZE));
+   }//end ProfNetwork
+
+   /**
+    * Creates a new instance of ProfNetwork with a given number of pooled connections
+    *
+    * @param poolSize the maximum number of physical connections to open
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public ProfNetwork (String dbname, String dbport, String user, String passwd, int poolSize) throws SQLException {
 
       System.out.print("Connecting to database...");
       try{
@@ -58,8 +181,18 @@ public class ProfNetwork {
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
          System.out.println ("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         // open the pool and make sure we can actually obtain a physical connection
+         this._pool = new ConnectionPool(url, user, passwd, poolSize);
+         this._pool.release(this._pool.borrow());
+         this._router = ReadRouter.fromSystemProperties (this._pool, dbname, user, passwd);
+         this._surrogateKeys = SurrogateKeys.contracted (this);
+         this._router.setServerPrepare (this._surrogateKeys);
+         if (USE_WRITE_BEHIND)
+            this._writer = new WriteBehindQueue(this._pool);
+         if (Notifications.ENABLED)
+            this._notifications = new Notifications(this._pool, this._userCache);
+         this._metrics = MetricsExporter.fromSystemProperties (this);
+         this._messagePartitions = MessagePartitions.fromSystemProperties (this);
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -68,169 +201,659 @@ public class ProfNetwork {
       }//end catch
    }//end ProfNetwork
 
+   /**
+    * Returns the connection pool backing this instance, mostly for its metrics.
+    * It is the primary's; code about to write through it uses getWritePool.
+    */
+   public ConnectionPool getPool () {
+      return this._pool;
+   }//end getPool
+
+   /**
+    * Returns the primary's pool for a caller about to write through it
+    * directly, and makes the calling thread's reads stick to the primary for
+    * a while so they see the write.
+    */
+   public ConnectionPool getWritePool () {
+      this._router.stick ();
+      return this._pool;
+   }//end getWritePool
+
+   /**
+    * Returns the router that picks the primary or the replica per statement.
+    */
+   public ReadRouter getRouter () {
+      return this._router;
+   }//end getRouter
+
+   /**
+    * Returns whether the database has contracted surrogate keys, so the hot
+    * reads take uids instead of userids (see SurrogateKeys).
+    */
+   public boolean usesSurrogateKeys () {
+      return this._surrogateKeys;
+   }//end usesSurrogateKeys
+
+   /**
+    * Returns the surrogate key of a user. Each user is looked up once and
+    * remembered, since a user's uid never changes.
+    *
+    * @param userId the user's userid
+    * @return the user's uid
+    * @throws java.sql.SQLException when there is no such user
+    */
+   public int uidOf (String userId) throws SQLException {
+      Integer uid = this._uids.get (userId);
+      if (uid == null) {
+         long found = queryForLong (UID_QUERY, userId);
+         if (found == 0) throw new SQLException ("No such user: " + userId);
+         uid = (int) found;
+         if (this._uids.size () < MAX_CACHED_UIDS) this._uids.put (userId, uid);
+      }//end if
+      return uid;
+   }//end uidOf
+
+   /**
+    * Returns what the user-keyed reads bind for a user: its uid once the
+    * surrogate keys are contracted, its userid before.
+    */
+   public Object userKey (String userId) throws SQLException {
+      return this._surrogateKeys ? (Object) uidOf (userId) : userId;
+   }//end userKey
+
+   /**
+    * Returns the cache of per-user data shared by all sessions.
+    */
+   public UserCache getUserCache () {
+      return this._userCache;
+   }//end getUserCache
+
+   /**
+    * Returns the write-behind queue, or null when write-behind is off.
+    */
+   public WriteBehindQueue getWriter () {
+      return this._writer;
+   }//end getWriter
+
+   /**
+    * Returns the background MESSAGE maintenance, or null when it is off.
+    */
+   public MessagePartitions getMessagePartitions () {
+      return this._messagePartitions;
+   }//end getMessagePartitions
+
+   /**
+    * Returns the notification listener, or null when notifications are off.
+    */
+   public Notifications getNotifications () {
+      return this._notifications;
+   }//end getNotifications
+
+   /**
+    * Returns the in-memory friend graph, loading it from connection_usr (or
+    * opening the GRAPH_SNAPSHOT file) the first time it is asked for.
+    *
+    * @return the friend graph
+    * @throws java.sql.SQLException when the graph could not be loaded
+    */
+   public synchronized FriendGraph getFriendGraph () throws SQLException {
+      if (this._graph == null)
+         this._graph = GRAPH_SNAPSHOT == null ? FriendGraph.load (this)
+                                              : FriendGraph.openSnapshot (this, new File (GRAPH_SNAPSHOT));
+      return this._graph;
+   }//end getFriendGraph
+
+   /**
+    * Returns the in-memory friend graph if it has been loaded already, or null.
+    * Mutation paths use this so they never trigger a load themselves.
+    */
+   public synchronized FriendGraph loadedFriendGraph () {
+      return this._graph;
+   }//end loadedFriendGraph
+
+   /**
+    * Returns the index of users within MAX_CONNECTION_DEPTH of each other over
+    * the friend graph, creating it (and loading the graph) on first use. Returns
+    * null when the index is turned off.
+    *
+    * @return the reachability index or null
+    * @throws java.sql.SQLException when the graph could not be loaded
+    */
+   public synchronized ReachabilityIndex getReachabilityIndex () throws SQLException {
+      if (REACH_BUDGET_BYTES <= 0) return null;
+      if (this._reach == null)
+         this._reach = new ReachabilityIndex (getFriendGraph (), MAX_CONNECTION_DEPTH, REACH_BUDGET_BYTES);
+      return this._reach;
+   }//end getReachabilityIndex
+
+   /**
+    * Returns the reachability index if it has been created already, or null.
+    */
+   public synchronized ReachabilityIndex loadedReachabilityIndex () {
+      return this._reach;
+   }//end loadedReachabilityIndex
+
+   /**
+    * Returns the userid autocomplete index, loading it from usr the first time
+    * it is asked for.
+    *
+    * @return the autocomplete index
+    * @throws java.sql.SQLException when the index could not be loaded
+    */
+   public synchronized AutocompleteIndex getAutocomplete () throws SQLException {
+      if (this._autocomplete == null)
+         this._autocomplete = AutocompleteIndex.load (this);
+      return this._autocomplete;
+   }//end getAutocomplete
+
+   /**
+    * Returns the autocomplete index if it has been loaded already, or null.
+    */
+   public synchronized AutocompleteIndex loadedAutocomplete () {
+      return this._autocomplete;
+   }//end loadedAutocomplete
+
+   /**
+    * Binds the given values to the ? placeholders of a prepared statement, in
+    * order. Strings, numbers, booleans, dates and nulls are bound with their
+    * matching JDBC setter so the server never has to guess the type.
+    *
+    * @param stmt the prepared statement
+    * @param params the values to bind
+    * @throws java.sql.SQLException when a value cannot be bound
+    */
+   static void bind (PreparedStatement stmt, Object... params) throws SQLException {
+      for (int i = 0; i < params.length; ++i) {
+         Object p = params[i];
+         int idx = i + 1;
+         if (p == null)                        stmt.setNull (idx, Types.VARCHAR);
+         else if (p instanceof String)         stmt.setString (idx, (String) p);
+         else if (p instanceof Integer)        stmt.setInt (idx, (Integer) p);
+         else if (p instanceof Long)           stmt.setLong (idx, (Long) p);
+         else if (p instanceof Boolean)        stmt.setBoolean (idx, (Boolean) p);
+         else if (p instanceof Double)         stmt.setDouble (idx, (Double) p);
+         else if (p instanceof Timestamp)      stmt.setTimestamp (idx, (Timestamp) p);
+         else if (p instanceof java.sql.Date)  stmt.setDate (idx, (java.sql.Date) p);
+         else throw new SQLException ("Unsupported bind parameter type: " + p.getClass ().getName ());
+      }
+   }//end bind
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
-    * @param sql the input SQL string
+    * @param sql the input SQL string, with ? placeholders for the parameters
+    * @param params values bound to the placeholders, in order
+    * @return the number of rows affected
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      ReadRouter.Route route = this._router.write ();
+      ConnectionPool.PooledConnection conn = this._router.borrow (route);
+      try {
+         // look up (or prepare) the statement and bind its parameters
+         PreparedStatement stmt = conn.prepare (sql);
+         bind (stmt, params);
+
+         // issues the update instruction
+         int rows = stmt.executeUpdate ();
+         QueryStats.record (sql, start, rows, 0);
+         return rows;
+      } catch (SQLException e) {
+         this._router.failed (conn, e);
+         QueryStats.failed (sql, start, e);
+         throw e;
+      } finally {
+         this._router.release (route, conn, start);
+      }
+   }//end executeUpdate
 
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+   /**
+    * Method to execute an update SQL statement without waiting for it. With
+    * write-behind on, the statement is queued and written by a background
+    * thread in a batched transaction; otherwise it runs right away. Callers
+    * that need to know it went through wait on the returned future.
+    *
+    * @param sql the input SQL string, with ? placeholders for the parameters
+    * @param params values bound to the placeholders, in order
+    * @return the number of rows affected, once written
+    * @throws java.sql.SQLException when the statement could not be queued or failed
+    */
+   public Future<Integer> executeUpdateAsync (String sql, Object... params) throws SQLException {
+      return executeUpdateAsync (null, sql, params);
+   }//end executeUpdateAsync
 
-      // close the instruction
-      stmt.close ();
-   }//end executeUpdate
+   /**
+    * Like executeUpdateAsync, then runs onWritten once the statement has been
+    * written (or has failed), e.g. to drop cache entries it makes stale.
+    *
+    * @param onWritten run after the write, on the writer's thread; may be null
+    * @param sql the input SQL string, with ? placeholders for the parameters
+    * @param params values bound to the placeholders, in order
+    * @return the number of rows affected, once written
+    * @throws java.sql.SQLException when the statement could not be queued or failed
+    */
+   public Future<Integer> executeUpdateAsync (Runnable onWritten, String sql, Object... params) throws SQLException {
+      if (this._writer != null) {
+         Future<Integer> write = this._writer.submit (onWritten, sql, params);
+         this._router.stick (write);
+         return write;
+      }//end if
+      return WriteBehindQueue.completed (executeUpdate (sql, params), onWritten);
+   }//end executeUpdateAsync
+
+   /**
+    * Method to run a unit of work as one transaction on a pooled connection.
+    * Transactions the server aborts because they conflicted with a concurrent
+    * one (serialization failure or deadlock) are rolled back and run again
+    * after a short random backoff, up to MAX_TRANSACTION_ATTEMPTS times.
+    *
+    * @param work the statements to run, see Transaction
+    * @return whatever work returned from its committed run
+    * @throws java.sql.SQLException when work failed for any other reason or
+    *         kept conflicting
+    */
+   public <T> T inTransaction (Transaction<T> work) throws SQLException {
+      this._transactions.incrementAndGet ();
+      ReadRouter.Route route = this._router.write ();
+      for (int attempt = 1; ; attempt++) {
+         long start = System.nanoTime ();
+         ConnectionPool.PooledConnection conn = this._router.borrow (route);
+         try {
+            conn.connection.setAutoCommit (false);
+            T result = work.run (conn);
+            conn.connection.commit ();
+            return result;
+         } catch (SQLException e) {
+            // release rolls the transaction back
+            if (!isRetryable (e) || attempt == MAX_TRANSACTION_ATTEMPTS)
+               throw e;
+         } finally {
+            this._router.release (route, conn, start);
+         }//end try
+         this._transactionRetries.incrementAndGet ();
+         try {
+            Thread.sleep (ThreadLocalRandom.current ().nextInt (1 << Math.min (attempt, 6)));
+         } catch (InterruptedException e) {
+            Thread.currentThread ().interrupt ();
+            throw new SQLException ("Interrupted while retrying a transaction");
+         }//end try
+      }//end for
+   }//end inTransaction
+
+   /**
+    * True for errors that mean "run it again": serialization_failure (40001)
+    * and deadlock_detected (40P01). Older drivers do not report a SQLState, so
+    * the server's message is checked as well.
+    */
+   static boolean isRetryable (SQLException e) {
+      String state = e.getSQLState ();
+      if (state != null)
+         return state.equals ("40001") || state.equals ("40P01");
+      String message = String.valueOf (e.getMessage ());
+      return message.contains ("could not serialize") || message.contains ("deadlock detected");
+   }//end isRetryable
+
+   public long getTransactionCount () {
+      return this._transactions.get ();
+   }//end getTransactionCount
+
+   public long getTransactionRetryCount () {
+      return this._transactionRetries.get ();
+   }//end getTransactionRetryCount
+
+   /**
+    * Waits for queued updates to be written.
+    *
+    * @param writes futures returned by executeUpdateAsync
+    * @throws java.sql.SQLException when any of the updates failed
+    */
+   public static void awaitWrites (List<Future<Integer>> writes) throws SQLException {
+      try {
+         for (Future<Integer> write : writes)
+            write.get ();
+      } catch (InterruptedException e) {
+         Thread.currentThread ().interrupt ();
+         throw new SQLException ("Interrupted while waiting for writes");
+      } catch (ExecutionException e) {
+         throw new SQLException (e.getCause ().getMessage ());
+      }
+   }//end awaitWrites
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and outputs the results to
     * standard out.
     *
-    * @param query the input query string
+    * @param query the input query string, with ? placeholders for the parameters
+    * @param params values bound to the placeholders, in order
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-	 if(outputHeader){
-	    for(int i = 1; i <= numCol; i++){
-		System.out.print(rsmd.getColumnName(i) + "\t");
-	    }
-	    System.out.println();
-	    outputHeader = false;
-	 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
-      return rowCount;
-   }//end executeQuery
+   public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      ReadRouter.Route route = this._router.route (query);
+      ConnectionPool.PooledConnection conn = this._router.borrow (route);
+      try {
+         PreparedStatement stmt = conn.prepare (query);
+         bind (stmt, params);
+
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery ();
+
+         /*
+          ** obtains the metadata object for the returned result set.  The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+         int rowCount = 0;
+         long bytes = 0;
+
+         // iterates through the result set and output them to standard out.
+         boolean outputHeader = true;
+         while (rs.next()){
+            if(outputHeader){
+               for(int i = 1; i <= numCol; i++){
+                  System.out.print(rsmd.getColumnName(i) + "\t");
+               }
+               System.out.println();
+               outputHeader = false;
+            }
+            for (int i=1; i<=numCol; ++i) {
+               String value = rs.getString (i);
+               bytes += QueryStats.sizeOf (value);
+               System.out.print (value + "\t");
+            }
+            System.out.println ();
+            ++rowCount;
+         }//end while
+         rs.close ();
+         QueryStats.record (query, start, rowCount, bytes);
+         return rowCount;
+      } catch (SQLException e) {
+         this._router.failed (conn, e);
+         QueryStats.failed (query, start, e);
+         throw e;
+      } finally {
+         this._router.release (route, conn, start);
+      }
+   }//end executeQueryAndPrintResult
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the results as
     * a list of records. Each record in turn is a list of attribute values
     *
-    * @param query the input query string
+    * @param query the input query string, with ? placeholders for the parameters
+    * @param params values bound to the placeholders, in order
     * @return the query result as a list of records
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
-      List<List<String>> result  = new ArrayList<List<String>>();
-      while (rs.next()){
-          List<String> record = new ArrayList<String>();
-         for (int i=1; i<=numCol; ++i)
-            record.add(rs.getString(i));
-         result.add(record);
-      }//end while
-      stmt.close ();
-      return result;
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      ReadRouter.Route route = this._router.route (query);
+      ConnectionPool.PooledConnection conn = this._router.borrow (route);
+      try {
+         PreparedStatement stmt = conn.prepare (query);
+         bind (stmt, params);
+
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery ();
+
+         /*
+          ** obtains the metadata object for the returned result set.  The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+
+         // iterates through the result set and saves the data returned by the query.
+         List<List<String>> result  = new ArrayList<List<String>>();
+         long bytes = 0;
+         while (rs.next()){
+            List<String> record = new ArrayList<String>(numCol);
+            for (int i=1; i<=numCol; ++i) {
+               String value = rs.getString(i);
+               bytes += QueryStats.sizeOf (value);
+               record.add(value);
+            }
+            result.add(record);
+         }//end while
+         rs.close ();
+         QueryStats.record (query, start, result.size (), bytes);
+         return result;
+      } catch (SQLException e) {
+         this._router.failed (conn, e);
+         QueryStats.failed (query, start, e);
+         throw e;
+      } finally {
+         this._router.release (route, conn, start);
+      }
    }//end executeQueryAndReturnResult
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the number of results
     *
-    * @param query the input query string
+    * @param query the input query string, with ? placeholders for the parameters
+    * @param params values bound to the placeholders, in order
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
-
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
-       ResultSetMetaData rsmd = rs.getMetaData ();
-       int numCol = rsmd.getColumnCount ();
-       int rowCount = 0;
-
-       boolean outputHeader = true;
-       while (rs.next()){
- 	 if(outputHeader){
- 	    for(int i = 1; i <= numCol; i++){
- 		//System.out.print(rsmd.getColumnName(i) + "\t");
- 	    }
- 	    //System.out.println();
- 	    outputHeader = false;
- 	 }
-          for (int i=1; i<=numCol; ++i);
-             //System.out.print (rs.getString (i) + "\t");
-          //System.out.println ();
-          ++rowCount;
-       }//end while
-       stmt.close ();
-       return rowCount;
+   public int executeQuery (String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      ReadRouter.Route route = this._router.route (query);
+      ConnectionPool.PooledConnection conn = this._router.borrow (route);
+      try {
+         PreparedStatement stmt = conn.prepare (query);
+         bind (stmt, params);
+
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery ();
+         int rowCount = 0;
+         while (rs.next())
+            ++rowCount;
+         rs.close ();
+         QueryStats.record (query, start, rowCount, 0);
+         return rowCount;
+      } catch (SQLException e) {
+         this._router.failed (conn, e);
+         QueryStats.failed (query, start, e);
+         throw e;
+      } finally {
+         this._router.release (route, conn, start);
+      }
+   }//end executeQuery
+
+   /**
+    * Asks the driver to fetch a result fetchSize rows at a time through a
+    * cursor. The 7.3 driver in lib/ doesn't implement it and reads the whole
+    * result at once; that is remembered, and false is returned then, as it is
+    * for a fetchSize of 0.
+    *
+    * @param stmt the statement about to be executed
+    * @param fetchSize how many rows to fetch per round trip, 0 for all at once
+    * @return true if the driver will use a cursor (with autocommit off)
+    */
+   static boolean setFetchSize (Statement stmt, int fetchSize) {
+      if (fetchSize <= 0 || !_fetchSizeSupported) return false;
+      try {
+         stmt.setFetchSize (fetchSize);
+         return true;
+      } catch (SQLException e) {
+         _fetchSizeSupported = false;
+         return false;
+      }
+   }//end setFetchSize
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) and hand
+    * each row to a callback as it is read. When the driver supports it, the
+    * query runs inside a transaction with the given fetch size, so Postgres
+    * sends the rows in batches through a cursor instead of materializing the
+    * whole result in memory. LIMIT-bounded queries pass 0 and skip both.
+    *
+    * @param query the input query string, with ? placeholders for the parameters
+    * @param fetchSize how many rows to fetch per round trip, 0 for all at once
+    * @param handler called once per row, returns false to stop early
+    * @param params values bound to the placeholders, in order
+    * @return the number of rows handed to the callback
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryStreaming (String query, int fetchSize, RowHandler handler, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      ReadRouter.Route route = this._router.route (query);
+      ConnectionPool.PooledConnection conn = this._router.borrow (route);
+      try {
+         PreparedStatement stmt = conn.prepare (query);
+         // the driver only uses a cursor when autocommit is off
+         boolean cursor = setFetchSize (stmt, fetchSize);
+         if (cursor) conn.connection.setAutoCommit (false);
+         bind (stmt, params);
+
+         ResultSet rs = stmt.executeQuery ();
+         int rowCount = 0;
+         while (rs.next ()) {
+            ++rowCount;
+            if (!handler.row (rs)) break;
+         }//end while
+         rs.close ();
+         if (cursor) conn.connection.commit ();
+         // the handler decides what to keep, so no byte count here
+         QueryStats.record (query, start, rowCount, 0);
+         return rowCount;
+      } catch (SQLException e) {
+         this._router.failed (conn, e);
+         QueryStats.failed (query, start, e);
+         throw e;
+      } finally {
+         // release rolls back anything left open and restores autocommit
+         this._router.release (route, conn, start);
+      }
+   }//end executeQueryStreaming
+
+   /**
+    * Method to check whether a query returns any rows. The query is wrapped in
+    * EXISTS so the server stops at the first match and only one value is sent back.
+    *
+    * @param query the input query string, with ? placeholders for the parameters
+    * @param params values bound to the placeholders, in order
+    * @return true if the query returns at least one row
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean exists (String query, Object... params) throws SQLException {
+      return queryForLong (existsQuery (query), params) == 1;
+   }//end exists
+
+   /**
+    * Method to count the rows a query returns. The count is done on the server
+    * with COUNT(*) so no rows are transferred.
+    *
+    * @param query the input query string, with ? placeholders for the parameters
+    * @param params values bound to the placeholders, in order
+    * @return the number of rows the query returns
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public long count (String query, Object... params) throws SQLException {
+      return queryForLong (countQuery (query), params);
+   }//end count
+
+   // the SQL actually sent by exists and count
+   static String existsQuery (String query) {
+      return "SELECT CASE WHEN EXISTS (" + query + ") THEN 1 ELSE 0 END";
+   }
+
+   static String countQuery (String query) {
+      return "SELECT COUNT(*) FROM (" + query + ") AS counted";
    }
 
+   /**
+    * Method to run a query that returns a single number, e.g. an aggregate.
+    *
+    * @param query the input query string, with ? placeholders for the parameters
+    * @param params values bound to the placeholders, in order
+    * @return the first column of the first row, or 0 if there are no rows
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public long queryForLong (String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      ReadRouter.Route route = this._router.route (query);
+      ConnectionPool.PooledConnection conn = this._router.borrow (route);
+      try {
+         PreparedStatement stmt = conn.prepare (query);
+         bind (stmt, params);
+         ResultSet rs = stmt.executeQuery ();
+         long val = rs.next () ? rs.getLong (1) : 0;
+         rs.close ();
+         QueryStats.record (query, start, 1, 0);
+         return val;
+      } catch (SQLException e) {
+         this._router.failed (conn, e);
+         QueryStats.failed (query, start, e);
+         throw e;
+      } finally {
+         this._router.release (route, conn, start);
+      }
+   }//end queryForLong
+
    /**
     * Method to fetch the last value from sequence. This
     * method issues the query to the DBMS and returns the current
-    * value of sequence used for autogenerated keys
+    * value of sequence used for autogenerated keys.
+    *
+    * Note that currval is tracked per database session, so with a pool this
+    * only sees a nextval issued on the same physical connection.
     *
     * @param sequence name of the DB sequence
     * @return current value of a sequence
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
-
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
+      long start = System.nanoTime ();
+      ReadRouter.Route route = this._router.route (CURRVAL_QUERY);
+      ConnectionPool.PooledConnection conn = this._router.borrow (route);
+      try {
+         PreparedStatement stmt = conn.prepare (CURRVAL_QUERY);
+         bind (stmt, sequence);
+         ResultSet rs = stmt.executeQuery ();
+         int val = rs.next () ? rs.getInt (1) : -1;
+         rs.close ();
+         QueryStats.record (CURRVAL_QUERY, start, 1, 0);
+         return val;
+      } catch (SQLException e) {
+         this._router.failed (conn, e);
+         QueryStats.failed (CURRVAL_QUERY, start, e);
+         throw e;
+      } finally {
+         this._router.release (route, conn, start);
+      }
    }
 
    /**
-    * Method to close the physical connection if it is open.
+    * Method to close all physical connections in the pool.
     */
    public void cleanup(){
-      try{
-         if (this._connection != null){
-            this._connection.close ();
-         }//end if
-      }catch (SQLException e){
-         // ignored.
-      }//end try
+      if (this._metrics != null){
+         this._metrics.close ();
+      }//end if
+      if (this._messagePartitions != null){
+         this._messagePartitions.close ();
+      }//end if
+      if (this._notifications != null){
+         this._notifications.close ();
+      }//end if
+      // write out anything still queued before the connections go away
+      if (this._writer != null){
+         this._writer.close ();
+      }//end if
+      if (this._router != null){
+         this._router.close ();
+      }//end if
+      if (this._pool != null){
+         this._pool.close ();
+      }//end if
    }//end cleanup
 
    // Moved main method to seperate file, it used to be here
@@ -261,7 +884,43 @@ public class ProfNetwork {
          String dbport = args[1];
          String user = args[2];
          esql = new ProfNetwork (dbname, dbport, user, "");
+         runSession (esql);
+      }catch(Exception e) {
+         System.err.println (e.getMessage ());
+      }finally{
+         // make sure to cleanup the created table and close the connection.
+         try{
+            if(esql != null) {
+               System.out.print("Disconnecting from database...");
+               esql.cleanup ();
+               System.out.println("Done\n\nBye !");
+               System.out.println(esql.getPool().statsSummary());
+               if(esql.getWriter() != null) System.out.println(esql.getWriter().statsSummary());
+               if(esql.getNotifications() != null) System.out.println(esql.getNotifications().statsSummary());
+               System.out.println(esql.getRouter().statsSummary());
+               if(esql.getMessagePartitions() != null) System.out.println(esql.getMessagePartitions().statsSummary());
+               System.out.println("session cache: refresh queries=" + User.getRefreshQueries() +
+                                  " avoided=" + User.getRefreshQueriesAvoided());
+               System.out.println(esql.getUserCache().statsSummary());
+               if(esql.loadedReachabilityIndex() != null) System.out.println(esql.loadedReachabilityIndex().statsSummary());
+               System.out.print(QueryStats.summary());
+            }//end if
+         }catch (Exception e) {
+            // ignored.
+         }//end try
+      }//end try
+   }//end main
 
+   /**
+    * Runs the LOGIN and MAIN MENU flows until the user exits (or the input ends).
+    * All state of the session lives in this call, so SessionServer runs it once
+    * per client on the shared ProfNetwork.
+    *
+    * @param esql the shared database access
+    * @throws java.sql.SQLException when a session query fails
+    * @throws java.io.IOException when the session input fails
+    */
+   public static void runSession (ProfNetwork esql) throws SQLException, IOException {
          boolean keepon = true;
          while(keepon) {
             // These are sample SQL statements
@@ -286,49 +945,48 @@ public class ProfNetwork {
             if (authorisedUser != null) {
               // create a User here and refresh it each time Main Menu is printed
               // so we have quick access to friends, requests, messages, etc.
+              // refresh only re-queries what was invalidated or has outlived the TTL
               User userData = new User(esql, authorisedUser);
-              boolean usermenu = true;
-              while(usermenu) {
-                userData.refresh(esql, authorisedUser);
-                System.out.println("MAIN MENU");
-                System.out.println("---------");
-                System.out.println("1. Go to Friend List");
-                System.out.println("2. Update Profile");
-                System.out.println("3. Write a new message");
-                System.out.println("4. Send Friend Request");
-                if(userData.pendingRequests.isEmpty())
-                    System.out.println("5. You have no new friend requests :(");
-                else
-                    System.out.println("5. You have new friend requests! Choose 5 to accept or reject them.");
-                System.out.println("6. ................");
-                System.out.println("9. Log out");
-                switch (readChoice()){
-                   case 1: friendList(esql, userData); break;
-                   case 2: UpdateProfile(esql, authorisedUser); break;
-                   case 3: /*NewMessage(esql);*/ break;
-                   case 4: SendRequest(esql, userData); break;
-                   case 5: manageRequests(esql, userData); break;
-                   case 9: usermenu = false; break;
-                   default : System.out.println("Unrecognized choice!"); break;
-                }
+              try {
+                 boolean usermenu = true;
+                 while(usermenu) {
+                   long start = System.nanoTime();
+                   userData.refresh(esql);
+                   OperationStats.record("refresh", start);
+                   System.out.println("MAIN MENU");
+                   System.out.println("---------");
+                   System.out.println("1. Go to Friend List");
+                   System.out.println("2. Update Profile");
+                   System.out.println("3. Write a new message");
+                   System.out.println("4. Send Friend Request");
+                   System.out.println("5. People you may know");
+                   if(userData.pendingRequests.isEmpty())
+                       System.out.println("6. You have no new friend requests :(");
+                   else
+                       System.out.println("6. You have new friend requests! Choose 6 to accept or reject them.");
+                   if(userData.newMessages() > 0)
+                       System.out.println("7. View Messages (" + userData.newMessages() + " new)");
+                   else
+                       System.out.println("7. View Messages");
+                   System.out.println("9. Log out");
+                   switch (readChoice()){
+                      case 1: friendList(esql, userData); break;
+                      case 2: UpdateProfile(esql, userData); break;
+                      case 3: NewMessage(esql, userData); break;
+                      case 4: SendRequest(esql, userData); break;
+                      case 5: peopleYouMayKnow(esql, userData); break;
+                      case 6: manageRequests(esql, userData); break;
+                      case 7: viewMessages(esql, userData); break;
+                      case 9: usermenu = false; break;
+                      default : System.out.println("Unrecognized choice!"); break;
+                   }
+                 }
+              } finally {
+                 userData.close();
               }
             }
          }//end while
-      }catch(Exception e) {
-         System.err.println (e.getMessage ());
-      }finally{
-         // make sure to cleanup the created table and close the connection.
-         try{
-            if(esql != null) {
-               System.out.print("Disconnecting from database...");
-               esql.cleanup ();
-               System.out.println("Done\n\nBye !");
-            }//end if
-         }catch (Exception e) {
-            // ignored.
-         }//end try
-      }//end try
-   }//end main
+   }//end runSession
 
    public static void Greeting(){
       System.out.println(
@@ -349,6 +1007,9 @@ public class ProfNetwork {
          try { // read the integer, parse it and break.
             input = Integer.parseInt(in.readLine());
             break;
+         }catch (EOFException e) {
+            // input is gone (closed session or end of stdin): log out / exit
+            return 9;
          }catch (Exception e) {
             System.out.println("Your input is invalid!");
             continue;
@@ -362,6 +1023,7 @@ public class ProfNetwork {
     * An empty block and contact list would be generated and associated with a user
     **/
    public static void CreateUser(ProfNetwork esql){
+      ProfNetworkService service = new ProfNetworkService(esql);
       try{
          System.out.print("\tEnter user login: ");
          String login = in.readLine();
@@ -369,14 +1031,13 @@ public class ProfNetwork {
          // make sure login isn't already taken.
          // Should this be done using a pre-query or responding to an insert "error"
          // (I believe that users are unique in the db); do we have to handle this?
-         String checkUsersQuery = String.format("SELECT userid FROM usr WHERE userid = '%s'", login);
-         int userExists = esql.executeQuery(checkUsersQuery);
-         while(userExists > 0 || login.length() > 30) {
-            if(userExists > 0 ) System.out.print("\tSorry, that username is taken! Please try another.\n");
+         boolean userExists = service.userExists(login);
+         while(userExists || login.length() > 30) {
+            if(userExists) System.out.print("\tSorry, that username is taken! Please try another.\n");
             if(login.length() > 30) System.out.print("\tThat login is too long! Shorten it to a max of 30 characters.");
             System.out.print("\tEnter user login: ");
             login = in.readLine();
-            checkUsersQuery = String.format("SELECT userid FROM usr WHERE userid = '%s'", login);
+            userExists = service.userExists(login);
          }
 
          System.out.print("\tEnter user password: ");
@@ -389,9 +1050,10 @@ public class ProfNetwork {
 	 //Creating empty contact\block lists for a user
      // removed contact list from the query here
 	 //String query = String.format("INSERT INTO USR (userid, password, email, contact_list) VALUES ('%s','%s','%s')", login, password, email);
-         String query = String.format("INSERT INTO USR (userid, password, email) VALUES ('%s','%s','%s')", login, password, email);
-         esql.executeUpdate(query);
-         System.out.println ("User successfully created!");
+         if (service.createUser(login, password, email))
+            System.out.println ("User successfully created!");
+         else
+            System.out.println ("Sorry, that username was just taken!");
       }catch(Exception e){
          System.err.println (e.getMessage ());
       }
@@ -408,9 +1070,7 @@ public class ProfNetwork {
          System.out.print("\tEnter user password: ");
          String password = in.readLine();
 
-         String query = String.format("SELECT * FROM USR WHERE userid = '%s' AND password = '%s'", login, password);
-         int userNum = esql.executeQuery(query);
-	     if (userNum > 0)
+	     if (new ProfNetworkService(esql).login(login, password))
 		    return login;
          return null;
       }catch(Exception e){
@@ -425,18 +1085,30 @@ public class ProfNetwork {
     * Presents update profile menu to a given user, where they can
     * change their password and other profile information.
     *
-    * Consider making change password and other options their own functions to avoid clutter
+    * Changes to the profile, work history and education are collected as the
+    * user makes them and saved together when they choose Done.
     **/
-   public static void UpdateProfile(ProfNetwork esql, String authorisedUser) {
+   public static void UpdateProfile(ProfNetwork esql, User userData) {
+       ProfNetworkService service = new ProfNetworkService(esql);
+       ProfileStore.Edit edit = new ProfileStore.Edit();
+       // password changes are written in the background, we wait for them on the way out
+       List<Future<Integer>> writes = new ArrayList<Future<Integer>>();
        try {
+           ProfileStore.FullProfile current = service.fullProfile(userData.username);
            // Menu
            boolean updateProfileMenu = true;
            while(updateProfileMenu) {
-               System.out.println("UPDATE PROFILE");
+               System.out.println("UPDATE PROFILE" + (edit.size() > 0 ? " (" + edit.size() + " unsaved changes)" : ""));
                System.out.println("---------------");
                System.out.println("1. Change Password");
+               System.out.println("2. View Profile");
+               System.out.println("3. Change Name, Email or Birthday");
+               System.out.println("4. Add or Update a Job");
+               System.out.println("5. Remove a Job");
+               System.out.println("6. Add or Update Education");
+               System.out.println("7. Remove Education");
                System.out.println("...................");
-               // TODO: add more options here for basic profile information
+               System.out.println("9. Done");
                switch(readChoice()) {
                    case 1: {
                        // this should be a function, but for now I'm going to leave it in here
@@ -449,23 +1121,154 @@ public class ProfNetwork {
                            if(newPassword.equals(in.readLine())) passwordsMatch = true;
                            else System.out.println("Your passwords didn't match! Please try again.");
                        }
-                       String updatePasswordQuery = String.format("UPDATE usr SET password = '%s' WHERE userid = '%s'", newPassword, authorisedUser);
-                       esql.executeUpdate(updatePasswordQuery);
-                       System.out.println("Password updated.");
+                       writes.add(service.changePassword(userData, newPassword));
+                       System.out.println("Password change submitted.");
                        break;
                    }
-                   default: {
+                   case 2: printProfile(current); break;
+                   case 3: {
+                       System.out.println("Leave a field blank to keep it.");
+                       String name = readText("Name: ", 50);
+                       String email = readText("Email: ", 200);
+                       java.sql.Date birthday = readDate("Birthday");
+                       if(name != null) edit.name = name;
+                       if(email != null) edit.email = email;
+                       if(birthday != null) edit.dateOfBirth = birthday;
                        break;
                    }
+                   case 4: {
+                       String company = readRequired("Company: ", 50);
+                       String role = readRequired("Role: ", 50);
+                       String location = readText("Location: ", 50);
+                       java.sql.Date startDate = readRequiredDate("Start date");
+                       java.sql.Date endDate = readDate("End date, blank if you still work there");
+                       edit.saveJobs.add(new ProfileStore.Job(company, role, location, startDate, endDate));
+                       break;
+                   }
+                   case 5: {
+                       int i = pick(current.work.size(), "job");
+                       if(i >= 0) edit.removeJobs.add(current.work.get(i));
+                       break;
+                   }
+                   case 6: {
+                       String institution = readRequired("Institution: ", 50);
+                       String major = readRequired("Major: ", 50);
+                       String degree = readRequired("Degree: ", 50);
+                       java.sql.Date startDate = readDate("Start date");
+                       java.sql.Date endDate = readDate("End date");
+                       edit.saveDegrees.add(new ProfileStore.Degree(institution, major, degree, startDate, endDate));
+                       break;
+                   }
+                   case 7: {
+                       int i = pick(current.education.size(), "degree");
+                       if(i >= 0) edit.removeDegrees.add(current.education.get(i));
+                       break;
+                   }
+                   case 9: updateProfileMenu = false; break;
+                   default: System.out.println("Unrecognized choice!"); break;
                }
-               break;
            } // end while menu
+           if(!writes.isEmpty()) {
+               awaitWrites(writes);
+               System.out.println("Password updated.");
+           }
+           if(edit.size() > 0) {
+               service.editProfile(userData, edit);
+               System.out.println("Profile updated.");
+           }
        } // end try
        catch (Exception e) {
-           System.out.println("Password update failed, invalid input: " + e.getMessage());
+           System.out.println("Profile update failed, invalid input: " + e.getMessage());
        }
    } // end
 
+   /*
+    * Prints a full profile: the user's details, then their jobs and degrees,
+    * newest first, numbered so the remove options can refer to them.
+    **/
+   static void printProfile(ProfileStore.FullProfile full) {
+       User.Profile p = full.profile;
+       System.out.println("PROFILE");
+       System.out.println("-------");
+       System.out.println(p.userId + (p.name != null ? " (" + p.name + ")" : ""));
+       System.out.println("Email: " + p.email);
+       if(p.dateOfBirth != null) System.out.println("Birthday: " + p.dateOfBirth);
+       System.out.println("Work:");
+       if(full.work.isEmpty()) System.out.println("    none");
+       for(int i = 0; i < full.work.size(); ++i) {
+           ProfileStore.Job j = full.work.get(i);
+           System.out.println("    " + (i + 1) + ". " + j.role + " at " + j.company
+                              + (j.location != null ? ", " + j.location : "")
+                              + " (" + j.startDate + " - " + (j.endDate != null ? j.endDate : "present") + ")");
+       }
+       System.out.println("Education:");
+       if(full.education.isEmpty()) System.out.println("    none");
+       for(int i = 0; i < full.education.size(); ++i) {
+           ProfileStore.Degree d = full.education.get(i);
+           System.out.println("    " + (i + 1) + ". " + d.degree + " in " + d.major + ", " + d.institution
+                              + (d.startDate != null ? " (" + d.startDate + " - " + (d.endDate != null ? d.endDate : "") + ")" : ""));
+       }
+       System.out.println("-------");
+   }
+
+   // reads a line of at most maxLength characters, null if it was blank
+   static String readText(String prompt, int maxLength) throws IOException {
+       while(true) {
+           System.out.print(prompt);
+           String line = in.readLine().trim();
+           if(line.length() <= maxLength) return line.isEmpty() ? null : line;
+           System.out.println("Please keep it to " + maxLength + " characters.");
+       }
+   }
+
+   static String readRequired(String prompt, int maxLength) throws IOException {
+       String line;
+       while((line = readText(prompt, maxLength)) == null)
+           System.out.println("This one is required.");
+       return line;
+   }
+
+   // reads a YYYY-MM-DD date, null if the line was blank
+   static java.sql.Date readDate(String prompt) throws IOException {
+       while(true) {
+           String line = readText(prompt + " (YYYY-MM-DD): ", 10);
+           if(line == null) return null;
+           try {
+               return java.sql.Date.valueOf(line);
+           }
+           catch(IllegalArgumentException e) {
+               System.out.println("That is not a date.");
+           }
+       }
+   }
+
+   static java.sql.Date readRequiredDate(String prompt) throws IOException {
+       java.sql.Date date;
+       while((date = readDate(prompt)) == null)
+           System.out.println("This one is required.");
+       return date;
+   }
+
+   // asks for the number of one of count listed entries; -1 if there are none or the user backs out
+   static int pick(int count, String what) throws IOException {
+       if(count == 0) {
+           System.out.println("You have no " + what + " listed. Saved changes show up after you choose Done.");
+           return -1;
+       }
+       while(true) {
+           String line = readText("Number of the " + what + " (see View Profile), blank to go back: ", 10);
+           if(line == null) return -1;
+           try {
+               int i = Integer.parseInt(line);
+               if(i >= 1 && i <= count) return i - 1;
+           }
+           catch(NumberFormatException e) {
+               // fall through to the message below
+           }
+           System.out.println("Please pick a number from 1 to " + count + ".");
+       }
+   }
+
 
    /*
     * calculates and returns the number of free connections remaining for a given user.
@@ -476,12 +1279,7 @@ public class ProfNetwork {
     **/
    public static int freeConnectionsRemaining(ProfNetwork esql, String authorisedUser) {
        try {
-           String query = String.format("SELECT * FROM connection_usr WHERE userid = '%s' OR connectionid = '%s'", authorisedUser, authorisedUser);
-           int numConnections = esql.executeQuery(query);
-           //System.out.println("num connections: " + numConnections);
-           if(numConnections >= 5) return 0;
-           else if(numConnections <= 0) return 5;
-           else return (5 - numConnections);
+           return new ProfNetworkService(esql).freeConnectionsRemaining(authorisedUser);
        }
        catch(Exception e) {
            System.out.println("An error occured while calculating your free connections: " + e.getMessage());
@@ -497,131 +1295,212 @@ public class ProfNetwork {
     * they are told so and it exits the menu
     **/
    public static void SendRequest(ProfNetwork esql, User userData) {
-       String authorisedUser = userData.username;
+       ProfNetworkService service = new ProfNetworkService(esql);
        try {
-           System.out.print("Enter the user to send your friend request to or exit to exit: ");
-           String user = in.readLine();
+           String user = null;
+           while(user == null) {
+               System.out.print("Enter the user to send your friend request to, search <name or email> to look someone up, or exit to exit: ");
+               String input = in.readLine().trim();
 
-           // check for exit
-           if(user.equals("exit")) return;
+               // check for exit
+               if(input.equals("exit")) return;
 
-           String query = String.format("SELECT userid FROM usr WHERE userid = '%s'", user);
-           // check if user exists
-           while(esql.executeQuery(query) == 0) {
-               System.out.println("That user doesn't exist! Please enter an existing user or exit to exit: ");
-               user = in.readLine();
-               if(user.equals("exit")) return;
-               query = String.format("SELECT userid FROM usr WHERE userid = '%s'", user);
-           }
+               if(input.startsWith("search ")) {
+                   searchUsers(service, input.substring("search ".length()));
+                   continue;
+               }
 
-           // check if you are already friends
-           for(int i = 0; i < userData.friends.size(); i++) {
-               for(int j = 0; j < userData.friends.get(i).size(); j++) {
-                   if(userData.friends.get(i).get(j).trim().equals(user)) {
-                       System.out.println("You are already friends with " + user + "!");
-                       return;
-                   }
+               // check if user exists
+               if(service.userExists(input)) user = input;
+               else {
+                   System.out.println("That user doesn't exist!");
+                   List<String> similar = service.suggestUsers(input, 5);
+                   if(!similar.isEmpty()) System.out.println("Did you mean: " + join(similar) + "?");
                }
            }
 
-           // check if you have already sent them a request
-           String checkDuplicateRequest = String.format("SELECT * FROM connection_usr WHERE userid = '%s' AND connectionid = '%s'",authorisedUser, user);
-           if(esql.executeQuery(checkDuplicateRequest) > 0) {
+           printSendResult(service.sendRequest(userData, user), user);
+       }
+       catch(Exception e) {
+           System.out.println("An error occured when sending your connection request: " + e.getMessage());
+       }
+   }
+
+   /*
+    * Prints the users matching text a page at a time.
+    **/
+   static void searchUsers(ProfNetworkService service, String text) throws SQLException, IOException {
+       if(text.trim().length() < UserSearch.MIN_SEARCH_LENGTH) {
+           System.out.println("Please search for at least " + UserSearch.MIN_SEARCH_LENGTH + " characters.");
+           return;
+       }
+       String after = "";
+       while(true) {
+           UserSearch.Page page = service.searchUsers(text, after, UserSearch.DEFAULT_PAGE_SIZE);
+           if(page.hits.isEmpty() && after.isEmpty()) System.out.println("Nobody found.");
+           for(UserSearch.Hit hit : page.hits)
+               System.out.println(hit.userId + (hit.name != null ? " - " + hit.name : "") + " <" + hit.email + ">");
+           if(page.next == null) return;
+           System.out.print("n for more results, anything else to stop: ");
+           if(!in.readLine().trim().equals("n")) return;
+           after = page.next;
+       }
+   }
+
+   static String join(List<String> items) {
+       StringBuilder sb = new StringBuilder();
+       for(String item : items) {
+           if(sb.length() > 0) sb.append(", ");
+           sb.append(item);
+       }
+       return sb.toString();
+   }
+
+   /*
+    * Tells the user what came of a friend request they sent to user.
+    **/
+   static void printSendResult(ProfNetworkService.SendResult result, String user) {
+       switch(result) {
+           case SENT:
+               System.out.println("Friend request sent.");
+               break;
+           case SENT_WITHIN_DEPTH:
+               System.out.println("You've exceeded your free friends, but " + user + " is within " + MAX_CONNECTION_DEPTH + " connections of you! :)");
+               System.out.println("Friend request sent.");
+               break;
+           case NO_SUCH_USER:
+               System.out.println("That user doesn't exist!");
+               break;
+           case ALREADY_FRIENDS:
+               System.out.println("You are already friends with " + user + "!");
+               break;
+           case ALREADY_REQUESTED:
                System.out.println("You have already sent a friend request to " + user + "! Please wait for them to respond.");
+               break;
+           case OUT_OF_RANGE:
+               System.out.println("You've exceeded your free friends and " + user + " is not within " + MAX_CONNECTION_DEPTH + " connections of you.");
+               System.out.println("Sorry, you cannot add " + user + ".");
+               break;
+           case ACCEPTED:
+               System.out.println(user + " had already sent you a friend request, so we accepted it.");
+               System.out.println("You and " + user + " are now friends!");
+               break;
+       }
+   }
+
+   /*
+    * Lists the users the logged in user may know, best match first, and lets them
+    * send a friend request to one of them.
+    **/
+   public static void peopleYouMayKnow(ProfNetwork esql, User userData) {
+       ProfNetworkService service = new ProfNetworkService(esql);
+       try {
+           List<RecommendationEngine.Recommendation> people = service.recommendations(userData, RecommendationEngine.DEFAULT_K);
+           System.out.println("PEOPLE YOU MAY KNOW");
+           System.out.println("-------------------");
+           if(people.isEmpty()) {
+               System.out.println("No suggestions yet, make some friends first!");
                return;
            }
-
-           // don't check connection 3 depth constraint
-           if(freeConnectionsRemaining(esql, authorisedUser) > 0) {
-               query = String.format("INSERT INTO connection_usr (userid, connectionid, status) VALUES ('%s', '%s', '%s')", authorisedUser, user, "pending");
-               esql.executeUpdate(query);
-               System.out.println("Friend request sent.");
+           for(RecommendationEngine.Recommendation p : people) {
+               if(p.hops == 2) System.out.println(p.userId + " (" + p.mutualFriends + " mutual friend" + (p.mutualFriends == 1 ? "" : "s") + ")");
+               else System.out.println(p.userId + " (friend of a friend of a friend)");
            }
+           System.out.println("-------------------");
+           System.out.print("Type a username to send them a friend request or exit to exit: ");
+           String user = in.readLine().trim();
+           if(user.equals("exit")) return;
+           printSendResult(service.sendRequest(userData, user), user);
+       }
+       catch(Exception e) {
+           System.out.println("An error occured while finding people you may know: " + e.getMessage());
+       }
+   }
 
-           // if they have used their 5 free friends, check the connection 3 depth constraint
-           else {
-               System.out.println("You've exceeded your free friends! Let's check the lvl 3 constraint.");
+   /*
+    * Checks whether user is within maxDepth friend hops of authorisedUser in a single
+    * round trip. The recursive CTE walks 'friend' edges in both directions and is pulled
+    * lazily by the outer LIMIT 1, so the expansion stops as soon as the target shows up.
+    * Text ids are compared as varchar(30), which matches connection_usr's indexes both
+    * while its columns are char(30) and after SurrogateKeys has contracted them.
+    **/
+   public static boolean isWithinConnectionDepth(ProfNetwork esql, String authorisedUser, String user, int maxDepth) throws SQLException {
+       return esql.exists(esql.usesSurrogateKeys() ? CONNECTION_DEPTH_BY_UID : CONNECTION_DEPTH_BY_USERID,
+                          esql.userKey(authorisedUser), maxDepth, esql.userKey(user));
+   }
 
-              Set<String> startingSet = new HashSet<String>();
-              Set<String> finalSet = new HashSet<String>();
+   /*
+    * The original client-side depth check: expands the friend graph in Java with one
+    * query per member of the frontier. No longer used by SendRequest, kept so
+    * ReachabilityBenchmark can compare it against isWithinConnectionDepth.
+    **/
+   public static boolean isWithinConnectionDepthIterative(ProfNetwork esql, String authorisedUser, List<List<String>> myFriends, String user) throws SQLException {
+       Set<String> startingSet = new HashSet<String>();
+       Set<String> finalSet = new HashSet<String>();
+
+       // initialize starting set and final set with all friends of current user
+       List<String> friends1 = getColumn(myFriends, 0);
+       List<String> friends2 = getColumn(myFriends, 1);
+
+       //System.out.println("INITIAL STARTING SET: ");
+       for(String s : friends1) {
+           if(!s.trim().equals(authorisedUser)) {
+               startingSet.add(s);
+               finalSet.add(s);
+           }
+       }
 
-              // initialize starting set and final set with all friends of current user
-              List<String> friends1 = getColumn(userData.friends, 0);
-              List<String> friends2 = getColumn(userData.friends, 1);
+       for(String s : friends2) {
+           if(!s.trim().equals(authorisedUser)) {
+               startingSet.add(s);
+               finalSet.add(s);
+           }
+       }
 
-              //System.out.println("INITIAL STARTING SET: ");
-              for(String s : friends1) {
-                  if(!s.trim().equals(authorisedUser)) {
-                      startingSet.add(s);
-                      finalSet.add(s);
-                  }
-              }
+       //for(String s : startingSet) System.out.println(s);
 
-              for(String s : friends2) {
-                  if(!s.trim().equals(authorisedUser)) {
-                      startingSet.add(s);
-                      finalSet.add(s);
-                  }
-              }
+       for(int i = 0; i < 3; i++) {
+           // calculate all friends of starting set and add into intermediate set and final set
+           for(String username : startingSet) {
+               //System.out.println("USERNAME: " + username);
+               String getFriendsQuery = "SELECT * FROM connection_usr WHERE (userid = ? OR connectionid = ?) AND status = 'friend'";
+               List<List<String>> friends = esql.executeQueryAndReturnResult(getFriendsQuery, username.trim(), username.trim());
+               Set<String> intermediateSet = new HashSet<String>();
 
-              //for(String s : startingSet) System.out.println(s);
-
-              for(int i = 0; i < 3; i++) {
-                  // calculate all friends of starting set and add into intermediate set and final set
-                  for(String username : startingSet) {
-                      //System.out.println("USERNAME: " + username);
-                      String getFriendsQuery = String.format("SELECT * FROM connection_usr WHERE (userid = '%s' OR connectionid = '%s') AND status = 'friend'", username, username);
-                      List<List<String>> friends = esql.executeQueryAndReturnResult(getFriendsQuery);
-                      Set<String> intermediateSet = new HashSet<String>();
-
-                      friends1 = getColumn(friends, 0);
-                      friends2 = getColumn(friends, 1);
-
-                      for(String s : friends1) {
-                          if(!s.trim().equals(authorisedUser) && !s.trim().equals(username)) {
-                              intermediateSet.add(s);
-                              finalSet.add(s);
-                          }
-                      }
-
-                      for(String s : friends2) {
-                          if(!s.trim().equals(authorisedUser) && !s.trim().equals(username)) {
-                              intermediateSet.add(s);
-                              finalSet.add(s);
-                          }
-                      }
-
-                      // new starting set is set difference of intermediate and previous startingSet
-                      //System.out.println("INTERMEDIATE SET ON ITERATION " + i);
-                      //for(String s : intermediateSet) System.out.println(s);
-                      intermediateSet.removeAll(startingSet);
-                      startingSet = intermediateSet;
-                      //System.out.println("NEW STARTING SET ON ITERATION " + i);
-                      //for(String s : startingSet) System.out.println(s);
-                  }
-              }
+               friends1 = getColumn(friends, 0);
+               friends2 = getColumn(friends, 1);
 
-              boolean inLevel = false;
-              for(String s : finalSet) {
-                  if(s.trim().equals(user)) {
-                      System.out.println("Found a match! You can add " + user + "! :)");
-                      inLevel = true;
-                  }
-              }
+               for(String s : friends1) {
+                   if(!s.trim().equals(authorisedUser) && !s.trim().equals(username)) {
+                       intermediateSet.add(s);
+                       finalSet.add(s);
+                   }
+               }
 
-              if(inLevel) {
-                  query = String.format("INSERT INTO connection_usr (userid, connectionid, status) VALUES ('%s', '%s', '%s')", authorisedUser, user, "pending");
-                  esql.executeUpdate(query);
-                  System.out.println("Friend request sent.");
-              }
-              else {
-                  System.out.println("Sorry, you cannot add " + user + ".");
-              }
+               for(String s : friends2) {
+                   if(!s.trim().equals(authorisedUser) && !s.trim().equals(username)) {
+                       intermediateSet.add(s);
+                       finalSet.add(s);
+                   }
+               }
+
+               // new starting set is set difference of intermediate and previous startingSet
+               //System.out.println("INTERMEDIATE SET ON ITERATION " + i);
+               //for(String s : intermediateSet) System.out.println(s);
+               intermediateSet.removeAll(startingSet);
+               startingSet = intermediateSet;
+               //System.out.println("NEW STARTING SET ON ITERATION " + i);
+               //for(String s : startingSet) System.out.println(s);
            }
        }
-       catch(Exception e) {
-           System.out.println("An error occured when sending your connection request: " + e.getMessage());
+
+       boolean inLevel = false;
+       for(String s : finalSet) {
+           if(s.trim().equals(user)) {
+               inLevel = true;
+           }
        }
+       return inLevel;
    }
 
    public static List<String> getColumn(List<List<String>> list, int colNum) {
@@ -649,10 +1528,10 @@ public class ProfNetwork {
 
         // get all users pending requests and print them
         List<String> pendingUsernames = new ArrayList<String>();
-        for(int i = 0; i < userData.pendingRequests.size(); i++)
+        for(User.PendingRequest request : userData.pendingRequests)
         {
-            System.out.println(userData.pendingRequests.get(i).get(0) + " wants to be your friend!");
-            pendingUsernames.add(userData.pendingRequests.get(i).get(0).trim());
+            System.out.println(request.fromUserId + " wants to be your friend!");
+            pendingUsernames.add(request.fromUserId);
         }
 
 
@@ -666,6 +1545,10 @@ public class ProfNetwork {
 
         String[] splitInput = input.split(" ");
 
+        // accepts run right away; rejects are written in the background, we wait for them on the way out
+        ProfNetworkService service = new ProfNetworkService(esql);
+        List<Future<Integer>> writes = new ArrayList<Future<Integer>>();
+
         // check user input
         boolean inputGood = true;
         while(true)
@@ -673,6 +1556,7 @@ public class ProfNetwork {
             // check for exit
             if(input.equals("exit") || pendingUsernames.size() == 0) {
                 if(pendingUsernames.size() == 0) System.out.println("You have no pending requests!");
+                awaitWrites(writes);
                 System.out.println("exiting...");
                 return;
             }
@@ -704,13 +1588,13 @@ public class ProfNetwork {
             // either accept or deny the friend request
             if(inputGood) {
                 if(splitInput[0].equals("y")) {
-                    String query = String.format("UPDATE connection_usr SET status = 'friend' WHERE userid = '%s' AND connectionid = '%s'", splitInput[1], userData.username);
-                    esql.executeUpdate(query);
+                    boolean accepted = service.acceptRequest(userData, splitInput[1]);
                     pendingUsernames.remove(splitInput[1]); // line is purely for UI so when list is printed they are not shown
-                    System.out.println("You and " + splitInput[1] + " are now friends!");
+                    if(accepted) System.out.println("You and " + splitInput[1] + " are now friends!");
+                    else System.out.println(splitInput[1] + "'s request is no longer pending.");
                 }
                 else if(splitInput[0].equals("n")) {
-                    String query = String.format("DELETE FROM connection_usr WHERE userid = '%s' AND connectionid = '%s'", splitInput[1], userData.username);
+                    writes.add(service.rejectRequest(userData, splitInput[1]));
                     pendingUsernames.remove(splitInput[1]);
                     System.out.println("You rejected " + splitInput[1] + "'s friend request. Harsh!'");
                 }
@@ -733,18 +1617,123 @@ public class ProfNetwork {
         }
     }
 
-    // simply prints all friends right now, will add on to this later, added this
-    // basic functionality for testing
+    /*
+     * Writes a new message to one or more users. Recipients are typed on one
+     * line separated by spaces; the message is sent to all of them at once.
+     **/
+    public static void NewMessage(ProfNetwork esql, User userData) {
+        try {
+            System.out.print("Enter the users to message, separated by spaces, or exit to exit: ");
+            String input = in.readLine().trim();
+            if(input.equals("exit") || input.isEmpty()) return;
+
+            List<String> recipients = new ArrayList<String>();
+            for(String user : input.split("\\s+")) {
+                if(!esql.exists(USER_EXISTS_QUERY, user))
+                    System.out.println(user + " doesn't exist, skipping them.");
+                else if(!recipients.contains(user))
+                    recipients.add(user);
+            }
+            if(recipients.isEmpty()) {
+                System.out.println("Nobody to send the message to.");
+                return;
+            }
+
+            System.out.print("Type your message (max " + MAX_MESSAGE_LENGTH + " characters): ");
+            String contents = in.readLine();
+            while(contents.length() > MAX_MESSAGE_LENGTH) {
+                System.out.print("That message is too long! Please shorten it: ");
+                contents = in.readLine();
+            }
+
+            new MessageStore(esql).send(userData.username, recipients, contents);
+            System.out.println("Message sent to " + recipients.size() + (recipients.size() == 1 ? " user." : " users."));
+        }
+        catch(Exception e) {
+            System.out.println("An error occured when sending your message: " + e.getMessage());
+        }
+    }
+
+    /*
+     * Shows the user's inbox (or outbox) a page at a time, newest first. Users type
+     * n for the next page, d <msgId> to delete a message, o / i to switch between
+     * outbox and inbox, or exit to go back to the main menu.
+     **/
+    public static void viewMessages(ProfNetwork esql, User userData) {
+        MessageStore store = new MessageStore(esql);
+        userData.messagesSeen();
+        boolean inbox = true;
+        MessageStore.Cursor cursor = MessageStore.Cursor.FIRST;
+        try {
+            while(true) {
+                MessageStore.Page page = inbox
+                    ? store.inbox(userData, cursor, MessageStore.DEFAULT_PAGE_SIZE)
+                    : store.outbox(userData, cursor, MessageStore.DEFAULT_PAGE_SIZE);
+
+                System.out.println(inbox ? "INBOX" : "OUTBOX");
+                System.out.println("-------");
+                if(page.messages.isEmpty()) System.out.println("No messages.");
+                for(MessageStore.Message m : page.messages) {
+                    String who = inbox ? "from " + m.senderId : "to " + m.receiverId;
+                    System.out.println("[" + m.msgId + "] " + m.sendTime + " " + who + " (" + m.status + ")");
+                    System.out.println("    " + m.contents);
+                }
+                if(inbox) store.markRead(userData.username, page.messages);
+                System.out.println("-------");
+                System.out.println((page.next != null ? "n for next page, " : "") + "d <msgId> to delete, " +
+                                   (inbox ? "o for outbox" : "i for inbox") + " or exit to exit.");
+                System.out.print("-->");
+                String[] input = in.readLine().trim().split("\\s+");
+
+                if(input[0].equals("exit")) return;
+                else if(input[0].equals("n") && page.next != null) cursor = page.next;
+                else if(input[0].equals("o") || input[0].equals("i")) {
+                    inbox = input[0].equals("i");
+                    cursor = MessageStore.Cursor.FIRST;
+                }
+                else if(input[0].equals("d") && input.length == 2) {
+                    try {
+                        int msgId = Integer.parseInt(input[1]);
+                        MessageStore.Message picked = null;
+                        for(MessageStore.Message m : page.messages)
+                            if(m.msgId == msgId) picked = m;
+                        if(picked == null)
+                            System.out.println("That message is not on this page.");
+                        else if(store.delete(userData.username, picked))
+                            System.out.println("Message deleted.");
+                        else
+                            System.out.println("That message was not found.");
+                    }
+                    catch(NumberFormatException e) {
+                        System.out.println("That is not a message number.");
+                    }
+                    // stay on the current page
+                }
+                else System.out.println("Unrecognized choice!");
+            }
+        }
+        catch(Exception e) {
+            System.out.println("An error occured while reading your messages: " + e.getMessage());
+        }
+    }
+
+    /*
+     * Lists the user's friends, numbered. Picking one shows their full profile,
+     * read the same way as the user's own.
+     **/
     public static void friendList(ProfNetwork esql, User userData) {
         System.out.println("FRIENDS");
         System.out.println("-------");
-        for(int i = 0; i < userData.friends.size(); i++) {
-            if(userData.friends.get(i).get(0).trim().equals(userData.username))
-                System.out.println(userData.friends.get(i).get(1));
-            else
-                System.out.println(userData.friends.get(i).get(0));
-        }
+        for(int i = 0; i < userData.friends.size(); ++i)
+            System.out.println((i + 1) + ". " + userData.friends.get(i).userId);
         System.out.println("-------");
+        try {
+            int i = pick(userData.friends.size(), "friend");
+            if(i >= 0) printProfile(new ProfNetworkService(esql).fullProfile(userData.friends.get(i).userId));
+        }
+        catch(Exception e) {
+            System.out.println("An error occured while reading their profile: " + e.getMessage());
+        }
     }
 
 }//end ProfNetwork
@@ -0,0 +1,292 @@
+/*
+ * Headless API over the ProfNetwork operations. The interactive menus in
+ * ProfNetwork only read input and print results; the work itself happens here
+ * so it can also be driven by LoadDriver (or any other caller) without stdin.
+ * Every operation records its latency in OperationStats.
+ */
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.Future;
+
+public class ProfNetworkService {
+
+    // how many connections a user can make before the depth check applies
+    public static final int FREE_CONNECTIONS = 5;
+
+    static final String INSERT_USER = QueryStats.named("user.create", "INSERT INTO USR (userid, password, email) VALUES (?, ?, ?)");
+    static final String UPDATE_PASSWORD = QueryStats.named("profile.password", "UPDATE usr SET password = ? WHERE userid = ?");
+
+    /*
+     * Outcome of sendRequest.
+     **/
+    public enum SendResult {
+        SENT,                    // sent using one of the free connections
+        SENT_WITHIN_DEPTH,       // free connections used up, target was within MAX_CONNECTION_DEPTH
+        NO_SUCH_USER,
+        ALREADY_FRIENDS,
+        ALREADY_REQUESTED,
+        OUT_OF_RANGE,            // free connections used up and the target is too far away
+        ACCEPTED                 // the target had already sent us a request, which was accepted instead
+    }
+
+    private final ProfNetwork esql;
+
+    public ProfNetworkService(ProfNetwork esql) {
+        this.esql = esql;
+    }
+
+    public ProfNetwork getDatabase() {
+        return esql;
+    }
+
+    public boolean userExists(String userId) throws SQLException {
+        return esql.exists(ProfNetwork.USER_EXISTS_QUERY, userId);
+    }
+
+    public boolean login(String userId, String password) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return esql.exists(ProfNetwork.LOGIN_QUERY, userId, password);
+        }
+        finally {
+            OperationStats.record("login", start);
+        }
+    }
+
+    /*
+     * Creates a new user, returns false if the login is already taken.
+     **/
+    public boolean createUser(String login, String password, String email) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            if(userExists(login)) return false;
+            esql.executeUpdate(INSERT_USER, login, password, email);
+            FriendGraph graph = esql.loadedFriendGraph();
+            if(graph != null) graph.addUser(login);
+            AutocompleteIndex autocomplete = esql.loadedAutocomplete();
+            if(autocomplete != null) autocomplete.add(login);
+            return true;
+        }
+        finally {
+            OperationStats.record("createUser", start);
+        }
+    }
+
+    /*
+     * Users whose id, name or email contains text, a page at a time.
+     **/
+    public UserSearch.Page searchUsers(String text, String after, int pageSize) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return new UserSearch(esql).search(text, after, pageSize);
+        }
+        finally {
+            OperationStats.record("searchUsers", start);
+        }
+    }
+
+    /*
+     * Userids close to something that is not a userid, from the in-memory index.
+     **/
+    public List<String> suggestUsers(String text, int limit) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return esql.getAutocomplete().suggest(text, 2, limit);
+        }
+        finally {
+            OperationStats.record("suggestUsers", start);
+        }
+    }
+
+    /*
+     * Loads the session data for a logged in user.
+     **/
+    public User openSession(String userId) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return new User(esql, userId);
+        }
+        finally {
+            OperationStats.record("openSession", start);
+        }
+    }
+
+    /*
+     * Ends a session opened with openSession.
+     **/
+    public void closeSession(User session) {
+        session.close();
+    }
+
+    /*
+     * Changes the user's password, through the write-behind queue when it is
+     * on. The cached profile is dropped once the update has been written.
+     **/
+    public Future<Integer> changePassword(final User session, String newPassword) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return esql.executeUpdateAsync(new Runnable() {
+                public void run() {
+                    esql.getUserCache().invalidateProfile(session.username);
+                    session.invalidateProfile();
+                }
+            }, UPDATE_PASSWORD, newPassword, session.username);
+        }
+        finally {
+            OperationStats.record("changePassword", start);
+        }
+    }
+
+    /*
+     * The user's profile with their work and education, in one round trip.
+     **/
+    public ProfileStore.FullProfile fullProfile(String userId) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return new ProfileStore(esql).load(userId);
+        }
+        finally {
+            OperationStats.record("fullProfile", start);
+        }
+    }
+
+    public int editProfile(User session, ProfileStore.Edit edit) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            int rows = new ProfileStore(esql).save(session.username, edit);
+            esql.getUserCache().invalidateProfile(session.username);
+            session.invalidateProfile();
+            return rows;
+        }
+        finally {
+            OperationStats.record("editProfile", start);
+        }
+    }
+
+    public ConnectionQuota connectionQuota(String userId) throws SQLException {
+        return ConnectionQuota.of(esql, userId);
+    }
+
+    /*
+     * Number of connections (friend or pending) the user can still make without
+     * the depth check.
+     **/
+    public int freeConnectionsRemaining(String userId) throws SQLException {
+        return connectionQuota(userId).remaining();
+    }
+
+    public boolean isWithinConnectionDepth(String from, String to) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            if(!ProfNetwork.USE_MEMORY_GRAPH)
+                return ProfNetwork.isWithinConnectionDepth(esql, from, to, ProfNetwork.MAX_CONNECTION_DEPTH);
+            ReachabilityIndex index = esql.getReachabilityIndex();
+            return index != null
+                ? index.isWithinHops(from, to)
+                : esql.getFriendGraph().isWithinHops(from, to, ProfNetwork.MAX_CONNECTION_DEPTH);
+        }
+        finally {
+            OperationStats.record("depthCheck", start);
+        }
+    }
+
+    /*
+     * Sends a friend request from the session user to target. Once the free
+     * connections are used up the target has to be within the depth limit.
+     * The checks and the insert are one transaction, see FriendRequests.
+     **/
+    public SendResult sendRequest(User session, String target) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            String me = session.username;
+            // the session's friend list saves a transaction for the common mistake
+            if(session.isFriend(target)) return SendResult.ALREADY_FRIENDS;
+
+            FriendRequests requests = new FriendRequests(esql);
+            SendResult result = requests.send(me, target, null);
+            if(result == null) result = requests.send(me, target, isWithinConnectionDepth(me, target));
+
+            FriendGraph graph = esql.loadedFriendGraph();
+            UserCache cache = esql.getUserCache();
+            if(result == SendResult.SENT || result == SendResult.SENT_WITHIN_DEPTH) {
+                if(graph != null) graph.addUser(target);
+                cache.invalidatePendingRequests(target);
+            }
+            else if(result == SendResult.ACCEPTED) {
+                if(graph != null) graph.addFriendship(target, me);
+                cache.invalidateFriends(target);
+                cache.invalidateFriends(me);
+                cache.invalidatePendingRequests(me);
+                session.invalidateFriends();
+                session.invalidatePendingRequests();
+            }
+            return result;
+        }
+        finally {
+            OperationStats.record("sendRequest", start);
+        }
+    }
+
+    /*
+     * Up to limit users the session user may know, best first.
+     **/
+    public List<RecommendationEngine.Recommendation> recommendations(User session, int limit) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return new RecommendationEngine(esql, limit).topK(session.username, limit);
+        }
+        finally {
+            OperationStats.record("recommendations", start);
+        }
+    }
+
+    /*
+     * Accepts the pending request from the given user, see FriendRequests.
+     * Runs right away, not through the write-behind queue, and the friend
+     * graph and caches are only updated once it has applied. Returns false if
+     * the request was withdrawn or answered in the meantime.
+     **/
+    public boolean acceptRequest(User session, String from) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            if(!new FriendRequests(esql).accept(from, session.username)) {
+                esql.getUserCache().invalidatePendingRequests(session.username);
+                session.invalidatePendingRequests();
+                return false;
+            }
+            FriendGraph graph = esql.loadedFriendGraph();
+            if(graph != null) graph.addFriendship(from, session.username);
+            UserCache cache = esql.getUserCache();
+            cache.invalidateFriends(from);
+            cache.invalidateFriends(session.username);
+            cache.invalidatePendingRequests(session.username);
+            session.invalidateFriends();
+            session.invalidatePendingRequests();
+            return true;
+        }
+        finally {
+            OperationStats.record("acceptRequest", start);
+        }
+    }
+
+    /*
+     * Rejects (deletes) the pending request from the given user. The cached
+     * pending requests are dropped once the delete has been written, so a
+     * reload in between can't cache the request again.
+     **/
+    public Future<Integer> rejectRequest(final User session, String from) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return esql.executeUpdateAsync(new Runnable() {
+                public void run() {
+                    esql.getUserCache().invalidatePendingRequests(session.username);
+                    session.invalidatePendingRequests();
+                }
+            }, FriendRequests.REJECT_REQUEST, from, session.username);
+        }
+        finally {
+            OperationStats.record("rejectRequest", start);
+        }
+    }
+}
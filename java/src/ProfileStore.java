@@ -0,0 +1,217 @@
+/*
+ * Data access for a user's full profile: their usr row, work history
+ * (WORK_EXPR) and education (EDUCATIONAL_DETAILS).
+ *
+ * The three are read with one UNION ALL query that returns a row per entry,
+ * tagged with the section it belongs to, so a profile is one round trip however
+ * many jobs and degrees it lists. Edits are collected in an Edit and written in
+ * one transaction: the usr columns with a single UPDATE, jobs and degrees as
+ * batched upserts on their primary keys, removals as batched deletes.
+ */
+
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class ProfileStore {
+
+    // first column of FULL_PROFILE_QUERY
+    static final int SECTION_USER = 0;
+    static final int SECTION_WORK = 1;
+    static final int SECTION_EDUCATION = 2;
+
+    // the char columns are cast to text, which drops their padding on the server
+    static final String FULL_PROFILE_QUERY = QueryStats.named("profile.full",
+        "SELECT " + SECTION_USER + ", CAST(userid AS text), email, CAST(name AS text), " +
+        "to_char(dateofbirth, 'YYYY-MM-DD'), NULL FROM usr WHERE userid = ? " +
+        "UNION ALL " +
+        "SELECT " + SECTION_WORK + ", CAST(company AS text), CAST(role AS text), CAST(location AS text), " +
+        "to_char(startDate, 'YYYY-MM-DD'), to_char(endDate, 'YYYY-MM-DD') FROM work_expr WHERE userId = ? " +
+        "UNION ALL " +
+        "SELECT " + SECTION_EDUCATION + ", CAST(instituitionName AS text), CAST(major AS text), CAST(degree AS text), " +
+        "to_char(startdate, 'YYYY-MM-DD'), to_char(enddate, 'YYYY-MM-DD') FROM educational_details WHERE userId = ? " +
+        "ORDER BY 1, 5 DESC, 2");
+
+    static final String UPDATE_USER = QueryStats.named("profile.update",
+        "UPDATE usr SET email = COALESCE(?, email), name = COALESCE(?, name), " +
+        "dateOfBirth = COALESCE(CAST(? AS date), dateOfBirth) WHERE userid = ?");
+    static final String UPSERT_JOB = QueryStats.named("profile.upsertJob",
+        "INSERT INTO work_expr (userId, company, role, location, startDate, endDate) VALUES (?, ?, ?, ?, ?, ?) " +
+        "ON CONFLICT (userId, company, role, startDate) DO UPDATE SET location = EXCLUDED.location, endDate = EXCLUDED.endDate");
+    static final String DELETE_JOB = QueryStats.named("profile.deleteJob",
+        "DELETE FROM work_expr WHERE userId = ? AND company = ? AND role = ? AND startDate = ?");
+    static final String UPSERT_DEGREE = QueryStats.named("profile.upsertDegree",
+        "INSERT INTO educational_details (userId, instituitionName, major, degree, startdate, enddate) VALUES (?, ?, ?, ?, ?, ?) " +
+        "ON CONFLICT (userId, major, degree) DO UPDATE SET instituitionName = EXCLUDED.instituitionName, " +
+        "startdate = EXCLUDED.startdate, enddate = EXCLUDED.enddate");
+    static final String DELETE_DEGREE = QueryStats.named("profile.deleteDegree",
+        "DELETE FROM educational_details WHERE userId = ? AND major = ? AND degree = ?");
+
+    /*
+     * One row of WORK_EXPR. (company, role, startDate) identifies it.
+     **/
+    public static final class Job {
+        public final String company;
+        public final String role;
+        public final String location;
+        public final Date startDate;
+        public final Date endDate;      // null while it is the current job
+
+        public Job(String company, String role, String location, Date startDate, Date endDate) {
+            this.company = company;
+            this.role = role;
+            this.location = location;
+            this.startDate = startDate;
+            this.endDate = endDate;
+        }
+    }
+
+    /*
+     * One row of EDUCATIONAL_DETAILS. (major, degree) identifies it.
+     **/
+    public static final class Degree {
+        public final String institution;
+        public final String major;
+        public final String degree;
+        public final Date startDate;
+        public final Date endDate;
+
+        public Degree(String institution, String major, String degree, Date startDate, Date endDate) {
+            this.institution = institution;
+            this.major = major;
+            this.degree = degree;
+            this.startDate = startDate;
+            this.endDate = endDate;
+        }
+    }
+
+    /*
+     * Everything a profile shows, newest jobs and degrees first. bytes is the
+     * size of the values the query returned, as QueryStats counts it.
+     **/
+    public static final class FullProfile {
+        public final User.Profile profile;
+        public final List<Job> work;
+        public final List<Degree> education;
+        public final long bytes;
+
+        FullProfile(User.Profile profile, List<Job> work, List<Degree> education, long bytes) {
+            this.profile = profile;
+            this.work = work;
+            this.education = education;
+            this.bytes = bytes;
+        }
+    }
+
+    /*
+     * Changes to a profile, written together by save. Null profile fields are
+     * left as they are. Removals are applied before the upserts, so changing
+     * the key of an entry is a removal plus a save.
+     **/
+    public static final class Edit {
+        public String email;
+        public String name;
+        public Date dateOfBirth;
+        public final List<Job> saveJobs = new ArrayList<Job>();
+        public final List<Job> removeJobs = new ArrayList<Job>();
+        public final List<Degree> saveDegrees = new ArrayList<Degree>();
+        public final List<Degree> removeDegrees = new ArrayList<Degree>();
+
+        boolean changesUser() {
+            return email != null || name != null || dateOfBirth != null;
+        }
+
+        public int size() {
+            return (changesUser() ? 1 : 0) + saveJobs.size() + removeJobs.size() + saveDegrees.size() + removeDegrees.size();
+        }
+    }
+
+    private final ProfNetwork esql;
+
+    public ProfileStore(ProfNetwork esql) {
+        this.esql = esql;
+    }
+
+    /*
+     * Reads the whole profile in one query. Throws if there is no such user.
+     **/
+    public FullProfile load(String userId) throws SQLException {
+        List<List<String>> rows = esql.executeQueryAndReturnResult(FULL_PROFILE_QUERY, userId, userId, userId);
+        User.Profile profile = null;
+        List<Job> work = new ArrayList<Job>();
+        List<Degree> education = new ArrayList<Degree>();
+        long bytes = 0;
+        for(List<String> row : rows) {
+            for(String value : row) bytes += QueryStats.sizeOf(value);
+            int section = Integer.parseInt(row.get(0).trim());
+            if(section == SECTION_USER)
+                profile = new User.Profile(row.get(1), row.get(2), row.get(3), row.get(4));
+            else if(section == SECTION_WORK)
+                work.add(new Job(row.get(1), row.get(2), row.get(3), date(row.get(4)), date(row.get(5))));
+            else
+                education.add(new Degree(row.get(1), row.get(2), row.get(3), date(row.get(4)), date(row.get(5))));
+        }
+        if(profile == null) throw new SQLException("No such user: " + userId);
+        return new FullProfile(profile, Collections.unmodifiableList(work), Collections.unmodifiableList(education), bytes);
+    }
+
+    private static Date date(String s) {
+        return s == null ? null : Date.valueOf(s);
+    }
+
+    /*
+     * Writes the edit in one transaction, each kind of change as one batch.
+     * Returns the number of rows changed.
+     **/
+    public int save(final String userId, final Edit edit) throws SQLException {
+        if(edit.size() == 0) return 0;
+        return esql.inTransaction(new Transaction<Integer>() {
+            public Integer run(ConnectionPool.PooledConnection conn) throws SQLException {
+                int rows = 0;
+                if(edit.changesUser())
+                    rows += batch(conn, UPDATE_USER, Collections.singletonList(
+                        new Object[] { edit.email, edit.name, edit.dateOfBirth, userId }));
+
+                List<Object[]> params = new ArrayList<Object[]>();
+                for(Job j : edit.removeJobs) params.add(new Object[] { userId, j.company, j.role, j.startDate });
+                rows += batch(conn, DELETE_JOB, params);
+
+                params = new ArrayList<Object[]>();
+                for(Degree d : edit.removeDegrees) params.add(new Object[] { userId, d.major, d.degree });
+                rows += batch(conn, DELETE_DEGREE, params);
+
+                params = new ArrayList<Object[]>();
+                for(Job j : edit.saveJobs) params.add(new Object[] { userId, j.company, j.role, j.location, j.startDate, j.endDate });
+                rows += batch(conn, UPSERT_JOB, params);
+
+                params = new ArrayList<Object[]>();
+                for(Degree d : edit.saveDegrees) params.add(new Object[] { userId, d.institution, d.major, d.degree, d.startDate, d.endDate });
+                rows += batch(conn, UPSERT_DEGREE, params);
+                return rows;
+            }
+        });
+    }
+
+    private static int batch(ConnectionPool.PooledConnection conn, String sql, List<Object[]> params) throws SQLException {
+        if(params.isEmpty()) return 0;
+        long start = System.nanoTime();
+        try {
+            PreparedStatement stmt = conn.prepare(sql);
+            for(Object[] p : params) {
+                ProfNetwork.bind(stmt, p);
+                stmt.addBatch();
+            }
+            int rows = 0;
+            for(int n : stmt.executeBatch()) rows += Math.max(n, 0);
+            QueryStats.record(sql, start, rows, 0);
+            return rows;
+        }
+        catch(SQLException e) {
+            QueryStats.failed(sql, start, e);
+            throw e;
+        }
+    }
+}
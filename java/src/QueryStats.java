@@ -0,0 +1,153 @@
+/*
+ * Per-statement instrumentation for the JDBC layer.
+ *
+ * SQL constants are registered once under a logical operation name with
+ * named("friends.load", "SELECT ..."); the EXISTS / COUNT wrappers that
+ * ProfNetwork.exists and count build around a query share its name. Every
+ * execution then records, under that name, its latency in a LatencyHistogram,
+ * the rows returned or changed, the bytes materialized into Java strings and
+ * whether it failed. Statements that were never registered are counted as
+ * "other".
+ *
+ * Executions slower than -Dprofnetwork.slowquery.ms (default 100) go to the
+ * slow query log with their statement text, but never their parameters, which
+ * can be passwords. The log is stderr, or the file named by
+ * -Dprofnetwork.slowquery.log.
+ */
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class QueryStats {
+
+    public static final String UNNAMED = "other";
+    public static final long DEFAULT_SLOW_QUERY_MILLIS = 100;
+
+    static final long SLOW_QUERY_NANOS = Long.getLong("profnetwork.slowquery.ms", DEFAULT_SLOW_QUERY_MILLIS) * 1000000L;
+
+    /*
+     * Everything recorded for one operation name.
+     **/
+    public static final class Stat {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong rows = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong slow = new AtomicLong();
+    }
+
+    // SQL text -> operation name
+    private static final ConcurrentMap<String, String> NAMES = new ConcurrentHashMap<String, String>();
+    private static final ConcurrentMap<String, Stat> STATS = new ConcurrentHashMap<String, Stat>();
+
+    private static PrintWriter slowLog;
+
+    private QueryStats() {
+    }
+
+    /*
+     * Registers sql under the operation name and returns it, so it can be used
+     * right in the constant's initializer.
+     **/
+    public static String named(String name, String sql) {
+        NAMES.put(sql, name);
+        NAMES.put(ProfNetwork.existsQuery(sql), name);
+        NAMES.put(ProfNetwork.countQuery(sql), name);
+        return sql;
+    }
+
+    public static String nameOf(String sql) {
+        String name = NAMES.get(sql);
+        return name == null ? UNNAMED : name;
+    }
+
+    /*
+     * Records a successful execution of sql that started at startNanos.
+     **/
+    public static void record(String sql, long startNanos, long rows, long bytes) {
+        long nanos = System.nanoTime() - startNanos;
+        String name = nameOf(sql);
+        Stat stat = stat(name);
+        stat.latency.record(nanos);
+        stat.rows.addAndGet(rows);
+        stat.bytes.addAndGet(bytes);
+        if(nanos >= SLOW_QUERY_NANOS) logSlow(stat, name, sql, nanos, rows, null);
+    }
+
+    public static void failed(String sql, long startNanos, SQLException e) {
+        long nanos = System.nanoTime() - startNanos;
+        String name = nameOf(sql);
+        Stat stat = stat(name);
+        stat.latency.record(nanos);
+        stat.errors.incrementAndGet();
+        if(nanos >= SLOW_QUERY_NANOS) logSlow(stat, name, sql, nanos, 0, e);
+    }
+
+    /*
+     * Bytes a string takes as character data, for the materialized bytes counter.
+     **/
+    public static long sizeOf(String s) {
+        return s == null ? 0 : 2L * s.length();
+    }
+
+    static Stat stat(String name) {
+        Stat stat = STATS.get(name);
+        if(stat == null) {
+            Stat created = new Stat();
+            stat = STATS.putIfAbsent(name, created);
+            if(stat == null) stat = created;
+        }
+        return stat;
+    }
+
+    /*
+     * All stats by operation name, sorted.
+     **/
+    static Map<String, Stat> snapshot() {
+        return new TreeMap<String, Stat>(STATS);
+    }
+
+    private static synchronized void logSlow(Stat stat, String name, String sql, long nanos, long rows, SQLException e) {
+        stat.slow.incrementAndGet();
+        if(slowLog == null) slowLog = openSlowLog();
+        slowLog.println(String.format("%s slow query %s %.3fms rows=%d%s: %s",
+            new Timestamp(System.currentTimeMillis()), name, nanos / 1e6, rows,
+            e == null ? "" : " error=" + e.getMessage(), sql.replaceAll("\\s+", " ").trim()));
+        slowLog.flush();
+    }
+
+    private static PrintWriter openSlowLog() {
+        String path = System.getProperty("profnetwork.slowquery.log");
+        if(path != null) {
+            try {
+                return new PrintWriter(new OutputStreamWriter(new FileOutputStream(path, true), "UTF-8"));
+            }
+            catch(IOException e) {
+                SessionIO.consoleErr().println("Cannot open slow query log " + path + ": " + e.getMessage());
+            }
+        }
+        return new PrintWriter(SessionIO.consoleErr());
+    }
+
+    public static String summary() {
+        StringBuilder sb = new StringBuilder(String.format("%-22s %9s %9s %9s %9s %9s %11s %12s %6s %6s%n",
+            "query", "count", "mean ms", "p50 ms", "p99 ms", "max ms", "rows", "bytes", "errors", "slow"));
+        for(Map.Entry<String, Stat> e : snapshot().entrySet()) {
+            Stat s = e.getValue();
+            LatencyHistogram h = s.latency;
+            sb.append(String.format("%-22s %9d %9.3f %9.3f %9.3f %9.3f %11d %12d %6d %6d%n", e.getKey(), h.getCount(),
+                h.getMeanMillis(), h.quantileMillis(0.50), h.quantileMillis(0.99), h.getMaxNanos() / 1e6,
+                s.rows.get(), s.bytes.get(), s.errors.get(), s.slow.get()));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Benchmarks the free connection check for users with few and with very many
+ * connections. Three ways of getting a user's connection count are timed:
+ *
+ *  - client scan: the original, every matching connection_usr row is sent
+ *    to the client and counted there,
+ *  - server count: SELECT COUNT(*) over the same rows,
+ *  - counter: ConnectionQuota, one primary key lookup in connection_count.
+ *
+ * One synthetic "bench_" hub user is created per size, connected to that many
+ * other users. Needs create_triggers.sql applied so the counters are kept; the
+ * counter is checked against COUNT(*) for every hub before timing.
+ *
+ * Usage: java QuotaBenchmark <dbname> <port> <user> [--sizes 5,500,50000]
+ *            [--lookups N]
+ */
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Random;
+
+public class QuotaBenchmark {
+
+    static final String DEFAULT_SIZES = "5,500,50000";
+
+    static volatile long sink;
+
+    /*
+     * Creates hub i (bench_<i>) connected to the next sizes[i] users after the hubs.
+     **/
+    static void load(ProfNetwork esql, int[] sizes) throws SQLException {
+        int max = 0;
+        for(int size : sizes) max = Math.max(max, size);
+        long start = System.nanoTime();
+        ReachabilityBenchmark.load(esql, sizes.length + max, 0, new Random(0));
+        ConnectionPool pool = esql.getWritePool();
+        ConnectionPool.PooledConnection conn = pool.borrow();
+        try {
+            conn.connection.setAutoCommit(false);
+            PreparedStatement insertEdge = conn.prepare("INSERT INTO connection_usr (userid, connectionid, status) VALUES (?, ?, 'friend')");
+            for(int hub = 0; hub < sizes.length; hub++) {
+                for(int j = 0; j < sizes[hub]; j++) {
+                    ProfNetwork.bind(insertEdge, ReachabilityBenchmark.PREFIX + hub, ReachabilityBenchmark.PREFIX + (sizes.length + j));
+                    insertEdge.addBatch();
+                    if(j % 1000 == 999) insertEdge.executeBatch();
+                }
+                insertEdge.executeBatch();
+            }
+            conn.connection.commit();
+        }
+        finally {
+            pool.release(conn);
+        }
+        System.out.println(String.format("hubs connected in %.1fs (counters maintained by trigger)", (System.nanoTime() - start) / 1e9));
+    }
+
+    static void report(String name, int size, LoadDriver.Recorder r) {
+        System.out.println(String.format("%-14s %8d %8d %10.4f %10.4f %10.4f", name, size, r.count,
+            r.percentileMillis(0.50), r.percentileMillis(0.99), r.percentileMillis(0.999)));
+    }
+
+    static void run(ProfNetwork esql, int[] sizes, int lookups) throws SQLException {
+        for(int hub = 0; hub < sizes.length; hub++) {
+            String user = ReachabilityBenchmark.PREFIX + hub;
+            long counted = esql.count(ProfNetwork.CONNECTIONS_QUERY, user, user);
+            long counter = ConnectionQuota.of(esql, user).used;
+            if(counted != counter)
+                throw new SQLException("connection_count for " + user + " is " + counter + ", COUNT(*) says " + counted);
+
+            // the client scan moves every row, so it gets fewer rounds on big hubs
+            int scans = (int) Math.max(10, Math.min(lookups, lookups * 500L / Math.max(1, sizes[hub])));
+            LoadDriver.Recorder scan = new LoadDriver.Recorder();
+            LoadDriver.Recorder count = new LoadDriver.Recorder();
+            LoadDriver.Recorder quota = new LoadDriver.Recorder();
+            for(int i = 0; i < scans; i++) {
+                long t = System.nanoTime();
+                sink += esql.executeQuery(ProfNetwork.CONNECTIONS_QUERY, user, user);
+                scan.record(System.nanoTime() - t);
+            }
+            for(int i = 0; i < lookups; i++) {
+                long t = System.nanoTime();
+                sink += esql.count(ProfNetwork.CONNECTIONS_QUERY, user, user);
+                count.record(System.nanoTime() - t);
+
+                t = System.nanoTime();
+                sink += ConnectionQuota.of(esql, user).remaining();
+                quota.record(System.nanoTime() - t);
+            }
+            report("client scan", sizes[hub], scan);
+            report("server count", sizes[hub], count);
+            report("counter", sizes[hub], quota);
+        }
+    }
+
+    public static void main(String[] args) {
+        if(args.length < 3) {
+            System.err.println("Usage: java [-classpath <classpath>] " + QuotaBenchmark.class.getName() +
+                " <dbname> <port> <user> [--sizes " + DEFAULT_SIZES + "] [--lookups N]");
+            return;
+        }
+        String sizeList = DEFAULT_SIZES;
+        int lookups = 2000;
+        for(int i = 3; i + 1 < args.length; i += 2) {
+            if(args[i].equals("--sizes")) sizeList = args[i + 1];
+            else if(args[i].equals("--lookups")) lookups = Integer.parseInt(args[i + 1]);
+        }
+        String[] parts = sizeList.split(",");
+        int[] sizes = new int[parts.length];
+        for(int i = 0; i < parts.length; i++) sizes[i] = Integer.parseInt(parts[i].trim());
+
+        ProfNetwork esql = null;
+        try {
+            Class.forName("org.postgresql.Driver").newInstance();
+            esql = new ProfNetwork(args[0], args[1], args[2], "");
+            try {
+                ReachabilityBenchmark.clear(esql);
+                load(esql, sizes);
+                System.out.println(String.format("%-14s %8s %8s %10s %10s %10s", "method", "conns", "count", "p50 ms", "p99 ms", "p999 ms"));
+                run(esql, sizes, lookups);
+            }
+            finally {
+                ReachabilityBenchmark.clear(esql);
+            }
+        }
+        catch(Exception e) {
+            System.err.println(e.getMessage());
+        }
+        finally {
+            if(esql != null) esql.cleanup();
+        }
+    }
+}
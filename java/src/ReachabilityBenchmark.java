@@ -0,0 +1,153 @@
+/*
+ * Benchmark mode for the depth-3 connection check used by SendRequest. Loads a
+ * synthetic random friend graph into usr/connection_usr (all ids prefixed with
+ * "bench_"), times the single-query recursive check against the original
+ * client-side loop, then removes the synthetic rows again.
+ *
+ * Usage: java ReachabilityBenchmark <dbname> <port> <user> [edges ...]
+ * Run it against a scratch database, the default sizes are 10k, 100k and 1M edges.
+ */
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class ReachabilityBenchmark {
+
+    static final String PREFIX = "bench_";
+
+    // average number of friends per synthetic user
+    static final int AVG_DEGREE = 10;
+
+    // how many random (from, to) pairs each method is timed on
+    static final int RECURSIVE_SAMPLES = 50;
+    static final int ITERATIVE_SAMPLES = 5;
+
+    public static void main(String[] args) {
+        if(args.length < 3) {
+            System.err.println("Usage: java [-classpath <classpath>] " +
+                ReachabilityBenchmark.class.getName() + " <dbname> <port> <user> [edges ...]");
+            return;
+        }
+
+        long[] sizes = { 10000, 100000, 1000000 };
+        if(args.length > 3) {
+            sizes = new long[args.length - 3];
+            for(int i = 3; i < args.length; i++) sizes[i - 3] = Long.parseLong(args[i]);
+        }
+
+        ProfNetwork esql = null;
+        try {
+            Class.forName("org.postgresql.Driver").newInstance();
+            esql = new ProfNetwork(args[0], args[1], args[2], "");
+            for(long edges : sizes) {
+                int users = (int) Math.max(AVG_DEGREE + 1, edges * 2 / AVG_DEGREE);
+                System.out.println("=== " + edges + " edges, " + users + " users ===");
+                try {
+                    load(esql, users, edges, new Random(edges));
+                    run(esql, users, new Random(~edges));
+                }
+                finally {
+                    clear(esql);
+                }
+            }
+        }
+        catch(Exception e) {
+            System.err.println(e.getMessage());
+        }
+        finally {
+            if(esql != null) esql.cleanup();
+        }
+    }
+
+    static void run(ProfNetwork esql, int users, Random rnd) throws SQLException {
+        String friendsQuery = "SELECT * FROM connection_usr WHERE (userid = ? OR connectionid = ?) AND status = 'friend'";
+
+        long[] recursive = new long[RECURSIVE_SAMPLES];
+        int found = 0;
+        for(int i = 0; i < recursive.length; i++) {
+            String from = PREFIX + rnd.nextInt(users);
+            String to = PREFIX + rnd.nextInt(users);
+            long start = System.nanoTime();
+            if(ProfNetwork.isWithinConnectionDepth(esql, from, to, ProfNetwork.MAX_CONNECTION_DEPTH)) found++;
+            recursive[i] = System.nanoTime() - start;
+        }
+        report("recursive CTE", recursive, found);
+
+        long[] iterative = new long[ITERATIVE_SAMPLES];
+        found = 0;
+        for(int i = 0; i < iterative.length; i++) {
+            String from = PREFIX + rnd.nextInt(users);
+            String to = PREFIX + rnd.nextInt(users);
+            long start = System.nanoTime();
+            List<List<String>> friends = esql.executeQueryAndReturnResult(friendsQuery, from, from);
+            if(ProfNetwork.isWithinConnectionDepthIterative(esql, from, friends, to)) found++;
+            iterative[i] = System.nanoTime() - start;
+        }
+        report("client-side loop", iterative, found);
+    }
+
+    static void report(String label, long[] nanos, int found) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        long total = 0;
+        for(long n : sorted) total += n;
+        System.out.println(String.format("%-18s samples=%d reachable=%d avg=%.2fms p50=%.2fms max=%.2fms",
+            label, sorted.length, found,
+            total / (sorted.length * 1e6), sorted[sorted.length / 2] / 1e6, sorted[sorted.length - 1] / 1e6));
+    }
+
+    /*
+     * Inserts the synthetic users and a random set of distinct undirected friend
+     * edges, using batched inserts in one transaction.
+     **/
+    static void load(ProfNetwork esql, int users, long edges, Random rnd) throws SQLException {
+        long start = System.nanoTime();
+        ConnectionPool pool = esql.getWritePool();
+        ConnectionPool.PooledConnection conn = pool.borrow();
+        try {
+            conn.connection.setAutoCommit(false);
+
+            PreparedStatement insertUser = conn.prepare("INSERT INTO usr (userid, password, email) VALUES (?, ?, ?)");
+            for(int i = 0; i < users; i++) {
+                ProfNetwork.bind(insertUser, PREFIX + i, "bench", PREFIX + i + "@example.com");
+                insertUser.addBatch();
+                if(i % 1000 == 999) insertUser.executeBatch();
+            }
+            insertUser.executeBatch();
+
+            PreparedStatement insertEdge = conn.prepare("INSERT INTO connection_usr (userid, connectionid, status) VALUES (?, ?, 'friend')");
+            Set<Long> seen = new HashSet<Long>();
+            long added = 0;
+            while(added < edges) {
+                int a = rnd.nextInt(users);
+                int b = rnd.nextInt(users);
+                if(a == b) continue;
+                long key = (long) Math.min(a, b) * users + Math.max(a, b);
+                if(!seen.add(key)) continue;
+                ProfNetwork.bind(insertEdge, PREFIX + a, PREFIX + b);
+                insertEdge.addBatch();
+                if(++added % 1000 == 0) insertEdge.executeBatch();
+            }
+            insertEdge.executeBatch();
+            conn.connection.commit();
+        }
+        finally {
+            pool.release(conn);
+        }
+        System.out.println(String.format("loaded in %.1fs", (System.nanoTime() - start) / 1e9));
+    }
+
+    static void clear(ProfNetwork esql) throws SQLException {
+        // escape the underscore so only our own rows match
+        String pattern = PREFIX.replace("_", "\\_") + "%";
+        esql.executeUpdate("DELETE FROM connection_usr WHERE userid LIKE ? OR connectionid LIKE ?", pattern, pattern);
+        // message keys don't cascade
+        esql.executeUpdate("DELETE FROM message WHERE senderid LIKE ? OR receiverid LIKE ?", pattern, pattern);
+        esql.executeUpdate("DELETE FROM usr WHERE userid LIKE ?", pattern);
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Materialized "who is within MAX_CONNECTION_DEPTH hops of me" sets on top of
+ * FriendGraph, so the depth check in SendRequest is one binary search instead
+ * of a graph search per request.
+ *
+ * A user's set is built on first use (one bounded BFS) and kept as a sorted
+ * int array with the hop distance of every member. Sets are held in an LRU
+ * map under a memory budget, so users who stop sending requests are evicted.
+ * Sets too large for the budget (hubs) are not cached; those checks fall back
+ * to the bidirectional search in FriendGraph.
+ *
+ * The index listens to the graph. A new friendship only shortens distances,
+ * so affected sets are patched in place: a bounded BFS from the far end of the
+ * new edge is merged in. A removed friendship can lengthen distances, which is
+ * not worth patching; every set that contains both ends is dropped and rebuilt
+ * the next time it is needed.
+ *
+ * All state is guarded by the graph's lock.
+ */
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class ReachabilityIndex implements FriendGraph.Listener {
+
+    public static final long DEFAULT_BUDGET_BYTES = 64L * 1024 * 1024;
+
+    // a set may use at most this fraction of the budget before it is left uncached
+    static final int MAX_ENTRY_FRACTION = 16;
+
+    // rough per-set overhead of the map entry and the two array headers
+    static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    private static final int UNREACHED = Integer.MAX_VALUE;
+
+    /*
+     * The users within maxHops of one user.
+     **/
+    static final class Entry {
+        int[] ids;
+        byte[] hops;
+
+        Entry(int[] ids, byte[] hops) {
+            this.ids = ids;
+            this.hops = hops;
+        }
+
+        long bytes() {
+            return ENTRY_OVERHEAD_BYTES + ids.length * 5L;
+        }
+
+        int hopsTo(int id) {
+            int i = Arrays.binarySearch(ids, id);
+            return i < 0 ? UNREACHED : hops[i];
+        }
+    }
+
+    private final FriendGraph graph;
+    private final int maxHops;
+    private final long budgetBytes;
+
+    // access ordered: iteration starts at the least recently used user
+    private final LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<Integer, Entry>(1024, 0.75f, true);
+    private long bytes = 0;
+
+    // metrics
+    private long hits = 0;
+    private long misses = 0;
+    private long uncached = 0;
+    private long evictions = 0;
+    private long patched = 0;
+    private long invalidated = 0;
+
+    public ReachabilityIndex(FriendGraph graph, int maxHops, long budgetBytes) {
+        if(maxHops < 1 || maxHops > Byte.MAX_VALUE) throw new IllegalArgumentException("maxHops out of range: " + maxHops);
+        this.graph = graph;
+        this.maxHops = maxHops;
+        this.budgetBytes = budgetBytes;
+        graph.setListener(this);
+    }
+
+    /*
+     * Returns true if target is within maxHops friend edges of source.
+     **/
+    public boolean isWithinHops(String source, String target) {
+        synchronized(graph) {
+            int s = graph.lookup(source);
+            int t = graph.lookup(target);
+            if(s < 0 || t < 0) return false;
+            if(s == t) return true;
+
+            Entry entry = entries.get(s);
+            if(entry != null) {
+                hits++;
+                return entry.hopsTo(t) != UNREACHED;
+            }
+            misses++;
+            FriendGraph.Reach reach = graph.reachable(s, maxHops);
+            entry = new Entry(reach.ids, reach.hops);
+            if(entry.bytes() > budgetBytes / MAX_ENTRY_FRACTION) uncached++;
+            else put(s, entry);
+            return entry.hopsTo(t) != UNREACHED;
+        }
+    }
+
+    /*
+     * Drops every cached set, e.g. after the graph was rebuilt.
+     **/
+    public void clear() {
+        synchronized(graph) {
+            entries.clear();
+            bytes = 0;
+        }
+    }
+
+    public void friendshipAdded(int u, int v) {
+        for(Map.Entry<Integer, Entry> e : entries.entrySet()) {
+            int x = e.getKey().intValue();
+            Entry entry = e.getValue();
+            int du = x == u ? 0 : entry.hopsTo(u);
+            int dv = x == v ? 0 : entry.hopsTo(v);
+            // paths through the new edge start at the nearer end
+            if(du != UNREACHED && du + 1 < dv && du + 1 <= maxHops) extend(x, entry, v, du + 1);
+            else if(dv != UNREACHED && dv + 1 < du && dv + 1 <= maxHops) extend(x, entry, u, dv + 1);
+        }
+        enforceBudget();
+    }
+
+    public void friendshipRemoved(int u, int v) {
+        // a path that used the edge has both ends within maxHops of its start
+        Iterator<Map.Entry<Integer, Entry>> it = entries.entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<Integer, Entry> e = it.next();
+            int x = e.getKey().intValue();
+            Entry entry = e.getValue();
+            boolean hasU = x == u || entry.hopsTo(u) != UNREACHED;
+            boolean hasV = x == v || entry.hopsTo(v) != UNREACHED;
+            if(hasU && hasV) {
+                bytes -= entry.bytes();
+                it.remove();
+                invalidated++;
+            }
+        }
+    }
+
+    /*
+     * Merges into x's set everyone within (maxHops - base) of start, at base + their distance.
+     **/
+    private void extend(int x, Entry entry, int start, int base) {
+        FriendGraph.Reach reach = graph.reachable(start, maxHops - base);
+        // the start itself is at distance 0 from start
+        int[] addIds = new int[reach.ids.length + 1];
+        byte[] addHops = new byte[addIds.length];
+        int pos = Arrays.binarySearch(reach.ids, start);
+        int ins = -pos - 1;
+        System.arraycopy(reach.ids, 0, addIds, 0, ins);
+        System.arraycopy(reach.hops, 0, addHops, 0, ins);
+        addIds[ins] = start;
+        addHops[ins] = 0;
+        System.arraycopy(reach.ids, ins, addIds, ins + 1, reach.ids.length - ins);
+        System.arraycopy(reach.hops, ins, addHops, ins + 1, reach.hops.length - ins);
+
+        // sorted merge keeping the shorter distance, x itself is never a member
+        int[] ids = new int[entry.ids.length + addIds.length];
+        byte[] hops = new byte[ids.length];
+        int i = 0, j = 0, n = 0;
+        while(i < entry.ids.length || j < addIds.length) {
+            int a = i < entry.ids.length ? entry.ids[i] : Integer.MAX_VALUE;
+            int b = j < addIds.length ? addIds[j] : Integer.MAX_VALUE;
+            if(a < b) {
+                ids[n] = a;
+                hops[n++] = entry.hops[i++];
+            }
+            else {
+                int d = base + addHops[j++];
+                if(a == b) {
+                    d = Math.min(d, entry.hops[i++]);
+                }
+                if(b == x) continue;
+                ids[n] = b;
+                hops[n++] = (byte) d;
+            }
+        }
+        bytes -= entry.bytes();
+        entry.ids = Arrays.copyOf(ids, n);
+        entry.hops = Arrays.copyOf(hops, n);
+        bytes += entry.bytes();
+        patched++;
+    }
+
+    private void put(int user, Entry entry) {
+        Entry old = entries.put(user, entry);
+        if(old != null) bytes -= old.bytes();
+        bytes += entry.bytes();
+        enforceBudget();
+    }
+
+    private void enforceBudget() {
+        Iterator<Entry> it = entries.values().iterator();
+        while(bytes > budgetBytes && it.hasNext()) {
+            bytes -= it.next().bytes();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    // metrics
+
+    public String statsSummary() {
+        synchronized(graph) {
+            long probes = hits + misses;
+            return String.format("reachability index: users=%d bytes=%d budget=%d hits=%d misses=%d hitRate=%.1f%% uncached=%d evicted=%d patched=%d invalidated=%d",
+                    entries.size(), bytes, budgetBytes, hits, misses, probes == 0 ? 0.0 : hits * 100.0 / probes,
+                    uncached, evictions, patched, invalidated);
+        }
+    }
+}
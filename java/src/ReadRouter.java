@@ -0,0 +1,474 @@
+/*
+ * Decides which database a statement runs on: the primary, or a streaming
+ * replica for reads when one is configured.
+ *
+ * A statement is a read if it is a SELECT (or WITH / EXPLAIN of one) that does
+ * not lock rows, touch a sequence, take an advisory lock or change data. Reads
+ * go to the replica unless
+ *
+ *   - the calling thread wrote within STICKY_MILLIS, or has a write-behind
+ *     write still in flight, so a session always sees its own changes,
+ *   - the replica is more than MAX_LAG_MILLIS behind, or its lag has not been
+ *     measured for STALE_PROBE_MILLIS,
+ *   - the replica can't be reached; it is used again after the next good probe,
+ *   - the SQL was registered with primary(), for loads that must not miss a write.
+ *
+ * Everything else goes to the primary. Each route keeps its own latency
+ * histogram, and each reason a read fell back to the primary its own counter.
+ *
+ * A daemon thread measures the replay lag every PROBE_MILLIS on a connection of
+ * its own. The lag is 0 while the standby has replayed all the WAL it received,
+ * so an idle primary doesn't make the replica look behind. A probe that saw a
+ * lag of at most MAX_LAG at time t means every commit before t - MAX_LAG is
+ * visible, and its result is used until t + STALE_PROBE, so a write older than
+ * MAX_LAG + STALE_PROBE (STICKY_MILLIS) can be read back from the replica. The
+ * lag is measured on the replica's clock against the primary's commit times,
+ * so the two clocks have to agree.
+ *
+ * Turn it on with -Dprofnetwork.replica.port=<port>, plus
+ * -Dprofnetwork.replica.db=<name> if the replica's database is named differently.
+ * A server that is not in recovery is never used as the replica.
+ *
+ * Usage: java ReadRouter <dbname> <port> <user> [--writes N]
+ *   checks read-your-writes and measures how long other sessions take to see a write
+ */
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+public class ReadRouter {
+
+    static final String REPLICA_PORT = System.getProperty("profnetwork.replica.port");
+    static final String REPLICA_DB = System.getProperty("profnetwork.replica.db");
+    static final int REPLICA_POOL_SIZE = Integer.getInteger("profnetwork.replica.pool.size", ProfNetwork.DEFAULT_POOL_SIZE);
+    static final long MAX_LAG_MILLIS = Long.getLong("profnetwork.replica.maxlag", 1000);
+    static final long PROBE_MILLIS = Long.getLong("profnetwork.replica.probe", 200);
+    // a probe is trusted for two intervals, so one slow probe doesn't send every read to the primary
+    static final long STALE_PROBE_MILLIS = 2 * PROBE_MILLIS;
+    static final long STICKY_MILLIS = MAX_LAG_MILLIS + STALE_PROBE_MILLIS;
+
+    static final String LAG_QUERY =
+        "SELECT pg_is_in_recovery(), CASE WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 " +
+        "ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000, 0) END";
+
+    static final Pattern READ = Pattern.compile("^\\s*(SELECT|WITH|EXPLAIN)\\b", Pattern.CASE_INSENSITIVE);
+    static final Pattern WRITE = Pattern.compile(
+        "\\b(INSERT|UPDATE|DELETE|MERGE|INTO|FOR\\s+(NO\\s+KEY\\s+|KEY\\s+)?SHARE|nextval|setval|currval|lastval|pg_advisory\\w*|pg_notify)\\b",
+        Pattern.CASE_INSENSITIVE);
+
+    // classification is cached per SQL text; past this many texts the rest are classified every time
+    static final int MAX_CLASSIFIED = 4096;
+    private static final ConcurrentHashMap<String, Boolean> CLASSIFIED = new ConcurrentHashMap<String, Boolean>();
+    private static final Set<String> PINNED = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /*
+     * Registers a read that always runs on the primary, returning the SQL so it
+     * can wrap a constant like QueryStats.named does.
+     **/
+    static String primary(String sql) {
+        PINNED.add(sql);
+        return sql;
+    }
+
+    static boolean isRead(String sql) {
+        Boolean read = CLASSIFIED.get(sql);
+        if(read == null) {
+            read = READ.matcher(sql).find() && !WRITE.matcher(sql).find();
+            if(CLASSIFIED.size() < MAX_CLASSIFIED) CLASSIFIED.put(sql, read);
+        }
+        return read;
+    }
+
+    /*
+     * Where a statement runs, with the latency of everything that ran there.
+     **/
+    public static final class Route {
+        final String name;
+        final ConnectionPool pool;
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        Route(String name, ConnectionPool pool) {
+            this.name = name;
+            this.pool = pool;
+        }
+
+        public String getName() { return name; }
+        public LatencyHistogram getLatency() { return latency; }
+    }
+
+    // when the thread's reads may go back to the replica, and its last write-behind write
+    private static final class Sticky {
+        long untilNanos;
+        Future<?> pending;
+    }
+
+    private final ThreadLocal<Sticky> sticky = new ThreadLocal<Sticky>() {
+        protected Sticky initialValue() {
+            return new Sticky();
+        }
+    };
+
+    private final Route primaryWrite;
+    private final Route primaryRead;
+    private final Route replicaRead;    // null without a replica
+    private final String replicaUrl;
+    private final Thread prober;
+    private volatile boolean closed = false;
+
+    // last probe: whether the replica answered as a standby, its lag and when
+    private volatile boolean healthy = false;
+    private volatile long lagMillis = -1;
+    private volatile long probedAt = 0;
+
+    // metrics
+    private final AtomicLong stickyReads = new AtomicLong();
+    private final AtomicLong laggingReads = new AtomicLong();
+    private final AtomicLong downReads = new AtomicLong();
+    private final AtomicLong pinnedReads = new AtomicLong();
+    private final AtomicLong replicaErrors = new AtomicLong();
+    private final AtomicLong probes = new AtomicLong();
+    private final AtomicLong probeFailures = new AtomicLong();
+
+    /*
+     * A router over the primary pool alone: every statement goes to the primary,
+     * but reads and writes are still timed apart.
+     **/
+    public ReadRouter(ConnectionPool primary) {
+        this(primary, null, null);
+    }
+
+    public ReadRouter(ConnectionPool primary, ConnectionPool replica, String replicaUrl) {
+        this.primaryWrite = new Route("primary.write", primary);
+        this.primaryRead = new Route("primary.read", primary);
+        this.replicaRead = replica == null ? null : new Route("replica.read", replica);
+        this.replicaUrl = replicaUrl;
+        if(replica == null) {
+            this.prober = null;
+            return;
+        }
+        this.prober = new Thread(new Runnable() {
+            public void run() {
+                probe();
+            }
+        }, "profnetwork-replica-probe");
+        prober.setDaemon(true);
+        prober.start();
+    }
+
+    /*
+     * The router ProfNetwork uses: with a replica if profnetwork.replica.port
+     * is set, otherwise over the primary alone.
+     **/
+    static ReadRouter fromSystemProperties(ConnectionPool primary, String dbname, String user, String passwd) {
+        if(REPLICA_PORT == null) return new ReadRouter(primary);
+        String url = "jdbc:postgresql://localhost:" + REPLICA_PORT + "/" + (REPLICA_DB != null ? REPLICA_DB : dbname);
+        return new ReadRouter(primary, new ConnectionPool(url, user, passwd, REPLICA_POOL_SIZE), url);
+    }
+
+    public boolean hasReplica() {
+        return replicaRead != null;
+    }
+
+    /*
+     * The route for a statement. A write also makes the calling thread's reads
+     * stick to the primary.
+     **/
+    public Route route(String sql) {
+        if(!isRead(sql)) {
+            stick();
+            return primaryWrite;
+        }
+        if(replicaRead == null) return primaryRead;
+        if(PINNED.contains(sql)) {
+            pinnedReads.incrementAndGet();
+            return primaryRead;
+        }
+        long now = System.nanoTime();
+        if(isSticky(now)) {
+            stickyReads.incrementAndGet();
+            return primaryRead;
+        }
+        if(!healthy) {
+            downReads.incrementAndGet();
+            return primaryRead;
+        }
+        if(now - probedAt > STALE_PROBE_MILLIS * 1000000L || lagMillis > MAX_LAG_MILLIS) {
+            laggingReads.incrementAndGet();
+            return primaryRead;
+        }
+        return replicaRead;
+    }
+
+    // for transactions and anything else that borrows a primary connection itself
+    public Route write() {
+        stick();
+        return primaryWrite;
+    }
+
+    /*
+     * Borrows a connection for the route. If the replica can't hand one out
+     * the read falls back to the primary.
+     **/
+    public ConnectionPool.PooledConnection borrow(Route route) throws SQLException {
+        if(route != replicaRead) return route.pool.borrow();
+        try {
+            return route.pool.borrow();
+        }
+        catch(SQLException e) {
+            markDown(e);
+            downReads.incrementAndGet();
+            return primaryRead.pool.borrow();
+        }
+    }
+
+    /*
+     * Returns the connection to its pool and times the statement under the
+     * route it actually ran on.
+     **/
+    public void release(Route route, ConnectionPool.PooledConnection conn, long startNanos) {
+        ConnectionPool pool = conn.getPool();
+        pool.release(conn);
+        Route ran = pool == route.pool ? route : primaryRead;
+        ran.latency.record(System.nanoTime() - startNanos);
+    }
+
+    /*
+     * Called when a statement failed. A connection error on the replica stops
+     * reads going there until the next good probe.
+     **/
+    public void failed(ConnectionPool.PooledConnection conn, SQLException e) {
+        if(replicaRead == null || conn.getPool() != replicaRead.pool) return;
+        replicaErrors.incrementAndGet();
+        String state = e.getSQLState();
+        if(state != null && state.startsWith("08")) markDown(e);
+    }
+
+    private void markDown(SQLException e) {
+        if(healthy) SessionIO.consoleErr().println("Replica " + replicaUrl + " unavailable, reading from the primary: " + e.getMessage());
+        healthy = false;
+    }
+
+    /*
+     * Sends the calling thread's reads to the primary for STICKY_MILLIS, as
+     * after a write. Also for a thread about to read back a change it was told
+     * about, which the replica may not have yet.
+     **/
+    public void stick() {
+        if(replicaRead == null) return;
+        sticky.get().untilNanos = System.nanoTime() + STICKY_MILLIS * 1000000L;
+    }
+
+    /*
+     * Like stick, for a write-behind write: reads stay on the primary until it
+     * is written and STICKY_MILLIS after that.
+     **/
+    public void stick(Future<?> write) {
+        if(replicaRead == null) return;
+        Sticky s = sticky.get();
+        s.untilNanos = System.nanoTime() + STICKY_MILLIS * 1000000L;
+        s.pending = write;
+    }
+
+    private boolean isSticky(long now) {
+        Sticky s = sticky.get();
+        if(s.pending != null && s.pending.isDone()) {
+            // written at some point before now, which is as late as it can have been
+            s.untilNanos = Math.max(s.untilNanos, now + STICKY_MILLIS * 1000000L);
+            s.pending = null;
+        }
+        return s.pending != null || now < s.untilNanos;
+    }
+
+    private void probe() {
+        Connection conn = null;
+        boolean warned = false;
+        while(!closed) {
+            try {
+                if(conn == null) conn = replicaRead.pool.openUnpooled();
+                Statement stmt = conn.createStatement();
+                try {
+                    ResultSet rs = stmt.executeQuery(LAG_QUERY);
+                    rs.next();
+                    boolean standby = rs.getBoolean(1);
+                    lagMillis = Math.round(rs.getDouble(2));
+                    probedAt = System.nanoTime();
+                    if(!standby && !warned) {
+                        SessionIO.consoleErr().println("Replica " + replicaUrl + " is not a standby, reading from the primary");
+                        warned = true;
+                    }
+                    healthy = standby;
+                    rs.close();
+                }
+                finally {
+                    stmt.close();
+                }
+                probes.incrementAndGet();
+            }
+            catch(SQLException e) {
+                probeFailures.incrementAndGet();
+                markDown(e);
+                if(conn != null) closeQuietly(conn);
+                conn = null;
+            }
+            try {
+                Thread.sleep(PROBE_MILLIS);
+            }
+            catch(InterruptedException e) {
+                break;
+            }
+        }
+        if(conn != null) closeQuietly(conn);
+    }
+
+    private static void closeQuietly(Connection conn) {
+        try {
+            conn.close();
+        }
+        catch(SQLException e) {
+            // ignored.
+        }
+    }
+
+    public void close() {
+        closed = true;
+        if(prober == null) return;
+        prober.interrupt();
+        try {
+            prober.join(PROBE_MILLIS * 2);
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        replicaRead.pool.close();
+    }
+
+    public void setServerPrepare(boolean on) {
+        for(Route route : routes())
+            route.pool.setServerPrepare(on);
+    }
+
+    // metrics
+
+    public List<Route> routes() {
+        return replicaRead == null ? Arrays.asList(primaryWrite, primaryRead)
+                                   : Arrays.asList(primaryWrite, primaryRead, replicaRead);
+    }
+
+    public boolean isReplicaHealthy() { return healthy; }
+    public long getLagMillis() { return lagMillis; }
+    public long getStickyReads() { return stickyReads.get(); }
+    public long getLaggingReads() { return laggingReads.get(); }
+    public long getDownReads() { return downReads.get(); }
+    public long getPinnedReads() { return pinnedReads.get(); }
+    public long getReplicaErrors() { return replicaErrors.get(); }
+
+    public String statsSummary() {
+        StringBuilder sb = new StringBuilder("routes:");
+        for(Route r : routes()) {
+            sb.append(String.format(" %s=%d p50=%.2fms p99=%.2fms", r.name, r.latency.getCount(),
+                                    r.latency.quantileMillis(0.50), r.latency.quantileMillis(0.99)));
+        }
+        if(replicaRead != null) {
+            sb.append(String.format(" | replica %s %s lag=%dms probes=%d probeFailures=%d errors=%d" +
+                                    " primary reads: sticky=%d lagging=%d down=%d pinned=%d",
+                replicaUrl, healthy ? "up" : "down", lagMillis, probes.get(), probeFailures.get(), replicaErrors.get(),
+                stickyReads.get(), laggingReads.get(), downReads.get(), pinnedReads.get()));
+        }
+        return sb.toString();
+    }
+
+    /*
+     * Writes a bench user's email over and over. After each write this thread
+     * reads it back (it must see it: read-your-writes), and another thread,
+     * which never writes, polls until it sees it too, which times how stale a
+     * replica read can be.
+     **/
+    static void check(final ProfNetwork esql, int writes) throws SQLException, InterruptedException {
+        final String user = ReachabilityBenchmark.PREFIX + "router";
+        esql.executeUpdate("INSERT INTO usr (userid, password, email) VALUES (?, 'bench', '0')", user);
+        LoadDriver.Recorder visible = new LoadDriver.Recorder();
+        int violations = 0;
+        int timeouts = 0;
+        for(int i = 1; i <= writes; i++) {
+            final String email = String.valueOf(i);
+            esql.executeUpdate("UPDATE usr SET email = ? WHERE userid = ?", email, user);
+            long written = System.nanoTime();
+            if(!email.equals(esql.executeQueryAndReturnResult(User.PROFILE_QUERY, user).get(0).get(1))) violations++;
+
+            final long[] seenAt = { 0 };
+            Thread reader = new Thread(new Runnable() {
+                public void run() {
+                    long deadline = System.nanoTime() + 10 * STICKY_MILLIS * 1000000L;
+                    try {
+                        while(System.nanoTime() < deadline) {
+                            if(email.equals(esql.executeQueryAndReturnResult(User.PROFILE_QUERY, user).get(0).get(1))) {
+                                seenAt[0] = System.nanoTime();
+                                return;
+                            }
+                            Thread.sleep(1);
+                        }
+                    }
+                    catch(Exception e) {
+                        SessionIO.consoleErr().println("Reader failed: " + e.getMessage());
+                    }
+                }
+            });
+            reader.start();
+            reader.join();
+            if(seenAt[0] == 0) timeouts++;
+            else visible.record(seenAt[0] - written);
+        }
+        System.out.println(String.format("%d writes: read-your-writes violations=%d, seen by another session p50 %.3fms p99 %.3fms max %.3fms, not seen within %dms: %d",
+            writes, violations, visible.percentileMillis(0.50), visible.percentileMillis(0.99), visible.percentileMillis(1.0),
+            10 * STICKY_MILLIS, timeouts));
+        System.out.println(esql.getRouter().statsSummary());
+        if(violations > 0) throw new SQLException(violations + " reads did not see the session's own write");
+    }
+
+    public static void main(String[] args) {
+        if(args.length < 3) {
+            System.err.println("Usage: java [-classpath <classpath>] -Dprofnetwork.replica.port=<port> " + ReadRouter.class.getName() +
+                " <dbname> <port> <user> [--writes N]");
+            return;
+        }
+        int writes = 200;
+        for(int i = 3; i + 1 < args.length; i += 2) {
+            if(args[i].equals("--writes")) writes = Integer.parseInt(args[i + 1]);
+        }
+
+        ProfNetwork esql = null;
+        boolean ok = false;
+        try {
+            Class.forName("org.postgresql.Driver").newInstance();
+            esql = new ProfNetwork(args[0], args[1], args[2], "");
+            if(!esql.getRouter().hasReplica()) throw new SQLException("No replica configured, set -Dprofnetwork.replica.port");
+            try {
+                ReachabilityBenchmark.clear(esql);
+                // let the first probe come in
+                Thread.sleep(2 * PROBE_MILLIS);
+                check(esql, writes);
+                ok = true;
+            }
+            finally {
+                ReachabilityBenchmark.clear(esql);
+            }
+        }
+        catch(Exception e) {
+            System.err.println(e.getMessage());
+        }
+        finally {
+            if(esql != null) esql.cleanup();
+        }
+        System.exit(ok ? 0 : 1);
+    }
+}
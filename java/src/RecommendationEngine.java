@@ -0,0 +1,362 @@
+/*
+ * "People you may know": ranks the users a member is not connected to yet by
+ * how many friends they have in common.
+ *
+ * The batch job takes a snapshot of the friend graph and scores every user in
+ * parallel on a fork-join pool. For a user it counts, for everyone two hops
+ * away, the friends they share (the number of 2-hop paths) and keeps the top K.
+ * If there are fewer than K of those it fills up with users three hops away,
+ * ranked by the number of 3-hop paths. Each leaf task writes the rankings of
+ * its users into RECOMMENDATION as one transaction, so memory stays bounded by
+ * the graph snapshot plus one small scratch area per worker, whatever the
+ * size of the graph, and readers always see a user's whole old or new list.
+ *
+ * topK answers the same question online for one user with a single query,
+ * for users the batch job has not covered yet (2-hop candidates only).
+ *
+ * Usage: java RecommendationEngine <dbname> <port> <user> [--k K] [--threads N]
+ */
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class RecommendationEngine {
+
+    public static final int DEFAULT_K = 10;
+
+    // users per fork-join leaf, which is also one write transaction
+    static final int LEAF_USERS = 256;
+
+    // upper bound on the edges looked at for one user, so hubs cannot stall a worker
+    static final int MAX_EDGES_PER_USER = 1000000;
+
+    static final String DELETE_USER = QueryStats.named("recommend.delete", "DELETE FROM recommendation WHERE userId = ?");
+    static final String INSERT_RECOMMENDATION = QueryStats.named("recommend.insert",
+        "INSERT INTO recommendation (userId, ranking, candidateId, mutualFriends, hops, computedAt) VALUES (?, ?, ?, ?, ?, ?)");
+
+    // precomputed list, minus anyone the user has connected with since it was computed
+    static final String STORED_QUERY = QueryStats.named("recommend.stored",
+        "SELECT r.candidateId, r.mutualFriends, r.hops FROM recommendation r " +
+        "WHERE r.userId = ? " +
+        "AND NOT EXISTS (SELECT 1 FROM connection_usr c WHERE c.userid = r.userId AND c.connectionid = r.candidateId) " +
+        "AND NOT EXISTS (SELECT 1 FROM connection_usr c WHERE c.connectionid = r.userId AND c.userid = r.candidateId) " +
+        "ORDER BY r.ranking LIMIT ?");
+
+    // friends of friends counted once per shared friend, both edge directions; the user
+    // is compared as varchar(30), which uses the indexes before and after SurrogateKeys
+    // contracts the char(30) columns
+    static final String ONLINE_QUERY = QueryStats.named("recommend.online",
+        "WITH friends AS ( " +
+        "    SELECT connectionid AS id FROM connection_usr WHERE userid = CAST(? AS varchar(30)) AND status = 'friend' " +
+        "  UNION " +
+        "    SELECT userid FROM connection_usr WHERE connectionid = CAST(? AS varchar(30)) AND status = 'friend' " +
+        "), fof AS ( " +
+        "    SELECT f.id AS via, c.connectionid AS id FROM friends f JOIN connection_usr c ON c.userid = f.id WHERE c.status = 'friend' " +
+        "  UNION " +
+        "    SELECT f.id, c.userid FROM friends f JOIN connection_usr c ON c.connectionid = f.id WHERE c.status = 'friend' " +
+        ") " +
+        "SELECT fof.id, count(*) AS mutual FROM fof " +
+        "WHERE fof.id <> CAST(? AS varchar(30)) " +
+        "AND NOT EXISTS (SELECT 1 FROM connection_usr x WHERE x.userid = CAST(? AS varchar(30)) AND x.connectionid = fof.id) " +
+        "AND NOT EXISTS (SELECT 1 FROM connection_usr x WHERE x.connectionid = CAST(? AS varchar(30)) AND x.userid = fof.id) " +
+        "GROUP BY fof.id ORDER BY mutual DESC, fof.id LIMIT ?");
+
+    /*
+     * One suggested user.
+     **/
+    public static final class Recommendation {
+        public final String userId;
+        public final int mutualFriends;
+        public final int hops;
+
+        Recommendation(String userId, int mutualFriends, int hops) {
+            this.userId = userId;
+            this.mutualFriends = mutualFriends;
+            this.hops = hops;
+        }
+    }
+
+    // marks in Scratch.mark
+    private static final byte SELF = 1;
+    private static final byte FRIEND = 2;
+    private static final byte TWO_HOPS = 3;
+    private static final byte THREE_HOPS = 4;
+
+    /*
+     * Per worker state, sized to the graph and reset after every user by
+     * clearing only what was touched.
+     **/
+    static final class Scratch {
+        final byte[] mark;
+        final int[] score;
+        int[] touched = new int[1024];
+        int touchedCount = 0;
+
+        // the running top K, best first
+        final int[] topIds;
+        final int[] topScores;
+        final byte[] topHops;
+        int topCount = 0;
+
+        Scratch(int users, int k) {
+            mark = new byte[users];
+            score = new int[users];
+            topIds = new int[k];
+            topScores = new int[k];
+            topHops = new byte[k];
+        }
+
+        void touch(int v, byte m) {
+            if(touchedCount == touched.length) touched = Arrays.copyOf(touched, touchedCount * 2);
+            touched[touchedCount++] = v;
+            mark[v] = m;
+        }
+
+        /*
+         * Keeps (id, s) if it belongs in the top K: closer users first, then higher
+         * score, then lower id.
+         **/
+        void offer(int id, int s, byte hops) {
+            int k = topIds.length;
+            if(topCount == k && !better(id, s, hops, k - 1)) return;
+            int i = topCount < k ? topCount++ : k - 1;
+            while(i > 0 && better(id, s, hops, i - 1)) {
+                topIds[i] = topIds[i - 1];
+                topScores[i] = topScores[i - 1];
+                topHops[i] = topHops[i - 1];
+                i--;
+            }
+            topIds[i] = id;
+            topScores[i] = s;
+            topHops[i] = hops;
+        }
+
+        private boolean better(int id, int s, byte hops, int slot) {
+            if(hops != topHops[slot]) return hops < topHops[slot];
+            return s > topScores[slot] || (s == topScores[slot] && id < topIds[slot]);
+        }
+
+        void reset() {
+            for(int i = 0; i < touchedCount; i++) {
+                mark[touched[i]] = 0;
+                score[touched[i]] = 0;
+            }
+            touchedCount = 0;
+            topCount = 0;
+        }
+    }
+
+    /*
+     * Fills scratch.top* with the recommendations for user u.
+     **/
+    static void rank(FriendGraph.Snapshot g, int u, Scratch scratch) {
+        int[] off = g.offsets;
+        int[] nb = g.neighbours;
+        scratch.touch(u, SELF);
+        for(int i = off[u]; i < off[u + 1]; i++)
+            if(scratch.mark[nb[i]] == 0) scratch.touch(nb[i], FRIEND);
+        int friendsEnd = scratch.touchedCount;
+
+        // every friend-of-friend gets one point per friend in common
+        long work = 0;
+        for(int t = 1; t < friendsEnd && work < MAX_EDGES_PER_USER; t++) {
+            int f = scratch.touched[t];
+            work += off[f + 1] - off[f];
+            for(int i = off[f]; i < off[f + 1]; i++) {
+                int v = nb[i];
+                if(scratch.mark[v] == 0) scratch.touch(v, TWO_HOPS);
+                if(scratch.mark[v] == TWO_HOPS) scratch.score[v]++;
+            }
+        }
+        int twoHopsEnd = scratch.touchedCount;
+        for(int t = friendsEnd; t < twoHopsEnd; t++) {
+            int v = scratch.touched[t];
+            scratch.offer(v, scratch.score[v], (byte) 2);
+        }
+
+        if(scratch.topCount < scratch.topIds.length) {
+            // not enough: users three hops away, scored by the number of paths to them
+            for(int t = friendsEnd; t < twoHopsEnd && work < MAX_EDGES_PER_USER; t++) {
+                int v = scratch.touched[t];
+                work += off[v + 1] - off[v];
+                for(int i = off[v]; i < off[v + 1]; i++) {
+                    int w = nb[i];
+                    if(scratch.mark[w] == 0) scratch.touch(w, THREE_HOPS);
+                    if(scratch.mark[w] == THREE_HOPS) scratch.score[w] += scratch.score[v];
+                }
+            }
+            for(int t = twoHopsEnd; t < scratch.touchedCount; t++) {
+                int w = scratch.touched[t];
+                scratch.offer(w, scratch.score[w], (byte) 3);
+            }
+        }
+    }
+
+    private final ProfNetwork esql;
+    private final int k;
+
+    // job metrics
+    private final AtomicLong usersRanked = new AtomicLong();
+    private final AtomicLong rowsWritten = new AtomicLong();
+
+    public RecommendationEngine(ProfNetwork esql, int k) {
+        this.esql = esql;
+        this.k = k;
+    }
+
+    /*
+     * Recomputes the recommendations of every user in the graph with the given parallelism.
+     **/
+    public void computeAll(final FriendGraph.Snapshot graph, int threads) throws SQLException {
+        final AtomicReference<SQLException> failure = new AtomicReference<SQLException>();
+        final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+            protected Scratch initialValue() {
+                return new Scratch(graph.size, k);
+            }
+        };
+        final Timestamp now = new Timestamp(System.currentTimeMillis());
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(new Task(graph, 0, graph.size, scratch, now, failure));
+        }
+        finally {
+            pool.shutdown();
+        }
+        if(failure.get() != null) throw failure.get();
+    }
+
+    /*
+     * Splits the user range in halves down to LEAF_USERS, then ranks and writes one leaf.
+     **/
+    final class Task extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final FriendGraph.Snapshot graph;
+        final int lo, hi;
+        final ThreadLocal<Scratch> scratch;
+        final Timestamp now;
+        final AtomicReference<SQLException> failure;
+
+        Task(FriendGraph.Snapshot graph, int lo, int hi, ThreadLocal<Scratch> scratch,
+             Timestamp now, AtomicReference<SQLException> failure) {
+            this.graph = graph;
+            this.lo = lo;
+            this.hi = hi;
+            this.scratch = scratch;
+            this.now = now;
+            this.failure = failure;
+        }
+
+        protected void compute() {
+            if(failure.get() != null) return;
+            if(hi - lo > LEAF_USERS) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new Task(graph, lo, mid, scratch, now, failure),
+                          new Task(graph, mid, hi, scratch, now, failure));
+                return;
+            }
+            try {
+                writeLeaf(graph, lo, hi, scratch.get(), now);
+            }
+            catch(SQLException e) {
+                failure.compareAndSet(null, e);
+            }
+        }
+    }
+
+    private void writeLeaf(FriendGraph.Snapshot graph, int lo, int hi, Scratch scratch, Timestamp now) throws SQLException {
+        ConnectionPool pool = esql.getWritePool();
+        ConnectionPool.PooledConnection conn = pool.borrow();
+        try {
+            conn.connection.setAutoCommit(false);
+            PreparedStatement delete = conn.prepare(DELETE_USER);
+            PreparedStatement insert = conn.prepare(INSERT_RECOMMENDATION);
+            int rows = 0;
+            for(int u = lo; u < hi; u++) {
+                ProfNetwork.bind(delete, graph.names[u]);
+                delete.addBatch();
+                rank(graph, u, scratch);
+                for(int r = 0; r < scratch.topCount; r++) {
+                    int hops = scratch.topHops[r];
+                    ProfNetwork.bind(insert, graph.names[u], r + 1, graph.names[scratch.topIds[r]],
+                                     hops == 2 ? scratch.topScores[r] : 0, hops, now);
+                    insert.addBatch();
+                    rows++;
+                }
+                scratch.reset();
+            }
+            delete.executeBatch();
+            insert.executeBatch();
+            conn.connection.commit();
+            usersRanked.addAndGet(hi - lo);
+            rowsWritten.addAndGet(rows);
+        }
+        finally {
+            pool.release(conn);
+        }
+    }
+
+    /*
+     * The stored recommendations of one user, computed online if the batch job
+     * has not produced any for them yet.
+     **/
+    public List<Recommendation> topK(String userId, int limit) throws SQLException {
+        List<Recommendation> result = new ArrayList<Recommendation>(limit);
+        for(List<String> row : esql.executeQueryAndReturnResult(STORED_QUERY, userId, limit))
+            result.add(new Recommendation(row.get(0).trim(), Integer.parseInt(row.get(1).trim()), Integer.parseInt(row.get(2).trim())));
+        if(!result.isEmpty()) return result;
+        for(List<String> row : esql.executeQueryAndReturnResult(ONLINE_QUERY, userId, userId, userId, userId, userId, limit))
+            result.add(new Recommendation(row.get(0).trim(), Integer.parseInt(row.get(1).trim()), 2));
+        return result;
+    }
+
+    public long getUsersRanked() { return usersRanked.get(); }
+    public long getRowsWritten() { return rowsWritten.get(); }
+
+    public static void main(String[] args) {
+        if(args.length < 3) {
+            System.err.println("Usage: java [-classpath <classpath>] " + RecommendationEngine.class.getName() +
+                " <dbname> <port> <user> [--k K] [--threads N]");
+            return;
+        }
+        int k = DEFAULT_K;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for(int i = 3; i + 1 < args.length; i += 2) {
+            if(args[i].equals("--k")) k = Integer.parseInt(args[i + 1]);
+            else if(args[i].equals("--threads")) threads = Integer.parseInt(args[i + 1]);
+        }
+
+        ProfNetwork esql = null;
+        try {
+            Class.forName("org.postgresql.Driver").newInstance();
+            esql = new ProfNetwork(args[0], args[1], args[2], "", threads);
+            long start = System.nanoTime();
+            FriendGraph.Snapshot graph = FriendGraph.load(esql).snapshot();
+            long loaded = System.nanoTime();
+            System.out.println(String.format("Loaded %d users, %d friend edges in %.1fs",
+                graph.size, graph.neighbours.length / 2, (loaded - start) / 1e9));
+
+            RecommendationEngine engine = new RecommendationEngine(esql, k);
+            engine.computeAll(graph, threads);
+            double seconds = (System.nanoTime() - loaded) / 1e9;
+            System.out.println(String.format("Ranked %d users (%d rows) on %d threads in %.1fs, %.0f users/sec",
+                engine.getUsersRanked(), engine.getRowsWritten(), threads, seconds, engine.getUsersRanked() / seconds));
+            System.out.println(esql.getPool().statsSummary());
+        }
+        catch(Exception e) {
+            System.err.println(e.getMessage());
+        }
+        finally {
+            if(esql != null) esql.cleanup();
+        }
+    }
+}
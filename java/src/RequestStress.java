@@ -0,0 +1,233 @@
+/*
+ * Concurrency stress test for the friend request workflow (FriendRequests).
+ *
+ * A small set of synthetic "bench_" users with no connections is hammered by N
+ * threads that send requests between random pairs and accept or reject random
+ * pending requests, so the same users and the same requests are fought over
+ * all the time. Every outcome is counted on the client side, and afterwards the
+ * tables are checked against the invariants:
+ *
+ *  - no user sent more requests on free connections than FREE_CONNECTIONS
+ *    plus the slots rejections gave back to them,
+ *  - no two users have requests going both ways,
+ *  - every request was accepted or rejected at most once: the rows left and
+ *    the friendships made match what the clients were told.
+ *
+ * This runs for each thread count given, so the throughput column shows how it
+ * scales with cores. Exits with status 1 if any invariant was broken.
+ *
+ * Usage: java RequestStress <dbname> <port> <user> [--users N] [--threads 1,2,4,8]
+ *            [--seconds S] [--send-percent P]
+ */
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RequestStress {
+
+    static final String CROSSING_QUERY =
+        "SELECT count(*) FROM connection_usr a JOIN connection_usr b ON a.userid = b.connectionid AND a.connectionid = b.userid " +
+        "WHERE a.userid LIKE ?";
+    static final String ROWS_QUERY = "SELECT count(*) FROM connection_usr WHERE userid LIKE ?";
+    static final String FRIEND_ROWS_QUERY = "SELECT count(*) FROM connection_usr WHERE userid LIKE ? AND status = 'friend'";
+
+    private final ProfNetwork esql;
+    private final FriendRequests requests;
+    private final int users;
+    private final int sendPercent;
+
+    // what the clients were told
+    private final AtomicIntegerArray sentFree;
+    private final AtomicIntegerArray freed;
+    private final AtomicLong inserted = new AtomicLong();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong operations = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    RequestStress(ProfNetwork esql, int users, int sendPercent) {
+        this.esql = esql;
+        this.requests = new FriendRequests(esql);
+        this.users = users;
+        this.sendPercent = sendPercent;
+        this.sentFree = new AtomicIntegerArray(users);
+        this.freed = new AtomicIntegerArray(users);
+    }
+
+    static String id(int user) {
+        return ReachabilityBenchmark.PREFIX + user;
+    }
+
+    void send(Random rnd) throws SQLException {
+        int from = rnd.nextInt(users);
+        int to = rnd.nextInt(users);
+        if(from == to) return;
+        ProfNetworkService.SendResult result = requests.send(id(from), id(to), null);
+        if(result == null) {
+            boolean near = ProfNetwork.isWithinConnectionDepth(esql, id(from), id(to), ProfNetwork.MAX_CONNECTION_DEPTH);
+            result = requests.send(id(from), id(to), near);
+        }
+        switch(result) {
+            case SENT: sentFree.incrementAndGet(from); inserted.incrementAndGet(); break;
+            case SENT_WITHIN_DEPTH: inserted.incrementAndGet(); break;
+            case ACCEPTED: accepted.incrementAndGet(); break;
+            default: break;
+        }
+    }
+
+    void answer(Random rnd) throws SQLException {
+        int me = rnd.nextInt(users);
+        List<List<String>> pending = esql.executeQueryAndReturnResult(User.pendingRequestsQuery(esql), esql.userKey(id(me)));
+        if(pending.isEmpty()) return;
+        String fromId = pending.get(rnd.nextInt(pending.size())).get(0);
+        if(rnd.nextBoolean()) {
+            if(requests.accept(fromId, id(me))) accepted.incrementAndGet();
+        }
+        else if(requests.reject(fromId, id(me))) {
+            rejected.incrementAndGet();
+            freed.incrementAndGet(me);
+            freed.incrementAndGet(Integer.parseInt(fromId.substring(ReachabilityBenchmark.PREFIX.length())));
+        }
+    }
+
+    /*
+     * Runs the given number of threads until the deadline, returns the send latencies.
+     **/
+    LoadDriver.Recorder run(int threads, int seconds) throws InterruptedException {
+        final long deadline = System.nanoTime() + seconds * 1000000000L;
+        final LoadDriver.Recorder merged = new LoadDriver.Recorder();
+        final CountDownLatch done = new CountDownLatch(threads);
+        for(int i = 0; i < threads; i++) {
+            final long seed = i;
+            new Thread(new Runnable() {
+                public void run() {
+                    Random rnd = new Random(seed);
+                    LoadDriver.Recorder mine = new LoadDriver.Recorder();
+                    try {
+                        while(System.nanoTime() < deadline) {
+                            long start = System.nanoTime();
+                            try {
+                                if(rnd.nextInt(100) < sendPercent) {
+                                    send(rnd);
+                                    mine.record(System.nanoTime() - start);
+                                }
+                                else {
+                                    answer(rnd);
+                                }
+                                operations.incrementAndGet();
+                            }
+                            catch(SQLException e) {
+                                if(errors.incrementAndGet() == 1) System.err.println("first error: " + e.getMessage());
+                            }
+                        }
+                        synchronized(merged) {
+                            merged.addAll(mine);
+                        }
+                    }
+                    finally {
+                        done.countDown();
+                    }
+                }
+            }, "stress-" + i).start();
+        }
+        done.await();
+        return merged;
+    }
+
+    /*
+     * Checks the tables against what the clients were told, prints each
+     * violation and returns how many there were.
+     **/
+    int verify() throws SQLException {
+        String pattern = ReachabilityBenchmark.PREFIX.replace("_", "\\_") + "%";
+        int violations = 0;
+        for(int u = 0; u < users; u++) {
+            if(sentFree.get(u) > ProfNetworkService.FREE_CONNECTIONS + freed.get(u)) {
+                System.out.println("  " + id(u) + " sent " + sentFree.get(u) + " requests on free connections, " +
+                    freed.get(u) + " freed by rejections");
+                violations++;
+            }
+        }
+        long crossing = esql.queryForLong(CROSSING_QUERY, pattern);
+        if(crossing > 0) {
+            System.out.println("  " + crossing + " pairs have requests both ways");
+            violations++;
+        }
+        long rows = esql.queryForLong(ROWS_QUERY, pattern);
+        if(rows != inserted.get() - rejected.get()) {
+            System.out.println("  " + rows + " connection rows, expected " + (inserted.get() - rejected.get()));
+            violations++;
+        }
+        long friends = esql.queryForLong(FRIEND_ROWS_QUERY, pattern);
+        if(friends != accepted.get()) {
+            System.out.println("  " + friends + " friendships, expected " + accepted.get());
+            violations++;
+        }
+        return violations;
+    }
+
+    public static void main(String[] args) {
+        if(args.length < 3) {
+            System.err.println("Usage: java [-classpath <classpath>] " + RequestStress.class.getName() +
+                " <dbname> <port> <user> [--users N] [--threads 1,2,4,8] [--seconds S] [--send-percent P]");
+            return;
+        }
+        int users = 50, seconds = 10, sendPercent = 60;
+        int cores = Runtime.getRuntime().availableProcessors();
+        String threadList = "1,2,4," + Math.max(8, cores) + "," + Math.max(16, 2 * cores);
+        for(int i = 3; i + 1 < args.length; i += 2) {
+            if(args[i].equals("--users")) users = Integer.parseInt(args[i + 1]);
+            else if(args[i].equals("--threads")) threadList = args[i + 1];
+            else if(args[i].equals("--seconds")) seconds = Integer.parseInt(args[i + 1]);
+            else if(args[i].equals("--send-percent")) sendPercent = Integer.parseInt(args[i + 1]);
+        }
+        String[] counts = threadList.split(",");
+        int maxThreads = 1;
+        for(String c : counts) maxThreads = Math.max(maxThreads, Integer.parseInt(c.trim()));
+
+        ProfNetwork esql = null;
+        int violations = 0;
+        try {
+            Class.forName("org.postgresql.Driver").newInstance();
+            // one connection per thread, so the pool is not what limits the scaling
+            esql = new ProfNetwork(args[0], args[1], args[2], "", maxThreads);
+            System.out.println(String.format("%d users, %d%% sends, %ds per run", users, sendPercent, seconds));
+            System.out.println(String.format("%8s %10s %10s %12s %12s %8s %8s %10s", "threads", "ops", "ops/sec",
+                "send p50 ms", "send p99 ms", "retries", "errors", "violations"));
+            for(String c : counts) {
+                int threads = Integer.parseInt(c.trim());
+                ReachabilityBenchmark.clear(esql);
+                ReachabilityBenchmark.load(esql, users, 0, new Random(users));
+                RequestStress stress = new RequestStress(esql, users, sendPercent);
+                long retriesBefore = esql.getTransactionRetryCount();
+                LoadDriver.Recorder sends = stress.run(threads, seconds);
+                int broken = stress.verify();
+                violations += broken;
+                System.out.println(String.format("%8d %10d %10.1f %12.3f %12.3f %8d %8d %10d", threads,
+                    stress.operations.get(), (double) stress.operations.get() / seconds,
+                    sends.percentileMillis(0.50), sends.percentileMillis(0.99),
+                    esql.getTransactionRetryCount() - retriesBefore, stress.errors.get(), broken));
+            }
+        }
+        catch(Exception e) {
+            System.err.println(e.getMessage());
+            violations++;
+        }
+        finally {
+            if(esql != null) {
+                try {
+                    ReachabilityBenchmark.clear(esql);
+                }
+                catch(SQLException e) {
+                    // ignored.
+                }
+                esql.cleanup();
+            }
+        }
+        if(violations > 0) System.exit(1);
+    }
+}
@@ -0,0 +1,16 @@
+/*
+ * Callback used by ProfNetwork.executeQueryStreaming. It is handed the result
+ * set positioned on each row in turn, so rows can be consumed as they arrive
+ * instead of being copied into a List<List<String>> first.
+ */
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+public interface RowHandler {
+
+    /*
+     * Called once per row. Return false to stop reading the result early.
+     **/
+    boolean row(ResultSet rs) throws SQLException;
+}
@@ -0,0 +1,260 @@
+/*
+ * Size-bounded, thread-safe segmented LRU cache.
+ *
+ * Keys are spread over independently locked stripes so sessions working on
+ * different users do not contend. Each stripe is a segmented LRU: new entries
+ * start in the probation segment and are promoted to the protected segment
+ * (80% of the stripe) on their second hit, so a burst of one-off lookups only
+ * churns probation and cannot flush the users that are read all the time.
+ *
+ * Capacity is in bytes, as estimated by the Weigher for each entry. Entries
+ * also expire after a TTL, which bounds how stale data written by other
+ * processes can get. A load that raced with an invalidation of its stripe is
+ * returned to the caller but not cached, so an invalidation is never undone by
+ * a slow reader putting the old value back.
+ */
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SegmentedLruCache<K, V> {
+
+    static final int DEFAULT_STRIPES = 16;
+
+    // share of each stripe for entries that have been hit at least twice
+    static final double PROTECTED_SHARE = 0.8;
+
+    /*
+     * Loads the value for a key on a miss.
+     **/
+    public interface Loader<K, V> {
+        V load(K key) throws SQLException;
+    }
+
+    /*
+     * Estimated memory of one entry, key and value included, in bytes.
+     **/
+    public interface Weigher<K, V> {
+        long weigh(K key, V value);
+    }
+
+    static final class Entry<V> {
+        final V value;
+        final long weight;
+        final long loadedAt;
+
+        Entry(V value, long weight, long loadedAt) {
+            this.value = value;
+            this.weight = weight;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    final class Stripe {
+        // access ordered, eldest first
+        final LinkedHashMap<K, Entry<V>> probation = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+        final LinkedHashMap<K, Entry<V>> protect = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+        long probationBytes;
+        long protectedBytes;
+        // bumped by every invalidation, see put
+        long epoch;
+
+        synchronized Entry<V> get(K key, long now) {
+            Entry<V> e = protect.get(key);
+            if(e == null) {
+                e = probation.remove(key);
+                if(e == null) return null;
+                probationBytes -= e.weight;
+                if(isExpired(e, now)) return null;
+                // second hit: promote, demoting the protected LRU back to probation if full
+                protect.put(key, e);
+                protectedBytes += e.weight;
+                while(protectedBytes > protectedCapacity && protect.size() > 1) {
+                    Iterator<Map.Entry<K, Entry<V>>> eldest = protect.entrySet().iterator();
+                    Map.Entry<K, Entry<V>> demoted = eldest.next();
+                    eldest.remove();
+                    protectedBytes -= demoted.getValue().weight;
+                    probation.put(demoted.getKey(), demoted.getValue());
+                    probationBytes += demoted.getValue().weight;
+                }
+                evict();
+                return e;
+            }
+            if(isExpired(e, now)) {
+                protect.remove(key);
+                protectedBytes -= e.weight;
+                return null;
+            }
+            return e;
+        }
+
+        synchronized void put(K key, Entry<V> e, long loadEpoch) {
+            if(loadEpoch != epoch) {
+                raced.incrementAndGet();
+                return;
+            }
+            remove(key);
+            probation.put(key, e);
+            probationBytes += e.weight;
+            evict();
+        }
+
+        synchronized boolean remove(K key) {
+            Entry<V> e = probation.remove(key);
+            if(e != null) {
+                probationBytes -= e.weight;
+                return true;
+            }
+            e = protect.remove(key);
+            if(e != null) {
+                protectedBytes -= e.weight;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized void invalidate(K key) {
+            epoch++;
+            remove(key);
+        }
+
+        synchronized long epoch() {
+            return epoch;
+        }
+
+        synchronized void clear() {
+            epoch++;
+            probation.clear();
+            protect.clear();
+            probationBytes = 0;
+            protectedBytes = 0;
+        }
+
+        synchronized long bytes() {
+            return probationBytes + protectedBytes;
+        }
+
+        synchronized int size() {
+            return probation.size() + protect.size();
+        }
+
+        private void evict() {
+            while(probationBytes + protectedBytes > stripeCapacity && !probation.isEmpty()) {
+                Iterator<Map.Entry<K, Entry<V>>> eldest = probation.entrySet().iterator();
+                probationBytes -= eldest.next().getValue().weight;
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private final String name;
+    private final Loader<K, V> loader;
+    private final Weigher<K, V> weigher;
+    private final long ttlMillis;
+    private final boolean enabled;
+    private final List<Stripe> stripes;
+    private final long stripeCapacity;
+    private final long protectedCapacity;
+
+    // metrics
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong raced = new AtomicLong();
+
+    /*
+     * A disabled cache loads on every get, for comparing against the cache.
+     **/
+    public SegmentedLruCache(String name, long capacityBytes, long ttlMillis, boolean enabled,
+                             Loader<K, V> loader, Weigher<K, V> weigher) {
+        this.name = name;
+        this.loader = loader;
+        this.weigher = weigher;
+        this.ttlMillis = ttlMillis;
+        this.enabled = enabled;
+        this.stripes = new ArrayList<Stripe>(DEFAULT_STRIPES);
+        for(int i = 0; i < DEFAULT_STRIPES; i++) stripes.add(new Stripe());
+        this.stripeCapacity = Math.max(1, capacityBytes / DEFAULT_STRIPES);
+        this.protectedCapacity = (long) (stripeCapacity * PROTECTED_SHARE);
+    }
+
+    public V get(K key) throws SQLException {
+        if(!enabled) {
+            misses.incrementAndGet();
+            return loader.load(key);
+        }
+        Stripe stripe = stripeFor(key);
+        long now = System.currentTimeMillis();
+        Entry<V> e = stripe.get(key, now);
+        if(e != null) {
+            hits.incrementAndGet();
+            return e.value;
+        }
+        misses.incrementAndGet();
+        long epoch = stripe.epoch();
+        V value = loader.load(key);
+        stripe.put(key, new Entry<V>(value, weigher.weigh(key, value), now), epoch);
+        return value;
+    }
+
+    public void invalidate(K key) {
+        if(!enabled) return;
+        invalidations.incrementAndGet();
+        stripeFor(key).invalidate(key);
+    }
+
+    public void clear() {
+        for(Stripe s : stripes) s.clear();
+    }
+
+    private Stripe stripeFor(K key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return stripes.get((h & 0x7fffffff) % DEFAULT_STRIPES);
+    }
+
+    private boolean isExpired(Entry<V> e, long now) {
+        return now - e.loadedAt >= ttlMillis;
+    }
+
+    // metrics
+
+    public String getName() { return name; }
+    public boolean isEnabled() { return enabled; }
+    public long getHitCount() { return hits.get(); }
+    public long getMissCount() { return misses.get(); }
+    public long getEvictionCount() { return evictions.get(); }
+    public long getInvalidationCount() { return invalidations.get(); }
+    public long getCapacityBytes() { return stripeCapacity * DEFAULT_STRIPES; }
+
+    public long getSizeBytes() {
+        long bytes = 0;
+        for(Stripe s : stripes) bytes += s.bytes();
+        return bytes;
+    }
+
+    public int getSize() {
+        int size = 0;
+        for(Stripe s : stripes) size += s.size();
+        return size;
+    }
+
+    public double getHitRate() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0.0 : (double) hits.get() / total;
+    }
+
+    public String statsSummary() {
+        if(!enabled) return String.format("%s cache: off, loads=%d", name, misses.get());
+        return String.format("%s cache: entries=%d bytes=%d/%d hits=%d misses=%d hitRate=%.1f%% evictions=%d invalidations=%d racedLoads=%d",
+                name, getSize(), getSizeBytes(), getCapacityBytes(), hits.get(), misses.get(), getHitRate() * 100,
+                evictions.get(), invalidations.get(), raced.get());
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Per-session console I/O for the interactive menus in ProfNetwork.
+ *
+ * The menus read from ProfNetwork.in and print with System.out / System.err.
+ * When several sessions run in one JVM (see SessionServer) each thread is bound
+ * to its own Session: the reader returned by reader() reads that session's
+ * input, and once install() has been called System.out and System.err write
+ * into that session's output buffer. Threads without a session keep using the
+ * real stdin / stdout / stderr, so the single user console mode is unchanged.
+ *
+ * Output is buffered per session and only written to the client when the
+ * session waits for input or ends, so a slow client never blocks other
+ * sessions while they print.
+ */
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+
+public final class SessionIO {
+
+    // the real console, captured before install() replaces System.out / System.err
+    private static final PrintStream STDOUT = System.out;
+    private static final PrintStream STDERR = System.err;
+    private static final BufferedReader STDIN = new BufferedReader(new InputStreamReader(System.in));
+
+    private static final ThreadLocal<Session> CURRENT = new ThreadLocal<Session>();
+    private static boolean installed = false;
+
+    /*
+     * The input and (buffered) output of one client.
+     **/
+    public static final class Session {
+        final BufferedReader in;
+        final OutputStream out;
+        final ByteArrayOutputStream pending = new ByteArrayOutputStream(1024);
+
+        public Session(BufferedReader in, OutputStream out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        /*
+         * Sends everything printed so far to the client.
+         **/
+        public void flush() throws IOException {
+            if(pending.size() == 0) return;
+            pending.writeTo(out);
+            pending.reset();
+            out.flush();
+        }
+    }
+
+    private SessionIO() {
+    }
+
+    /*
+     * The reader behind ProfNetwork.in. readLine throws EOFException at the end
+     * of input instead of returning null, so no prompt loop can spin on a closed
+     * session.
+     **/
+    static BufferedReader reader() {
+        return new SessionReader();
+    }
+
+    /*
+     * Routes System.out and System.err through the bound session of the calling
+     * thread. Only needed when sessions are used.
+     **/
+    public static synchronized void install() {
+        if(installed) return;
+        System.setOut(new PrintStream(new RoutingStream(STDOUT), false));
+        System.setErr(new PrintStream(new RoutingStream(STDERR), false));
+        installed = true;
+    }
+
+    public static void bind(Session session) {
+        CURRENT.set(session);
+    }
+
+    public static void unbind() {
+        CURRENT.remove();
+    }
+
+    /*
+     * The real stdout, for server logging from inside a session thread.
+     **/
+    public static PrintStream console() {
+        return STDOUT;
+    }
+
+    /*
+     * The real stderr.
+     **/
+    public static PrintStream consoleErr() {
+        return STDERR;
+    }
+
+    private static final class SessionReader extends BufferedReader {
+        SessionReader() {
+            super(new StringReader(""));
+        }
+
+        public String readLine() throws IOException {
+            Session session = CURRENT.get();
+            String line;
+            if(session == null) {
+                System.out.flush();
+                line = STDIN.readLine();
+            }
+            else {
+                System.out.flush();
+                try {
+                    session.flush();
+                    line = session.in.readLine();
+                }
+                catch(IOException e) {
+                    // a reset or broken connection ends the session like a clean close
+                    line = null;
+                }
+            }
+            if(line == null) throw new EOFException("end of input");
+            return line;
+        }
+    }
+
+    private static final class RoutingStream extends OutputStream {
+        private final PrintStream fallback;
+
+        RoutingStream(PrintStream fallback) {
+            this.fallback = fallback;
+        }
+
+        public void write(int b) {
+            Session session = CURRENT.get();
+            if(session != null) session.pending.write(b);
+            else fallback.write(b);
+        }
+
+        public void write(byte[] b, int off, int len) {
+            Session session = CURRENT.get();
+            if(session != null) session.pending.write(b, off, len);
+            else fallback.write(b, off, len);
+        }
+
+        public void flush() {
+            // session output goes out when the session reads or ends
+            if(CURRENT.get() == null) fallback.flush();
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * TCP front end for ProfNetwork: every client that connects (telnet, nc, ...)
+ * gets its own run of the LOGIN and MAIN MENU flows, with its own input and
+ * output (see SessionIO) and its own User session state. All sessions share
+ * one ProfNetwork, so database access is bounded by its connection pool and
+ * an idle session holds no database connection, only a thread blocked on its
+ * socket.
+ *
+ * Sessions run on virtual threads when the JVM has them (Java 21+); on older
+ * JVMs they fall back to a cached pool of small-stack platform threads.
+ * Every --stats seconds the server prints active sessions, how many sessions
+ * are queued for a database connection or a background write, and the
+ * per-operation latencies from OperationStats.
+ *
+ * Logins and passwords cross the socket in plain text, so the server only
+ * listens on the loopback interface unless --bind names another address
+ * (0.0.0.0 for all of them).
+ *
+ * Usage: java SessionServer <dbname> <port> <user> [--listen P] [--bind ADDR]
+ *            [--pool N] [--max-sessions N] [--stats S]
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SessionServer {
+
+    public static final int DEFAULT_LISTEN_PORT = 4545;
+    public static final int DEFAULT_MAX_SESSIONS = 20000;
+    public static final int DEFAULT_STATS_SECONDS = 10;
+
+    // stack size of the fallback platform threads; the menus need very little
+    static final long SESSION_STACK_SIZE = 256 * 1024;
+
+    private final ProfNetwork esql;
+    private final int maxSessions;
+    private final ExecutorService sessions;
+    private final boolean virtualThreads;
+
+    // metrics
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public SessionServer(ProfNetwork esql, int maxSessions) {
+        this.esql = esql;
+        this.maxSessions = maxSessions;
+        ExecutorService virtual = newVirtualThreadExecutor();
+        this.virtualThreads = virtual != null;
+        this.sessions = virtual != null ? virtual : newPlatformThreadExecutor();
+        SessionIO.install();
+    }
+
+    /*
+     * Executors.newVirtualThreadPerTaskExecutor(), looked up reflectively so the
+     * server still builds and runs on JVMs without virtual threads. Returns null
+     * if it is not available.
+     **/
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch(Exception e) {
+            return null;
+        }
+    }
+
+    static ExecutorService newPlatformThreadExecutor() {
+        final AtomicLong ids = new AtomicLong();
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(null, r, "session-" + ids.incrementAndGet(), SESSION_STACK_SIZE);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    }
+
+    /*
+     * Accepts clients until the server socket is closed.
+     **/
+    public void serve(ServerSocket server) throws IOException {
+        PrintStream log = SessionIO.console();
+        log.println("Listening on " + server.getInetAddress().getHostAddress() + ":" + server.getLocalPort() + " using " +
+                    (virtualThreads ? "virtual threads" : "platform threads"));
+        while(!server.isClosed()) {
+            final Socket client = server.accept();
+            accepted.incrementAndGet();
+            if(active.incrementAndGet() > maxSessions) {
+                active.decrementAndGet();
+                rejected.incrementAndGet();
+                refuse(client);
+                continue;
+            }
+            sessions.execute(new Runnable() {
+                public void run() {
+                    try {
+                        session(client);
+                    }
+                    finally {
+                        active.decrementAndGet();
+                    }
+                }
+            });
+        }
+    }
+
+    /*
+     * Runs the menus for one client, then closes its connection.
+     **/
+    void session(Socket client) {
+        SessionIO.Session io = null;
+        try {
+            client.setTcpNoDelay(true);
+            io = new SessionIO.Session(
+                new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8")),
+                client.getOutputStream());
+            SessionIO.bind(io);
+            ProfNetwork.Greeting();
+            ProfNetwork.runSession(esql);
+            System.out.println("Bye !");
+        }
+        catch(Exception e) {
+            System.out.println("Session ended: " + e.getMessage());
+        }
+        finally {
+            System.out.flush();
+            try {
+                if(io != null) io.flush();
+            }
+            catch(IOException e) {
+                // client is already gone.
+            }
+            SessionIO.unbind();
+            closeQuietly(client);
+        }
+    }
+
+    private static void refuse(Socket client) {
+        try {
+            client.getOutputStream().write("Server is busy, please try again later.\n".getBytes("UTF-8"));
+        }
+        catch(IOException e) {
+            // ignored.
+        }
+        closeQuietly(client);
+    }
+
+    private static void closeQuietly(Socket client) {
+        try {
+            client.close();
+        }
+        catch(IOException e) {
+            // ignored.
+        }
+    }
+
+    public void shutdown() {
+        sessions.shutdownNow();
+    }
+
+    // metrics
+
+    public int getActiveSessions() { return active.get(); }
+    public long getAcceptedSessions() { return accepted.get(); }
+    public long getRejectedSessions() { return rejected.get(); }
+
+    public String statsSummary() {
+        ConnectionPool pool = esql.getPool();
+        WriteBehindQueue writer = esql.getWriter();
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("sessions: active=%d accepted=%d rejected=%d waitingForDb=%d queuedWrites=%d%n",
+                getActiveSessions(), getAcceptedSessions(), getRejectedSessions(),
+                pool.getWaitingCount(), writer == null ? 0 : writer.getQueueDepth()));
+        sb.append(pool.statsSummary()).append(String.format("%n"));
+        if(writer != null) sb.append(writer.statsSummary()).append(String.format("%n"));
+        if(esql.getNotifications() != null) sb.append(esql.getNotifications().statsSummary()).append(String.format("%n"));
+        sb.append(esql.getRouter().statsSummary()).append(String.format("%n"));
+        if(esql.getMessagePartitions() != null) sb.append(esql.getMessagePartitions().statsSummary()).append(String.format("%n"));
+        ReachabilityIndex reach = esql.loadedReachabilityIndex();
+        if(reach != null) sb.append(reach.statsSummary()).append(String.format("%n"));
+        sb.append(esql.getUserCache().statsSummary()).append(String.format("%n"));
+        sb.append(OperationStats.summary());
+        sb.append(QueryStats.summary());
+        return sb.toString();
+    }
+
+    public static void main(String[] args) {
+        if(args.length < 3) {
+            System.err.println("Usage: java [-classpath <classpath>] " + SessionServer.class.getName() +
+                " <dbname> <port> <user> [--listen P] [--bind ADDR] [--pool N] [--max-sessions N] [--stats S]");
+            return;
+        }
+        int listenPort = DEFAULT_LISTEN_PORT;
+        String bind = null;
+        int poolSize = Integer.getInteger("profnetwork.pool.size", ProfNetwork.DEFAULT_POOL_SIZE);
+        int maxSessions = DEFAULT_MAX_SESSIONS;
+        int statsSeconds = DEFAULT_STATS_SECONDS;
+        for(int i = 3; i + 1 < args.length; i += 2) {
+            if(args[i].equals("--listen")) listenPort = Integer.parseInt(args[i + 1]);
+            else if(args[i].equals("--bind")) bind = args[i + 1];
+            else if(args[i].equals("--pool")) poolSize = Integer.parseInt(args[i + 1]);
+            else if(args[i].equals("--max-sessions")) maxSessions = Integer.parseInt(args[i + 1]);
+            else if(args[i].equals("--stats")) statsSeconds = Integer.parseInt(args[i + 1]);
+        }
+
+        ProfNetwork esql = null;
+        try {
+            Class.forName("org.postgresql.Driver").newInstance();
+            esql = new ProfNetwork(args[0], args[1], args[2], "", poolSize);
+            final SessionServer server = new SessionServer(esql, maxSessions);
+            final long statsMillis = statsSeconds * 1000L;
+            Thread stats = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while(true) {
+                            Thread.sleep(statsMillis);
+                            SessionIO.console().print(server.statsSummary());
+                        }
+                    }
+                    catch(InterruptedException e) {
+                        // stopping.
+                    }
+                }
+            }, "session-stats");
+            stats.setDaemon(true);
+            stats.start();
+
+            // a large backlog so a burst of reconnects is not refused by the OS
+            InetAddress address = bind == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(bind);
+            server.serve(new ServerSocket(listenPort, 1024, address));
+        }
+        catch(Exception e) {
+            System.err.println(e.getMessage());
+        }
+        finally {
+            if(esql != null) esql.cleanup();
+        }
+    }
+}
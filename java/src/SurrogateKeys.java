@@ -0,0 +1,652 @@
+/*
+ * Integer surrogate keys for users, added to a live database.
+ *
+ * userid is a varchar in usr but char(30) everywhere else, so every index on a
+ * user column holds 30 padded bytes per entry, every join between the two
+ * compares through a cast and every id read back has to be trimmed. The
+ * migration gives each user an integer uid (from usr_uid_seq) and every table
+ * referring to users an integer copy of each user column, with the indexes
+ * and foreign keys the hot queries need:
+ *
+ *   usr                  uid
+ *   connection_usr       user_uid, connection_uid
+ *   message              sender_uid, receiver_uid
+ *   work_expr            user_uid
+ *   educational_details  user_uid
+ *
+ * It runs in phases, each safe to repeat and to interrupt:
+ *
+ *   prepare   adds the sequence, the nullable columns (no table rewrite) and
+ *             BEFORE triggers that fill the uid columns of new or re-keyed
+ *             rows, so everything written from here on is already migrated
+ *   backfill  numbers the existing users, then fills the uid columns of the
+ *             existing rows, in key ranges of --batch rows, each its own short
+ *             transaction, sleeping --pause ms in between
+ *   index     builds the uid indexes with CREATE INDEX CONCURRENTLY, then adds
+ *             the foreign keys and NOT NULL (as a check) NOT VALID and
+ *             validates them, which only takes light locks. On a partitioned
+ *             message the indexes are built per partition and attached
+ *   contract  once every uid index and foreign key is valid, switches each
+ *             char(30) user id column, here and in the derived tables, to
+ *             varchar(30) like usr.userid, so the ids and the text indexes
+ *             that remain carry no padding, then drops the text indexes whose
+ *             queries have moved to the uids (REPLACED_INDEXES). Each table is
+ *             rewritten under an exclusive lock taken within LOCK_TIMEOUT;
+ *             one that could not be locked is done by the next run
+ *   measure   compares the text and uid indexes and the hot queries in both
+ *             forms: index sizes, buffer pages per query and how many were
+ *             already cached, and latency. Run it before the migration too;
+ *             it then measures the text forms only, and after contract the
+ *             uid forms only
+ *
+ * ProfNetwork checks whether contract has run when it connects (see
+ * contracted), so restart the application afterwards. From then on the hot
+ * reads (friends, pending requests, the depth check and the mailboxes) run on
+ * the uid columns: a session's uid is looked up once at login and kept in
+ * User, other users' once per process (ProfNetwork.uidOf), and the queries
+ * bind the integers directly. The text columns stay for display, for the
+ * writes, whose uids the triggers fill in, and for the queries that still
+ * look users up by userid. Columns filled in here are left out by BulkLoader,
+ * see isDerived.
+ *
+ * Apply create_triggers.sql (or let prepare fix it) before backfilling: the
+ * connection_usr_log trigger must ignore updates that only touch uid columns.
+ *
+ * Usage: java SurrogateKeys <dbname> <port> <user> prepare|backfill|index|contract|measure|all
+ *            [--batch N] [--pause ms] [--samples N]
+ *
+ * all runs every phase but contract, which needs its exclusive locks.
+ */
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public final class SurrogateKeys {
+
+    public static final int DEFAULT_BATCH = 5000;
+    public static final int DEFAULT_PAUSE_MILLIS = 20;
+    public static final int DEFAULT_SAMPLES = 200;
+
+    static final Pattern SHARED_BUFFERS = Pattern.compile("Buffers: shared((?: \\w+=\\d+)+)");
+    static final Pattern HIT = Pattern.compile("hit=(\\d+)");
+    static final Pattern READ = Pattern.compile("read=(\\d+)");
+
+    /*
+     * A table with user columns: the column its rows are backfilled in ranges
+     * of, its type, and each uid column next to the text column it copies.
+     **/
+    static final class Keyed {
+        final String table;
+        final String key;
+        final String keyType;
+        final String[] uidColumns;
+        final String[] textColumns;
+
+        Keyed(String table, String key, String keyType, String... columns) {
+            this.table = table;
+            this.key = key;
+            this.keyType = keyType;
+            this.uidColumns = new String[columns.length / 2];
+            this.textColumns = new String[columns.length / 2];
+            for(int i = 0; i < uidColumns.length; i++) {
+                uidColumns[i] = columns[2 * i];
+                textColumns[i] = columns[2 * i + 1];
+            }
+        }
+    }
+
+    static final Keyed[] TABLES = {
+        new Keyed("connection_usr", "userid", "char(30)", "user_uid", "userid", "connection_uid", "connectionid"),
+        new Keyed("message", "msgid", "integer", "sender_uid", "senderid", "receiver_uid", "receiverid"),
+        new Keyed("work_expr", "userid", "char(30)", "user_uid", "userid"),
+        new Keyed("educational_details", "userid", "char(30)", "user_uid", "userid"),
+    };
+
+    // name, table, definition; each mirrors an index on the text columns
+    static final String[][] INDEXES = {
+        {"usr_uid_key", "usr", "UNIQUE INDEX CONCURRENTLY usr_uid_key ON usr (uid)"},
+        {"connection_usr_uid_key", "connection_usr",
+         "UNIQUE INDEX CONCURRENTLY connection_usr_uid_key ON connection_usr (user_uid, connection_uid)"},
+        {"connection_usr_connection_uid_user_uid_idx", "connection_usr",
+         "INDEX CONCURRENTLY connection_usr_connection_uid_user_uid_idx ON connection_usr (connection_uid, user_uid)"},
+        {"connection_usr_friend_user_uid_idx", "connection_usr",
+         "INDEX CONCURRENTLY connection_usr_friend_user_uid_idx ON connection_usr (user_uid) WHERE status = 'friend'"},
+        {"connection_usr_friend_connection_uid_idx", "connection_usr",
+         "INDEX CONCURRENTLY connection_usr_friend_connection_uid_idx ON connection_usr (connection_uid) WHERE status = 'friend'"},
+        {"connection_usr_pending_connection_uid_idx", "connection_usr",
+         "INDEX CONCURRENTLY connection_usr_pending_connection_uid_idx ON connection_usr (connection_uid) WHERE status = 'pending'"},
+        {"message_receiver_uid_sendtime_idx", "message",
+         "INDEX CONCURRENTLY message_receiver_uid_sendtime_idx ON message (receiver_uid, sendTime, msgId)"},
+        {"message_sender_uid_sendtime_idx", "message",
+         "INDEX CONCURRENTLY message_sender_uid_sendtime_idx ON message (sender_uid, sendTime, msgId)"},
+        {"work_expr_user_uid_idx", "work_expr", "INDEX CONCURRENTLY work_expr_user_uid_idx ON work_expr (user_uid)"},
+        {"educational_details_user_uid_idx", "educational_details",
+         "INDEX CONCURRENTLY educational_details_user_uid_idx ON educational_details (user_uid)"},
+    };
+
+    // name, table, definition; the same foreign keys the text columns have
+    static final String[][] CONSTRAINTS = {
+        {"usr_uid_not_null", "usr", "CHECK (uid IS NOT NULL)"},
+        {"connection_usr_user_uid_fkey", "connection_usr", "FOREIGN KEY (user_uid) REFERENCES usr (uid)"},
+        {"message_sender_uid_fkey", "message", "FOREIGN KEY (sender_uid) REFERENCES usr (uid)"},
+        {"message_receiver_uid_fkey", "message", "FOREIGN KEY (receiver_uid) REFERENCES usr (uid)"},
+        {"work_expr_user_uid_fkey", "work_expr", "FOREIGN KEY (user_uid) REFERENCES usr (uid) ON DELETE CASCADE"},
+        {"educational_details_user_uid_fkey", "educational_details",
+         "FOREIGN KEY (user_uid) REFERENCES usr (uid) ON DELETE CASCADE"},
+    };
+
+    // text indexes whose queries all run on the uids once contracted; the
+    // others still serve the queries that look users up by userid
+    static final String[][] REPLACED_INDEXES = {
+        {"connection_usr_pending_connectionid_idx", "connection_usr"},
+        {"message_receiver_sendtime_idx", "message"},
+        {"message_sender_sendtime_idx", "message"},
+    };
+
+    // user id columns of the tables without uid twins, switched by contract
+    // too so their joins with the others compare like types
+    static final String[][] DERIVED_COLUMNS = {
+        {"connection_count", "userid"},
+        {"connection_usr_log", "userid", "connectionid"},
+        {"recommendation", "userid", "candidateid"},
+    };
+
+    static final String LOCK_TIMEOUT = "2s";
+
+    static final String INVALID_INDEX_QUERY =
+        "SELECT count(*) FROM pg_index WHERE indexrelid = to_regclass(?) AND NOT indisvalid";
+    static final String VALID_INDEX_QUERY =
+        "SELECT count(*) FROM pg_index WHERE indexrelid = to_regclass(?) AND indisvalid";
+    static final String CONSTRAINT_QUERY =
+        "SELECT CASE WHEN convalidated THEN 2 ELSE 1 END FROM pg_constraint WHERE conname = ? AND conrelid = CAST(? AS regclass)";
+    static final String PADDED_COLUMN_QUERY =
+        "SELECT count(*) FROM pg_attribute WHERE attrelid = to_regclass(?) AND attname = ? AND atttypid = CAST('bpchar' AS regtype)";
+    static final String TRIGGERS_QUERY =
+        "SELECT tgname, pg_get_triggerdef(oid) FROM pg_trigger WHERE tgrelid = to_regclass(?) AND NOT tgisinternal";
+    static final String LOG_TRIGGER_QUERY =
+        "SELECT pg_get_triggerdef(oid) FROM pg_trigger WHERE tgname = 'connection_usr_log_row'";
+    static final String INDEX_SIZES_QUERY =
+        "SELECT s.relname, s.indexrelname, pg_relation_size(s.indexrelid), s.idx_blks_hit, s.idx_blks_read, " +
+        "CASE WHEN pg_get_indexdef(s.indexrelid) LIKE '%uid%' THEN 'uid' ELSE 'text' END " +
+        "FROM pg_statio_user_indexes s " +
+        "WHERE s.relname IN ('usr', 'connection_usr', 'message', 'work_expr', 'educational_details') " +
+        "ORDER BY s.relname, 6, s.indexrelname";
+    static final String SAMPLE_USERS_QUERY =
+        "SELECT userid FROM connection_usr WHERE status = 'friend' ORDER BY random() LIMIT ?";
+
+    // friend list with names, the join measure times in both forms
+    static final String FRIEND_NAMES_BY_USERID =
+        "SELECT u.userid, u.name FROM connection_usr c JOIN usr u ON u.userid = c.connectionid " +
+        "WHERE c.userid = ? AND c.status = 'friend'";
+    static final String FRIEND_NAMES_BY_UID =
+        "SELECT u.userid, u.name FROM connection_usr c JOIN usr u ON u.uid = c.connection_uid " +
+        "WHERE c.user_uid = ? AND c.status = 'friend'";
+
+    private final ProfNetwork esql;
+    private final int batch;
+    private final long pauseMillis;
+
+    // metrics
+    private long usersNumbered = 0;
+    private long rowsBackfilled = 0;
+    private int batches = 0;
+
+    public SurrogateKeys(ProfNetwork esql, int batch, long pauseMillis) {
+        this.esql = esql;
+        this.batch = batch;
+        this.pauseMillis = pauseMillis;
+    }
+
+    /*
+     * True for the columns this migration adds. They are filled by triggers, so
+     * loaders must not expect them in their input.
+     **/
+    static boolean isDerived(String column) {
+        String c = column.toLowerCase();
+        if(c.equals("uid")) return true;
+        for(Keyed t : TABLES)
+            for(String uid : t.uidColumns)
+                if(uid.equals(c)) return true;
+        return false;
+    }
+
+    /*
+     * Adds the sequence, the columns and the triggers. Only catalog changes:
+     * nothing is rewritten and each statement holds its lock for a moment.
+     **/
+    void prepare() throws SQLException {
+        ddl("CREATE SEQUENCE IF NOT EXISTS usr_uid_seq");
+        ddl("ALTER TABLE usr ADD COLUMN IF NOT EXISTS uid integer");
+        ddl("ALTER SEQUENCE usr_uid_seq OWNED BY usr.uid");
+        // a default set after the column is added applies to new rows only
+        ddl("ALTER TABLE usr ALTER COLUMN uid SET DEFAULT nextval('usr_uid_seq')");
+
+        for(Keyed t : TABLES) {
+            StringBuilder body = new StringBuilder();
+            StringBuilder of = new StringBuilder();
+            for(int i = 0; i < t.uidColumns.length; i++) {
+                ddl("ALTER TABLE " + t.table + " ADD COLUMN IF NOT EXISTS " + t.uidColumns[i] + " integer");
+                body.append("\tNEW.").append(t.uidColumns[i]).append(" := ")
+                    .append(uidOf("NEW." + t.textColumns[i])).append(";\n");
+                if(i > 0) of.append(", ");
+                of.append(t.textColumns[i]);
+            }
+            String function = t.table + "_uids";
+            ddl("CREATE OR REPLACE FUNCTION " + function + "() RETURNS trigger AS $$\nBEGIN\n" + body +
+                "\tRETURN NEW;\nEND;\n$$ LANGUAGE plpgsql");
+            ddl("DROP TRIGGER IF EXISTS " + function + " ON " + t.table);
+            ddl("CREATE TRIGGER " + function + " BEFORE INSERT OR UPDATE OF " + of + " ON " + t.table +
+                " FOR EACH ROW EXECUTE PROCEDURE " + function + "()");
+        }
+
+        // an older create_triggers.sql logs every update of a friend row, which
+        // would log each one the backfill touches
+        List<List<String>> log = esql.executeQueryAndReturnResult(LOG_TRIGGER_QUERY);
+        if(!log.isEmpty() && !log.get(0).get(0).contains("UPDATE OF")) {
+            ddl("DROP TRIGGER connection_usr_log_row ON connection_usr");
+            ddl("CREATE TRIGGER connection_usr_log_row AFTER INSERT OR DELETE OR UPDATE OF userId, connectionId, status " +
+                "ON connection_usr FOR EACH ROW EXECUTE PROCEDURE connection_usr_log_friend()");
+        }
+        System.out.println("prepared: usr_uid_seq, uid columns and their triggers");
+    }
+
+    private static String uidOf(String userid) {
+        return "(SELECT uid FROM usr WHERE userid = CAST(" + userid + " AS text))";
+    }
+
+    /*
+     * Numbers the users that have no uid yet, then fills the uid columns of
+     * every other table. Rows written meanwhile get theirs from the triggers;
+     * a last pass per table picks up rows that were in flight while their range
+     * went by.
+     **/
+    void backfill() throws SQLException, InterruptedException {
+        long start = System.nanoTime();
+        usersNumbered += inRanges("usr", "userid", "varchar(30)",
+            "UPDATE usr SET uid = nextval('usr_uid_seq') WHERE uid IS NULL");
+        System.out.println(String.format("usr: %d users numbered in %.1fs", usersNumbered, (System.nanoTime() - start) / 1e9));
+
+        for(Keyed t : TABLES) {
+            start = System.nanoTime();
+            StringBuilder set = new StringBuilder();
+            StringBuilder missing = new StringBuilder();
+            for(int i = 0; i < t.uidColumns.length; i++) {
+                if(i > 0) {
+                    set.append(", ");
+                    missing.append(" OR ");
+                }
+                set.append(t.uidColumns[i]).append(" = ").append(uidOf("t." + t.textColumns[i]));
+                missing.append("t.").append(t.uidColumns[i]).append(" IS NULL");
+            }
+            String update = "UPDATE " + t.table + " t SET " + set + " WHERE (" + missing + ")";
+            long rows = inRanges(t.table, "t." + t.key, t.keyType, update);
+            // connectionid has no foreign key, a dangling one stays NULL and is counted again here
+            rows += esql.executeUpdate(update);
+            rowsBackfilled += rows;
+            System.out.println(String.format("%s: %d rows backfilled in %.1fs", t.table, rows, (System.nanoTime() - start) / 1e9));
+        }
+    }
+
+    /*
+     * Runs update (which must end in a WHERE clause) over consecutive ranges of
+     * key holding about batch rows each, one autocommit statement per range.
+     * The ranges are found from the key's index, so progress doesn't depend on
+     * the update having changed anything and a rerun starts over cheaply.
+     **/
+    private long inRanges(String table, String key, String keyType, String update) throws SQLException, InterruptedException {
+        String column = key.substring(key.indexOf('.') + 1);
+        String firstBound = "SELECT " + column + " FROM " + table + " ORDER BY " + column + " OFFSET ? LIMIT 1";
+        String nextBound = "SELECT " + column + " FROM " + table + " WHERE " + column + " > CAST(? AS " + keyType + ") " +
+            "ORDER BY " + column + " OFFSET ? LIMIT 1";
+        String upTo = " AND " + key + " <= CAST(? AS " + keyType + ")";
+        String after = " AND " + key + " > CAST(? AS " + keyType + ")";
+
+        long rows = 0;
+        String lower = null;
+        while(true) {
+            List<List<String>> bound = lower == null
+                ? esql.executeQueryAndReturnResult(firstBound, batch - 1)
+                : esql.executeQueryAndReturnResult(nextBound, lower, batch - 1);
+            String upper = bound.isEmpty() ? null : bound.get(0).get(0);
+            if(lower == null && upper == null) rows += esql.executeUpdate(update);
+            else if(lower == null) rows += esql.executeUpdate(update + upTo, upper);
+            else if(upper == null) rows += esql.executeUpdate(update + after, lower);
+            else rows += esql.executeUpdate(update + after + upTo, lower, upper);
+            batches++;
+            if(upper == null) return rows;
+            lower = upper;
+            if(pauseMillis > 0) Thread.sleep(pauseMillis);
+        }
+    }
+
+    /*
+     * Builds the uid indexes without blocking writes, replacing any left
+     * invalid by an interrupted build, then adds the constraints.
+     **/
+    void index() throws SQLException {
+        for(String[] index : INDEXES) {
+            long start = System.nanoTime();
+            if(MessagePartitions.isPartitioned(esql, index[1])) partitionedIndex(index);
+            else {
+                if(esql.queryForLong(INVALID_INDEX_QUERY, index[0]) > 0)
+                    ddl("DROP INDEX CONCURRENTLY " + index[0]);
+                ddl("CREATE " + index[2].replace("CONCURRENTLY ", "CONCURRENTLY IF NOT EXISTS "));
+            }
+            System.out.println(String.format("%s built in %.1fs", index[0], (System.nanoTime() - start) / 1e9));
+        }
+        if(esql.queryForLong("SELECT count(*) FROM pg_constraint WHERE conname = 'usr_uid_key'") == 0)
+            ddl("ALTER TABLE usr ADD CONSTRAINT usr_uid_key UNIQUE USING INDEX usr_uid_key");
+
+        for(String[] c : CONSTRAINTS) {
+            long start = System.nanoTime();
+            long state = esql.queryForLong(CONSTRAINT_QUERY, c[0], c[1]);
+            // a partitioned table checks its foreign keys when they are added
+            if(state == 0) ddl("ALTER TABLE " + c[1] + " ADD CONSTRAINT " + c[0] + " " + c[2] +
+                               (MessagePartitions.isPartitioned(esql, c[1]) ? "" : " NOT VALID"));
+            if(state < 2) ddl("ALTER TABLE " + c[1] + " VALIDATE CONSTRAINT " + c[0]);
+            System.out.println(String.format("%s validated in %.1fs", c[0], (System.nanoTime() - start) / 1e9));
+        }
+        ddl("ANALYZE usr");
+        for(Keyed t : TABLES) ddl("ANALYZE " + t.table);
+    }
+
+    /*
+     * A partitioned table can't build an index concurrently, its partitions
+     * can: each gets its own, then the index on the parent alone is created
+     * and they are attached to it, which makes it valid.
+     **/
+    private void partitionedIndex(String[] index) throws SQLException {
+        String definition = index[2].replace("INDEX CONCURRENTLY " + index[0] + " ON " + index[1] + " ", "");
+        List<String> partitions = MessagePartitions.partitions(esql);
+        for(String p : partitions) {
+            String name = index[0] + "_" + p.substring(index[1].length() + 1);
+            if(esql.queryForLong(INVALID_INDEX_QUERY, name) > 0)
+                ddl("DROP INDEX CONCURRENTLY " + name);
+            ddl("CREATE INDEX CONCURRENTLY IF NOT EXISTS " + name + " ON " + p + " " + definition);
+        }
+        ddl("CREATE INDEX IF NOT EXISTS " + index[0] + " ON ONLY " + index[1] + " " + definition);
+        for(String p : partitions)
+            ddl("ALTER INDEX " + index[0] + " ATTACH PARTITION " + index[0] + "_" + p.substring(index[1].length() + 1));
+    }
+
+    /*
+     * Runs one statement outside a transaction, as CONCURRENTLY needs, and
+     * without going through the prepared statement cache.
+     **/
+    private void ddl(String sql) throws SQLException {
+        ConnectionPool pool = esql.getWritePool();
+        ConnectionPool.PooledConnection conn = pool.borrow();
+        try {
+            GraphSnapshot.execute(conn, sql);
+        }
+        finally {
+            pool.release(conn);
+        }
+    }
+
+    /*
+     * Switches the text user columns to varchar(30), then drops the text
+     * indexes the uid ones replace. Refuses to run before index has finished,
+     * since the application moves its hot reads to the uids once this is done.
+     * The indexes go last, so an interrupted run leaves the text queries the
+     * indexes they use.
+     **/
+    void contract() throws SQLException {
+        if(!migrated(esql) || !validated(esql))
+            throw new SQLException("the uid indexes and foreign keys are not all valid yet, run index first");
+        for(Keyed t : TABLES) toVarchar(t.table, t.textColumns);
+        for(String[] d : DERIVED_COLUMNS) toVarchar(d[0], Arrays.copyOfRange(d, 1, d.length));
+        for(String[] index : REPLACED_INDEXES) {
+            // a partitioned index can't be dropped concurrently
+            if(MessagePartitions.isPartitioned(esql, index[1])) ddl("DROP INDEX IF EXISTS " + index[0]);
+            else ddl("DROP INDEX CONCURRENTLY IF EXISTS " + index[0]);
+            System.out.println(index[0] + " dropped");
+        }
+        ddl("ANALYZE usr");
+        for(Keyed t : TABLES) ddl("ANALYZE " + t.table);
+    }
+
+    /*
+     * Rewrites table with those of columns that are still char(30) as
+     * varchar(30), which strips their padding. A trigger naming one of the
+     * columns would block the change, so the table's triggers are dropped
+     * before it and created again after, in the same transaction.
+     **/
+    private void toVarchar(final String table, String[] columns) throws SQLException {
+        final List<String> padded = new ArrayList<String>();
+        for(String column : columns)
+            if(esql.queryForLong(PADDED_COLUMN_QUERY, table, column) > 0) padded.add(column);
+        if(padded.isEmpty()) return;
+        long start = System.nanoTime();
+        esql.inTransaction(new Transaction<Void>() {
+            public Void run(ConnectionPool.PooledConnection conn) throws SQLException {
+                GraphSnapshot.execute(conn, "SET LOCAL lock_timeout = '" + LOCK_TIMEOUT + "'");
+                GraphSnapshot.execute(conn, "LOCK TABLE " + table + " IN ACCESS EXCLUSIVE MODE");
+                List<String[]> triggers = MessagePartitions.query(conn, TRIGGERS_QUERY, table);
+                for(String[] trigger : triggers)
+                    GraphSnapshot.execute(conn, "DROP TRIGGER " + trigger[0] + " ON " + table);
+                StringBuilder alter = new StringBuilder("ALTER TABLE " + table);
+                for(int i = 0; i < padded.size(); i++)
+                    alter.append(i > 0 ? "," : "").append(" ALTER COLUMN ").append(padded.get(i)).append(" TYPE varchar(30)");
+                GraphSnapshot.execute(conn, alter.toString());
+                for(String[] trigger : triggers) GraphSnapshot.execute(conn, trigger[1]);
+                return null;
+            }
+        });
+        System.out.println(String.format("%s: %s switched to varchar(30) in %.1fs", table, padded, (System.nanoTime() - start) / 1e9));
+    }
+
+    static boolean migrated(ProfNetwork esql) throws SQLException {
+        for(String[] index : INDEXES)
+            if(esql.queryForLong(VALID_INDEX_QUERY, index[0]) == 0) return false;
+        return true;
+    }
+
+    static boolean validated(ProfNetwork esql) throws SQLException {
+        for(String[] c : CONSTRAINTS)
+            if(esql.queryForLong(CONSTRAINT_QUERY, c[0], c[1]) < 2) return false;
+        return true;
+    }
+
+    /*
+     * True once contract has run: the uid indexes and foreign keys are valid
+     * and no user id column is padded any more. ProfNetwork asks when it
+     * connects, to pick the uid forms of the hot reads.
+     **/
+    static boolean contracted(ProfNetwork esql) throws SQLException {
+        if(!migrated(esql) || !validated(esql)) return false;
+        for(Keyed t : TABLES)
+            for(String column : t.textColumns)
+                if(esql.queryForLong(PADDED_COLUMN_QUERY, t.table, column) > 0) return false;
+        for(String[] d : DERIVED_COLUMNS)
+            for(int i = 1; i < d.length; i++)
+                if(esql.queryForLong(PADDED_COLUMN_QUERY, d[0], d[i]) > 0) return false;
+        return true;
+    }
+
+    /*
+     * A hot query in its text and uid forms. Both take the same parameters,
+     * users as userids in the one and as uids in the other.
+     **/
+    static final class Workload {
+        final String name;
+        final String byUserid;
+        final String byUid;
+
+        Workload(String name, String byUserid, String byUid) {
+            this.name = name;
+            this.byUserid = byUserid;
+            this.byUid = byUid;
+        }
+
+        Object[] params(Object user, Object other) {
+            if(name.equals("friends.load")) return new Object[] { user, user };
+            if(name.equals("request.depthCheck")) return new Object[] { user, ProfNetwork.MAX_CONNECTION_DEPTH, other };
+            if(name.startsWith("messages.")) {
+                MessageStore.Cursor first = MessageStore.Cursor.FIRST;
+                return new Object[] { user, first.sendTime, first.sendTime, first.msgId, MessageStore.DEFAULT_PAGE_SIZE };
+            }
+            return new Object[] { user };
+        }
+    }
+
+    static List<Workload> workloads() {
+        List<Workload> all = new ArrayList<Workload>();
+        all.add(new Workload("friends.load", User.FRIENDS_BY_USERID, User.FRIENDS_BY_UID));
+        all.add(new Workload("friends.names", FRIEND_NAMES_BY_USERID, FRIEND_NAMES_BY_UID));
+        all.add(new Workload("pending.load", User.PENDING_BY_USERID, User.PENDING_BY_UID));
+        all.add(new Workload("request.depthCheck", ProfNetwork.existsQuery(ProfNetwork.CONNECTION_DEPTH_BY_USERID),
+                             ProfNetwork.existsQuery(ProfNetwork.CONNECTION_DEPTH_BY_UID)));
+        all.add(new Workload("messages.inbox", MessageStore.INBOX_BY_USERID, MessageStore.INBOX_BY_UID));
+        all.add(new Workload("messages.outbox", MessageStore.OUTBOX_BY_USERID, MessageStore.OUTBOX_BY_UID));
+        return all;
+    }
+
+    /*
+     * Prints the size and cache hit rate of every index on the user tables,
+     * with the text and uid totals per table, then runs each workload for the
+     * sampled users: first once under EXPLAIN (ANALYZE, BUFFERS) for the pages
+     * it touches, then timed. The text forms are left out once contract has
+     * dropped their indexes.
+     **/
+    void measure(int samples) throws SQLException {
+        boolean uids = migrated(esql);
+        boolean texts = !contracted(esql);
+        List<List<String>> indexes = esql.executeQueryAndReturnResult(INDEX_SIZES_QUERY);
+        System.out.println(String.format("%-22s %-44s %-4s %12s %8s", "table", "index", "keys", "bytes", "hit%"));
+        String table = null;
+        long[] totals = new long[2];
+        for(List<String> row : indexes) {
+            if(table != null && !table.equals(row.get(0))) {
+                printTotals(table, totals);
+                totals = new long[2];
+            }
+            table = row.get(0);
+            long bytes = Long.parseLong(row.get(2));
+            long hit = Long.parseLong(row.get(3)), read = Long.parseLong(row.get(4));
+            boolean uid = row.get(5).equals("uid");
+            totals[uid ? 1 : 0] += bytes;
+            System.out.println(String.format("%-22s %-44s %-4s %12d %8s", table, row.get(1), row.get(5), bytes,
+                hit + read == 0 ? "-" : String.format("%.1f", 100.0 * hit / (hit + read))));
+        }
+        if(table != null) printTotals(table, totals);
+        System.out.println();
+
+        List<List<String>> rows = esql.executeQueryAndReturnResult(SAMPLE_USERS_QUERY, samples);
+        if(rows.isEmpty()) {
+            System.out.println("no friend connections to sample users from");
+            return;
+        }
+        String[] users = new String[rows.size()];
+        Integer[] uidOf = new Integer[users.length];
+        for(int i = 0; i < users.length; i++) {
+            users[i] = rows.get(i).get(0).trim();
+            if(uids) uidOf[i] = esql.uidOf(users[i]);
+        }
+
+        System.out.println(String.format("%-20s %-4s %7s %10s %10s %10s %8s", "query", "keys", "count", "p50 ms", "p99 ms", "pages/q", "hit%"));
+        for(Workload w : workloads()) {
+            long[] textPages = new long[2], uidPages = new long[2];
+            // interleaved so neither form warms the cache for the other more than it is warmed in turn
+            for(int i = 0; i < users.length; i++) {
+                int j = (i + 1) % users.length;
+                if(texts) buffers(w.byUserid, w.params(users[i], users[j]), textPages);
+                if(uids) buffers(w.byUid, w.params(uidOf[i], uidOf[j]), uidPages);
+            }
+            LoadDriver.Recorder text = new LoadDriver.Recorder(), uid = new LoadDriver.Recorder();
+            for(int i = 0; i < users.length; i++) {
+                int j = (i + 1) % users.length;
+                if(texts) time(w.byUserid, w.params(users[i], users[j]), text);
+                if(uids) time(w.byUid, w.params(uidOf[i], uidOf[j]), uid);
+            }
+            if(texts) report(w.name, "text", text, textPages, users.length);
+            if(uids) report(w.name, "uid", uid, uidPages, users.length);
+        }
+        if(!uids) System.out.println("(uid indexes not built yet, text forms only)");
+        if(!texts) System.out.println("(text columns contracted, uid forms only)");
+    }
+
+    private static void printTotals(String table, long[] totals) {
+        System.out.println(String.format("%-22s %-44s text %12d, uid %d", table, "(total)", totals[0], totals[1]));
+    }
+
+    // adds the shared buffer hits and reads of the plan's top node to pages
+    private void buffers(String sql, Object[] params, long[] pages) throws SQLException {
+        for(List<String> row : esql.executeQueryAndReturnResult("EXPLAIN (ANALYZE, BUFFERS) " + sql, params)) {
+            Matcher m = SHARED_BUFFERS.matcher(row.get(0));
+            if(!m.find()) continue;
+            Matcher hit = HIT.matcher(m.group(1)), read = READ.matcher(m.group(1));
+            if(hit.find()) pages[0] += Long.parseLong(hit.group(1));
+            if(read.find()) pages[1] += Long.parseLong(read.group(1));
+            return;
+        }
+    }
+
+    private void time(String sql, Object[] params, LoadDriver.Recorder recorder) throws SQLException {
+        long t = System.nanoTime();
+        esql.executeQuery(sql, params);
+        recorder.record(System.nanoTime() - t);
+    }
+
+    private static void report(String name, String keys, LoadDriver.Recorder r, long[] pages, int samples) {
+        long total = pages[0] + pages[1];
+        System.out.println(String.format("%-20s %-4s %7d %10.4f %10.4f %10.1f %8s", name, keys, r.count,
+            r.percentileMillis(0.50), r.percentileMillis(0.99), (double) total / samples,
+            total == 0 ? "-" : String.format("%.1f", 100.0 * pages[0] / total)));
+    }
+
+    public String statsSummary() {
+        return String.format("surrogate keys: usersNumbered=%d rowsBackfilled=%d batches=%d", usersNumbered, rowsBackfilled, batches);
+    }
+
+    public static void main(String[] args) {
+        List<String> phases = new ArrayList<String>();
+        if(args.length > 3) {
+            if(args[3].equals("all")) {
+                phases.add("prepare");
+                phases.add("backfill");
+                phases.add("index");
+                phases.add("measure");
+            }
+            else if(args[3].matches("prepare|backfill|index|contract|measure")) phases.add(args[3]);
+        }
+        if(phases.isEmpty()) {
+            System.err.println("Usage: java [-classpath <classpath>] " + SurrogateKeys.class.getName() +
+                " <dbname> <port> <user> prepare|backfill|index|contract|measure|all [--batch N] [--pause ms] [--samples N]");
+            return;
+        }
+        int batch = DEFAULT_BATCH;
+        long pause = DEFAULT_PAUSE_MILLIS;
+        int samples = DEFAULT_SAMPLES;
+        for(int i = 4; i + 1 < args.length; i += 2) {
+            if(args[i].equals("--batch")) batch = Integer.parseInt(args[i + 1]);
+            else if(args[i].equals("--pause")) pause = Long.parseLong(args[i + 1]);
+            else if(args[i].equals("--samples")) samples = Integer.parseInt(args[i + 1]);
+        }
+
+        ProfNetwork esql = null;
+        try {
+            Class.forName("org.postgresql.Driver").newInstance();
+            esql = new ProfNetwork(args[0], args[1], args[2], "");
+            SurrogateKeys keys = new SurrogateKeys(esql, Math.max(1, batch), pause);
+            for(String phase : phases) {
+                if(phase.equals("prepare")) keys.prepare();
+                else if(phase.equals("backfill")) keys.backfill();
+                else if(phase.equals("index")) keys.index();
+                else if(phase.equals("contract")) keys.contract();
+                else keys.measure(samples);
+            }
+            if(phases.contains("backfill")) System.out.println(keys.statsSummary());
+        }
+        catch(Exception e) {
+            System.err.println(e.getMessage());
+        }
+        finally {
+            if(esql != null) esql.cleanup();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+/*
+ * Unit of work for ProfNetwork.inTransaction. It is handed a pooled connection
+ * with autocommit off and may be run more than once: when the database aborts
+ * it with a serialization failure or a deadlock, the transaction is rolled back
+ * and run again from the start, so it must not have side effects outside the
+ * database until it returns.
+ */
+
+import java.sql.SQLException;
+
+public interface Transaction<T> {
+
+    T run(ConnectionPool.PooledConnection conn) throws SQLException;
+}
@@ -2,42 +2,217 @@
  * This class works in conjunction with ProfNetwork to
  * preload any needed user data when they log into
  * Visagetome so we have easy access to it throughout their login
+ *
+ * The sections (friends, profile, pending requests) are read through the
+ * process-wide UserCache, so every refresh picks up what other sessions
+ * changed. With that cache off (-Dprofnetwork.cache=off) each session keeps
+ * its own copy instead: a section is only re-queried after it has been
+ * invalidated by a mutation or once it is older than the TTL, which bounds how
+ * stale changes made by other sessions can get. Set the TTL with
+ * -Dprofnetwork.session.ttl=<millis>.
+ *
+ * With notifications on (-Dprofnetwork.notify=listen) the session subscribes
+ * to its user's events instead: friends and pending requests are reloaded
+ * when an event says they changed, and otherwise only after the much longer
+ * Notifications.TTL_MILLIS, which covers events that were missed.
  */
 
 import java.util.List;
-import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.sql.SQLException;
 
 public class User {
 
-    public List<List<String>> friends;
-    public List<List<String>> pendingRequests;
-    public List<List<String>> messages;
-    public List<List<String>> profile;
+    public static final long DEFAULT_TTL_MILLIS = 30000;
+    static final long TTL_MILLIS = Long.getLong("profnetwork.session.ttl", DEFAULT_TTL_MILLIS);
 
-    String friendsQuery;
-    String profileQuery;
-    String pendingRequestsQuery;
+    // process wide counters, to see how much the cache saves
+    static final AtomicLong refreshQueries = new AtomicLong();
+    static final AtomicLong refreshQueriesAvoided = new AtomicLong();
+
+    // friends and pending requests by userid, and by uid once SurrogateKeys has contracted
+    // the keys; both return unpadded userids. Pinned to the primary: a load that follows an
+    // invalidation is cached for the whole TTL and shared with every session, so it must not
+    // read a replica that misses the write
+    static final String FRIENDS_BY_USERID = ReadRouter.primary(QueryStats.named("friends.load",
+        "SELECT rtrim(userid), rtrim(connectionid) FROM connection_usr WHERE (userid = ? OR connectionid = ?) AND status = 'friend'"));
+    static final String FRIENDS_BY_UID = ReadRouter.primary(QueryStats.named("friends.load",
+        "SELECT a.userid, b.userid FROM connection_usr c JOIN usr a ON a.uid = c.user_uid JOIN usr b ON b.uid = c.connection_uid " +
+        "WHERE (c.user_uid = ? OR c.connection_uid = ?) AND c.status = 'friend'"));
+    static final String PENDING_BY_USERID = ReadRouter.primary(QueryStats.named("pending.load",
+        "SELECT rtrim(userid) FROM connection_usr WHERE connectionid = ? AND status = 'pending'"));
+    static final String PENDING_BY_UID = ReadRouter.primary(QueryStats.named("pending.load",
+        "SELECT u.userid FROM connection_usr c JOIN usr u ON u.uid = c.user_uid " +
+        "WHERE c.connection_uid = ? AND c.status = 'pending'"));
+    static final String PROFILE_QUERY = ReadRouter.primary(QueryStats.named("profile.load", "SELECT userid, email, name, dateofbirth FROM usr WHERE userid = ?"));
+
+    static String friendsQuery(ProfNetwork esql) {
+        return esql.usesSurrogateKeys() ? FRIENDS_BY_UID : FRIENDS_BY_USERID;
+    }
+
+    static String pendingRequestsQuery(ProfNetwork esql) {
+        return esql.usesSurrogateKeys() ? PENDING_BY_UID : PENDING_BY_USERID;
+    }
+
+    /*
+     * Someone the user is friends with.
+     **/
+    public static final class Friend {
+        public final String userId;
+
+        Friend(String userId) {
+            this.userId = userId;
+        }
+    }
+
+    /*
+     * The user's own row in usr, without the password.
+     **/
+    public static final class Profile {
+        public final String userId;
+        public final String email;
+        public final String name;
+        public final String dateOfBirth;
+
+        Profile(String userId, String email, String name, String dateOfBirth) {
+            this.userId = userId;
+            this.email = email;
+            this.name = name;
+            this.dateOfBirth = dateOfBirth;
+        }
+    }
+
+    /*
+     * A friend request someone sent to the user that has not been answered yet.
+     **/
+    public static final class PendingRequest {
+        public final String fromUserId;
+
+        PendingRequest(String fromUserId) {
+            this.fromUserId = fromUserId;
+        }
+    }
+
+    public List<Friend> friends;
+    public List<PendingRequest> pendingRequests;
+    public Profile profile;
 
     String username;
 
+    // the user's surrogate key, looked up at login once the keys are contracted, 0 before
+    final int uid;
+
+    // friends plus a hash index over them for O(1) "are we friends" checks
+    private UserCache.Friends friendSet;
+
+    // when each section was last loaded, 0 means it has been invalidated;
+    // write-behind callbacks reset them from the writer's thread
+    private volatile long friendsLoadedAt;
+    private volatile long profileLoadedAt;
+    private volatile long pendingRequestsLoadedAt;
+
+    // sections changed according to Notifications, and messages received since
+    // the inbox was last opened; only used while subscribed
+    static final int FRIENDS_CHANGED = 1;
+    static final int PENDING_CHANGED = 2;
+    private final AtomicInteger changed = new AtomicInteger();
+    private final AtomicInteger newMessages = new AtomicInteger();
+    private Notifications.Subscription subscription;
+
     public User(ProfNetwork esql, String authorisedUser) throws SQLException {
-        friendsQuery = String.format("SELECT * FROM connection_usr WHERE (userid = '%s' OR connectionid = '%s') AND status = 'friend'", authorisedUser, authorisedUser);
-        profileQuery = String.format("SELECT * FROM usr WHERE userid = '%s'", authorisedUser);
-        pendingRequestsQuery = String.format("SELECT * FROM connection_usr WHERE connectionid = '%s' AND status = 'pending'", authorisedUser);
+        username = authorisedUser;
+        uid = esql.usesSurrogateKeys() ? esql.uidOf(username) : 0;
+        Notifications notifications = esql.getNotifications();
+        if(notifications != null) {
+            // subscribe before the first load, so nothing between the two is missed
+            subscription = notifications.subscribe(username, new Notifications.Subscriber() {
+                public void changed(String event) {
+                    if(event.equals(Notifications.MESSAGE)) newMessages.incrementAndGet();
+                    else if(event.equals(Notifications.PENDING)) markChanged(PENDING_CHANGED);
+                    else if(event.equals(Notifications.FRIENDS)) markChanged(FRIENDS_CHANGED);
+                    else markChanged(FRIENDS_CHANGED | PENDING_CHANGED);
+                }
+            });
+        }
+        refresh(esql);
+    }
+
+    private void markChanged(int sections) {
+        int old;
+        do old = changed.get(); while(!changed.compareAndSet(old, old | sections));
+    }
+
+    /*
+     * Reloads whatever sections are invalidated or older than the TTL.
+     **/
+    public void refresh(ProfNetwork esql) throws SQLException {
+        UserCache cache = esql.getUserCache();
+        // reading the shared cache is a map lookup on a hit, so do it every time,
+        // unless events tell us when to
+        boolean shared = cache.isEnabled() && subscription == null;
+        long ttl = subscription == null ? TTL_MILLIS : Notifications.TTL_MILLIS;
+        int sections = changed.getAndSet(0);
+        // the change was just committed on the primary, which a replica may not have yet
+        if(sections != 0) esql.getRouter().stick();
+        if((sections & FRIENDS_CHANGED) != 0) invalidateFriends();
+        if((sections & PENDING_CHANGED) != 0) invalidatePendingRequests();
+        long now = System.currentTimeMillis();
+        if(shared || isStale(friendsLoadedAt, now, ttl)) {
+            friendSet = cache.friends(username);
+            friends = friendSet.list;
+            friendsLoadedAt = now;
+        }
+        else refreshQueriesAvoided.incrementAndGet();
+        if(shared || isStale(profileLoadedAt, now, ttl)) {
+            profile = cache.profile(username);
+            profileLoadedAt = now;
+        }
+        else refreshQueriesAvoided.incrementAndGet();
+        if(shared || isStale(pendingRequestsLoadedAt, now, ttl)) {
+            pendingRequests = cache.pendingRequests(username);
+            pendingRequestsLoadedAt = now;
+        }
+        else refreshQueriesAvoided.incrementAndGet();
+    }
+
+    /*
+     * What the user-keyed reads bind for this user, see ProfNetwork.userKey.
+     **/
+    Object key() {
+        return uid != 0 ? (Object) uid : username;
+    }
+
+    public boolean isFriend(String userId) {
+        return friendSet.contains(userId);
+    }
+
+    public void invalidateFriends() { friendsLoadedAt = 0; }
+    public void invalidateProfile() { profileLoadedAt = 0; }
+    public void invalidatePendingRequests() { pendingRequestsLoadedAt = 0; }
+
+    public void invalidateAll() {
+        invalidateFriends();
+        invalidateProfile();
+        invalidatePendingRequests();
+    }
+
+    // messages received since the inbox was last shown, 0 without notifications
+    public int newMessages() { return newMessages.get(); }
+    public void messagesSeen() { newMessages.set(0); }
 
-        friends = esql.executeQueryAndReturnResult(friendsQuery);
-        profile = esql.executeQueryAndReturnResult(profileQuery);
-        pendingRequests = esql.executeQueryAndReturnResult(pendingRequestsQuery);
-        username = profile.get(0).get(0);
-        messages = new ArrayList<List<String>>();
+    /*
+     * Ends the session's subscription, at log out.
+     **/
+    public void close() {
+        if(subscription != null) subscription.close();
+        subscription = null;
     }
 
-    public void refresh(ProfNetwork esql, String authorisedUser) throws SQLException {
-        friends = esql.executeQueryAndReturnResult(friendsQuery);
-        profile = esql.executeQueryAndReturnResult(profileQuery);
-        pendingRequests = esql.executeQueryAndReturnResult(pendingRequestsQuery);
+    public static long getRefreshQueries() { return refreshQueries.get(); }
+    public static long getRefreshQueriesAvoided() { return refreshQueriesAvoided.get(); }
 
-        messages = new ArrayList<List<String>>();
+    private static boolean isStale(long loadedAt, long now, long ttl) {
+        return loadedAt == 0 || now - loadedAt >= ttl;
     }
 }
@@ -0,0 +1,190 @@
+/*
+ * Process-wide read-through cache of the per-user data every session loads:
+ * profiles, friend lists and pending requests. Popular users are read by many
+ * sessions, and with this each of them is queried once, not once per session.
+ *
+ * Every path that changes one of these (FriendRequests through
+ * ProfNetworkService, changePassword) invalidates the entries of all users it
+ * touches, so sessions in this process see the change on their next refresh.
+ * Writes from other processes show up once an entry outlives the TTL
+ * (-Dprofnetwork.session.ttl, as for the per-session cache in User). Writes
+ * that go through the write-behind queue invalidate once they have landed.
+ *
+ * -Dprofnetwork.cache.bytes=<n> sets the memory budget shared by the three
+ * caches (default 32MB); -Dprofnetwork.cache=off turns caching off, so every
+ * read goes to the database, for A/B comparisons.
+ */
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public final class UserCache {
+
+    public static final long DEFAULT_CAPACITY_BYTES = 32L * 1024 * 1024;
+
+    static final boolean ENABLED = !"off".equals(System.getProperty("profnetwork.cache"));
+    static final long CAPACITY_BYTES = Long.getLong("profnetwork.cache.bytes", DEFAULT_CAPACITY_BYTES);
+
+    // rough JVM sizes, for the memory accounting
+    static final int ENTRY_OVERHEAD = 96;
+    static final int REFERENCE_OVERHEAD = 48;
+
+    /*
+     * A user's friends, as a list for display and a set for membership checks.
+     **/
+    public static final class Friends {
+        public final List<User.Friend> list;
+        final Set<String> ids;
+
+        Friends(List<User.Friend> list, Set<String> ids) {
+            this.list = list;
+            this.ids = ids;
+        }
+
+        public boolean contains(String userId) {
+            return ids.contains(userId);
+        }
+    }
+
+    private final ProfNetwork esql;
+    private final SegmentedLruCache<String, User.Profile> profiles;
+    private final SegmentedLruCache<String, Friends> friends;
+    private final SegmentedLruCache<String, List<User.PendingRequest>> pending;
+
+    public UserCache(final ProfNetwork esql) {
+        this(esql, CAPACITY_BYTES, User.TTL_MILLIS, ENABLED);
+    }
+
+    public UserCache(final ProfNetwork esql, long capacityBytes, long ttlMillis, boolean enabled) {
+        this.esql = esql;
+        // friend lists are the big entries, give them half
+        profiles = new SegmentedLruCache<String, User.Profile>("profile", capacityBytes / 4, ttlMillis, enabled,
+            new SegmentedLruCache.Loader<String, User.Profile>() {
+                public User.Profile load(String userId) throws SQLException {
+                    return loadProfile(userId);
+                }
+            },
+            new SegmentedLruCache.Weigher<String, User.Profile>() {
+                public long weigh(String userId, User.Profile p) {
+                    return ENTRY_OVERHEAD + sizeOf(userId) + REFERENCE_OVERHEAD
+                        + sizeOf(p.userId) + sizeOf(p.email) + sizeOf(p.name) + sizeOf(p.dateOfBirth);
+                }
+            });
+        friends = new SegmentedLruCache<String, Friends>("friends", capacityBytes / 2, ttlMillis, enabled,
+            new SegmentedLruCache.Loader<String, Friends>() {
+                public Friends load(String userId) throws SQLException {
+                    return loadFriends(userId);
+                }
+            },
+            new SegmentedLruCache.Weigher<String, Friends>() {
+                public long weigh(String userId, Friends f) {
+                    long bytes = ENTRY_OVERHEAD + sizeOf(userId) + 2 * REFERENCE_OVERHEAD;
+                    // each friend: its id string, a Friend object and a hash set node
+                    for(User.Friend friend : f.list) bytes += sizeOf(friend.userId) + 16 + 32;
+                    return bytes;
+                }
+            });
+        pending = new SegmentedLruCache<String, List<User.PendingRequest>>("pending", capacityBytes / 4, ttlMillis, enabled,
+            new SegmentedLruCache.Loader<String, List<User.PendingRequest>>() {
+                public List<User.PendingRequest> load(String userId) throws SQLException {
+                    return loadPendingRequests(userId);
+                }
+            },
+            new SegmentedLruCache.Weigher<String, List<User.PendingRequest>>() {
+                public long weigh(String userId, List<User.PendingRequest> list) {
+                    long bytes = ENTRY_OVERHEAD + sizeOf(userId) + REFERENCE_OVERHEAD;
+                    for(User.PendingRequest r : list) bytes += sizeOf(r.fromUserId) + 16 + 8;
+                    return bytes;
+                }
+            });
+    }
+
+    public boolean isEnabled() {
+        return profiles.isEnabled();
+    }
+
+    public User.Profile profile(String userId) throws SQLException {
+        return profiles.get(userId);
+    }
+
+    public Friends friends(String userId) throws SQLException {
+        return friends.get(userId);
+    }
+
+    public List<User.PendingRequest> pendingRequests(String userId) throws SQLException {
+        return pending.get(userId);
+    }
+
+    public void invalidateProfile(String userId) {
+        profiles.invalidate(userId);
+    }
+
+    public void invalidateFriends(String userId) {
+        friends.invalidate(userId);
+    }
+
+    public void invalidatePendingRequests(String userId) {
+        pending.invalidate(userId);
+    }
+
+    private User.Profile loadProfile(String userId) throws SQLException {
+        List<List<String>> rows = esql.executeQueryAndReturnResult(User.PROFILE_QUERY, userId);
+        User.refreshQueries.incrementAndGet();
+        if(rows.isEmpty()) throw new SQLException("No such user: " + userId);
+        List<String> row = rows.get(0);
+        // name is char(50)
+        return new User.Profile(row.get(0), row.get(1), trimOrNull(row.get(2)), row.get(3));
+    }
+
+    private Friends loadFriends(String userId) throws SQLException {
+        Object key = esql.userKey(userId);
+        List<List<String>> rows = esql.executeQueryAndReturnResult(User.friendsQuery(esql), key, key);
+        User.refreshQueries.incrementAndGet();
+        List<User.Friend> list = new ArrayList<User.Friend>(rows.size());
+        Set<String> ids = new HashSet<String>(rows.size() * 2);
+        for(List<String> row : rows) {
+            // the friend is whichever side of the connection isn't us
+            String a = row.get(0);
+            String other = a.equals(userId) ? row.get(1) : a;
+            if(ids.add(other)) list.add(new User.Friend(other));
+        }
+        return new Friends(Collections.unmodifiableList(list), Collections.unmodifiableSet(ids));
+    }
+
+    private List<User.PendingRequest> loadPendingRequests(String userId) throws SQLException {
+        List<List<String>> rows = esql.executeQueryAndReturnResult(User.pendingRequestsQuery(esql), esql.userKey(userId));
+        User.refreshQueries.incrementAndGet();
+        List<User.PendingRequest> list = new ArrayList<User.PendingRequest>(rows.size());
+        for(List<String> row : rows) list.add(new User.PendingRequest(row.get(0)));
+        return Collections.unmodifiableList(list);
+    }
+
+    private static long sizeOf(String s) {
+        return s == null ? 0 : 40 + 2L * s.length();
+    }
+
+    private static String trimOrNull(String s) {
+        return s == null ? null : s.trim();
+    }
+
+    List<SegmentedLruCache<String, ?>> caches() {
+        List<SegmentedLruCache<String, ?>> all = new ArrayList<SegmentedLruCache<String, ?>>(3);
+        all.add(profiles);
+        all.add(friends);
+        all.add(pending);
+        return all;
+    }
+
+    public String statsSummary() {
+        StringBuilder sb = new StringBuilder();
+        for(SegmentedLruCache<String, ?> cache : caches()) {
+            if(sb.length() > 0) sb.append(String.format("%n"));
+            sb.append(cache.statsSummary());
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Server-side user search over userId, name and email.
+ *
+ * The three columns are matched as one lower cased string with LIKE
+ * '%text%', which the pg_trgm GIN index usr_search_trgm_idx (create_index.sql)
+ * answers without scanning usr. SEARCH_TEXT must stay identical to the
+ * indexed expression or the planner will not use the index. Results are in
+ * userId order and paged by keyset: the next page starts after the last
+ * userId of the previous one.
+ */
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class UserSearch {
+
+    public static final int DEFAULT_PAGE_SIZE = 10;
+
+    // pg_trgm needs three characters to narrow anything down
+    public static final int MIN_SEARCH_LENGTH = 3;
+
+    static final String SEARCH_TEXT = "lower(userId || ' ' || coalesce(name, '') || ' ' || email)";
+
+    static final String SEARCH_QUERY = QueryStats.named("user.search",
+        "SELECT userId, name, email FROM usr " +
+        "WHERE " + SEARCH_TEXT + " LIKE ? AND userId > ? " +
+        "ORDER BY userId LIMIT ?");
+
+    /*
+     * One matching user.
+     **/
+    public static final class Hit {
+        public final String userId;
+        public final String name;
+        public final String email;
+
+        Hit(ResultSet rs) throws SQLException {
+            userId = rs.getString(1).trim();
+            String n = rs.getString(2);
+            name = n == null ? null : n.trim();
+            email = rs.getString(3).trim();
+        }
+    }
+
+    /*
+     * A page of hits, next is the value to pass as after for the following page
+     * or null if this was the last one.
+     **/
+    public static final class Page {
+        public final List<Hit> hits;
+        public final String next;
+
+        Page(List<Hit> hits, String next) {
+            this.hits = hits;
+            this.next = next;
+        }
+    }
+
+    private final ProfNetwork esql;
+
+    public UserSearch(ProfNetwork esql) {
+        this.esql = esql;
+    }
+
+    /*
+     * Users whose id, name or email contains text (ignoring case). Pass "" as
+     * after for the first page.
+     **/
+    public Page search(String text, String after, int pageSize) throws SQLException {
+        final List<Hit> hits = new ArrayList<Hit>(pageSize);
+        String pattern = "%" + escapeLike(text.trim().toLowerCase()) + "%";
+        // LIMIT bounds the page, so no cursor
+        esql.executeQueryStreaming(SEARCH_QUERY, 0, new RowHandler() {
+            public boolean row(ResultSet rs) throws SQLException {
+                hits.add(new Hit(rs));
+                return true;
+            }
+        }, pattern, after, pageSize);
+        String next = hits.size() == pageSize ? hits.get(hits.size() - 1).userId : null;
+        return new Page(Collections.unmodifiableList(hits), next);
+    }
+
+    /*
+     * Makes the user's text match literally: LIKE's default escape character is
+     * the backslash.
+     **/
+    static String escapeLike(String text) {
+        StringBuilder sb = new StringBuilder(text.length() + 8);
+        for(int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if(c == '\\' || c == '%' || c == '_') sb.append('\\');
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Benchmarks user search against the full data/usr.csv dataset:
+ *
+ *  - the in-memory AutocompleteIndex (build time, prefix lookups and "did you
+ *    mean" suggestions) against a linear scan of the same ids,
+ *  - the trigram indexed UserSearch query and, for comparison, doing prefix
+ *    autocomplete with a LIKE 'prefix%' query instead of in memory.
+ *
+ * The database part expects usr to hold usr.csv (sql/scripts/create_db.sh) and
+ * create_index.sql to have been run. Pass --memory-only to skip it.
+ *
+ * Usage: java UserSearchBenchmark <dbname> <port> <user> [--csv path]
+ *            [--lookups N] [--memory-only]
+ */
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class UserSearchBenchmark {
+
+    static final String DEFAULT_CSV = "data/usr.csv";
+    static final int LIMIT = 10;
+
+    static final String PREFIX_QUERY = "SELECT userid FROM usr WHERE userid LIKE ? ORDER BY userid LIMIT ?";
+
+    static volatile long sink;
+
+    /*
+     * userId, email and name of every row in usr.csv.
+     **/
+    static List<String[]> readUsers(String path) throws IOException {
+        List<String[]> users = new ArrayList<String[]>();
+        BufferedReader reader = new BufferedReader(new FileReader(path));
+        try {
+            String line;
+            while((line = reader.readLine()) != null) {
+                if(line.isEmpty()) continue;
+                List<String> fields = BulkLoader.parseCsv(line);
+                users.add(new String[] { fields.get(0), fields.get(2), fields.size() > 3 ? fields.get(3) : "" });
+            }
+        }
+        finally {
+            reader.close();
+        }
+        return users;
+    }
+
+    static String randomPrefix(Random rnd, String[] ids) {
+        String id = ids[rnd.nextInt(ids.length)];
+        return id.substring(0, Math.min(id.length(), 1 + rnd.nextInt(4)));
+    }
+
+    // a search term taken from the middle of someone's name or email
+    static String randomTerm(Random rnd, List<String[]> users) {
+        String[] u = users.get(rnd.nextInt(users.size()));
+        String s = u[1 + rnd.nextInt(2)];
+        if(s.length() < UserSearch.MIN_SEARCH_LENGTH) s = u[0];
+        int len = Math.min(s.length(), UserSearch.MIN_SEARCH_LENGTH + rnd.nextInt(4));
+        int start = rnd.nextInt(s.length() - len + 1);
+        return s.substring(start, start + len);
+    }
+
+    static void report(String name, LoadDriver.Recorder r) {
+        System.out.println(String.format("%-32s %8d %10.4f %10.4f %10.4f", name, r.count,
+            r.percentileMillis(0.50), r.percentileMillis(0.99), r.percentileMillis(0.999)));
+    }
+
+    static void memory(String[] ids, int lookups) {
+        long start = System.nanoTime();
+        AutocompleteIndex index = new AutocompleteIndex(ids);
+        System.out.println(String.format("AutocompleteIndex: %d ids built in %.1fms", index.size(), (System.nanoTime() - start) / 1e6));
+
+        Random rnd = new Random(42);
+        // warm up so the JIT has compiled the lookup paths before we time them
+        for(int i = 0; i < 20000; i++) sink += index.complete(randomPrefix(rnd, ids), LIMIT).size();
+
+        LoadDriver.Recorder indexed = new LoadDriver.Recorder();
+        LoadDriver.Recorder suggest = new LoadDriver.Recorder();
+        LoadDriver.Recorder scan = new LoadDriver.Recorder();
+        for(int i = 0; i < lookups; i++) {
+            String prefix = randomPrefix(rnd, ids);
+            long t = System.nanoTime();
+            sink += index.complete(prefix, LIMIT).size();
+            indexed.record(System.nanoTime() - t);
+
+            // a typo at the end of a real id
+            String typo = ids[rnd.nextInt(ids.length)] + "#";
+            t = System.nanoTime();
+            sink += index.suggest(typo, 2, LIMIT).size();
+            suggest.record(System.nanoTime() - t);
+
+            if(i < lookups / 10) {
+                t = System.nanoTime();
+                String p = prefix.toLowerCase();
+                int found = 0;
+                for(int j = 0; j < ids.length && found < LIMIT; j++)
+                    if(ids[j].toLowerCase().startsWith(p)) found++;
+                sink += found;
+                scan.record(System.nanoTime() - t);
+            }
+        }
+        report("memory: prefix complete", indexed);
+        report("memory: did-you-mean suggest", suggest);
+        report("memory: linear scan (baseline)", scan);
+    }
+
+    static void database(ProfNetwork esql, List<String[]> users, String[] ids, int lookups) throws Exception {
+        UserSearch search = new UserSearch(esql);
+        Random rnd = new Random(7);
+        LoadDriver.Recorder trigram = new LoadDriver.Recorder();
+        LoadDriver.Recorder prefix = new LoadDriver.Recorder();
+        long hits = 0;
+        for(int i = 0; i < lookups; i++) {
+            long t = System.nanoTime();
+            hits += search.search(randomTerm(rnd, users), "", UserSearch.DEFAULT_PAGE_SIZE).hits.size();
+            trigram.record(System.nanoTime() - t);
+
+            String p = UserSearch.escapeLike(randomPrefix(rnd, ids)) + "%";
+            t = System.nanoTime();
+            hits += esql.executeQuery(PREFIX_QUERY, p, LIMIT);
+            prefix.record(System.nanoTime() - t);
+        }
+        sink += hits;
+        report("db: trigram search page", trigram);
+        report("db: LIKE prefix autocomplete", prefix);
+    }
+
+    public static void main(String[] args) {
+        if(args.length < 3) {
+            System.err.println("Usage: java [-classpath <classpath>] " + UserSearchBenchmark.class.getName() +
+                " <dbname> <port> <user> [--csv path] [--lookups N] [--memory-only]");
+            return;
+        }
+        String csv = DEFAULT_CSV;
+        int lookups = 100000;
+        boolean memoryOnly = false;
+        for(int i = 3; i < args.length; i++) {
+            if(args[i].equals("--csv") && i + 1 < args.length) csv = args[++i];
+            else if(args[i].equals("--lookups") && i + 1 < args.length) lookups = Integer.parseInt(args[++i]);
+            else if(args[i].equals("--memory-only")) memoryOnly = true;
+        }
+
+        ProfNetwork esql = null;
+        try {
+            List<String[]> users = readUsers(csv);
+            String[] ids = new String[users.size()];
+            for(int i = 0; i < ids.length; i++) ids[i] = users.get(i)[0];
+            System.out.println("Read " + ids.length + " users from " + csv);
+            System.out.println(String.format("%-32s %8s %10s %10s %10s", "", "count", "p50 ms", "p99 ms", "p999 ms"));
+            memory(ids, lookups);
+            if(!memoryOnly) {
+                Class.forName("org.postgresql.Driver").newInstance();
+                esql = new ProfNetwork(args[0], args[1], args[2], "");
+                // queries are far slower than lookups, 1% of the count keeps the run short
+                database(esql, users, ids, Math.max(100, lookups / 100));
+            }
+        }
+        catch(Exception e) {
+            System.err.println(e.getMessage());
+        }
+        finally {
+            if(esql != null) esql.cleanup();
+        }
+    }
+}
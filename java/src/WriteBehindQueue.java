@@ -0,0 +1,286 @@
+/*
+ * Optional write-behind pipeline for ProfNetwork mutations that need no
+ * answer before the menu moves on: rejected friend requests and password
+ * changes. Sending and accepting requests run right away in FriendRequests.
+ *
+ * Callers put a statement on a bounded queue and get a Future back right away.
+ * One background writer takes whatever has queued up (waiting up to the group
+ * commit window for more to arrive), runs it as a single transaction and
+ * completes the futures. When the queue is full, submit blocks, which pushes
+ * back on the callers instead of buffering without limit. If a batch fails it
+ * is rolled back and its statements are retried one by one, so a single bad
+ * statement only fails its own future.
+ */
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class WriteBehindQueue {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+    public static final int DEFAULT_MAX_BATCH = 128;
+    public static final long DEFAULT_GROUP_COMMIT_MILLIS = 5;
+
+    /*
+     * The pending result of one queued statement: the number of rows it changed.
+     * onWritten, if any, runs once it is done, on the writer's thread.
+     **/
+    static final class Result extends FutureTask<Integer> {
+        private static final Callable<Integer> NONE = new Callable<Integer>() {
+            public Integer call() { return 0; }
+        };
+        private final Runnable onWritten;
+
+        Result(Runnable onWritten) {
+            super(NONE);
+            this.onWritten = onWritten;
+        }
+        void complete(int rows) { set(rows); }
+        void fail(Throwable t) { setException(t); }
+
+        protected void done() {
+            if(onWritten == null) return;
+            try {
+                onWritten.run();
+            }
+            catch(RuntimeException e) {
+                System.err.println("Write-behind callback failed: " + e);
+            }
+        }
+    }
+
+    static final class Mutation {
+        final String sql;
+        final Object[] params;
+        final Result result;
+
+        Mutation(String sql, Object[] params, Runnable onWritten) {
+            this.sql = sql;
+            this.params = params;
+            this.result = new Result(onWritten);
+        }
+    }
+
+    // queued to tell the writer to stop once everything before it is written
+    private static final Mutation STOP = new Mutation(null, null, null);
+
+    private final ConnectionPool pool;
+    private final BlockingQueue<Mutation> queue;
+    private final int maxBatch;
+    private final long groupCommitMillis;
+    private final Thread writer;
+    // guards closed, so nothing is queued after STOP
+    private final Object lock = new Object();
+    private boolean closed = false;
+
+    // metrics
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong mutations = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong maxBatchSize = new AtomicLong();
+    private final AtomicLong batchNanos = new AtomicLong();
+    private final AtomicLong maxBatchNanos = new AtomicLong();
+
+    /*
+     * A future that is already done, for writes that ran synchronously.
+     **/
+    static Future<Integer> completed(int rows, Runnable onWritten) {
+        Result result = new Result(onWritten);
+        result.complete(rows);
+        return result;
+    }
+
+    public WriteBehindQueue(ConnectionPool pool) {
+        this(pool, DEFAULT_CAPACITY, DEFAULT_MAX_BATCH, DEFAULT_GROUP_COMMIT_MILLIS);
+    }
+
+    public WriteBehindQueue(ConnectionPool pool, int capacity, int maxBatch, long groupCommitMillis) {
+        this.pool = pool;
+        this.queue = new ArrayBlockingQueue<Mutation>(capacity);
+        this.maxBatch = maxBatch;
+        this.groupCommitMillis = groupCommitMillis;
+        this.writer = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "write-behind");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /*
+     * Queues a statement, blocking while the queue is full. onWritten (may be
+     * null) runs once the statement has been written or has failed.
+     **/
+    public Future<Integer> submit(Runnable onWritten, String sql, Object... params) throws SQLException {
+        Mutation m = new Mutation(sql, params, onWritten);
+        // the writer never takes the lock, so a put blocked on a full queue still drains
+        synchronized(lock) {
+            if(closed) throw new SQLException("Write-behind queue is closed");
+            try {
+                queue.put(m);
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while queueing a write");
+            }
+        }
+        return m.result;
+    }
+
+    /*
+     * Stops accepting writes, waits for everything queued to be written and stops the writer.
+     **/
+    public void close() {
+        try {
+            synchronized(lock) {
+                if(closed) return;
+                closed = true;
+                queue.put(STOP);
+            }
+            writer.join();
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        List<Mutation> batch = new ArrayList<Mutation>(maxBatch);
+        boolean stopping = false;
+        while(!stopping) {
+            try {
+                batch.add(queue.take());
+                // group commit: give other writes a moment to join this transaction
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(groupCommitMillis);
+                while(batch.size() < maxBatch && batch.get(batch.size() - 1) != STOP) {
+                    long wait = deadline - System.nanoTime();
+                    Mutation next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+                    if(next == null) break;
+                    batch.add(next);
+                }
+            }
+            catch(InterruptedException e) {
+                stopping = true;
+            }
+            if(!batch.isEmpty() && batch.get(batch.size() - 1) == STOP) {
+                batch.remove(batch.size() - 1);
+                stopping = true;
+            }
+            if(!batch.isEmpty()) write(batch);
+            batch.clear();
+        }
+        // only left behind if the writer was interrupted; don't let anyone wait on them
+        List<Mutation> left = new ArrayList<Mutation>();
+        queue.drainTo(left);
+        for(Mutation m : left) {
+            if(m == STOP) continue;
+            failures.incrementAndGet();
+            m.result.fail(new SQLException("Write-behind queue stopped before the write"));
+        }
+    }
+
+    private void write(List<Mutation> batch) {
+        long start = System.nanoTime();
+        ConnectionPool.PooledConnection conn = null;
+        try {
+            conn = pool.borrow();
+            int[] rows = new int[batch.size()];
+            try {
+                conn.connection.setAutoCommit(false);
+                for(int i = 0; i < batch.size(); i++) rows[i] = execute(conn, batch.get(i));
+                conn.connection.commit();
+                for(int i = 0; i < batch.size(); i++) batch.get(i).result.complete(rows[i]);
+            }
+            catch(SQLException e) {
+                // find the bad statement(s): retry each on its own
+                conn.connection.rollback();
+                conn.connection.setAutoCommit(true);
+                for(Mutation m : batch) {
+                    try {
+                        m.result.complete(execute(conn, m));
+                    }
+                    catch(SQLException one) {
+                        failures.incrementAndGet();
+                        System.err.println("Write-behind statement failed: " + one.getMessage());
+                        m.result.fail(one);
+                    }
+                }
+            }
+        }
+        catch(SQLException e) {
+            for(Mutation m : batch) {
+                if(!m.result.isDone()) {
+                    failures.incrementAndGet();
+                    m.result.fail(e);
+                }
+            }
+        }
+        finally {
+            pool.release(conn);
+        }
+        record(batch.size(), System.nanoTime() - start);
+    }
+
+    private static int execute(ConnectionPool.PooledConnection conn, Mutation m) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            PreparedStatement stmt = conn.prepare(m.sql);
+            ProfNetwork.bind(stmt, m.params);
+            int rows = stmt.executeUpdate();
+            QueryStats.record(m.sql, start, rows, 0);
+            return rows;
+        }
+        catch(SQLException e) {
+            QueryStats.failed(m.sql, start, e);
+            throw e;
+        }
+    }
+
+    private void record(int size, long nanos) {
+        batches.incrementAndGet();
+        mutations.addAndGet(size);
+        batchNanos.addAndGet(nanos);
+        long max = maxBatchSize.get();
+        while(size > max && !maxBatchSize.compareAndSet(max, size)) max = maxBatchSize.get();
+        max = maxBatchNanos.get();
+        while(nanos > max && !maxBatchNanos.compareAndSet(max, nanos)) max = maxBatchNanos.get();
+    }
+
+    // metrics
+
+    public int getQueueDepth() { return queue.size(); }
+    public long getBatchCount() { return batches.get(); }
+    public long getMutationCount() { return mutations.get(); }
+    public long getFailureCount() { return failures.get(); }
+    public long getMaxBatchSize() { return maxBatchSize.get(); }
+
+    public double getAverageBatchSize() {
+        long n = batches.get();
+        return n == 0 ? 0.0 : (double) mutations.get() / n;
+    }
+
+    public double getAverageBatchMillis() {
+        long n = batches.get();
+        return n == 0 ? 0.0 : batchNanos.get() / (n * 1000000.0);
+    }
+
+    public double getMaxBatchMillis() {
+        return maxBatchNanos.get() / 1000000.0;
+    }
+
+    public String statsSummary() {
+        return String.format("write-behind: batches=%d writes=%d failed=%d avgBatch=%.1f maxBatch=%d avgLatency=%.3fms maxLatency=%.3fms queued=%d",
+                getBatchCount(), getMutationCount(), getFailureCount(), getAverageBatchSize(), getMaxBatchSize(),
+                getAverageBatchMillis(), getMaxBatchMillis(), getQueueDepth());
+    }
+}
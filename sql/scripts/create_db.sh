@@ -1,5 +1,8 @@
 #!/bin/bash
 DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 psql -p $PGPORT $DB_NAME < $DIR/../src/create_tables.sql
-psql -p $PGPORT $DB_NAME < $DIR/../src/create_index.sql
 psql -p $PGPORT $DB_NAME < $DIR/../src/load_data.sql
+# indexes are built after the load
+psql -p $PGPORT $DB_NAME < $DIR/../src/create_index.sql
+# counters are backfilled once, then kept by triggers
+psql -p $PGPORT $DB_NAME < $DIR/../src/create_triggers.sql
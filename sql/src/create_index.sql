@@ -0,0 +1,30 @@
+-- Indexes for the hot lookups in ProfNetwork and User. Run after the data is
+-- loaded (see create_db.sh), building them once is cheaper than maintaining
+-- them row by row during a bulk load.
+
+-- connection_usr: the primary key (userId, connectionId) covers lookups by
+-- sender. This is the reverse direction, used for requests sent to a user and
+-- the connectionId side of the friend / connection count queries.
+CREATE INDEX connection_usr_connectionid_userid_idx ON CONNECTION_USR (connectionId, userId);
+
+-- Friend lists and the depth-3 check only follow accepted connections, so keep
+-- small partial indexes over just those rows, one per direction.
+CREATE INDEX connection_usr_friend_userid_idx ON CONNECTION_USR (userId) WHERE status = 'friend';
+CREATE INDEX connection_usr_friend_connectionid_idx ON CONNECTION_USR (connectionId) WHERE status = 'friend';
+
+-- Pending requests are looked up by recipient on every main menu refresh.
+CREATE INDEX connection_usr_pending_connectionid_idx ON CONNECTION_USR (connectionId) WHERE status = 'pending';
+
+-- user search: trigram GIN index over userId, name and email as one string,
+-- serves LIKE '%text%'. The expression must match UserSearch.SEARCH_TEXT.
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+CREATE INDEX usr_search_trgm_idx ON USR USING gin ((lower(userId || ' ' || coalesce(name, '') || ' ' || email)) gin_trgm_ops);
+
+ANALYZE USR;
+ANALYZE CONNECTION_USR;
+
+-- message: inbox and outbox are read newest first and paged by (sendTime, msgId).
+CREATE INDEX message_receiver_sendtime_idx ON MESSAGE (receiverId, sendTime, msgId);
+CREATE INDEX message_sender_sendtime_idx ON MESSAGE (senderId, sendTime, msgId);
+
+ANALYZE MESSAGE;
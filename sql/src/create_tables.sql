@@ -1,6 +1,10 @@
+DROP TABLE CONNECTION_COUNT;
+DROP TABLE CONNECTION_USR_LOG;
+DROP TABLE RECOMMENDATION;
 DROP TABLE WORK_EXPR;
 DROP TABLE EDUCATIONAL_DETAILS;
 DROP TABLE MESSAGE;
+DROP SEQUENCE message_msgid_seq;
 DROP TABLE CONNECTION_USR;
 DROP TABLE USR;
 
@@ -33,17 +37,26 @@ CREATE TABLE EDUCATIONAL_DETAILS(
 	PRIMARY KEY(userId,major,degree),
   FOREIGN KEY (userId) REFERENCES USR ON DELETE CASCADE);
 
+-- msgIds are handed out in blocks by MessageStore.send
+CREATE SEQUENCE message_msgid_seq;
+
+-- partitioned by month of sendTime (PostgreSQL 11 or later). The key has to
+-- include sendTime; the sequence keeps msgIds unique. Months are created and
+-- archived by MessagePartitions, until then rows land in MESSAGE_DEFAULT.
 CREATE TABLE MESSAGE(
-	msgId integer UNIQUE NOT NULL,
+	msgId integer NOT NULL,
 	senderId char(30) NOT NULL,
 	receiverId char(30) NOT NULL,
 	contents char(500) NOT NULL,
-	sendTime timestamp,
+	sendTime timestamp NOT NULL DEFAULT now(),
 	deleteStatus integer,
 	status char(30) NOT NULL,
-	PRIMARY KEY(msgId),
+	PRIMARY KEY(msgId,sendTime),
   FOREIGN KEY (senderId) REFERENCES USR,
-  FOREIGN KEY (receiverId) REFERENCES USR);
+  FOREIGN KEY (receiverId) REFERENCES USR)
+	PARTITION BY RANGE (sendTime);
+
+CREATE TABLE MESSAGE_DEFAULT PARTITION OF MESSAGE DEFAULT;
 
 CREATE TABLE CONNECTION_USR(
 	userId char(30) NOT NULL,
@@ -51,3 +64,34 @@ CREATE TABLE CONNECTION_USR(
 	status char(30) NOT NULL,
 	PRIMARY KEY(userId,connectionId),
   FOREIGN KEY (userId) REFERENCES USR );
+
+-- number of connection_usr rows (friend or pending, either direction) each
+-- user is part of, kept up to date by the trigger in create_triggers.sql so the
+-- free connection check is one primary key lookup. Users without a row have 0.
+CREATE TABLE CONNECTION_COUNT(
+	userId char(30) NOT NULL,
+	connections integer NOT NULL,
+	PRIMARY KEY(userId));
+
+-- every friend edge that appeared ('A') or went away ('D') in connection_usr,
+-- plus a 'T' row when it is truncated, written by the trigger in
+-- create_triggers.sql. seq is the change counter graph snapshots are stamped
+-- with (see GraphSnapshot), so a snapshot at seq n is brought up to date by
+-- replaying the rows after n.
+CREATE TABLE CONNECTION_USR_LOG(
+	seq bigserial NOT NULL,
+	userId char(30) NOT NULL,
+	connectionId char(30) NOT NULL,
+	op char(1) NOT NULL,
+	PRIMARY KEY(seq));
+
+-- "people you may know", rewritten per user by RecommendationEngine. Derived
+-- data, so no foreign keys to slow the rewrite down.
+CREATE TABLE RECOMMENDATION(
+	userId char(30) NOT NULL,
+	ranking integer NOT NULL,
+	candidateId char(30) NOT NULL,
+	mutualFriends integer NOT NULL,
+	hops integer NOT NULL,
+	computedAt timestamp NOT NULL,
+	PRIMARY KEY(userId,ranking));
@@ -0,0 +1,155 @@
+-- Triggers keeping derived tables in step with the data. Run after the data is
+-- loaded (see create_db.sh): the counters are backfilled in one pass here
+-- instead of being bumped row by row during the load.
+
+-- connection_count: +1 for both users of every connection_usr row inserted,
+-- -1 when it is deleted. Changing status (pending -> friend) does not touch
+-- it. New counter rows are upserted in userId order so concurrent inserts
+-- lock them in the same order, and a row from a user to themself counts once,
+-- like the count query it replaces.
+CREATE OR REPLACE FUNCTION connection_count_maintain() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP IN ('DELETE', 'UPDATE') THEN
+		UPDATE connection_count c SET connections = c.connections - 1
+		FROM (SELECT DISTINCT u FROM (VALUES (OLD.userId), (OLD.connectionId)) v(u) ORDER BY u) o
+		WHERE c.userId = o.u;
+	END IF;
+	IF TG_OP IN ('INSERT', 'UPDATE') THEN
+		INSERT INTO connection_count AS c (userId, connections)
+		SELECT DISTINCT u, 1 FROM (VALUES (NEW.userId), (NEW.connectionId)) v(u) ORDER BY u
+		ON CONFLICT (userId) DO UPDATE SET connections = c.connections + 1;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION connection_count_truncate() RETURNS trigger AS $$
+BEGIN
+	TRUNCATE connection_count;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+BEGIN;
+-- nobody may write connection_usr between the backfill and the trigger
+LOCK TABLE CONNECTION_USR IN SHARE MODE;
+
+DROP TRIGGER IF EXISTS connection_count_row ON CONNECTION_USR;
+DROP TRIGGER IF EXISTS connection_count_truncate ON CONNECTION_USR;
+
+TRUNCATE connection_count;
+INSERT INTO connection_count (userId, connections)
+SELECT u, count(*) FROM (
+	SELECT userId AS u FROM connection_usr
+	UNION ALL
+	SELECT connectionId FROM connection_usr WHERE connectionId <> userId) e
+GROUP BY u;
+
+CREATE TRIGGER connection_count_row
+	AFTER INSERT OR DELETE OR UPDATE OF userId, connectionId ON CONNECTION_USR
+	FOR EACH ROW EXECUTE PROCEDURE connection_count_maintain();
+CREATE TRIGGER connection_count_truncate
+	AFTER TRUNCATE ON CONNECTION_USR
+	FOR EACH STATEMENT EXECUTE PROCEDURE connection_count_truncate();
+COMMIT;
+
+ANALYZE CONNECTION_COUNT;
+
+-- connection_usr_log: a row per friend edge added or removed. Inserting a
+-- friend row or accepting a request logs 'A', deleting a friend row logs 'D'.
+-- Pending requests are not logged, they are not part of the graph. Updates of
+-- other columns (the uid columns SurrogateKeys adds) are not logged either.
+CREATE OR REPLACE FUNCTION connection_usr_log_friend() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP IN ('DELETE', 'UPDATE') AND OLD.status = 'friend' THEN
+		INSERT INTO connection_usr_log (userId, connectionId, op) VALUES (OLD.userId, OLD.connectionId, 'D');
+	END IF;
+	IF TG_OP IN ('INSERT', 'UPDATE') AND NEW.status = 'friend' THEN
+		INSERT INTO connection_usr_log (userId, connectionId, op) VALUES (NEW.userId, NEW.connectionId, 'A');
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- snapshots older than a truncate cannot be patched up, they are rewritten
+CREATE OR REPLACE FUNCTION connection_usr_log_truncate() RETURNS trigger AS $$
+BEGIN
+	INSERT INTO connection_usr_log (userId, connectionId, op) VALUES ('', '', 'T');
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS connection_usr_log_row ON CONNECTION_USR;
+DROP TRIGGER IF EXISTS connection_usr_log_truncate ON CONNECTION_USR;
+CREATE TRIGGER connection_usr_log_row
+	AFTER INSERT OR DELETE OR UPDATE OF userId, connectionId, status ON CONNECTION_USR
+	FOR EACH ROW EXECUTE PROCEDURE connection_usr_log_friend();
+CREATE TRIGGER connection_usr_log_truncate
+	AFTER TRUNCATE ON CONNECTION_USR
+	FOR EACH STATEMENT EXECUTE PROCEDURE connection_usr_log_truncate();
+
+-- notifications: NOTIFY "profnetwork.<userid>" for every user whose pending
+-- requests, friends or inbox changed, with the event and the time of the
+-- change in epoch millis as the payload, e.g. 'pending 1712345678901'.
+-- Notifications (java/src) listens for the users with a session. The triggers
+-- run once per statement over its transition tables, so a bulk load sends one
+-- notification per user, not per row, and updates that leave userId,
+-- connectionId and status alone (the uid backfill) send none.
+CREATE OR REPLACE FUNCTION connection_usr_recipients(a char(30), b char(30), status char(30))
+RETURNS TABLE (userId text, event text) AS $$
+	SELECT trim(b), 'pending' WHERE status = 'pending'
+	UNION ALL
+	SELECT trim(u), 'friends' FROM (VALUES (a), (b)) v(u) WHERE status = 'friend';
+$$ LANGUAGE sql IMMUTABLE;
+
+CREATE OR REPLACE FUNCTION connection_usr_notify() RETURNS trigger AS $$
+DECLARE
+	sent text := CAST(CAST(extract(epoch FROM clock_timestamp()) * 1000 AS bigint) AS text);
+BEGIN
+	IF TG_OP = 'INSERT' THEN
+		PERFORM pg_notify('profnetwork.' || r.userId, r.event || ' ' || sent)
+		FROM (SELECT DISTINCT r.userId, r.event FROM added c,
+		      LATERAL connection_usr_recipients(c.userId, c.connectionId, c.status) r) r;
+	ELSIF TG_OP = 'DELETE' THEN
+		PERFORM pg_notify('profnetwork.' || r.userId, r.event || ' ' || sent)
+		FROM (SELECT DISTINCT r.userId, r.event FROM removed c,
+		      LATERAL connection_usr_recipients(c.userId, c.connectionId, c.status) r) r;
+	ELSE
+		PERFORM pg_notify('profnetwork.' || r.userId, r.event || ' ' || sent)
+		FROM (SELECT DISTINCT r.userId, r.event FROM (
+		        (SELECT userId, connectionId, status FROM added EXCEPT ALL SELECT userId, connectionId, status FROM removed)
+		        UNION ALL
+		        (SELECT userId, connectionId, status FROM removed EXCEPT ALL SELECT userId, connectionId, status FROM added)) c,
+		      LATERAL connection_usr_recipients(c.userId, c.connectionId, c.status) r) r;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION message_notify() RETURNS trigger AS $$
+DECLARE
+	sent text := CAST(CAST(extract(epoch FROM clock_timestamp()) * 1000 AS bigint) AS text);
+BEGIN
+	PERFORM pg_notify('profnetwork.' || r.u, 'message ' || sent)
+	FROM (SELECT DISTINCT trim(receiverId) AS u FROM added) r;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- a trigger with transition tables covers one event, hence three
+DROP TRIGGER IF EXISTS connection_usr_notify_insert ON CONNECTION_USR;
+DROP TRIGGER IF EXISTS connection_usr_notify_update ON CONNECTION_USR;
+DROP TRIGGER IF EXISTS connection_usr_notify_delete ON CONNECTION_USR;
+DROP TRIGGER IF EXISTS message_notify ON MESSAGE;
+CREATE TRIGGER connection_usr_notify_insert
+	AFTER INSERT ON CONNECTION_USR REFERENCING NEW TABLE AS added
+	FOR EACH STATEMENT EXECUTE PROCEDURE connection_usr_notify();
+CREATE TRIGGER connection_usr_notify_update
+	AFTER UPDATE ON CONNECTION_USR REFERENCING OLD TABLE AS removed NEW TABLE AS added
+	FOR EACH STATEMENT EXECUTE PROCEDURE connection_usr_notify();
+CREATE TRIGGER connection_usr_notify_delete
+	AFTER DELETE ON CONNECTION_USR REFERENCING OLD TABLE AS removed
+	FOR EACH STATEMENT EXECUTE PROCEDURE connection_usr_notify();
+CREATE TRIGGER message_notify
+	AFTER INSERT ON MESSAGE REFERENCING NEW TABLE AS added
+	FOR EACH STATEMENT EXECUTE PROCEDURE message_notify();
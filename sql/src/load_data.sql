@@ -1,7 +1,16 @@
-COPY usr
+-- Server-side load of the sample data. COPY ... FROM reads the files on the
+-- database server, so the paths below must be absolute paths on that machine.
+-- To load from the client instead (any path, any line endings, in parallel)
+-- use java/scripts/bulk_load.sh, e.g.
+--   ./bulk_load.sh usr ../../data/usr.csv --defer-constraints
+-- For synthetic data at any scale (all five tables) use
+-- java/scripts/generate_data.sh instead of this file.
+-- The columns are listed so this still loads after java/scripts/migrate_keys.sh
+-- has added the uid columns, which triggers fill in.
+COPY usr (userId, password, email, name, dateOfBirth)
 FROM '/Users/isaaclong/Developer/CS166_Database_Project/data/usr_short.csv'
 WITH DELIMITER ',' CSV;
 
-COPY connection_usr
+COPY connection_usr (userId, connectionId, status)
 FROM '/Users/isaaclong/Developer/CS166_Database_Project/data/connection_short.csv'
 WITH DELIMITER ',' CSV;